@@ -0,0 +1,63 @@
+package com.satadru.ratelimiter.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count with the gc profiler (allocation rate per operation) and writes the results of every
+ * thread count to target/jmh/threads-N.json, so that runs can be compared by a script.
+ * The single thread run also samples the latency of every operation.
+ * <p>
+ * Usage: java [-Dthreads=1,2,4] -jar benchmarks.jar [JMH options, e.g. a benchmark regex or -f 1 -wi 1 -i 3].
+ * Without -Dthreads the thread counts are the powers of two up to the number of processors, and the number of processors.
+ */
+public class BenchmarkRunner {
+
+    public static void main( final String[] args ) throws RunnerException, CommandLineOptionException {
+        final CommandLineOptions commandLineOptions = new CommandLineOptions( args );
+        final File resultDirectory = new File( "target/jmh" );
+        if ( !resultDirectory.isDirectory() && !resultDirectory.mkdirs() ) {
+            throw new IllegalStateException( "Cannot create " + resultDirectory );
+        }
+        for ( int threads : threadCounts() ) {
+            final ChainedOptionsBuilder options = new OptionsBuilder()
+                    .parent( commandLineOptions )
+                    .threads( threads )
+                    .addProfiler( GCProfiler.class )
+                    .resultFormat( ResultFormatType.JSON )
+                    .result( new File( resultDirectory, "threads-" + threads + ".json" ).getPath() );
+            if ( threads == 1 ) {
+                options.mode( Mode.Throughput ).mode( Mode.SampleTime );
+            }
+            new Runner( options.build() ).run();
+        }
+    }
+
+    private static List<Integer> threadCounts() {
+        final List<Integer> threadCounts = new ArrayList<>();
+        final String property = System.getProperty( "threads" );
+        if ( property != null ) {
+            for ( String threads : property.split( "," ) ) {
+                threadCounts.add( Integer.parseInt( threads.trim() ) );
+            }
+            return threadCounts;
+        }
+        final int processors = Runtime.getRuntime().availableProcessors();
+        for ( int threads = 1; threads < processors; threads <<= 1 ) {
+            threadCounts.add( threads );
+        }
+        threadCounts.add( processors );
+        return threadCounts;
+    }
+}
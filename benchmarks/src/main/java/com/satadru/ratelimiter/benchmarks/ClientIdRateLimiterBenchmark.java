@@ -0,0 +1,104 @@
+package com.satadru.ratelimiter.benchmarks;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.satadru.ratelimiter.leakybucket.distributed.StateStoreUsageSink;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.ClientIdTokenBucketCache;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.DynamoDBBackedSimpleClientIdThrottleClientIdBasedRateLimiter;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.UsageAggregator;
+import com.satadru.ratelimiter.leakybucket.distributed.memory.InMemoryRateLimitStateStore;
+import com.satadru.ratelimiter.pojo.ThrottleDecision;
+
+/**
+ * Decision cost of the clientId rate limiter on a warm near-cache, including the usage aggregation of the allowed calls.
+ * The aggregated usage is applied to an in-memory state store in place of SQS and DynamoDB.
+ * <p>
+ * With the "allow" limits every call is allowed, with the "throttle" limits the clients are throttled as soon as their usage
+ * reaches the store and the cache is refreshed.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ClientIdRateLimiterBenchmark {
+
+    @Param( { "1000" } )
+    public int clients;
+
+    @Param( { "allow", "throttle" } )
+    public String limits;
+
+    private InMemoryRateLimitStateStore stateStore;
+    private UsageAggregator usageAggregator;
+    private ClientIdTokenBucketCache tokenBucketCache;
+    private DynamoDBBackedSimpleClientIdThrottleClientIdBasedRateLimiter rateLimiter;
+    private String[] clientIds;
+    private String[] unknownClientIds;
+
+    @Setup( Level.Trial )
+    public void setUp() {
+        this.stateStore = Fixtures.stateStore( this.clients, "allow".equals( this.limits ) ? 1e15 : 10 );
+        this.usageAggregator = new UsageAggregator( new StateStoreUsageSink( this.stateStore ), Duration.ofMillis( 50 ) );
+        this.tokenBucketCache = new ClientIdTokenBucketCache( this.stateStore );
+        this.rateLimiter = new DynamoDBBackedSimpleClientIdThrottleClientIdBasedRateLimiter( this.tokenBucketCache, this.usageAggregator );
+        this.clientIds = new String[this.clients];
+        this.unknownClientIds = new String[this.clients];
+        for ( int i = 0; i < this.clients; i++ ) {
+            this.clientIds[i] = Fixtures.clientId( i );
+            this.unknownClientIds[i] = "unknown" + i;
+            // Warm the near-cache and the negative cache
+            this.rateLimiter.consume( Fixtures.API_NAME, Fixtures.METHOD, this.clientIds[i] );
+            this.rateLimiter.consume( Fixtures.API_NAME, Fixtures.METHOD, this.unknownClientIds[i] );
+        }
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() {
+        this.usageAggregator.close();
+        this.tokenBucketCache.close();
+    }
+
+    @State( Scope.Thread )
+    public static class Caller {
+        private final ThrottleDecision decision = new ThrottleDecision();
+        private int next = ThreadLocalRandom.current().nextInt( 1 << 16 );
+
+        private int nextIndex( final int clients ) {
+            this.next++;
+            return ( this.next & Integer.MAX_VALUE ) % clients;
+        }
+    }
+
+    @Benchmark
+    public boolean knownClient( final Caller caller ) {
+        return this.rateLimiter.consume( Fixtures.API_NAME, Fixtures.METHOD, this.clientIds[caller.nextIndex( this.clients )] );
+    }
+
+    @Benchmark
+    public boolean unknownClient( final Caller caller ) {
+        return this.rateLimiter.consume( Fixtures.API_NAME, Fixtures.METHOD, this.unknownClientIds[caller.nextIndex( this.clients )] );
+    }
+
+    @Benchmark
+    public ThrottleDecision knownClientDecision( final Caller caller ) {
+        return this.rateLimiter.tryConsume( Fixtures.API_NAME, Fixtures.METHOD, this.clientIds[caller.nextIndex( this.clients )], caller.decision );
+    }
+}
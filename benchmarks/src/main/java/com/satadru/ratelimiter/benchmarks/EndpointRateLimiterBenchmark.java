@@ -0,0 +1,70 @@
+package com.satadru.ratelimiter.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.leakybucket.local.LeakyBucketBasedEnpointRateLimiter;
+import com.satadru.ratelimiter.leakybucket.local.StripedLeakyBucketEndpointRateLimiter;
+import com.satadru.ratelimiter.pojo.EndpointRateLimit;
+
+/**
+ * Decision cost of the endpoint rate limiters. All threads share the limiter, so with more than one thread the allowed calls
+ * contend on the compare-and-set of the bucket state.
+ * <p>
+ * The buckets are emptied before every iteration. With the small bucket nearly every call is throttled, which is a plain read of the state;
+ * the large bucket does not fill up within an iteration, so every call is allowed and writes the state.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class EndpointRateLimiterBenchmark {
+
+    @Param( { "100", "8388607" } )
+    public int bucketSize;
+
+    private LeakyBucketBasedEnpointRateLimiter leakyBucket;
+    private StripedLeakyBucketEndpointRateLimiter striped;
+
+    @Setup( Level.Iteration )
+    public void setUp() {
+        this.leakyBucket = new LeakyBucketBasedEnpointRateLimiter( this.bucketSize, 1000 );
+        final Map<String, EndpointRateLimit> limits = new HashMap<>();
+        limits.put( Configuration.DEFAULT_ENDPOINT, new EndpointRateLimit( this.bucketSize, 1000 ) );
+        limits.put( Fixtures.HASH_KEY, new EndpointRateLimit( this.bucketSize, 1000 ) );
+        limits.put( "createOrder:POST", new EndpointRateLimit( this.bucketSize, 1000 ) );
+        this.striped = new StripedLeakyBucketEndpointRateLimiter( limits, Configuration.ENDPOINT_RATE_LIMITER_STRIPES );
+    }
+
+    @Benchmark
+    public boolean leakyBucket() {
+        return this.leakyBucket.consume();
+    }
+
+    @Benchmark
+    public boolean stripedConfiguredEndpoint() {
+        return this.striped.consume( Fixtures.API_NAME, Fixtures.METHOD );
+    }
+
+    @Benchmark
+    public boolean stripedDefaultEndpoint() {
+        return this.striped.consume( "deleteOrder", "DELETE" );
+    }
+}
@@ -0,0 +1,86 @@
+package com.satadru.ratelimiter.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.satadru.ratelimiter.leaderelection.SelfElectingLeaderAlgorithm;
+import com.satadru.ratelimiter.leakybucket.distributed.ThrottlingEventConsumer;
+import com.satadru.ratelimiter.leakybucket.distributed.log.MappedLogEventTransport;
+
+/**
+ * Events per second through a MappedLogEventTransport in a temporary directory: appending alone, and appending a batch which a
+ * ThrottlingEventConsumer then polls, applies to the in-memory state store and acknowledges. Every thread has a log of its own,
+ * since a partition is consumed by a single owner.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class EventLogBenchmark {
+
+    private static final int CLIENTS = 1000;
+    private static final int PARTITIONS = 4;
+    private static final int BATCH = 1000;
+
+    private Path directory;
+    private MappedLogEventTransport transport;
+    private ThrottlingEventConsumer consumer;
+    private List<String> events;
+    private int next;
+
+    @Setup( Level.Trial )
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory( "event-log" );
+        // Enough retention for a measurement, little enough for a temporary directory
+        this.transport = new MappedLogEventTransport( this.directory, PARTITIONS, "benchmark", 64 * 1024 * 1024, 256L * 1024 * 1024, Duration.ofHours( 1 ) );
+        this.consumer = new ThrottlingEventConsumer( Fixtures.stateStore( CLIENTS, 1e15 ), this.transport, Collections.singletonList( 0 ),
+                                                     new SelfElectingLeaderAlgorithm(), BATCH );
+        this.events = Fixtures.usageMessages( CLIENTS );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws IOException {
+        this.transport.close();
+        try ( Stream<Path> files = Files.walk( this.directory ) ) {
+            files.sorted( Comparator.reverseOrder() ).forEach( file -> file.toFile().delete() );
+        }
+    }
+
+    @Benchmark
+    public void publish() {
+        final int next = this.next++ & Integer.MAX_VALUE;
+        this.transport.publish( next % PARTITIONS, this.events.get( next % CLIENTS ) );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( BATCH )
+    public void publishAndConsume() {
+        for ( int i = 0; i < BATCH; i++ ) {
+            this.transport.publish( 0, this.events.get( i % CLIENTS ) );
+        }
+        this.consumer.updateTokens();
+    }
+}
@@ -0,0 +1,78 @@
+package com.satadru.ratelimiter.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.SQSPayloadCodec;
+import com.satadru.ratelimiter.leakybucket.distributed.memory.InMemoryRateLimitStateStore;
+import com.satadru.ratelimiter.pojo.ClientLimitState;
+import com.satadru.ratelimiter.pojo.SQSPayload;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * Data shared by the benchmarks. The in-memory state store stands in for DynamoDB
+ */
+final class Fixtures {
+
+    static final String API_NAME = "getOrders";
+    static final String METHOD = "GET";
+    static final String HASH_KEY = API_NAME + ":" + METHOD;
+    static final String QUEUE_URL = "https://sqs.local/" + Configuration.RATE_LIMITING_EVENT_SQS_QUEUE_NAME;
+
+    private Fixtures() {
+    }
+
+    static String clientId( final int i ) {
+        return "client" + i;
+    }
+
+    /**
+     * Every client and the default client get limits for every period. With maxCallsInPeriod large enough for the whole run
+     * the decisions are allowed, with a small one they are throttled once the usage reaches the store.
+     */
+    static InMemoryRateLimitStateStore stateStore( final int clients, final double maxCallsInPeriod ) {
+        final InMemoryRateLimitStateStore store = new InMemoryRateLimitStateStore();
+        for ( int i = 0; i < clients; i++ ) {
+            store.put( new TokenBucketKey( HASH_KEY, clientId( i ) ), record( clientId( i ), maxCallsInPeriod ) );
+        }
+        store.put( new TokenBucketKey( HASH_KEY, Configuration.DEFAULT_CLIENT_ID ), record( Configuration.DEFAULT_CLIENT_ID, maxCallsInPeriod ) );
+        return store;
+    }
+
+    private static Map<String, Object> record( final String clientId, final double maxCallsInPeriod ) {
+        final int periods = Period.count();
+        final double[] maxAllowedRate = new double[periods];
+        final double[] maxAllowedCallsInPeriod = new double[periods];
+        for ( Period period : Period.values() ) {
+            maxAllowedRate[period.ordinal()] = maxCallsInPeriod / period.getMillis();
+            maxAllowedCallsInPeriod[period.ordinal()] = maxCallsInPeriod;
+        }
+        final long now = System.currentTimeMillis();
+        final long[] lastUpdated = new long[periods];
+        Arrays.fill( lastUpdated, now );
+        return new ClientLimitState( HASH_KEY, clientId, ( 1 << periods ) - 1, lastUpdated, lastUpdated, maxAllowedRate, new double[periods],
+                                     maxAllowedCallsInPeriod, new double[periods] ).toRecord();
+    }
+
+    /**
+     * Usage summaries of the clients in the binary format, one per client
+     */
+    static List<String> usageMessages( final int clients ) {
+        final SQSPayloadCodec codec = new SQSPayloadCodec();
+        final long now = System.currentTimeMillis();
+        final List<String> bodies = new ArrayList<>( clients );
+        for ( int i = 0; i < clients; i++ ) {
+            final Map<String, Double> rateTokens = new HashMap<>();
+            for ( Period period : Period.values() ) {
+                rateTokens.put( period.getKey(), 1.0 / period.getMillis() );
+            }
+            bodies.add( codec.encode( new SQSPayload( HASH_KEY, clientId( i ), now, rateTokens, 4, now - 10 ) ) );
+        }
+        return bodies;
+    }
+}
@@ -0,0 +1,55 @@
+package com.satadru.ratelimiter.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.satadru.ratelimiter.benchmarks.fakes.FakeAmazonSQS;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.leaderelection.SelfElectingLeaderAlgorithm;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.SQSThrottlingMessageConsumer;
+
+/**
+ * Messages per second applied by SQSThrottlingMessageConsumer.updateTokens(): receive, decode, group by key, apply to the state store
+ * and delete. The queue never runs dry and the in-memory state store stands in for DynamoDB, so the score is the cost of the consumer itself.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ThrottlingConsumerBenchmark {
+
+    // Few clients put several messages of the same key into a batch, many clients make every message a distinct key
+    @Param( { "4", "1000" } )
+    public int clients;
+
+    private SQSThrottlingMessageConsumer consumer;
+
+    @Setup( Level.Trial )
+    public void setUp() {
+        final FakeAmazonSQS sqs = new FakeAmazonSQS( Fixtures.usageMessages( this.clients ) );
+        this.consumer = new SQSThrottlingMessageConsumer( Fixtures.stateStore( this.clients, 1e15 ), sqs, Collections.singletonList( Fixtures.QUEUE_URL ),
+                                                          new SelfElectingLeaderAlgorithm() );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( Configuration.MAX_NUMBER_OF_MESSAGES )
+    public void updateTokens() {
+        this.consumer.updateTokens();
+    }
+}
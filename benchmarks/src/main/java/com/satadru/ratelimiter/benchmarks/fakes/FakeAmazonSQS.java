@@ -0,0 +1,73 @@
+package com.satadru.ratelimiter.benchmarks.fakes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+
+/**
+ * In-JVM SQS which never runs dry: every receive returns the next messages of a fixed set of bodies, round robin.
+ * Deletes always succeed and sends are only counted, so a benchmark measures the client code and not a queue.
+ */
+public class FakeAmazonSQS extends AbstractAmazonSQS {
+
+    private final Message[] messages;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+
+    public FakeAmazonSQS( final List<String> bodies ) {
+        this.messages = new Message[bodies.size()];
+        for ( int i = 0; i < this.messages.length; i++ ) {
+            this.messages[i] = new Message().withMessageId( "message-" + i ).withReceiptHandle( "receipt-" + i ).withBody( bodies.get( i ) );
+        }
+    }
+
+    @Override
+    public ReceiveMessageResult receiveMessage( final ReceiveMessageRequest request ) {
+        final int count = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+        final long first = this.next.getAndAdd( count );
+        final List<Message> received = new ArrayList<>( count );
+        for ( int i = 0; i < count; i++ ) {
+            received.add( this.messages[(int) ( ( first + i ) % this.messages.length )] );
+        }
+        return new ReceiveMessageResult().withMessages( received );
+    }
+
+    @Override
+    public DeleteMessageBatchResult deleteMessageBatch( final DeleteMessageBatchRequest request ) {
+        this.deleted.addAndGet( request.getEntries().size() );
+        final List<DeleteMessageBatchResultEntry> successful = new ArrayList<>( request.getEntries().size() );
+        request.getEntries().forEach( entry -> successful.add( new DeleteMessageBatchResultEntry().withId( entry.getId() ) ) );
+        return new DeleteMessageBatchResult().withSuccessful( successful ).withFailed( new ArrayList<>() );
+    }
+
+    @Override
+    public SendMessageBatchResult sendMessageBatch( final SendMessageBatchRequest request ) {
+        this.sent.addAndGet( request.getEntries().size() );
+        final List<SendMessageBatchResultEntry> successful = new ArrayList<>( request.getEntries().size() );
+        for ( SendMessageBatchRequestEntry entry : request.getEntries() ) {
+            successful.add( new SendMessageBatchResultEntry().withId( entry.getId() ).withMessageId( entry.getId() ) );
+        }
+        return new SendMessageBatchResult().withSuccessful( successful ).withFailed( new ArrayList<>() );
+    }
+
+    public long getSent() {
+        return this.sent.get();
+    }
+
+    public long getDeleted() {
+        return this.deleted.get();
+    }
+}
@@ -1,36 +1,98 @@
 package com.satadru.ratelimiter;
 
+import java.net.InetSocketAddress;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClientBuilder;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
 import com.amazonaws.services.sqs.model.AmazonSQSException;
 import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.google.common.collect.ImmutableList;
+import com.satadru.ratelimiter.configurations.ClientIdTokenBucketConfiguration;
 import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.leakybucket.distributed.RateLimitStateStore;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.DynamoDBRateLimitStateStore;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.EventPartitioner;
+import com.satadru.ratelimiter.leakybucket.distributed.memory.InMemoryRateLimitStateStore;
+import com.satadru.ratelimiter.leakybucket.distributed.redis.RespConnectionPool;
+import com.satadru.ratelimiter.leakybucket.distributed.redis.RespRateLimitStateStore;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
 
 public class Dependencies {
     private final DynamoDB dynamoDB;
     private final AmazonSQS sqs;
-    private final String queueURL;
+    // One FIFO queue per partition
+    private final List<String> queueURLs;
+    private final RateLimitStateStore stateStore;
 
     public Dependencies() {
         AmazonDynamoDB client = AmazonDynamoDBClientBuilder.standard().withCredentials( new AWSStaticCredentialsProvider( Configuration.AWS_CREDENTIALS ) ).withRegion( Configuration.inferAWSRegion() ).build();
         this.dynamoDB = new DynamoDB( client );
         this.sqs = AmazonSQSClientBuilder.standard().withCredentials( new AWSStaticCredentialsProvider( Configuration.AWS_CREDENTIALS ) ).withRegion( Configuration.inferAWSRegion() ).build();
-        this.queueURL = this.createAndGetQueueURL();
+        final ImmutableList.Builder<String> queueURLs = new ImmutableList.Builder<>();
+        for ( int partition = 0; partition < Configuration.RATE_LIMITING_EVENT_PARTITIONS; partition++ ) {
+            queueURLs.add( this.createAndGetQueueURL( EventPartitioner.queueName( partition, Configuration.RATE_LIMITING_EVENT_PARTITIONS ) ) );
+        }
+        this.queueURLs = queueURLs.build();
+        // Reads of consumeAsync() run on the executor of the async client instead of the request threads
+        AmazonDynamoDBAsync asyncClient = AmazonDynamoDBAsyncClientBuilder.standard().withCredentials( new AWSStaticCredentialsProvider( Configuration.AWS_CREDENTIALS ) ).withRegion( Configuration.inferAWSRegion() ).build();
+        this.stateStore = new DynamoDBRateLimitStateStore( this.dynamoDB, asyncClient, Configuration.THROTTLING_CONSUMER_CONDITIONAL_UPDATES );
+    }
+
+    private Dependencies( final RateLimitStateStore stateStore ) {
+        this.dynamoDB = null;
+        this.sqs = null;
+        this.queueURLs = ImmutableList.of();
+        this.stateStore = stateStore;
+    }
+
+    /**
+     * No AWS clients and no queues, the state lives in an InMemoryRateLimitStateStore seeded from the configuration file
+     *
+     * @param clientConfigurationFile DynamoDB CSV export of the CLIENT_ID_TOKEN_BUCKET table
+     */
+    public static Dependencies inMemory( final String clientConfigurationFile ) {
+        return new Dependencies( new InMemoryRateLimitStateStore( ClientIdTokenBucketConfiguration.load( clientConfigurationFile ) ) );
     }
 
-    private String createAndGetQueueURL() {
+    /**
+     * No AWS clients and no queues, the state lives in the RESP server at the address, e.g. a Redis
+     *
+     * @param clientConfigurationFile DynamoDB CSV export of the CLIENT_ID_TOKEN_BUCKET table which is written to the server, may be null
+     *                                if the server already has the records
+     */
+    public static Dependencies redis( final InetSocketAddress address, final String clientConfigurationFile ) {
+        final RespConnectionPool connectionPool = new RespConnectionPool( address, Configuration.REDIS_CONNECTIONS, Configuration.REDIS_COMMAND_TIMEOUT );
+        final RespRateLimitStateStore stateStore = new RespRateLimitStateStore( connectionPool );
+        if ( clientConfigurationFile != null ) {
+            for ( Map.Entry<TokenBucketKey, Map<String, Object>> record : ClientIdTokenBucketConfiguration.load( clientConfigurationFile ).entrySet() ) {
+                stateStore.put( record.getKey(), record.getValue() );
+            }
+        }
+        return new Dependencies( stateStore );
+    }
+
+    /**
+     * @return true if there are no queues, the usage is then applied to the state store directly
+     */
+    public boolean isInMemory() {
+        return this.sqs == null;
+    }
+
+    private String createAndGetQueueURL( final String queueName ) {
         final Map<String, String> attributes = new HashMap<>();
         attributes.put( "FifoQueue", "true" );
         attributes.put( "ContentBasedDeduplication", "true" );
         attributes.put( "ReceiveMessageWaitTimeSeconds", "20" );
-        CreateQueueRequest createRequest = new CreateQueueRequest( Configuration.RATE_LIMITING_EVENT_SQS_QUEUE_NAME )
+        CreateQueueRequest createRequest = new CreateQueueRequest( queueName )
                 .addAttributesEntry( "MessageRetentionPeriod", "100" ).withAttributes( attributes );
 
         try {
@@ -43,18 +105,29 @@ public class Dependencies {
         }
 
         // Get the URL for a queue
-        return this.sqs.getQueueUrl( Configuration.RATE_LIMITING_EVENT_SQS_QUEUE_NAME ).getQueueUrl();
+        return this.sqs.getQueueUrl( queueName ).getQueueUrl();
     }
 
     public DynamoDB getDynamoDB() {
         return this.dynamoDB;
     }
 
+    public RateLimitStateStore getStateStore() {
+        return this.stateStore;
+    }
+
     public AmazonSQS getSqs() {
         return this.sqs;
     }
 
     public String getQueueURL() {
-        return this.queueURL;
+        return this.queueURLs.get( 0 );
+    }
+
+    /**
+     * @return URL of the queue of every partition, indexed by partition
+     */
+    public List<String> getQueueURLs() {
+        return this.queueURLs;
     }
 }
@@ -1,6 +1,10 @@
 package com.satadru.ratelimiter;
 
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -11,18 +15,37 @@ import com.satadru.ratelimiter.example.CreateOrder;
 import com.satadru.ratelimiter.example.GetOrders;
 import com.satadru.ratelimiter.example.MyHttpRequest;
 import com.satadru.ratelimiter.example.MyHttpResponse;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.leaderelection.DynamoDBHostTableStore;
+import com.satadru.ratelimiter.leaderelection.HighestIPAddressInLastMinuteLeaderElectionAlgorithm;
+import com.satadru.ratelimiter.leaderelection.SelfElectingLeaderAlgorithm;
+import com.satadru.ratelimiter.leakybucket.KeyedEndpointRateLimiter;
 import com.satadru.ratelimiter.leakybucket.SimpleClientIdBasedRateLimiter;
-import com.satadru.ratelimiter.leakybucket.SimpleEndpointRateLimiter;
+import com.satadru.ratelimiter.leakybucket.distributed.EventTransport;
+import com.satadru.ratelimiter.leakybucket.distributed.EventTransportUsageSink;
+import com.satadru.ratelimiter.leakybucket.distributed.StateStoreUsageSink;
+import com.satadru.ratelimiter.leakybucket.distributed.ThrottlingEventConsumer;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.BatchingSQSPublisher;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.ClientIdTokenBucketCache;
 import com.satadru.ratelimiter.leakybucket.distributed.aws.DynamoDBBackedSimpleClientIdThrottleClientIdBasedRateLimiter;
-import com.satadru.ratelimiter.leakybucket.distributed.aws.SQSThrottlingMessageConsumer;
-import com.satadru.ratelimiter.leakybucket.local.LeakyBucketBasedEnpointRateLimiter;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.EventPartitioner;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.SQSEventTransport;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.UsageAggregator;
+import com.satadru.ratelimiter.leakybucket.distributed.gcra.GcraClientIdRateLimiter;
+import com.satadru.ratelimiter.leakybucket.distributed.lease.QuotaLeasingClientIdRateLimiter;
+import com.satadru.ratelimiter.leakybucket.distributed.log.MappedLogEventTransport;
+import com.satadru.ratelimiter.leakybucket.local.StripedLeakyBucketEndpointRateLimiter;
+import com.satadru.ratelimiter.leakybucket.penalty.PenaltyBox;
+import com.satadru.ratelimiter.leakybucket.penalty.PenaltyBoxClientIdRateLimiter;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
 
 public class Main {
 
     private static class CallAPI implements Runnable {
 
         private static final Logger logger = Logger.getLogger( CallAPI.class.getName() );
-        private static final int DEFAULT_SLEEP_SECONDS = 2;
+        // Give up instead of waiting for a longer period, e.g. the hour or month limit, to free up
+        private static final long MAX_RETRY_AFTER_SECONDS = 16;
         private final String clientId;
         private final CreateOrder createOrder;
         private final GetOrders getOrders;
@@ -37,7 +60,6 @@ public class Main {
         public void run() {
             int success = 0;
             int failures = 0;
-            int sleepSeconds = DEFAULT_SLEEP_SECONDS;
 
             for ( int i = 0; i < 10; i++ ) {
                 boolean throttled = false;
@@ -59,7 +81,7 @@ public class Main {
                 }
                 if ( throttled ) {
                     failures++;
-                    sleepSeconds = this.exponentialBackOff( sleepSeconds );
+                    this.backOff( Math.max( orderResponse.getRetryAfterSeconds(), getOrdersResponse.getRetryAfterSeconds() ) );
                 }
                 else {
                     success++;
@@ -68,19 +90,20 @@ public class Main {
             System.out.println( "ClientId: " + this.clientId + ". Success: " + success + ". Failures: " + failures );
         }
 
-        private int exponentialBackOff( int sleepSeconds ) {
+        /**
+         * Waits as long as the Retry-After of the server asks for instead of guessing
+         */
+        private void backOff( final long retryAfterSeconds ) {
+            if ( retryAfterSeconds > MAX_RETRY_AFTER_SECONDS ) {
+                throw new RuntimeException( "Throttled by server, retry after " + retryAfterSeconds + " seconds" );
+            }
             try {
-                logger.fine( "Client " + this.clientId + " sleeping for " + sleepSeconds + " seconds" );
-                Thread.sleep( Duration.ofSeconds( sleepSeconds ).toMillis() );
-                sleepSeconds *= sleepSeconds;
-                if ( sleepSeconds > 16 ) {
-                    throw new RuntimeException( "Throttled by server" );
-                }
+                logger.fine( "Client " + this.clientId + " sleeping for " + retryAfterSeconds + " seconds" );
+                Thread.sleep( Duration.ofSeconds( retryAfterSeconds ).toMillis() );
             }
             catch ( InterruptedException e ) {
                 e.printStackTrace();
             }
-            return sleepSeconds;
         }
     }
 
@@ -88,16 +111,16 @@ public class Main {
 
         private static final Logger logger = Logger.getLogger( CallAPI.class.getName() );
 
-        private final SQSThrottlingMessageConsumer sqsThrottlingMessageConsumer;
+        private final ThrottlingEventConsumer throttlingEventConsumer;
 
-        private UpdateThrottleData( final SQSThrottlingMessageConsumer sqsThrottlingMessageConsumer ) {
-            this.sqsThrottlingMessageConsumer = sqsThrottlingMessageConsumer;
+        private UpdateThrottleData( final ThrottlingEventConsumer throttlingEventConsumer ) {
+            this.throttlingEventConsumer = throttlingEventConsumer;
         }
 
         @Override
         public void run() {
             try {
-                this.sqsThrottlingMessageConsumer.updateTokens();
+                this.throttlingEventConsumer.updateTokens();
             }
             catch ( Exception e ) {
                 e.printStackTrace();
@@ -108,22 +131,100 @@ public class Main {
 
     public static void main( String[] args ) {
         LoggingConfig.configureLogging( Level.FINE, "config/logging.properties" );
-        Dependencies dependencies = new Dependencies();
+        RateLimiterMetrics.get().registerMBean();
+        Dependencies dependencies;
+        if ( Configuration.RUN_AGAINST_REDIS ) {
+            dependencies = Dependencies.redis( new InetSocketAddress( Configuration.REDIS_HOST, Configuration.REDIS_PORT ), Configuration.CLIENT_ID_TOKEN_BUCKET_FILE );
+        }
+        else {
+            dependencies = Configuration.RUN_IN_MEMORY ? Dependencies.inMemory( Configuration.CLIENT_ID_TOKEN_BUCKET_FILE ) : new Dependencies();
+        }
         final ScheduledExecutorService apiCallExecutorService = Executors.newScheduledThreadPool( 1 );
 
-        SimpleClientIdBasedRateLimiter clientIdBasedRateLimiter =
-                new DynamoDBBackedSimpleClientIdThrottleClientIdBasedRateLimiter( dependencies.getDynamoDB(), dependencies.getSqs(), dependencies.getQueueURL() );
-        // The endpoint limiter will allow average 200 queries per second
-        SimpleEndpointRateLimiter endpointRateLimiter = new LeakyBucketBasedEnpointRateLimiter( 2000, Duration.ofSeconds( 10 ).toMillis() );
+        // Carries the usage from the nodes to the consumers, null if the usage is applied to the in-memory or Redis store directly
+        final EventTransport eventTransport;
+        if ( Configuration.USAGE_EVENT_LOG ) {
+            eventTransport = new MappedLogEventTransport( Paths.get( Configuration.EVENT_LOG_DIRECTORY ), Configuration.RATE_LIMITING_EVENT_PARTITIONS,
+                                                          Configuration.EVENT_LOG_CONSUMER_GROUP );
+        }
+        else if ( !dependencies.isInMemory() ) {
+            eventTransport = new SQSEventTransport( dependencies.getSqs(), dependencies.getQueueURLs(),
+                                                    new BatchingSQSPublisher( dependencies.getSqs(), dependencies.getQueueURLs() ) );
+        }
+        else {
+            eventTransport = null;
+        }
+        final UsageAggregator usageAggregator;
+        if ( eventTransport == null ) {
+            usageAggregator = new UsageAggregator( new StateStoreUsageSink( dependencies.getStateStore() ), Configuration.USAGE_AGGREGATION_WINDOW );
+            Runtime.getRuntime().addShutdownHook( new Thread( usageAggregator::close ) );
+        }
+        else {
+            usageAggregator = new UsageAggregator( new EventTransportUsageSink( eventTransport, Configuration.PUBLISH_BINARY_THROTTLING_EVENTS ),
+                                                   Configuration.USAGE_AGGREGATION_WINDOW );
+            // Flush the aggregated and buffered throttling events on shutdown
+            Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+                usageAggregator.close();
+                eventTransport.close();
+            } ) );
+        }
+        final ClientIdTokenBucketCache tokenBucketCache = new ClientIdTokenBucketCache( dependencies.getStateStore() );
+        // Serve from the snapshot of the previous run while the records are read back from the store
+        tokenBucketCache.warmStart( Paths.get( Configuration.TOKEN_BUCKET_SNAPSHOT_FILE ) );
+        tokenBucketCache.scheduleSnapshots( Paths.get( Configuration.TOKEN_BUCKET_SNAPSHOT_FILE ), Configuration.TOKEN_BUCKET_SNAPSHOT_INTERVAL );
+        Runtime.getRuntime().addShutdownHook( new Thread( tokenBucketCache::close ) );
+        // Decide from the arrival times in the store, from leased quota or from the usage the consumers write back to the records
+        SimpleClientIdBasedRateLimiter clientIdBasedRateLimiter;
+        if ( Configuration.CLIENT_ID_GCRA ) {
+            clientIdBasedRateLimiter = new GcraClientIdRateLimiter( tokenBucketCache, dependencies.getStateStore() );
+        }
+        else if ( Configuration.CLIENT_ID_QUOTA_LEASING ) {
+            clientIdBasedRateLimiter = new QuotaLeasingClientIdRateLimiter( tokenBucketCache, dependencies.getStateStore() );
+        }
+        else {
+            clientIdBasedRateLimiter = new DynamoDBBackedSimpleClientIdThrottleClientIdBasedRateLimiter( tokenBucketCache, usageAggregator );
+        }
+        if ( Configuration.CLIENT_ID_PENALTY_BOX ) {
+            final PenaltyBox penaltyBox = new PenaltyBox();
+            penaltyBox.registerMBean();
+            clientIdBasedRateLimiter = new PenaltyBoxClientIdRateLimiter( clientIdBasedRateLimiter, penaltyBox );
+        }
+        // Every endpoint gets its own leaky bucket, see config/ENDPOINT_RATE_LIMITS.csv
+        KeyedEndpointRateLimiter endpointRateLimiter = new StripedLeakyBucketEndpointRateLimiter( Configuration.ENDPOINT_RATE_LIMITS_FILE );
         CallAPI callAPI1 = new CallAPI( "client1", new CreateOrder( clientIdBasedRateLimiter, endpointRateLimiter ), new GetOrders( clientIdBasedRateLimiter, endpointRateLimiter ) );
         CallAPI callAPI2 = new CallAPI( "client2", new CreateOrder( clientIdBasedRateLimiter, endpointRateLimiter ), new GetOrders( clientIdBasedRateLimiter, endpointRateLimiter ) );
         apiCallExecutorService.scheduleAtFixedRate( callAPI1, Duration.ofSeconds( 5 ).toMillis(), Duration.ofMillis( 100 ).toMillis(), TimeUnit.MILLISECONDS );
         apiCallExecutorService.scheduleAtFixedRate( callAPI2, Duration.ofSeconds( 5 ).toMillis(), Duration.ofMillis( 100 ).toMillis(), TimeUnit.MILLISECONDS );
 
-        final ScheduledExecutorService throttleRateUpdatorExecutorService = Executors.newScheduledThreadPool( 1 );
-        SQSThrottlingMessageConsumer sqsThrottlingMessageConsumer =
-                new SQSThrottlingMessageConsumer( dependencies.getDynamoDB(), dependencies.getSqs(), dependencies.getQueueURL() );
-        UpdateThrottleData updateThrottleData = new UpdateThrottleData( sqsThrottlingMessageConsumer );
-        throttleRateUpdatorExecutorService.scheduleWithFixedDelay( updateThrottleData, Duration.ofSeconds( 1 ).toMillis(), Duration.ofMillis( 200 ).toMillis(), TimeUnit.MILLISECONDS );
+        if ( eventTransport == null ) {
+            return;
+        }
+        final ScheduledExecutorService throttleRateUpdatorExecutorService = Executors.newScheduledThreadPool( Configuration.CONSUMER_WORKERS_PER_NODE );
+        final int maxEventsPerPoll = Configuration.USAGE_EVENT_LOG ? Configuration.EVENT_LOG_MAX_POLL_EVENTS : Configuration.MAX_NUMBER_OF_MESSAGES;
+        if ( eventTransport.getPartitionCount() == 1 && !Configuration.USAGE_EVENT_LOG ) {
+            // A single queue is consumed by every node while it is the leader of the fleet, a node which stops heartbeating is replaced
+            final HighestIPAddressInLastMinuteLeaderElectionAlgorithm leaderElection =
+                    new HighestIPAddressInLastMinuteLeaderElectionAlgorithm( new DynamoDBHostTableStore( dependencies.getDynamoDB() ) ).start();
+            // Release the lease on shutdown, so that the next leader takes over on its next heartbeat instead of after the lease expired
+            Runtime.getRuntime().addShutdownHook( new Thread( leaderElection::close ) );
+            ThrottlingEventConsumer throttlingEventConsumer =
+                    new ThrottlingEventConsumer( dependencies.getStateStore(), eventTransport, Collections.singletonList( 0 ), leaderElection, maxEventsPerPoll );
+            throttleRateUpdatorExecutorService.scheduleWithFixedDelay( new UpdateThrottleData( throttlingEventConsumer ), Duration.ofSeconds( 1 ).toMillis(),
+                                                                       Duration.ofMillis( 200 ).toMillis(), TimeUnit.MILLISECONDS );
+            return;
+        }
+        // Every consumer worker of this node owns a disjoint subset of the partitions
+        final int workerCount = Configuration.NODE_COUNT * Configuration.CONSUMER_WORKERS_PER_NODE;
+        for ( int worker = 0; worker < Configuration.CONSUMER_WORKERS_PER_NODE; worker++ ) {
+            final int workerIndex = Configuration.NODE_INDEX * Configuration.CONSUMER_WORKERS_PER_NODE + worker;
+            final List<Integer> ownedPartitions = EventPartitioner.ownedPartitions( workerIndex, workerCount, eventTransport.getPartitionCount() );
+            if ( ownedPartitions.isEmpty() ) {
+                continue;
+            }
+            ThrottlingEventConsumer throttlingEventConsumer =
+                    new ThrottlingEventConsumer( dependencies.getStateStore(), eventTransport, ownedPartitions, new SelfElectingLeaderAlgorithm(), maxEventsPerPoll );
+            UpdateThrottleData updateThrottleData = new UpdateThrottleData( throttlingEventConsumer );
+            throttleRateUpdatorExecutorService.scheduleWithFixedDelay( updateThrottleData, Duration.ofSeconds( 1 ).toMillis(), Duration.ofMillis( 200 ).toMillis(), TimeUnit.MILLISECONDS );
+        }
     }
 }
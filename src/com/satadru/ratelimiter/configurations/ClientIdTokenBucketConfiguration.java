@@ -0,0 +1,86 @@
+package com.satadru.ratelimiter.configurations;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * Loads the CLIENT_ID_TOKEN_BUCKET records of a DynamoDB CSV export (config/CLIENT_ID_TOKEN_BUCKET.csv), e.g. to seed an in-memory store.
+ * Every row is "hashKey","clientId","payload" where the payload is the DynamoDB JSON of the payload map with doubled quotes.
+ */
+public class ClientIdTokenBucketConfiguration {
+
+    private static final Pattern ROW = Pattern.compile( "^\"([^\"]*)\",\"([^\"]*)\",\"(.*)\"$" );
+
+    public static Map<TokenBucketKey, Map<String, Object>> load( final String configurationFile ) {
+        final List<String> lines;
+        try {
+            lines = Files.readAllLines( Paths.get( configurationFile ), StandardCharsets.UTF_8 );
+        }
+        catch ( IOException e ) {
+            throw new UncheckedIOException( "Failed to read client configurations from " + configurationFile, e );
+        }
+        final ObjectMapper objectMapper = new ObjectMapper();
+        final Map<TokenBucketKey, Map<String, Object>> records = new LinkedHashMap<>();
+        // First line is the header
+        for ( int i = 1; i < lines.size(); i++ ) {
+            final String line = lines.get( i ).trim();
+            if ( line.isEmpty() ) {
+                continue;
+            }
+            final Matcher matcher = ROW.matcher( line );
+            if ( !matcher.matches() ) {
+                throw new IllegalArgumentException( "Malformed client configuration at line " + ( i + 1 ) + " of " + configurationFile );
+            }
+            final Map<String, Object> record = new LinkedHashMap<>();
+            record.put( Configuration.RATE_LIMITING_HASH_KEY_NAME, matcher.group( 1 ) );
+            record.put( Configuration.RATE_LIMITING_RANGE_KEY_NAME, matcher.group( 2 ) );
+            try {
+                record.put( Configuration.ATTRIBUTE_RATE_LIMITING_PAYLOAD, toMap( objectMapper.readTree( matcher.group( 3 ).replace( "\"\"", "\"" ) ) ) );
+            }
+            catch ( IOException e ) {
+                throw new IllegalArgumentException( "Malformed payload at line " + ( i + 1 ) + " of " + configurationFile, e );
+            }
+            records.put( new TokenBucketKey( matcher.group( 1 ), matcher.group( 2 ) ), record );
+        }
+        return records;
+    }
+
+    /**
+     * DynamoDB JSON map to the map of the document API, i.e. "S" to String, "N" to BigDecimal and "M" to Map
+     */
+    private static Map<String, Object> toMap( final JsonNode node ) {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        final Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+        while ( fields.hasNext() ) {
+            final Map.Entry<String, JsonNode> field = fields.next();
+            final JsonNode value = field.getValue();
+            if ( value.has( "S" ) ) {
+                map.put( field.getKey(), value.get( "S" ).asText() );
+            }
+            else if ( value.has( "N" ) ) {
+                map.put( field.getKey(), new BigDecimal( value.get( "N" ).asText() ) );
+            }
+            else if ( value.has( "M" ) ) {
+                map.put( field.getKey(), toMap( value.get( "M" ) ) );
+            }
+            else {
+                throw new IllegalArgumentException( "Unsupported attribute type of " + field.getKey() );
+            }
+        }
+        return map;
+    }
+}
@@ -13,6 +13,15 @@ public class Configuration {
 
     private static final Duration TOLERANCE = Duration.ofSeconds( 5 );
     public static final String DEFAULT_CLIENT_ID = "default";
+    public static final String DEFAULT_ENDPOINT = "default";
+    public static final String ENDPOINT_RATE_LIMITS_FILE = "config/ENDPOINT_RATE_LIMITS.csv";
+    public static final String CLIENT_ID_TOKEN_BUCKET_FILE = "config/CLIENT_ID_TOKEN_BUCKET.csv";
+    // Run against an in-memory state store seeded from CLIENT_ID_TOKEN_BUCKET_FILE instead of DynamoDB and SQS
+    public static final boolean RUN_IN_MEMORY = false;
+    // Run against the RESP server at REDIS_HOST:REDIS_PORT, seeded from CLIENT_ID_TOKEN_BUCKET_FILE, instead of DynamoDB and SQS
+    public static final boolean RUN_AGAINST_REDIS = false;
+    // Power of two
+    public static final int ENDPOINT_RATE_LIMITER_STRIPES = 16;
     public static final String ATTRIBUTE_RATE_LIMITING_PAYLOAD = "payload";
     public static final String ATTRIBUTE_RATE_LIMITING_RATE = "rate";
     public static final String ATTRIBUTE_RATE_LIMITING_MAX_ALLOWED_RATE = "maxAllowedRateInPeriod";
@@ -24,10 +33,129 @@ public class Configuration {
 
     public static final String RATE_LIMITING_TABLE_NAME = "CLIENT_ID_TOKEN_BUCKET";
     public static final String RATE_LIMITING_EVENT_SQS_QUEUE_NAME = "CLIENT_THROTTLING_EVENTS.fifo";
+    public static final String RATE_LIMITING_EVENT_SQS_PARTITION_QUEUE_NAME_TEMPLATE = "CLIENT_THROTTLING_EVENTS-%d.fifo";
+    // Throttling events are spread over this many FIFO queues by a hash of hashKey:clientId. A single queue is consumed by the elected leader
+    public static final int RATE_LIMITING_EVENT_PARTITIONS = 4;
+    // Consumer workers of the fleet: NODE_COUNT * CONSUMER_WORKERS_PER_NODE workers own the partitions round robin
+    public static final int NODE_INDEX = 0;
+    public static final int NODE_COUNT = 1;
+    public static final int CONSUMER_WORKERS_PER_NODE = 2;
     public static final String RATE_LIMITING_EVENT_SQS_MESSAGE_TEMPLATE = "%s,%s,%s,%s";
     public static final String RATE_LIMITING_HASH_KEY_NAME = "hashKey";
     public static final String RATE_LIMITING_RANGE_KEY_NAME = "clientId";
     public static final int MAX_NUMBER_OF_MESSAGES = 10;
+    // SendMessageBatch accepts at most 10 entries
+    public static final int SQS_SEND_MESSAGE_BATCH_MAX_ENTRIES = 10;
+    public static final int SQS_PUBLISHER_BUFFER_CAPACITY = 10_000;
+    public static final Duration SQS_PUBLISHER_MAX_LINGER = Duration.ofMillis( 20 );
+    // Messages SQS failed to take are sent again after SQS_PUBLISHER_BASE_BACKOFF * 2^attempt
+    public static final int SQS_PUBLISHER_MAX_RETRIES = 5;
+    public static final Duration SQS_PUBLISHER_BASE_BACKOFF = Duration.ofMillis( 50 );
+    // Allowed calls are summarized per hashKey and clientId over this window before publishing
+    public static final Duration USAGE_AGGREGATION_WINDOW = Duration.ofMillis( 100 );
+    // Extra period/value pairs of a usage summary message
+    public static final String USAGE_SUMMARY_CALLS = "calls";
+    public static final String USAGE_SUMMARY_FIRST_TIMESTAMP = "firstTimestamp";
+    // Publish the binary throttling event format. Consumers read both formats, set to false while consumers
+    // which only read the CSV format are still running
+    public static final boolean PUBLISH_BINARY_THROTTLING_EVENTS = true;
+    public static final int SQS_PAYLOAD_CODEC_BUFFER_SIZE = 4096;
+    // Carry the usage events in a MappedLogEventTransport in EVENT_LOG_DIRECTORY instead of SQS, for a fleet on a single box
+    public static final boolean USAGE_EVENT_LOG = false;
+    public static final String EVENT_LOG_DIRECTORY = "eventlog";
+    public static final String EVENT_LOG_CONSUMER_GROUP = "throttling-consumer";
+    public static final int EVENT_LOG_SEGMENT_BYTES = 64 * 1024 * 1024;
+    // Per partition
+    public static final long EVENT_LOG_RETENTION_BYTES = 1024L * 1024 * 1024;
+    public static final Duration EVENT_LOG_RETENTION = Duration.ofHours( 6 );
+    // A poll of the log is not bounded by the 10 messages of ReceiveMessage
+    public static final int EVENT_LOG_MAX_POLL_EVENTS = 1000;
+    // Limits of the BatchGetItem and BatchWriteItem APIs
+    public static final int DYNAMODB_BATCH_GET_MAX_KEYS = 100;
+    public static final int DYNAMODB_BATCH_WRITE_MAX_ITEMS = 25;
+    // Unprocessed batch items are retried after DYNAMODB_BATCH_BASE_BACKOFF * 2^attempt
+    public static final int DYNAMODB_BATCH_MAX_RETRIES = 5;
+    public static final Duration DYNAMODB_BATCH_BASE_BACKOFF = Duration.ofMillis( 50 );
+    // Apply throttling events with conditional UpdateItem expressions instead of BatchWriteItem of whole items
+    public static final boolean THROTTLING_CONSUMER_CONDITIONAL_UPDATES = true;
+    public static final int DYNAMODB_CONDITIONAL_UPDATE_MAX_RETRIES = 3;
+
+    // Leader election, see HighestIPAddressInLastMinuteLeaderElectionAlgorithm
+    public static final String HOST_TABLE_NAME = "HOST_TABLE";
+    public static final String HOST_TABLE_HASH_KEY_NAME = "ip";
+    // Reserved hash key of the lease record
+    public static final String HOST_TABLE_LEADER_LEASE_KEY = "LEADER_LEASE";
+    public static final String ATTRIBUTE_HOST_HEARTBEAT = "heartbeat";
+    public static final String ATTRIBUTE_LEADER_LEASE_OWNER = "owner";
+    public static final String ATTRIBUTE_LEADER_LEASE_RENEWED_AT = "renewedAt";
+    public static final String ATTRIBUTE_LEADER_LEASE_EXPIRES_AT = "expiresAt";
+    // A leader that stops heartbeating is replaced within LEADER_LEASE_DURATION + LEADER_HEARTBEAT_INTERVAL
+    public static final Duration LEADER_HEARTBEAT_INTERVAL = Duration.ofSeconds( 10 );
+    public static final Duration LEADER_LEASE_DURATION = Duration.ofSeconds( 30 );
+    // The leader stops acting this long before its lease expires
+    public static final Duration LEADER_LEASE_CLOCK_SKEW = Duration.ofSeconds( 2 );
+
+    // Near-cache of the CLIENT_ID_TOKEN_BUCKET records used by the clientId based rate limiter
+    public static final long TOKEN_BUCKET_CACHE_MAXIMUM_SIZE = 100_000;
+    public static final Duration TOKEN_BUCKET_CACHE_EXPIRE_AFTER_WRITE = Duration.ofSeconds( 5 );
+    // Should be well below the expiry so that hot records are refreshed in the background before they go stale
+    public static final Duration TOKEN_BUCKET_CACHE_REFRESH_AFTER_WRITE = Duration.ofMillis( 500 );
+    public static final int TOKEN_BUCKET_CACHE_REFRESH_THREADS = 2;
+    // ClientIds without a record resolve to the default record until the negative entry expires
+    public static final long TOKEN_BUCKET_NEGATIVE_CACHE_MAXIMUM_SIZE = 1_000_000;
+    public static final Duration TOKEN_BUCKET_NEGATIVE_CACHE_EXPIRE_AFTER_WRITE = Duration.ofSeconds( 60 );
+    // Memory-mapped snapshot of the near-cache, mapped back on startup for a warm start
+    public static final String TOKEN_BUCKET_SNAPSHOT_FILE = "snapshot/CLIENT_ID_TOKEN_BUCKET.snapshot";
+    public static final Duration TOKEN_BUCKET_SNAPSHOT_INTERVAL = Duration.ofSeconds( 30 );
+
+    // Decide from quota leased per node instead of the observed usage, see QuotaLeasingClientIdRateLimiter
+    public static final boolean CLIENT_ID_QUOTA_LEASING = false;
+    public static final String QUOTA_LEASE_TABLE_NAME = "CLIENT_ID_QUOTA_LEASE";
+    public static final String QUOTA_LEASE_HASH_KEY_NAME = "leaseKey";
+    public static final String ATTRIBUTE_QUOTA_LEASE_LEASED = "leased";
+    // Epoch seconds, the TTL attribute of the table
+    public static final String ATTRIBUTE_QUOTA_LEASE_EXPIRES_AT = "expiresAt";
+    // A lease covers the demand of the node over this horizon, at least QUOTA_LEASE_MIN_PERMITS
+    // and at most QUOTA_LEASE_MAX_FRACTION of the calls of a window
+    public static final Duration QUOTA_LEASE_DEMAND_HORIZON = Duration.ofMillis( 500 );
+    public static final long QUOTA_LEASE_MIN_PERMITS = 1;
+    public static final double QUOTA_LEASE_MAX_FRACTION = 0.25;
+    // The next window is leased this long, at most a quarter of the period, before the current window ends
+    public static final Duration QUOTA_LEASE_PREFETCH = Duration.ofMillis( 200 );
+    public static final int QUOTA_LEASE_RENEWAL_THREADS = 2;
+    // Allow the calls of a window which no quota could be leased for, e.g. while the store is down, instead of denying them
+    public static final boolean QUOTA_LEASE_FAIL_OPEN = false;
+    // The leases of a client which made no call for this long are dropped
+    public static final Duration QUOTA_LEASE_EXPIRE_AFTER_ACCESS = Duration.ofMinutes( 10 );
+
+    // Redis, see RespRateLimitStateStore
+    public static final String REDIS_HOST = "localhost";
+    public static final int REDIS_PORT = 6379;
+    // Commands are pipelined, so a few connections carry many concurrent calls
+    public static final int REDIS_CONNECTIONS = 4;
+    public static final Duration REDIS_COMMAND_TIMEOUT = Duration.ofSeconds( 1 );
+    public static final String REDIS_KEY_PREFIX = "ratelimit:";
+    public static final int REDIS_CONDITIONAL_UPDATE_MAX_RETRIES = 3;
+
+    // Reject the calls of a client and API which was denied repeatedly from memory for a cooldown, see PenaltyBox
+    public static final boolean CLIENT_ID_PENALTY_BOX = false;
+    // Consecutive denials which start a cooldown
+    public static final int PENALTY_BOX_DENIALS = 3;
+    // Cooldowns of repeat offenders double up to the length of the limiting period and at most this
+    public static final Duration PENALTY_BOX_MAX_COOLDOWN = Duration.ofMinutes( 5 );
+    // A client and API which was not put into the box for this long after a cooldown starts over with the shortest cooldown
+    public static final Duration PENALTY_BOX_STRIKE_DECAY = Duration.ofMinutes( 10 );
+    public static final long PENALTY_BOX_MAXIMUM_SIZE = 100_000;
+
+    // Decide with the generic cell rate algorithm, see GcraClientIdRateLimiter
+    public static final boolean CLIENT_ID_GCRA = false;
+    // Theoretical arrival time of a period in the CLIENT_ID_TOKEN_BUCKET item, the period key is appended, e.g. tat_second
+    public static final String ATTRIBUTE_GCRA_ARRIVAL_TIME_PREFIX = "tat_";
+    // Share of maxAllowedCallsInPeriod which may be called back to back, 1 lets all the calls of a period through at once
+    public static final double GCRA_BURST_FRACTION = 1.0;
+    public static final int GCRA_MAX_CAS_RETRIES = 8;
+    // Arrival times last written or read by this node, the guess for the next compare-and-set
+    public static final long GCRA_ARRIVAL_TIME_CACHE_MAXIMUM_SIZE = 100_000;
 
     public static final String PERIOD_SECOND = "second";
     public static final String PERIOD_MINUTE = "minute";
@@ -0,0 +1,44 @@
+package com.satadru.ratelimiter.configurations;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import com.satadru.ratelimiter.pojo.EndpointRateLimit;
+
+/**
+ * Loads the per endpoint leaky bucket limits.
+ * The file has the same CSV layout as the DynamoDB exports in the config/ folder: a header line followed by
+ * "API_NAME:METHOD","bucketSize","refillIntervalInMillis" rows. The row with hash key "default" is used for any endpoint which is not listed.
+ */
+public class EndpointRateLimitConfiguration {
+
+    public static Map<String, EndpointRateLimit> load( final String configurationFile ) {
+        final List<String> lines;
+        try {
+            lines = Files.readAllLines( Paths.get( configurationFile ), StandardCharsets.UTF_8 );
+        }
+        catch ( IOException e ) {
+            throw new UncheckedIOException( "Failed to read endpoint rate limits from " + configurationFile, e );
+        }
+        final ImmutableMap.Builder<String, EndpointRateLimit> limits = new ImmutableMap.Builder<>();
+        // First line is the header
+        for ( int i = 1; i < lines.size(); i++ ) {
+            final String line = lines.get( i ).trim();
+            if ( line.isEmpty() ) {
+                continue;
+            }
+            final String[] columns = line.replace( "\"", "" ).split( "," );
+            if ( columns.length != 3 ) {
+                throw new IllegalArgumentException( "Malformed endpoint rate limit at line " + ( i + 1 ) + " of " + configurationFile + ": " + line );
+            }
+            limits.put( columns[0].trim(), new EndpointRateLimit( Integer.parseInt( columns[1].trim() ), Long.parseLong( columns[2].trim() ) ) );
+        }
+        return limits.build();
+    }
+}
@@ -0,0 +1,55 @@
+package com.satadru.ratelimiter.configurations;
+
+import java.time.Duration;
+
+/**
+ * The rate limiting periods. The ordinals are part of the binary throttling event format, new periods must only be appended.
+ */
+public enum Period {
+    SECOND( Configuration.PERIOD_SECOND, Duration.ofSeconds( 1 ) ),
+    MINUTE( Configuration.PERIOD_MINUTE, Duration.ofMinutes( 1 ) ),
+    HOUR( Configuration.PERIOD_HOUR, Duration.ofHours( 1 ) ),
+    WEEK( Configuration.PERIOD_WEEK, Duration.ofDays( 7 ) ),
+    MONTH( Configuration.PERIOD_MONTH, Duration.ofDays( 30 ) );
+
+    private static final Period[] VALUES = values();
+
+    private final String key;
+    private final long millis;
+
+    Period( final String key, final Duration duration ) {
+        this.key = key;
+        this.millis = duration.toMillis();
+    }
+
+    /**
+     * @return the key of the period in the CLIENT_ID_TOKEN_BUCKET payload
+     */
+    public String getKey() {
+        return this.key;
+    }
+
+    public long getMillis() {
+        return this.millis;
+    }
+
+    /**
+     * @return the period for the payload key or null if there is no such period
+     */
+    public static Period fromKey( final String key ) {
+        for ( Period period : VALUES ) {
+            if ( period.key.equals( key ) ) {
+                return period;
+            }
+        }
+        return null;
+    }
+
+    public static Period fromOrdinal( final int ordinal ) {
+        return VALUES[ordinal];
+    }
+
+    public static int count() {
+        return VALUES.length;
+    }
+}
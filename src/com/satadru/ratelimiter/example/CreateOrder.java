@@ -1,31 +1,74 @@
 package com.satadru.ratelimiter.example;
 
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+import com.satadru.ratelimiter.leakybucket.KeyedEndpointRateLimiter;
 import com.satadru.ratelimiter.leakybucket.SimpleClientIdBasedRateLimiter;
-import com.satadru.ratelimiter.leakybucket.SimpleEndpointRateLimiter;
+import com.satadru.ratelimiter.pojo.ThrottleDecision;
 
 public class CreateOrder {
 
-    private static MyHttpResponse TOO_MANY_REQUESTS_RESPONSE = new MyHttpResponse( MyHttpResponse.TOO_MANY_REQUESTS, null );
     private static MyHttpResponse OK_EMPTY_RESPONSE = new MyHttpResponse( MyHttpResponse.HTTP_OK, null );
+    // Reused for every call of a thread, so an allowed call does not allocate
+    private static final ThreadLocal<ThrottleDecision> DECISIONS = ThreadLocal.withInitial( ThrottleDecision::new );
     private final SimpleClientIdBasedRateLimiter clientIdBasedRateLimiter;
-    private final SimpleEndpointRateLimiter endpointRateLimiter;
+    private final KeyedEndpointRateLimiter endpointRateLimiter;
 
-    public CreateOrder( final SimpleClientIdBasedRateLimiter clientIdBasedRateLimiter, final SimpleEndpointRateLimiter endpointRateLimiter ) {
+    public CreateOrder( final SimpleClientIdBasedRateLimiter clientIdBasedRateLimiter, final KeyedEndpointRateLimiter endpointRateLimiter ) {
         this.clientIdBasedRateLimiter = clientIdBasedRateLimiter;
         this.endpointRateLimiter = endpointRateLimiter;
     }
 
     @SuppressWarnings( "Duplicates" )
     public MyHttpResponse createOrder( MyHttpRequest request ) {
-        final boolean consumeFromEndpoint = this.endpointRateLimiter.consume();
+        final boolean consumeFromEndpoint = this.endpointRateLimiter.consume( request.getApiName(), request.getVerb() );
+        if ( !consumeFromEndpoint ) {
+            return MyHttpResponse.tooManyRequests( this.endpointRateLimiter.retryAfterMillis( request.getApiName(), request.getVerb() ) );
+        }
+
+        final ThrottleDecision decision = this.clientIdBasedRateLimiter.tryConsume( request.getApiName(), request.getVerb(), request.getClientId(),
+                                                                                    DECISIONS.get() );
+        if ( !decision.isAllowed() ) {
+            return MyHttpResponse.tooManyRequests( decision.getRetryAfterMillis() );
+        }
+        return OK_EMPTY_RESPONSE;
+    }
+
+    /**
+     * Bulk createOrder, the payload is a collection of orders and every order costs a token of the client
+     */
+    public MyHttpResponse createOrders( MyHttpRequest request ) {
+        final boolean consumeFromEndpoint = this.endpointRateLimiter.consume( request.getApiName(), request.getVerb() );
         if ( !consumeFromEndpoint ) {
-            return TOO_MANY_REQUESTS_RESPONSE;
+            return MyHttpResponse.tooManyRequests( this.endpointRateLimiter.retryAfterMillis( request.getApiName(), request.getVerb() ) );
         }
 
-        final boolean consumeForClientId = this.clientIdBasedRateLimiter.consume( request.getApiName(), request.getVerb(), request.getClientId() );
-        if ( !consumeForClientId ) {
-            return TOO_MANY_REQUESTS_RESPONSE;
+        final int orders = Math.max( 1, ( (Collection<?>) request.getPayload() ).size() );
+        final ThrottleDecision decision = this.clientIdBasedRateLimiter.tryConsume( request.getApiName(), request.getVerb(), request.getClientId(),
+                                                                                    orders, DECISIONS.get() );
+        if ( !decision.isAllowed() ) {
+            if ( !decision.isRetryable() ) {
+                // More orders than the client may ever place at once
+                return new MyHttpResponse( MyHttpResponse.CLIENT_ERROR, decision.toString() );
+            }
+            return MyHttpResponse.tooManyRequests( decision.getRetryAfterMillis() );
         }
         return OK_EMPTY_RESPONSE;
     }
+
+    /**
+     * Same as createOrder() without blocking while the limits of a client are loaded
+     */
+    @SuppressWarnings( "Duplicates" )
+    public CompletableFuture<MyHttpResponse> createOrderAsync( MyHttpRequest request ) {
+        final boolean consumeFromEndpoint = this.endpointRateLimiter.consume( request.getApiName(), request.getVerb() );
+        if ( !consumeFromEndpoint ) {
+            return CompletableFuture.completedFuture(
+                    MyHttpResponse.tooManyRequests( this.endpointRateLimiter.retryAfterMillis( request.getApiName(), request.getVerb() ) ) );
+        }
+
+        return this.clientIdBasedRateLimiter.consumeAsync( request.getApiName(), request.getVerb(), request.getClientId() )
+                .thenApply( decision -> decision.isAllowed() ? OK_EMPTY_RESPONSE : MyHttpResponse.tooManyRequests( decision.getRetryAfterMillis() ) );
+    }
 }
@@ -1,30 +1,50 @@
 package com.satadru.ratelimiter.example;
 
+import java.util.concurrent.CompletableFuture;
+
+import com.satadru.ratelimiter.leakybucket.KeyedEndpointRateLimiter;
 import com.satadru.ratelimiter.leakybucket.SimpleClientIdBasedRateLimiter;
-import com.satadru.ratelimiter.leakybucket.SimpleEndpointRateLimiter;
+import com.satadru.ratelimiter.pojo.ThrottleDecision;
 
 public class GetOrders {
-    private static MyHttpResponse TOO_MANY_REQUESTS_RESPONSE = new MyHttpResponse( MyHttpResponse.TOO_MANY_REQUESTS, null );
     private static MyHttpResponse OK_EMPTY_RESPONSE = new MyHttpResponse( MyHttpResponse.HTTP_OK, null );
+    // Reused for every call of a thread, so an allowed call does not allocate
+    private static final ThreadLocal<ThrottleDecision> DECISIONS = ThreadLocal.withInitial( ThrottleDecision::new );
     private final SimpleClientIdBasedRateLimiter clientIdBasedRateLimiter;
-    private final SimpleEndpointRateLimiter endpointRateLimiter;
+    private final KeyedEndpointRateLimiter endpointRateLimiter;
 
-    public GetOrders( final SimpleClientIdBasedRateLimiter clientIdBasedRateLimiter, final SimpleEndpointRateLimiter endpointRateLimiter ) {
+    public GetOrders( final SimpleClientIdBasedRateLimiter clientIdBasedRateLimiter, final KeyedEndpointRateLimiter endpointRateLimiter ) {
         this.clientIdBasedRateLimiter = clientIdBasedRateLimiter;
         this.endpointRateLimiter = endpointRateLimiter;
     }
 
     @SuppressWarnings( "Duplicates" )
     public MyHttpResponse getOrders( MyHttpRequest request ) {
-        final boolean consumeFromEndpoint = this.endpointRateLimiter.consume();
+        final boolean consumeFromEndpoint = this.endpointRateLimiter.consume( request.getApiName(), request.getVerb() );
         if ( !consumeFromEndpoint ) {
-            return TOO_MANY_REQUESTS_RESPONSE;
+            return MyHttpResponse.tooManyRequests( this.endpointRateLimiter.retryAfterMillis( request.getApiName(), request.getVerb() ) );
         }
 
-        final boolean consumeForClientId = this.clientIdBasedRateLimiter.consume( request.getApiName(), request.getVerb(), request.getClientId() );
-        if ( !consumeForClientId ) {
-            return TOO_MANY_REQUESTS_RESPONSE;
+        final ThrottleDecision decision = this.clientIdBasedRateLimiter.tryConsume( request.getApiName(), request.getVerb(), request.getClientId(),
+                                                                                    DECISIONS.get() );
+        if ( !decision.isAllowed() ) {
+            return MyHttpResponse.tooManyRequests( decision.getRetryAfterMillis() );
         }
         return OK_EMPTY_RESPONSE;
     }
+
+    /**
+     * Same as getOrders() without blocking while the limits of a client are loaded
+     */
+    @SuppressWarnings( "Duplicates" )
+    public CompletableFuture<MyHttpResponse> getOrdersAsync( MyHttpRequest request ) {
+        final boolean consumeFromEndpoint = this.endpointRateLimiter.consume( request.getApiName(), request.getVerb() );
+        if ( !consumeFromEndpoint ) {
+            return CompletableFuture.completedFuture(
+                    MyHttpResponse.tooManyRequests( this.endpointRateLimiter.retryAfterMillis( request.getApiName(), request.getVerb() ) ) );
+        }
+
+        return this.clientIdBasedRateLimiter.consumeAsync( request.getApiName(), request.getVerb(), request.getClientId() )
+                .thenApply( decision -> decision.isAllowed() ? OK_EMPTY_RESPONSE : MyHttpResponse.tooManyRequests( decision.getRetryAfterMillis() ) );
+    }
 }
@@ -1,5 +1,7 @@
 package com.satadru.ratelimiter.example;
 
+import java.util.concurrent.TimeUnit;
+
 public class MyHttpResponse {
 
     public static final int HTTP_OK = 200;
@@ -9,10 +11,21 @@ public class MyHttpResponse {
 
     private final int responseCode;
     private final Object payload;
+    // Retry-After hint of a TOO_MANY_REQUESTS response, 0 if there is none
+    private final long retryAfterMillis;
 
     public MyHttpResponse( final int responseCode, final Object payload ) {
+        this( responseCode, payload, 0 );
+    }
+
+    public MyHttpResponse( final int responseCode, final Object payload, final long retryAfterMillis ) {
         this.responseCode = responseCode;
         this.payload = payload;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public static MyHttpResponse tooManyRequests( final long retryAfterMillis ) {
+        return new MyHttpResponse( TOO_MANY_REQUESTS, null, retryAfterMillis );
     }
 
     public int getResponseCode() {
@@ -22,4 +35,18 @@ public class MyHttpResponse {
     public Object getPayload() {
         return this.payload;
     }
+
+    public long getRetryAfterMillis() {
+        return this.retryAfterMillis;
+    }
+
+    /**
+     * @return value of the Retry-After header in whole seconds rounded up, 0 if the response has no Retry-After
+     */
+    public long getRetryAfterSeconds() {
+        if ( this.retryAfterMillis <= 0 ) {
+            return this.responseCode == TOO_MANY_REQUESTS ? 1 : 0;
+        }
+        return ( this.retryAfterMillis + TimeUnit.SECONDS.toMillis( 1 ) - 1 ) / TimeUnit.SECONDS.toMillis( 1 );
+    }
 }
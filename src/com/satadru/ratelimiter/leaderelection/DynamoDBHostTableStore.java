@@ -0,0 +1,109 @@
+package com.satadru.ratelimiter.leaderelection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.satadru.ratelimiter.configurations.Configuration;
+
+/**
+ * HOST_TABLE in DynamoDB. Every host has a record with its IP address as hash key and its last heartbeat.
+ * The lease is a record with the reserved hash key LEADER_LEASE, written with a conditional put
+ */
+public class DynamoDBHostTableStore implements HostTableStore {
+
+    private final Table table;
+
+    public DynamoDBHostTableStore( final DynamoDB dynamoDB ) {
+        this.table = dynamoDB.getTable( Configuration.HOST_TABLE_NAME );
+    }
+
+    @Override
+    public void heartBeat( final String hostIP, final long timestamp ) {
+        this.table.putItem( new Item()
+                                    .withPrimaryKey( Configuration.HOST_TABLE_HASH_KEY_NAME, hostIP )
+                                    .withLong( Configuration.ATTRIBUTE_HOST_HEARTBEAT, timestamp ) );
+    }
+
+    @Override
+    public List<String> liveHosts( final long since ) {
+        // The host table holds one record per host, a scan is cheap. The lease record has no heartbeat and is filtered out
+        final ScanSpec scanSpec = new ScanSpec()
+                .withProjectionExpression( "#ip" )
+                .withFilterExpression( "#heartbeat >= :since" )
+                .withNameMap( new NameMap()
+                                      .with( "#ip", Configuration.HOST_TABLE_HASH_KEY_NAME )
+                                      .with( "#heartbeat", Configuration.ATTRIBUTE_HOST_HEARTBEAT ) )
+                .withValueMap( new ValueMap().withLong( ":since", since ) )
+                .withConsistentRead( true );
+        final List<String> hosts = new ArrayList<>();
+        for ( Item item : this.table.scan( scanSpec ) ) {
+            hosts.add( item.getString( Configuration.HOST_TABLE_HASH_KEY_NAME ) );
+        }
+        return hosts;
+    }
+
+    @Override
+    public LeaderLease readLease() {
+        final Item item = this.table.getItem( new GetItemSpec()
+                                                      .withPrimaryKey( Configuration.HOST_TABLE_HASH_KEY_NAME, Configuration.HOST_TABLE_LEADER_LEASE_KEY )
+                                                      .withConsistentRead( true ) );
+        if ( item == null ) {
+            return null;
+        }
+        return new LeaderLease( item.getString( Configuration.ATTRIBUTE_LEADER_LEASE_OWNER ),
+                                item.getLong( Configuration.ATTRIBUTE_LEADER_LEASE_RENEWED_AT ),
+                                item.getLong( Configuration.ATTRIBUTE_LEADER_LEASE_EXPIRES_AT ) );
+    }
+
+    @Override
+    public boolean tryAcquireLease( final String hostIP, final long now, final long leaseDurationMillis ) {
+        final PutItemSpec putItemSpec = new PutItemSpec()
+                .withItem( new Item()
+                                   .withPrimaryKey( Configuration.HOST_TABLE_HASH_KEY_NAME, Configuration.HOST_TABLE_LEADER_LEASE_KEY )
+                                   .withString( Configuration.ATTRIBUTE_LEADER_LEASE_OWNER, hostIP )
+                                   .withLong( Configuration.ATTRIBUTE_LEADER_LEASE_RENEWED_AT, now )
+                                   .withLong( Configuration.ATTRIBUTE_LEADER_LEASE_EXPIRES_AT, now + leaseDurationMillis ) )
+                .withConditionExpression( "attribute_not_exists(#owner) OR #expiresAt <= :now OR #owner = :self" )
+                .withNameMap( new NameMap()
+                                      .with( "#owner", Configuration.ATTRIBUTE_LEADER_LEASE_OWNER )
+                                      .with( "#expiresAt", Configuration.ATTRIBUTE_LEADER_LEASE_EXPIRES_AT ) )
+                .withValueMap( new ValueMap()
+                                       .withLong( ":now", now )
+                                       .withString( ":self", hostIP ) );
+        try {
+            this.table.putItem( putItemSpec );
+            return true;
+        }
+        catch ( ConditionalCheckFailedException e ) {
+            return false;
+        }
+    }
+
+    @Override
+    public void releaseLease( final String hostIP, final long now ) {
+        final PutItemSpec putItemSpec = new PutItemSpec()
+                .withItem( new Item()
+                                   .withPrimaryKey( Configuration.HOST_TABLE_HASH_KEY_NAME, Configuration.HOST_TABLE_LEADER_LEASE_KEY )
+                                   .withString( Configuration.ATTRIBUTE_LEADER_LEASE_OWNER, hostIP )
+                                   .withLong( Configuration.ATTRIBUTE_LEADER_LEASE_RENEWED_AT, now )
+                                   .withLong( Configuration.ATTRIBUTE_LEADER_LEASE_EXPIRES_AT, now ) )
+                .withConditionExpression( "#owner = :self" )
+                .withNameMap( new NameMap().with( "#owner", Configuration.ATTRIBUTE_LEADER_LEASE_OWNER ) )
+                .withValueMap( new ValueMap().withString( ":self", hostIP ) );
+        try {
+            this.table.putItem( putItemSpec );
+        }
+        catch ( ConditionalCheckFailedException e ) {
+            // Someone else holds the lease already
+        }
+    }
+}
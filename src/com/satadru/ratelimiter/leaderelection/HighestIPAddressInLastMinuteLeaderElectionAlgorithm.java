@@ -1,44 +1,231 @@
 package com.satadru.ratelimiter.leaderelection;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.satadru.ratelimiter.configurations.Configuration;
+
 /**
- * Simple IP address sorting and last heartbeat timestamp based leader election algorithm
- * NOT IMPLEMENTED
+ * Simple IP address sorting and last heartbeat timestamp based leader election algorithm backed by a leader lease.
+ * <p>
+ * Every host heartbeats into the HOST_TABLE. When the lease is free, the highest IP address among the hosts that have heartbeated
+ * within the lease duration acquires it with a conditional write, and the holder renews it on every heartbeat. The lease is kept by
+ * its holder for as long as it keeps renewing, so a host with a higher IP joining the fleet does not cause a change of leader.
+ * <p>
+ * A leader that stops heartbeating is replaced within maxFailoverMillis() = lease duration + heartbeat interval,
+ * a leader that is closed releases the lease and is replaced on the next heartbeat of the next host.
  */
-public class HighestIPAddressInLastMinuteLeaderElectionAlgorithm implements LeaderElectionAlgorithm {
+public class HighestIPAddressInLastMinuteLeaderElectionAlgorithm implements LeaderElectionAlgorithm, AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger( HighestIPAddressInLastMinuteLeaderElectionAlgorithm.class.getName() );
+
+    // Numeric order for IPv4 addresses, lexicographic otherwise
+    private static final Comparator<String> IP_ADDRESS_ORDER = Comparator.comparingLong( HighestIPAddressInLastMinuteLeaderElectionAlgorithm::ipv4ToLong )
+            .thenComparing( Comparator.naturalOrder() );
+
+    private final String hostIP;
+    private final HostTableStore store;
+    private final long heartbeatIntervalMillis;
+    private final long leaseDurationMillis;
+    private final long clockSkewMillis;
+    private final LongSupplier clock;
+    private ScheduledExecutorService heartbeatExecutor;
+
+    // Cached result of the last heartbeat, isLeader() and leaderIP() never go to the store
+    private volatile long leaseValidUntil;
+    private volatile String leaderIP;
+    private volatile long lastFailoverMillis = -1;
+
+    public HighestIPAddressInLastMinuteLeaderElectionAlgorithm( final HostTableStore store ) {
+        this( localIPAddress(), store, Configuration.LEADER_HEARTBEAT_INTERVAL, Configuration.LEADER_LEASE_DURATION,
+              Configuration.LEADER_LEASE_CLOCK_SKEW, System::currentTimeMillis );
+    }
+
+    public HighestIPAddressInLastMinuteLeaderElectionAlgorithm( final String hostIP, final HostTableStore store, final Duration heartbeatInterval,
+                                                                final Duration leaseDuration, final Duration clockSkew, final LongSupplier clock ) {
+        Preconditions.checkArgument( heartbeatInterval.compareTo( leaseDuration ) < 0, "heartbeatInterval must be shorter than leaseDuration" );
+        Preconditions.checkArgument( clockSkew.compareTo( leaseDuration ) < 0, "clockSkew must be shorter than leaseDuration" );
+        this.hostIP = hostIP;
+        this.store = store;
+        this.heartbeatIntervalMillis = heartbeatInterval.toMillis();
+        this.leaseDurationMillis = leaseDuration.toMillis();
+        this.clockSkewMillis = clockSkew.toMillis();
+        this.clock = clock;
+    }
 
     /**
-     * All candidates read the HOST_TABLE for the hosts that have heartbeated in the last one minute.
-     * Sort by IP address in reverse natural and the first (highest) IP wins.
-     * This method will returns true if this IP is the leader, else will return false.
-     * A host that was elected leader and failed to heartbeat into the clique will get
-     * dethroned by another host in the next minute (2 * heartbeats)
+     * Starts heartbeating every heartbeat interval. The first heartbeat runs immediately
+     */
+    public synchronized HighestIPAddressInLastMinuteLeaderElectionAlgorithm start() {
+        Preconditions.checkState( this.heartbeatExecutor == null, "Already started" );
+        this.heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon( true ).setNameFormat( "leader-election-heartbeat-%d" ).build() );
+        this.heartbeatExecutor.scheduleWithFixedDelay( this::heartBeat, 0, this.heartbeatIntervalMillis, TimeUnit.MILLISECONDS );
+        return this;
+    }
+
+    /**
+     * Answers from the lease acquired by the last heartbeat without a remote call.
+     * The lease is given up clockSkew before it expires in the store so that two hosts never both believe they are the leader.
      *
-     * @return
+     * @return true if this host holds a valid lease
      */
     @Override
     public boolean isLeader() {
-        throw new UnsupportedOperationException( "Implement me!" );
+        return this.clock.getAsLong() < this.leaseValidUntil;
     }
 
     /**
-     * No implementation needed
+     * Runs a heartbeat round synchronously
+     *
+     * @return true if this host is the leader after the round
      */
     @Override
     public boolean electLeader() {
-        return true;
+        this.heartBeat();
+        return this.isLeader();
     }
 
+    /**
+     * @return the leader seen by the last heartbeat or null if there was no valid lease
+     */
     @Override
     public String leaderIP() {
-        throw new UnsupportedOperationException( "Implement me!" );
+        return this.leaderIP;
     }
 
     /**
-     * Method to be called by a scheduled executor every 30 seconds.
-     * Will update its record in DynamoDB table (HOST_TABLE)
-     * and write the IP address (hash key) and timestamp (range key)
+     * Method to be called by a scheduled executor every heartbeat interval, see start().
+     * Will update its record in the HOST_TABLE, then renew the lease if this host holds it,
+     * or acquire the lease if it is free and this host has the highest IP address among the live hosts.
      */
     public void heartBeat() {
-        throw new UnsupportedOperationException( "Implement me!" );
+        try {
+            final long now = this.clock.getAsLong();
+            this.store.heartBeat( this.hostIP, now );
+            final LeaderLease lease = this.store.readLease();
+            final boolean holder = lease != null && !lease.isExpired( now ) && this.hostIP.equals( lease.getOwner() );
+            if ( holder || ( ( lease == null || lease.isExpired( now ) ) && this.isHighestLiveHost( now, lease ) ) ) {
+                if ( this.store.tryAcquireLease( this.hostIP, now, this.leaseDurationMillis ) ) {
+                    if ( !holder ) {
+                        this.tookOver( lease, now );
+                    }
+                    this.leaseValidUntil = now + this.leaseDurationMillis - this.clockSkewMillis;
+                    this.leaderIP = this.hostIP;
+                    return;
+                }
+            }
+            this.leaseValidUntil = 0;
+            final LeaderLease current = holder ? this.store.readLease() : lease;
+            this.leaderIP = current == null || current.isExpired( now ) ? null : current.getOwner();
+        }
+        catch ( RuntimeException e ) {
+            // The cached lease runs out on its own, keep heartbeating
+            logger.warning( "Heartbeat of " + this.hostIP + " failed: " + e.getMessage() );
+        }
+    }
+
+    private boolean isHighestLiveHost( final long now, final LeaderLease expiredLease ) {
+        // The owner of the expired lease has crashed or released it, it does not take part even if it still heartbeats
+        final String previousLeader = expiredLease == null ? null : expiredLease.getOwner();
+        final List<String> liveHosts = this.store.liveHosts( now - this.leaseDurationMillis );
+        for ( String liveHost : liveHosts ) {
+            if ( !liveHost.equals( previousLeader ) && IP_ADDRESS_ORDER.compare( liveHost, this.hostIP ) > 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void tookOver( final LeaderLease previous, final long now ) {
+        if ( previous == null || this.hostIP.equals( previous.getOwner() ) ) {
+            logger.info( this.hostIP + " acquired the leader lease" );
+            return;
+        }
+        // Time since the previous leader was last known to be alive
+        this.lastFailoverMillis = now - previous.getRenewedAt();
+        logger.info( this.hostIP + " took over the leader lease from " + previous.getOwner() + " after " + this.lastFailoverMillis + " ms" );
+    }
+
+    /**
+     * @return milliseconds between the last renewal of the previous leader and the takeover by this host, -1 if this host never took over
+     */
+    public long getLastFailoverMillis() {
+        return this.lastFailoverMillis;
+    }
+
+    /**
+     * @return upper bound of the time without a leader after the leader stops heartbeating, given a healthy store
+     */
+    public long maxFailoverMillis() {
+        return this.leaseDurationMillis + this.heartbeatIntervalMillis;
+    }
+
+    public String getHostIP() {
+        return this.hostIP;
+    }
+
+    /**
+     * Stops heartbeating and releases the lease if this host holds it
+     */
+    @Override
+    public synchronized void close() {
+        if ( this.heartbeatExecutor != null ) {
+            this.heartbeatExecutor.shutdownNow();
+            try {
+                // Let a running heartbeat finish before the lease is released
+                this.heartbeatExecutor.awaitTermination( this.heartbeatIntervalMillis, TimeUnit.MILLISECONDS );
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+            this.heartbeatExecutor = null;
+        }
+        final boolean wasLeader = this.isLeader();
+        this.leaseValidUntil = 0;
+        if ( wasLeader ) {
+            try {
+                this.store.releaseLease( this.hostIP, this.clock.getAsLong() );
+            }
+            catch ( RuntimeException e ) {
+                logger.warning( "Failed to release the leader lease of " + this.hostIP + ": " + e.getMessage() );
+            }
+        }
+    }
+
+    private static long ipv4ToLong( final String ip ) {
+        final String[] octets = ip.split( "\\." );
+        if ( octets.length != 4 ) {
+            return -1;
+        }
+        long value = 0;
+        for ( String octet : octets ) {
+            try {
+                value = ( value << 8 ) | Integer.parseInt( octet );
+            }
+            catch ( NumberFormatException e ) {
+                return -1;
+            }
+        }
+        return value;
+    }
+
+    private static String localIPAddress() {
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        }
+        catch ( UnknownHostException e ) {
+            throw new IllegalStateException( "Cannot resolve the IP address of this host", e );
+        }
     }
 }
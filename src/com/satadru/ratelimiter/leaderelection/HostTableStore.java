@@ -0,0 +1,38 @@
+package com.satadru.ratelimiter.leaderelection;
+
+import java.util.List;
+
+/**
+ * Storage of the host heartbeats and of the leader lease used by HighestIPAddressInLastMinuteLeaderElectionAlgorithm
+ */
+public interface HostTableStore {
+
+    /**
+     * Records that hostIP was alive at timestamp
+     */
+    void heartBeat( String hostIP, long timestamp );
+
+    /**
+     * @return the hosts which have heartbeated at or after since
+     */
+    List<String> liveHosts( long since );
+
+    /**
+     * @return the current lease or null if no lease was ever acquired
+     */
+    LeaderLease readLease();
+
+    /**
+     * Atomically acquires or renews the lease until now + leaseDurationMillis.
+     * Succeeds only if there is no lease, the lease has expired at now or the lease is already held by hostIP.
+     *
+     * @return true if hostIP holds the lease
+     */
+    boolean tryAcquireLease( String hostIP, long now, long leaseDurationMillis );
+
+    /**
+     * Expires the lease if it is held by hostIP, so that the next leader does not have to wait for the expiry.
+     * The released lease is renewed and expires at now, the last time its owner was known to be alive
+     */
+    void releaseLease( String hostIP, long now );
+}
@@ -0,0 +1,53 @@
+package com.satadru.ratelimiter.leaderelection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Host table of a single JVM. Several HighestIPAddressInLastMinuteLeaderElectionAlgorithm instances sharing one store
+ * behave like several nodes sharing the HOST_TABLE
+ */
+public class InMemoryHostTableStore implements HostTableStore {
+
+    private final Map<String, Long> heartbeats = new ConcurrentHashMap<>();
+    private LeaderLease lease;
+
+    @Override
+    public void heartBeat( final String hostIP, final long timestamp ) {
+        this.heartbeats.merge( hostIP, timestamp, Math::max );
+    }
+
+    @Override
+    public List<String> liveHosts( final long since ) {
+        final List<String> hosts = new ArrayList<>();
+        for ( Map.Entry<String, Long> entry : this.heartbeats.entrySet() ) {
+            if ( entry.getValue() >= since ) {
+                hosts.add( entry.getKey() );
+            }
+        }
+        return hosts;
+    }
+
+    @Override
+    public synchronized LeaderLease readLease() {
+        return this.lease;
+    }
+
+    @Override
+    public synchronized boolean tryAcquireLease( final String hostIP, final long now, final long leaseDurationMillis ) {
+        if ( this.lease != null && !this.lease.isExpired( now ) && !this.lease.getOwner().equals( hostIP ) ) {
+            return false;
+        }
+        this.lease = new LeaderLease( hostIP, now, now + leaseDurationMillis );
+        return true;
+    }
+
+    @Override
+    public synchronized void releaseLease( final String hostIP, final long now ) {
+        if ( this.lease != null && this.lease.getOwner().equals( hostIP ) ) {
+            this.lease = new LeaderLease( hostIP, now, now );
+        }
+    }
+}
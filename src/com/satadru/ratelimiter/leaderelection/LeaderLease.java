@@ -0,0 +1,38 @@
+package com.satadru.ratelimiter.leaderelection;
+
+/**
+ * The leader lease as stored in the host table. Timestamps are epoch milliseconds of the store's clock
+ */
+public class LeaderLease {
+
+    private final String owner;
+    private final long renewedAt;
+    private final long expiresAt;
+
+    public LeaderLease( final String owner, final long renewedAt, final long expiresAt ) {
+        this.owner = owner;
+        this.renewedAt = renewedAt;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getOwner() {
+        return this.owner;
+    }
+
+    public long getRenewedAt() {
+        return this.renewedAt;
+    }
+
+    public long getExpiresAt() {
+        return this.expiresAt;
+    }
+
+    public boolean isExpired( final long now ) {
+        return this.expiresAt <= now;
+    }
+
+    @Override
+    public String toString() {
+        return this.owner + " until " + this.expiresAt;
+    }
+}
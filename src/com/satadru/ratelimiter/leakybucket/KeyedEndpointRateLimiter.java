@@ -0,0 +1,24 @@
+package com.satadru.ratelimiter.leakybucket;
+
+/*
+Simple interface to consume tokens from a separate token bucket per endpoint i.e. API name and REST verb.
+Non-blocking. Consumes token and returns true if token is present else returns false.
+ */
+public interface KeyedEndpointRateLimiter {
+
+    /**
+     * Consumes one token per call from the bucket of the passed apiName and verb.
+     *
+     * @param apiName The name of the API being called
+     * @param method  The REST verb
+     * @return true iff there was an available token and it was consumed by this call else false
+     */
+    boolean consume( String apiName, String method );
+
+    /**
+     * @return milliseconds until the bucket of the passed apiName and verb has room for a call again, 0 if it has room now
+     */
+    default long retryAfterMillis( final String apiName, final String method ) {
+        return 0;
+    }
+}
@@ -1,5 +1,11 @@
 package com.satadru.ratelimiter.leakybucket;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.satadru.ratelimiter.pojo.ConsumeRequest;
+import com.satadru.ratelimiter.pojo.ThrottleDecision;
+
 /*
 Simple interface to consume tokens from token bucket based on clientIds.
 Non-blocking. Consumes token and returns true if token is present else returns false.
@@ -15,6 +21,52 @@ public interface SimpleClientIdBasedRateLimiter {
      * @param clientId Identifier for the client calling the API
      * @return true iff there was an available token and it was consumed by this call else false
      */
-    boolean consume( String apiName, String method, String clientId );
+    default boolean consume( final String apiName, final String method, final String clientId ) {
+        return this.consume( apiName, method, clientId, 1 );
+    }
+
+    /**
+     * Consumes the passed number of tokens at once, e.g. one per order of a bulk call. Every period must have room for all of them,
+     * the call is allowed or denied as a whole.
+     *
+     * @param permits number of tokens the call costs, at least 1
+     * @return true iff all the tokens were available and consumed by this call else false
+     */
+    boolean consume( String apiName, String method, String clientId, int permits );
+
+    /**
+     * Same as consume() but also tells which period limited the call, how many calls are left and when to retry.
+     *
+     * @param decision filled in place and returned, may be reused by the caller for every call of a thread
+     * @return the passed decision
+     */
+    default ThrottleDecision tryConsume( final String apiName, final String method, final String clientId, final ThrottleDecision decision ) {
+        return this.tryConsume( apiName, method, clientId, 1, decision );
+    }
+
+    /**
+     * Same as consume() with permits, filling in the decision
+     *
+     * @return the passed decision
+     */
+    ThrottleDecision tryConsume( String apiName, String method, String clientId, int permits, ThrottleDecision decision );
+
+    /**
+     * Decides a batch of calls, e.g. all the calls of a request to a gateway, loading the limits of all the clients which are not
+     * cached yet with a single read of the store. The requests are decided in order, and the tokens allowed to a request count
+     * against the later requests of the same client and API.
+     *
+     * @return a new decision per request, in the order of the requests
+     */
+    List<ThrottleDecision> consumeAll( List<ConsumeRequest> requests );
+
+    /**
+     * Same as tryConsume() without ever blocking the caller. A decision made from cached limits completes immediately,
+     * one which needs the limits of the client to be loaded first completes once they are loaded.
+     * Composes with thenApply() and friends, so a request can be served without holding a thread while the limits are loaded.
+     *
+     * @return future of a new decision
+     */
+    CompletableFuture<ThrottleDecision> consumeAsync( String apiName, String method, String clientId );
 
 }
@@ -0,0 +1,37 @@
+package com.satadru.ratelimiter.leakybucket.distributed;
+
+import java.util.List;
+
+import com.satadru.ratelimiter.pojo.TransportEvent;
+
+/**
+ * Carries the throttling events from the nodes which publish them to the consumers which apply them to the state store.
+ * Events are spread over a fixed number of partitions (see EventPartitioner) and every partition is consumed by a single owner,
+ * which keeps the order of the events of a key.
+ * <p>
+ * Delivery is at least once: an event which is polled but not acknowledged is delivered again, and so may an acknowledged one be
+ * after a failure. Implementations are SQSEventTransport, a queue per partition, and MappedLogEventTransport, a local append-only log.
+ */
+public interface EventTransport extends AutoCloseable {
+
+    int getPartitionCount();
+
+    /**
+     * Appends the event to the partition. May return before the event is durable, but never blocks on the consumers
+     */
+    void publish( int partition, String event );
+
+    /**
+     * @param maxEvents upper bound, an implementation may return fewer
+     * @return the next events of the partition in publishing order, empty if there are none
+     */
+    List<TransportEvent> poll( int partition, int maxEvents );
+
+    /**
+     * Marks polled events of the partition as applied, so that they are not delivered again
+     */
+    void acknowledge( int partition, List<TransportEvent> events );
+
+    @Override
+    void close();
+}
@@ -0,0 +1,41 @@
+package com.satadru.ratelimiter.leakybucket.distributed;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.satadru.ratelimiter.leakybucket.distributed.aws.EventPartitioner;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.SQSPayloadCodec;
+import com.satadru.ratelimiter.pojo.SQSPayload;
+
+/**
+ * Publishes every usage summary as a throttling event to the partition of its key.
+ * Summaries are encoded in the binary format of SQSPayloadCodec, or in the legacy CSV format with two extra period/value pairs
+ * (calls and firstTimestamp) which a consumer that does not know about summaries still reads as a single event.
+ */
+public class EventTransportUsageSink implements UsageSink {
+
+    private static final Logger logger = Logger.getLogger( EventTransportUsageSink.class.getName() );
+
+    private final EventTransport transport;
+    private final boolean binaryFormat;
+    // Only used by publish(), which is never called concurrently
+    private final SQSPayloadCodec codec = new SQSPayloadCodec();
+
+    public EventTransportUsageSink( final EventTransport transport, final boolean binaryFormat ) {
+        this.transport = transport;
+        this.binaryFormat = binaryFormat;
+    }
+
+    @Override
+    public void publish( final List<SQSPayload> summaries ) {
+        for ( SQSPayload summary : summaries ) {
+            try {
+                final String event = this.binaryFormat ? this.codec.encode( summary ) : this.codec.encodeLegacy( summary );
+                this.transport.publish( EventPartitioner.partitionOf( summary.getHashKey(), summary.getClientId(), this.transport.getPartitionCount() ), event );
+            }
+            catch ( Exception e ) {
+                logger.warning( "Failed to publish usage summary for " + summary.getHashKey() + ":" + summary.getClientId() + ": " + e.getMessage() );
+            }
+        }
+    }
+}
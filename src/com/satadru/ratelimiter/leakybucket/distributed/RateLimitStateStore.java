@@ -0,0 +1,121 @@
+package com.satadru.ratelimiter.leakybucket.distributed;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.pojo.ArrivalTimes;
+import com.satadru.ratelimiter.pojo.SQSPayload;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * Storage of the CLIENT_ID_TOKEN_BUCKET records, i.e. the configuration and the observed usage of every API_NAME:METHOD and clientId.
+ * A record is the attribute map of a DynamoDB item: hashKey, clientId and a payload map with one map per period
+ * (see TokenBucketRecords). Numbers are BigDecimal. Records returned by a store must not be modified by the caller.
+ */
+public interface RateLimitStateStore {
+
+    /**
+     * @return the record or null if there is no record for the key
+     */
+    Map<String, Object> get( TokenBucketKey key );
+
+    /**
+     * Same as get() without blocking the caller. The default completes on the calling thread, which is right for a local store;
+     * a store backed by a remote service should override it.
+     *
+     * @return future of the record, completed with null if there is no record for the key
+     */
+    default CompletableFuture<Map<String, Object>> getAsync( final TokenBucketKey key ) {
+        final CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+        try {
+            future.complete( this.get( key ) );
+        }
+        catch ( RuntimeException e ) {
+            future.completeExceptionally( e );
+        }
+        return future;
+    }
+
+    /**
+     * @return the records of the keys which have a record
+     */
+    Map<TokenBucketKey, Map<String, Object>> batchGet( Collection<TokenBucketKey> keys );
+
+    /**
+     * Applies usage summaries of a single key in order, see TokenBucketRecords.applyUsage().
+     * A key without a record is ignored.
+     *
+     * @return false if the record could not be updated and the summaries should be applied again later
+     */
+    boolean applyUsage( TokenBucketKey key, List<SQSPayload> payloads );
+
+    /**
+     * Applies the usage summaries of several keys
+     *
+     * @return the keys whose record could not be updated
+     */
+    Set<TokenBucketKey> batchApplyUsage( Map<TokenBucketKey, List<SQSPayload>> payloadsByKey );
+
+    /**
+     * Atomically reserves calls of a window of the period for the exclusive use of the calling node, see QuotaLeasingClientIdRateLimiter.
+     * The calls leased by all the nodes for a window never exceed maxCalls.
+     *
+     * @param windowStart start of the window, a multiple of the period
+     * @param requested   calls wanted by the node
+     * @param maxCalls    calls allowed to the key in a window
+     * @return calls granted, requested or less if the quota of the window is nearly used up, 0 if it is used up
+     */
+    long leaseQuota( TokenBucketKey key, Period period, long windowStart, long requested, long maxCalls );
+
+    /**
+     * Reads the theoretical arrival times of GcraClientIdRateLimiter
+     *
+     * @return epoch microseconds indexed by Period ordinal, 0 for a period never written, null if the key has no record.
+     * Must not be modified by the caller
+     */
+    long[] getArrivalTimes( TokenBucketKey key );
+
+    /**
+     * Replaces the theoretical arrival times of the key if they are still the expected ones. Never creates a record: times written
+     * for a deleted record would bring it back without any configured period, i.e. unlimited
+     *
+     * @param expected times as read, see getArrivalTimes()
+     * @param update   new times, only the periods which differ from expected are written
+     * @return false if the times were changed by someone else in between or the key has no record, and nothing was written
+     */
+    boolean compareAndSetArrivalTimes( TokenBucketKey key, long[] expected, long[] update );
+
+    /**
+     * Checks and consumes the permits against the arrival times of all the periods of the key in one atomic step, see
+     * TokenBucketRecords.advanceArrivalTimes(). The default is a compare-and-set loop starting from the guess; a store which can run
+     * the step server side in a single round trip should override it.
+     *
+     * @param guess the times the caller last saw, may be null. A call denied by them is denied without reading the store, since
+     *              arrival times only move forward
+     * @return the times written if the call was allowed, else the times it was denied by. Not advanced, with no period to blame,
+     * if the times kept changing under contention. Null if the key has no record
+     */
+    default ArrivalTimes advanceArrivalTimes( final TokenBucketKey key, final long[] guess, final long now, final int permits,
+                                              final long[] emissionIntervals, final long[] limits ) {
+        long[] expected = guess != null ? guess : this.getArrivalTimes( key );
+        for ( int attempt = 0; expected != null; attempt++ ) {
+            final long[] update = TokenBucketRecords.advanceArrivalTimes( expected, now, permits, emissionIntervals, limits );
+            if ( update == null ) {
+                return new ArrivalTimes( expected, false );
+            }
+            if ( this.compareAndSetArrivalTimes( key, expected, update ) ) {
+                return new ArrivalTimes( update, true );
+            }
+            if ( attempt == Configuration.GCRA_MAX_CAS_RETRIES ) {
+                return new ArrivalTimes( expected, false );
+            }
+            expected = this.getArrivalTimes( key );
+        }
+        return null;
+    }
+}
@@ -0,0 +1,38 @@
+package com.satadru.ratelimiter.leakybucket.distributed;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.satadru.ratelimiter.pojo.SQSPayload;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * Applies the usage summaries straight to a RateLimitStateStore, without a queue and consumer in between.
+ * Meant for a single node, e.g. with the InMemoryRateLimitStateStore.
+ */
+public class StateStoreUsageSink implements UsageSink {
+
+    private static final Logger logger = Logger.getLogger( StateStoreUsageSink.class.getName() );
+
+    private final RateLimitStateStore stateStore;
+
+    public StateStoreUsageSink( final RateLimitStateStore stateStore ) {
+        this.stateStore = stateStore;
+    }
+
+    @Override
+    public void publish( final List<SQSPayload> summaries ) {
+        final Map<TokenBucketKey, List<SQSPayload>> payloadsByKey = new LinkedHashMap<>();
+        for ( SQSPayload summary : summaries ) {
+            payloadsByKey.put( new TokenBucketKey( summary.getHashKey(), summary.getClientId() ), Collections.singletonList( summary ) );
+        }
+        final Set<TokenBucketKey> failedKeys = this.stateStore.batchApplyUsage( payloadsByKey );
+        if ( !failedKeys.isEmpty() ) {
+            logger.warning( "Failed to apply the usage of " + failedKeys.size() + " records" );
+        }
+    }
+}
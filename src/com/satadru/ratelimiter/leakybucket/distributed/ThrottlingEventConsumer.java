@@ -0,0 +1,117 @@
+package com.satadru.ratelimiter.leakybucket.distributed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.google.common.collect.ImmutableList;
+import com.satadru.ratelimiter.leaderelection.LeaderElectionAlgorithm;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.SQSPayloadCodec;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
+import com.satadru.ratelimiter.pojo.SQSPayload;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+import com.satadru.ratelimiter.pojo.TransportEvent;
+
+/**
+ * Applies the throttling events of an EventTransport to the CLIENT_ID_TOKEN_BUCKET records of a RateLimitStateStore.
+ * A consumer either reads all the partitions while it is the leader, or owns a subset of the partitions (see EventPartitioner)
+ * exclusively. Since all the events of a client and API are in the same partition, several partition owners can apply events in
+ * parallel while the order of the events of every key is preserved.
+ */
+public class ThrottlingEventConsumer {
+
+    private static final Logger logger = Logger.getLogger( ThrottlingEventConsumer.class.getName() );
+
+    private final RateLimitStateStore stateStore;
+    private final EventTransport transport;
+    // Partitions owned by this consumer
+    private final List<Integer> partitions;
+    private final LeaderElectionAlgorithm leaderElectionAlgorithm;
+    private final int maxEventsPerPoll;
+    private final SQSPayloadCodec codec = new SQSPayloadCodec();
+    private final RateLimiterMetrics metrics = RateLimiterMetrics.get();
+
+    /**
+     * @param partitions              partitions of the transport owned by this consumer
+     * @param leaderElectionAlgorithm gate for consuming at all. Partition owners which have an exclusive assignment do not need
+     *                                a leader and can pass a SelfElectingLeaderAlgorithm
+     * @param maxEventsPerPoll        events applied per partition and poll, with a single read and write of every distinct key
+     */
+    public ThrottlingEventConsumer( final RateLimitStateStore stateStore, final EventTransport transport, final List<Integer> partitions,
+                                    final LeaderElectionAlgorithm leaderElectionAlgorithm, final int maxEventsPerPoll ) {
+        this.stateStore = stateStore;
+        this.transport = transport;
+        this.partitions = ImmutableList.copyOf( partitions );
+        this.leaderElectionAlgorithm = leaderElectionAlgorithm;
+        this.maxEventsPerPoll = maxEventsPerPoll;
+    }
+
+    /**
+     * Intended to be executed by a ScheduledExecutorService.scheduleWithFixedDelay()
+     * If this machine is NOT the leader, return
+     * Else, poll the owned partitions once and update the corresponding clientId rates in the state store
+     */
+    public void updateTokens() {
+        /*
+        Ensures that only one machine in the clique is consuming the queue at a time. Is good for a decent sized service.
+        Main gates the consumers of a single partition with the HighestIPAddressInLastMinuteLeaderElectionAlgorithm, which replaces a
+        leader that stops heartbeating within its maxFailoverMillis(). Owners of an exclusive set of partitions use the SelfElectingLeaderAlgorithm
+         */
+        if ( !this.leaderElectionAlgorithm.isLeader() ) {
+            return;
+        }
+
+        for ( int partition : this.partitions ) {
+            this.updateTokens( partition );
+        }
+    }
+
+    private void updateTokens( final int partition ) {
+        final List<TransportEvent> events = this.transport.poll( partition, this.maxEventsPerPoll );
+        if ( events.isEmpty() ) {
+            return;
+        }
+        this.metrics.consumerBatch( events.size() );
+        final long now = System.currentTimeMillis();
+
+        // Events of the same client and API are applied to the same item, so every distinct item is read and written once per batch
+        final Map<TokenBucketKey, List<SQSPayload>> payloadsByKey = new LinkedHashMap<>();
+        final Map<TokenBucketKey, List<TransportEvent>> eventsByKey = new HashMap<>();
+        // Events which cannot be decoded would never be, they are dropped instead of blocking the partition
+        final List<TransportEvent> applied = new ArrayList<>( events.size() );
+        for ( TransportEvent event : events ) {
+            final SQSPayload sqsPayload;
+            try {
+                // Reads both the binary and the legacy CSV format
+                sqsPayload = this.codec.decode( event.getBody() );
+            }
+            catch ( RuntimeException e ) {
+                logger.warning( "Dropping malformed throttling event " + event.getReceipt() + " of partition " + partition + ": " + e );
+                this.metrics.consumerMalformedEvent();
+                applied.add( event );
+                continue;
+            }
+            final TokenBucketKey key = new TokenBucketKey( sqsPayload.getHashKey(), sqsPayload.getClientId() );
+            this.metrics.consumerLag( now - sqsPayload.getTimestamp() );
+            payloadsByKey.computeIfAbsent( key, k -> new ArrayList<>() ).add( sqsPayload );
+            eventsByKey.computeIfAbsent( key, k -> new ArrayList<>() ).add( event );
+        }
+
+        // Events of the items which could not be written are not acknowledged and will be redelivered
+        final Set<TokenBucketKey> failedKeys = payloadsByKey.isEmpty() ? Collections.emptySet() : this.stateStore.batchApplyUsage( payloadsByKey );
+        this.metrics.consumerFailedKeys( failedKeys.size() );
+        for ( Map.Entry<TokenBucketKey, List<TransportEvent>> entry : eventsByKey.entrySet() ) {
+            if ( !failedKeys.contains( entry.getKey() ) ) {
+                applied.addAll( entry.getValue() );
+            }
+        }
+        if ( !applied.isEmpty() ) {
+            this.transport.acknowledge( partition, applied );
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.satadru.ratelimiter.leakybucket.distributed;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.pojo.SQSPayload;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * Operations on a CLIENT_ID_TOKEN_BUCKET record shared by the RateLimitStateStore implementations
+ */
+public class TokenBucketRecords {
+
+    private static final Logger logger = Logger.getLogger( TokenBucketRecords.class.getName() );
+
+    private TokenBucketRecords() {
+    }
+
+    /**
+     * Applies a usage summary to the period maps of the record in place.
+     * The first call of the summary either resets the burst period or increments its calls, the remaining calls are added to it.
+     * A call of several permits is summarized as that many calls with the same timestamp, so it lands in a single burst period.
+     */
+    public static void applyUsage( final Map<String, Object> record, final SQSPayload sqsPayload ) {
+        final Map<?, ?> payload = (Map<?, ?>) record.get( Configuration.ATTRIBUTE_RATE_LIMITING_PAYLOAD );
+        for ( String periodKey : Configuration.PERIOD_KEYS ) {
+            final Map<String, Double> rateTokens = sqsPayload.getRateTokens();
+            final Map<String, Object> entryData = asMap( payload.get( periodKey ) );
+            if ( rateTokens.containsKey( periodKey ) && entryData != null ) {
+                long timestamp = sqsPayload.getTimestamp();
+                entryData.put( Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED, BigDecimal.valueOf( timestamp ) );
+                entryData.put( Configuration.ATTRIBUTE_RATE_LIMITING_RATE, BigDecimal.valueOf( rateTokens.get( periodKey ) ) );
+                double callsInPeriod = ( (BigDecimal) entryData.get( Configuration.ATTRIBUTE_RATE_LIMITING_CALLS_IN_PERIOD ) ).doubleValue();
+                long lastUpdatedTimestampBurstRate = ( (BigDecimal) entryData.get( Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED_BURST ) ).longValue();
+                final long periodInMillis = Configuration.PERIOD_TO_MILLISECOND_MAP.get( periodKey );
+                // The first call of the payload
+                long firstTimestamp = sqsPayload.getFirstTimestamp();
+                if ( firstTimestamp - lastUpdatedTimestampBurstRate >= periodInMillis ) {
+                    logger.finest( () -> "SQS: Resetting the burst call ticker to 1 for period " + periodKey );
+                    // reset the burst rate
+                    callsInPeriod = 1;
+                    lastUpdatedTimestampBurstRate = firstTimestamp;
+                }
+                else {
+                    callsInPeriod++;
+                }
+                // The remaining calls of a summary, all of them between the first and the last call
+                final long remainingCalls = sqsPayload.getCallCount() - 1;
+                if ( remainingCalls > 0 ) {
+                    if ( timestamp - lastUpdatedTimestampBurstRate >= periodInMillis ) {
+                        // The burst period rolled over within the summary. Count all the remaining calls in the new
+                        // burst period, which is conservative since we do not know which of them came before the reset
+                        callsInPeriod = remainingCalls;
+                        lastUpdatedTimestampBurstRate = timestamp;
+                    }
+                    else {
+                        callsInPeriod += remainingCalls;
+                    }
+                }
+                entryData.put( Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED_BURST, BigDecimal.valueOf( lastUpdatedTimestampBurstRate ) );
+                entryData.put( Configuration.ATTRIBUTE_RATE_LIMITING_CALLS_IN_PERIOD, BigDecimal.valueOf( callsInPeriod ) );
+            }
+        }
+    }
+
+    /**
+     * @return the key of the quota lease record of a window, see RateLimitStateStore.leaseQuota()
+     */
+    public static String quotaLeaseKey( final TokenBucketKey key, final Period period, final long windowStart ) {
+        return key.getHashKey() + "|" + key.getClientId() + "|" + period.getKey() + "|" + windowStart;
+    }
+
+    /**
+     * One step of the generic cell rate algorithm over all the periods of a key: every period with an emission interval moves its
+     * arrival time to max(time, now) + permits * interval, unless that is more than its limit ahead of now for any of them
+     *
+     * @param times             epoch microseconds indexed by Period ordinal, not modified
+     * @param emissionIntervals microseconds per call indexed by Period ordinal, 0 for a period which is not limited
+     * @param limits            burst * emission interval indexed by Period ordinal
+     * @return the advanced times, or null if the call is denied
+     */
+    public static long[] advanceArrivalTimes( final long[] times, final long now, final int permits, final long[] emissionIntervals,
+                                              final long[] limits ) {
+        final long[] advanced = times.clone();
+        for ( int ordinal = 0; ordinal < advanced.length; ordinal++ ) {
+            if ( emissionIntervals[ordinal] == 0 ) {
+                continue;
+            }
+            advanced[ordinal] = Math.max( times[ordinal], now ) + permits * emissionIntervals[ordinal];
+            if ( advanced[ordinal] - now > limits[ordinal] ) {
+                return null;
+            }
+        }
+        return advanced;
+    }
+
+    /**
+     * Copies the nested maps of a record, leaving the numbers and strings shared since they are immutable
+     */
+    public static Map<String, Object> deepCopy( final Map<String, Object> record ) {
+        final Map<String, Object> copy = new HashMap<>( record.size() * 2 );
+        for ( Map.Entry<String, Object> entry : record.entrySet() ) {
+            final Object value = entry.getValue();
+            copy.put( entry.getKey(), value instanceof Map ? deepCopy( asMap( value ) ) : value );
+        }
+        return copy;
+    }
+
+    /**
+     * The nested maps of a record are built as Map<String, Object> by every store
+     */
+    @SuppressWarnings( "unchecked" )
+    private static Map<String, Object> asMap( final Object value ) {
+        return (Map<String, Object>) value;
+    }
+}
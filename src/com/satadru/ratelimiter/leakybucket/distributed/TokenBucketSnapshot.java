@@ -0,0 +1,284 @@
+package com.satadru.ratelimiter.leakybucket.distributed;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.pojo.ClientLimitState;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * Memory-mapped snapshot of CLIENT_ID_TOKEN_BUCKET records, written periodically by a node so that it can serve decisions right after
+ * a restart instead of reading every record back one by one. The file is mapped as is, a lookup hashes into the slot table and only
+ * decodes the one record it finds. Layout, big-endian:
+ * <pre>
+ * header   int magic, int version, int period count, int slot count (power of two), int record count, int record size, long created at
+ * slots    int[slot count], record index + 1 or 0 for an empty slot, open addressing with linear probing
+ * records  int key hash, short hashKey length, short clientId length, byte[MAX_KEY_BYTES] UTF-8 hashKey followed by clientId,
+ *          byte period mask, byte[7] padding, then for every period in ordinal order
+ *          long lastUpdated, long lastUpdatedBurst, double maxAllowedRateInPeriod, double rate, double maxAllowedCallsInPeriod, double callsInPeriod
+ * </pre>
+ * A snapshot is immutable once written and safe to read from several threads.
+ */
+public class TokenBucketSnapshot {
+
+    private static final Logger logger = Logger.getLogger( TokenBucketSnapshot.class.getName() );
+
+    private static final int MAGIC = 0x524c5353;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int MAX_KEY_BYTES = 120;
+    private static final int KEY_OFFSET = 8;
+    private static final int MASK_OFFSET = KEY_OFFSET + MAX_KEY_BYTES;
+    private static final int PERIODS_OFFSET = MASK_OFFSET + 8;
+    private static final int PERIOD_SIZE = 6 * 8;
+    private static final int RECORD_SIZE = PERIODS_OFFSET + Period.count() * PERIOD_SIZE;
+
+    private final ByteBuffer buffer;
+    private final int slotCount;
+    private final int recordCount;
+    private final long createdAt;
+
+    private TokenBucketSnapshot( final ByteBuffer buffer ) {
+        this.buffer = buffer;
+        this.slotCount = buffer.getInt( 12 );
+        this.recordCount = buffer.getInt( 16 );
+        this.createdAt = buffer.getLong( 24 );
+    }
+
+    /**
+     * Maps a snapshot file
+     *
+     * @return the snapshot or null if there is no file or it was written by an incompatible version
+     */
+    public static TokenBucketSnapshot open( final Path path ) {
+        if ( !Files.isRegularFile( path ) ) {
+            return null;
+        }
+        final MappedByteBuffer buffer;
+        try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) ) {
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+        }
+        catch ( IOException e ) {
+            logger.warning( "Failed to map snapshot " + path + ": " + e.getMessage() );
+            return null;
+        }
+        if ( buffer.capacity() < HEADER_SIZE || buffer.getInt( 0 ) != MAGIC || buffer.getInt( 4 ) != VERSION
+             || buffer.getInt( 8 ) != Period.count() || buffer.getInt( 20 ) != RECORD_SIZE ) {
+            logger.warning( "Ignoring incompatible snapshot " + path );
+            return null;
+        }
+        final int slotCount = buffer.getInt( 12 );
+        final int recordCount = buffer.getInt( 16 );
+        // A lookup relies on a power of two of slots with at least one of them empty
+        if ( slotCount <= 0 || Integer.bitCount( slotCount ) != 1 || recordCount < 0 || recordCount >= slotCount ) {
+            logger.warning( "Ignoring corrupt snapshot " + path );
+            return null;
+        }
+        final long expectedSize = HEADER_SIZE + 4L * slotCount + (long) RECORD_SIZE * recordCount;
+        if ( buffer.capacity() != expectedSize ) {
+            logger.warning( "Ignoring truncated snapshot " + path );
+            return null;
+        }
+        return new TokenBucketSnapshot( buffer );
+    }
+
+    /**
+     * Writes the records to a temporary file and atomically replaces the snapshot with it.
+     * Records whose keys do not fit MAX_KEY_BYTES are left out.
+     *
+     * @return number of records written
+     */
+    public static int write( final Path path, final Collection<ClientLimitState> records ) {
+        final List<byte[][]> keys = new ArrayList<>( records.size() );
+        final List<ClientLimitState> included = new ArrayList<>( records.size() );
+        for ( ClientLimitState record : records ) {
+            final byte[] hashKey = record.getHashKey().getBytes( StandardCharsets.UTF_8 );
+            final byte[] clientId = record.getClientId().getBytes( StandardCharsets.UTF_8 );
+            if ( hashKey.length + clientId.length > MAX_KEY_BYTES ) {
+                continue;
+            }
+            keys.add( new byte[][] { hashKey, clientId } );
+            included.add( record );
+        }
+        final int slotCount = Integer.highestOneBit( Math.max( 2, included.size() * 2 ) - 1 ) << 1;
+        final long size = HEADER_SIZE + 4L * slotCount + (long) RECORD_SIZE * included.size();
+        if ( size > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException( "Too many records for a single snapshot: " + included.size() );
+        }
+        final Path temporary = Paths.get( path.toString() + ".tmp" );
+        try {
+            if ( path.getParent() != null ) {
+                Files.createDirectories( path.getParent() );
+            }
+            try ( FileChannel channel = FileChannel.open( temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                          StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+                final MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+                buffer.putInt( 0, MAGIC ).putInt( 4, VERSION ).putInt( 8, Period.count() ).putInt( 12, slotCount )
+                        .putInt( 16, included.size() ).putInt( 20, RECORD_SIZE ).putLong( 24, System.currentTimeMillis() );
+                for ( int i = 0; i < included.size(); i++ ) {
+                    final ClientLimitState record = included.get( i );
+                    final int hash = hash( record.getHashKey(), record.getClientId() );
+                    int slot = hash & ( slotCount - 1 );
+                    while ( buffer.getInt( HEADER_SIZE + 4 * slot ) != 0 ) {
+                        slot = ( slot + 1 ) & ( slotCount - 1 );
+                    }
+                    buffer.putInt( HEADER_SIZE + 4 * slot, i + 1 );
+                    writeRecord( buffer, recordOffset( slotCount, i ), hash, keys.get( i )[0], keys.get( i )[1], record );
+                }
+                buffer.force();
+            }
+            Files.move( temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( IOException e ) {
+            throw new UncheckedIOException( "Failed to write snapshot " + path, e );
+        }
+        return included.size();
+    }
+
+    /**
+     * Looks the key up in the mapped file and decodes only its record
+     *
+     * @return the record or null if the key is not in the snapshot
+     */
+    public ClientLimitState get( final TokenBucketKey key ) {
+        final int hash = hash( key.getHashKey(), key.getClientId() );
+        byte[] hashKey = null;
+        byte[] clientId = null;
+        for ( int slot = hash & ( this.slotCount - 1 ); ; slot = ( slot + 1 ) & ( this.slotCount - 1 ) ) {
+            final int index = this.buffer.getInt( HEADER_SIZE + 4 * slot ) - 1;
+            if ( index < 0 ) {
+                return null;
+            }
+            final int offset = recordOffset( this.slotCount, index );
+            if ( this.buffer.getInt( offset ) != hash ) {
+                continue;
+            }
+            if ( hashKey == null ) {
+                hashKey = key.getHashKey().getBytes( StandardCharsets.UTF_8 );
+                clientId = key.getClientId().getBytes( StandardCharsets.UTF_8 );
+            }
+            if ( this.keyEquals( offset, hashKey, clientId ) ) {
+                return this.readRecord( offset, key );
+            }
+        }
+    }
+
+    /**
+     * Decodes the keys of all the records, e.g. to reconcile them with the store
+     */
+    public List<TokenBucketKey> keys() {
+        final List<TokenBucketKey> keys = new ArrayList<>( this.recordCount );
+        for ( int i = 0; i < this.recordCount; i++ ) {
+            final int offset = recordOffset( this.slotCount, i );
+            final int hashKeyLength = this.buffer.getShort( offset + 4 );
+            final int clientIdLength = this.buffer.getShort( offset + 6 );
+            keys.add( new TokenBucketKey( this.readString( offset + KEY_OFFSET, hashKeyLength ),
+                                          this.readString( offset + KEY_OFFSET + hashKeyLength, clientIdLength ) ) );
+        }
+        return keys;
+    }
+
+    public int size() {
+        return this.recordCount;
+    }
+
+    public long getCreatedAt() {
+        return this.createdAt;
+    }
+
+    private boolean keyEquals( final int offset, final byte[] hashKey, final byte[] clientId ) {
+        if ( this.buffer.getShort( offset + 4 ) != hashKey.length || this.buffer.getShort( offset + 6 ) != clientId.length ) {
+            return false;
+        }
+        int position = offset + KEY_OFFSET;
+        for ( byte b : hashKey ) {
+            if ( this.buffer.get( position++ ) != b ) {
+                return false;
+            }
+        }
+        for ( byte b : clientId ) {
+            if ( this.buffer.get( position++ ) != b ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ClientLimitState readRecord( final int offset, final TokenBucketKey key ) {
+        final int periods = Period.count();
+        final long[] lastUpdated = new long[periods];
+        final long[] lastUpdatedBurst = new long[periods];
+        final double[] maxAllowedRate = new double[periods];
+        final double[] rate = new double[periods];
+        final double[] maxAllowedCallsInPeriod = new double[periods];
+        final double[] callsInPeriod = new double[periods];
+        for ( int ordinal = 0; ordinal < periods; ordinal++ ) {
+            final int position = offset + PERIODS_OFFSET + ordinal * PERIOD_SIZE;
+            lastUpdated[ordinal] = this.buffer.getLong( position );
+            lastUpdatedBurst[ordinal] = this.buffer.getLong( position + 8 );
+            maxAllowedRate[ordinal] = this.buffer.getDouble( position + 16 );
+            rate[ordinal] = this.buffer.getDouble( position + 24 );
+            maxAllowedCallsInPeriod[ordinal] = this.buffer.getDouble( position + 32 );
+            callsInPeriod[ordinal] = this.buffer.getDouble( position + 40 );
+        }
+        return new ClientLimitState( key.getHashKey(), key.getClientId(), this.buffer.get( offset + MASK_OFFSET ) & 0xff,
+                                     lastUpdated, lastUpdatedBurst, maxAllowedRate, rate, maxAllowedCallsInPeriod, callsInPeriod );
+    }
+
+    private String readString( final int offset, final int length ) {
+        final byte[] bytes = new byte[length];
+        for ( int i = 0; i < length; i++ ) {
+            bytes[i] = this.buffer.get( offset + i );
+        }
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    private static void writeRecord( final ByteBuffer buffer, final int offset, final int hash, final byte[] hashKey, final byte[] clientId,
+                                     final ClientLimitState record ) {
+        buffer.putInt( offset, hash ).putShort( offset + 4, (short) hashKey.length ).putShort( offset + 6, (short) clientId.length );
+        int position = offset + KEY_OFFSET;
+        for ( byte b : hashKey ) {
+            buffer.put( position++, b );
+        }
+        for ( byte b : clientId ) {
+            buffer.put( position++, b );
+        }
+        for ( Period period : Period.values() ) {
+            final int periodOffset = offset + PERIODS_OFFSET + period.ordinal() * PERIOD_SIZE;
+            buffer.putLong( periodOffset, record.getLastUpdated( period ) )
+                    .putLong( periodOffset + 8, record.getLastUpdatedBurst( period ) )
+                    .putDouble( periodOffset + 16, record.getMaxAllowedRate( period ) )
+                    .putDouble( periodOffset + 24, record.getRate( period ) )
+                    .putDouble( periodOffset + 32, record.getMaxAllowedCallsInPeriod( period ) )
+                    .putDouble( periodOffset + 40, record.getCallsInPeriod( period ) );
+        }
+        buffer.put( offset + MASK_OFFSET, (byte) record.getConfiguredMask() );
+    }
+
+    private static int recordOffset( final int slotCount, final int index ) {
+        return HEADER_SIZE + 4 * slotCount + RECORD_SIZE * index;
+    }
+
+    /**
+     * Same as TokenBucketKey.hashCode() with the high bits spread, String.hashCode() is specified so the slots are stable across JVMs
+     */
+    private static int hash( final String hashKey, final String clientId ) {
+        final int h = 31 * hashKey.hashCode() + clientId.hashCode();
+        return h ^ ( h >>> 16 );
+    }
+}
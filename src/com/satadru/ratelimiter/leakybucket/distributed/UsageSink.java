@@ -0,0 +1,16 @@
+package com.satadru.ratelimiter.leakybucket.distributed;
+
+import java.util.List;
+
+import com.satadru.ratelimiter.pojo.SQSPayload;
+
+/**
+ * Downstream of the usage summaries of a UsageAggregator window
+ */
+public interface UsageSink {
+
+    /**
+     * Called by a single thread at a time with the summaries of a closed window, at most one summary per hashKey and clientId
+     */
+    void publish( List<SQSPayload> summaries );
+}
@@ -0,0 +1,336 @@
+package com.satadru.ratelimiter.leakybucket.distributed.aws;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
+import com.satadru.ratelimiter.metrics.RemoteCall;
+
+/**
+ * Asynchronous SQS publisher. The publishing thread only enqueues the message into a bounded buffer,
+ * a background thread sends the buffered messages with SendMessageBatch once a full batch is available
+ * or the oldest buffered message has waited for maxLinger, whichever comes first.
+ * Every partition has its own queue, a batch is only ever sent to a single queue.
+ * Messages which SQS failed to take are sent again with an exponential backoff, see SQS_PUBLISHER_MAX_RETRIES.
+ * {@link #close()} flushes whatever is still buffered.
+ */
+public class BatchingSQSPublisher implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger( BatchingSQSPublisher.class.getName() );
+
+    private static final long IDLE_POLL_MILLIS = 100;
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds( 10 );
+
+    private final AmazonSQS sqs;
+    // Indexed by partition
+    private final List<String> queueURLs;
+    private final int maxDrainSize;
+    private final BlockingQueue<PendingMessage> buffer;
+    private final long maxLingerNanos;
+    private final OverflowPolicy overflowPolicy;
+    private final Thread flusher;
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final RateLimiterMetrics metrics = RateLimiterMetrics.get();
+    private volatile boolean running = true;
+
+    public BatchingSQSPublisher( final AmazonSQS sqs, final String queueURL ) {
+        this( sqs, Collections.singletonList( queueURL ) );
+    }
+
+    public BatchingSQSPublisher( final AmazonSQS sqs, final List<String> queueURLs ) {
+        // Waiting for room keeps the order of the messages of a group, which CALLER_RUNS does not
+        this( sqs, queueURLs, Configuration.SQS_PUBLISHER_BUFFER_CAPACITY, Configuration.SQS_PUBLISHER_MAX_LINGER, OverflowPolicy.BLOCK );
+    }
+
+    /**
+     * @param queueURLs URL of the queue of every partition, indexed by partition
+     */
+    public BatchingSQSPublisher( final AmazonSQS sqs, final List<String> queueURLs, final int bufferCapacity, final Duration maxLinger,
+                                 final OverflowPolicy overflowPolicy ) {
+        Preconditions.checkArgument( bufferCapacity > 0, "bufferCapacity must be positive" );
+        Preconditions.checkArgument( !queueURLs.isEmpty(), "At least one queue is needed" );
+        this.sqs = sqs;
+        this.queueURLs = ImmutableList.copyOf( queueURLs );
+        // Enough for a full batch to every queue
+        this.maxDrainSize = Configuration.SQS_SEND_MESSAGE_BATCH_MAX_ENTRIES * queueURLs.size();
+        this.buffer = new ArrayBlockingQueue<>( bufferCapacity );
+        this.maxLingerNanos = maxLinger.toNanos();
+        this.overflowPolicy = overflowPolicy;
+        this.flusher = new Thread( this::flushLoop, "sqs-batching-publisher" );
+        this.flusher.setDaemon( true );
+        this.flusher.start();
+    }
+
+    /**
+     * Enqueues the message to be sent by the background thread. Never blocks unless the overflow policy is BLOCK, and then only
+     * while the buffer is full.
+     *
+     * @param partition      partition i.e. queue of the message
+     * @param messageGroupId FIFO message group
+     * @param messageBody    body of the message
+     */
+    public void publish( final int partition, final String messageGroupId, final String messageBody ) {
+        final PendingMessage message = new PendingMessage( partition, messageGroupId, messageBody );
+        if ( !this.running ) {
+            // No flusher any more, do not lose the message
+            this.sendNow( message );
+            return;
+        }
+        if ( !this.buffer.offer( message ) && !this.overflow( message ) ) {
+            return;
+        }
+        // close() may have drained the buffer before the message was added, then nobody else sends it
+        if ( !this.running ) {
+            this.sendRemaining();
+        }
+    }
+
+    /**
+     * @return true if the message was buffered after all
+     */
+    private boolean overflow( final PendingMessage message ) {
+        switch ( this.overflowPolicy ) {
+            case DROP_NEWEST:
+                this.drop();
+                return false;
+            case DROP_OLDEST:
+                while ( !this.buffer.offer( message ) ) {
+                    if ( this.buffer.poll() != null ) {
+                        this.drop();
+                    }
+                }
+                return true;
+            case BLOCK:
+                try {
+                    this.buffer.put( message );
+                    return true;
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    this.drop();
+                    return false;
+                }
+            case CALLER_RUNS:
+            default:
+                // May overtake buffered messages of the same group
+                this.sendNow( message );
+                return false;
+        }
+    }
+
+    /**
+     * Stops accepting messages into the buffer, waits for the buffered messages to be sent and sends the messages buffered
+     * after the background thread stopped
+     */
+    @Override
+    public void close() {
+        this.running = false;
+        try {
+            this.flusher.join( SHUTDOWN_TIMEOUT.toMillis() );
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        if ( this.flusher.isAlive() ) {
+            logger.warning( "SQS publisher did not stop within " + SHUTDOWN_TIMEOUT + ", sending the " + this.buffer.size() + " buffered messages on close" );
+        }
+        this.sendRemaining();
+    }
+
+    public int getPartitionCount() {
+        return this.queueURLs.size();
+    }
+
+    public long getPublishedCount() {
+        return this.published.get();
+    }
+
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    public long getFailedCount() {
+        return this.failed.get();
+    }
+
+    public int getBufferedCount() {
+        return this.buffer.size();
+    }
+
+    private void flushLoop() {
+        final List<PendingMessage> batch = new ArrayList<>( this.maxDrainSize );
+        while ( this.running || !this.buffer.isEmpty() ) {
+            try {
+                final PendingMessage first = this.buffer.poll( IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS );
+                if ( first == null ) {
+                    continue;
+                }
+                batch.add( first );
+                final long deadline = System.nanoTime() + this.maxLingerNanos;
+                while ( batch.size() < this.maxDrainSize ) {
+                    if ( this.buffer.drainTo( batch, this.maxDrainSize - batch.size() ) > 0 ) {
+                        continue;
+                    }
+                    final long remaining = deadline - System.nanoTime();
+                    // While shutting down do not linger, just drain
+                    if ( remaining <= 0 || !this.running ) {
+                        break;
+                    }
+                    final PendingMessage next = this.buffer.poll( remaining, TimeUnit.NANOSECONDS );
+                    if ( next == null ) {
+                        break;
+                    }
+                    batch.add( next );
+                }
+                this.sendBatches( batch );
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch ( Exception e ) {
+                this.failed.addAndGet( batch.size() );
+                logger.warning( "Failed to send " + batch.size() + " messages to SQS: " + e.getMessage() );
+            }
+            finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Sends the buffered messages on the calling thread
+     */
+    private synchronized void sendRemaining() {
+        final List<PendingMessage> remaining = new ArrayList<>();
+        this.buffer.drainTo( remaining );
+        if ( !remaining.isEmpty() ) {
+            this.sendBatches( remaining );
+        }
+    }
+
+    private void sendBatches( final List<PendingMessage> messages ) {
+        if ( this.queueURLs.size() == 1 ) {
+            for ( List<PendingMessage> batch : Lists.partition( messages, Configuration.SQS_SEND_MESSAGE_BATCH_MAX_ENTRIES ) ) {
+                this.sendBatch( 0, batch );
+            }
+            return;
+        }
+        final List<List<PendingMessage>> messagesByPartition = new ArrayList<>( this.queueURLs.size() );
+        for ( int i = 0; i < this.queueURLs.size(); i++ ) {
+            messagesByPartition.add( new ArrayList<>() );
+        }
+        for ( PendingMessage message : messages ) {
+            messagesByPartition.get( message.partition ).add( message );
+        }
+        for ( int partition = 0; partition < messagesByPartition.size(); partition++ ) {
+            for ( List<PendingMessage> batch : Lists.partition( messagesByPartition.get( partition ), Configuration.SQS_SEND_MESSAGE_BATCH_MAX_ENTRIES ) ) {
+                this.sendBatch( partition, batch );
+            }
+        }
+    }
+
+    /**
+     * Sends the batch to the queue of the partition. The whole batch if the call failed, or the entries which failed for a reason
+     * other than the message itself, are sent again after SQS_PUBLISHER_BASE_BACKOFF * 2^attempt, up to SQS_PUBLISHER_MAX_RETRIES times
+     */
+    private void sendBatch( final int partition, final List<PendingMessage> batch ) {
+        List<PendingMessage> pending = batch;
+        for ( int attempt = 0; ; attempt++ ) {
+            final List<SendMessageBatchRequestEntry> entries = new ArrayList<>( pending.size() );
+            for ( int i = 0; i < pending.size(); i++ ) {
+                final PendingMessage message = pending.get( i );
+                entries.add( new SendMessageBatchRequestEntry( String.valueOf( i ), message.messageBody ).withMessageGroupId( message.messageGroupId ) );
+            }
+            final SendMessageBatchRequest request = new SendMessageBatchRequest( this.queueURLs.get( partition ), entries );
+            List<PendingMessage> retry;
+            String error;
+            try {
+                final SendMessageBatchResult result = this.metrics.time( RemoteCall.SQS_SEND_MESSAGE_BATCH, () -> this.sqs.sendMessageBatch( request ) );
+                this.published.addAndGet( result.getSuccessful().size() );
+                if ( result.getFailed().isEmpty() ) {
+                    return;
+                }
+                retry = new ArrayList<>( result.getFailed().size() );
+                error = null;
+                for ( BatchResultErrorEntry failedEntry : result.getFailed() ) {
+                    error = failedEntry.getCode() + " " + failedEntry.getMessage();
+                    if ( failedEntry.isSenderFault() ) {
+                        // Sending the same message again fails the same way
+                        this.failed.incrementAndGet();
+                        logger.warning( "SQS rejected a message: " + error );
+                    }
+                    else {
+                        retry.add( pending.get( Integer.parseInt( failedEntry.getId() ) ) );
+                    }
+                }
+            }
+            catch ( RuntimeException e ) {
+                retry = pending;
+                error = e.getMessage();
+            }
+            if ( retry.isEmpty() ) {
+                return;
+            }
+            if ( attempt == Configuration.SQS_PUBLISHER_MAX_RETRIES || !backOff( attempt ) ) {
+                this.failed.addAndGet( retry.size() );
+                logger.warning( "Failed to send " + retry.size() + " messages to SQS after " + ( attempt + 1 ) + " attempts: " + error );
+                return;
+            }
+            pending = retry;
+        }
+    }
+
+    private void sendNow( final PendingMessage message ) {
+        this.sendBatch( message.partition, Collections.singletonList( message ) );
+    }
+
+    /**
+     * @return false if the thread was interrupted instead
+     */
+    private static boolean backOff( final int attempt ) {
+        try {
+            Thread.sleep( Configuration.SQS_PUBLISHER_BASE_BACKOFF.toMillis() << attempt );
+            return true;
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void drop() {
+        this.dropped.incrementAndGet();
+        logger.fine( "SQS publisher buffer full, dropped a message" );
+    }
+
+    private static class PendingMessage {
+        private final int partition;
+        private final String messageGroupId;
+        private final String messageBody;
+
+        private PendingMessage( final int partition, final String messageGroupId, final String messageBody ) {
+            this.partition = partition;
+            this.messageGroupId = messageGroupId;
+            this.messageBody = messageBody;
+        }
+    }
+}
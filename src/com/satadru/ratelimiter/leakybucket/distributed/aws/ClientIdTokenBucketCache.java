@@ -0,0 +1,497 @@
+package com.satadru.ratelimiter.leakybucket.distributed.aws;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.leakybucket.distributed.RateLimitStateStore;
+import com.satadru.ratelimiter.leakybucket.distributed.TokenBucketSnapshot;
+import com.satadru.ratelimiter.pojo.ClientLimitState;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * Bounded read-through near-cache for the records of the CLIENT_ID_TOKEN_BUCKET table.
+ * Entries older than refreshAfterWrite are reloaded asynchronously on the next access while the old value keeps being served,
+ * so in the steady state every decision is made from local memory and DynamoDB is only read by the background refreshes.
+ * Entries which are not refreshed within expireAfterWrite are dropped and the next access loads them synchronously.
+ * <p>
+ * ClientIds without a record are remembered in a separate, bounded negative cache so that the long tail of unknown clients
+ * does not evict the configured ones. The default record of every API is pinned in memory and refreshed on a schedule,
+ * thus an unknown clientId costs no DynamoDB read at all once its API has been seen. An API without a default record is
+ * remembered in the negative cache as well.
+ * <p>
+ * The cached records can be written to a memory-mapped TokenBucketSnapshot and mapped back by the next run (warmStart), which then serves
+ * records from the snapshot until they have been read from the store.
+ * <p>
+ * getAsync() and getDefaultAsync() answer from memory like their blocking counterparts but load a miss with RateLimitStateStore.getAsync(),
+ * so that a cold key does not hold the calling thread. Concurrent misses of the same key share one read.
+ * <p>
+ * close() stops the background refreshes and snapshots, the cached records keep being served until they expire.
+ */
+public class ClientIdTokenBucketCache implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger( ClientIdTokenBucketCache.class.getName() );
+
+    private final RateLimitStateStore stateStore;
+    private final LoadingCache<TokenBucketKey, ClientLimitState> cache;
+    // clientId resolves to the default record for this API:METHOD
+    private final Cache<TokenBucketKey, Boolean> negativeCache;
+    // hashKey to the pinned default record
+    private final Map<String, ClientLimitState> defaultItems = new ConcurrentHashMap<>();
+    // Asynchronous loads in flight, removed when they complete
+    private final Map<TokenBucketKey, CompletableFuture<ClientLimitState>> pendingLoads = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refreshExecutor;
+    // Mapped snapshot of a previous run, dropped once reconciled with the store
+    private volatile TokenBucketSnapshot snapshot;
+
+    public ClientIdTokenBucketCache( final DynamoDB dynamoDB ) {
+        this( new DynamoDBRateLimitStateStore( dynamoDB ) );
+    }
+
+    public ClientIdTokenBucketCache( final RateLimitStateStore stateStore ) {
+        this( stateStore, Configuration.TOKEN_BUCKET_CACHE_MAXIMUM_SIZE, Configuration.TOKEN_BUCKET_CACHE_EXPIRE_AFTER_WRITE,
+              Configuration.TOKEN_BUCKET_CACHE_REFRESH_AFTER_WRITE, Configuration.TOKEN_BUCKET_NEGATIVE_CACHE_MAXIMUM_SIZE,
+              Configuration.TOKEN_BUCKET_NEGATIVE_CACHE_EXPIRE_AFTER_WRITE, newRefreshExecutor() );
+    }
+
+    /**
+     * @param refreshExecutor runs the refreshes, the snapshots and the reconciliation of a warm start, shut down by close()
+     */
+    public ClientIdTokenBucketCache( final RateLimitStateStore stateStore, final long maximumSize, final Duration expireAfterWrite, final Duration refreshAfterWrite,
+                                     final long negativeMaximumSize, final Duration negativeExpireAfterWrite,
+                                     final ScheduledExecutorService refreshExecutor ) {
+        Preconditions.checkArgument( refreshAfterWrite.compareTo( expireAfterWrite ) < 0, "refreshAfterWrite must be shorter than expireAfterWrite" );
+        this.stateStore = stateStore;
+        this.negativeCache = CacheBuilder.newBuilder()
+                .maximumSize( negativeMaximumSize )
+                .expireAfterWrite( negativeExpireAfterWrite.toMillis(), TimeUnit.MILLISECONDS )
+                .build();
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize( maximumSize )
+                .expireAfterWrite( expireAfterWrite.toMillis(), TimeUnit.MILLISECONDS )
+                .refreshAfterWrite( refreshAfterWrite.toMillis(), TimeUnit.MILLISECONDS )
+                .build( CacheLoader.asyncReloading( new CacheLoader<TokenBucketKey, ClientLimitState>() {
+                    @Override
+                    public ClientLimitState load( final TokenBucketKey key ) throws ClientIdNotFoundException {
+                        // Right after a warm start the record is served from the snapshot, the first refresh reads the store
+                        final TokenBucketSnapshot snapshot = ClientIdTokenBucketCache.this.snapshot;
+                        if ( snapshot != null ) {
+                            final ClientLimitState item = snapshot.get( key );
+                            if ( item != null ) {
+                                return item;
+                            }
+                        }
+                        return ClientIdTokenBucketCache.this.loadFromStore( key );
+                    }
+
+                    @Override
+                    public ListenableFuture<ClientLimitState> reload( final TokenBucketKey key, final ClientLimitState oldValue )
+                            throws ClientIdNotFoundException {
+                        return Futures.immediateFuture( ClientIdTokenBucketCache.this.loadFromStore( key ) );
+                    }
+                }, refreshExecutor ) );
+        this.refreshExecutor = refreshExecutor;
+        refreshExecutor.scheduleWithFixedDelay( this::refreshDefaultItems, refreshAfterWrite.toMillis(), refreshAfterWrite.toMillis(), TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Maps the snapshot written by a previous run so that records are served from it until they are read from the store.
+     * The records of the snapshot are then reconciled with the store in the background, after which the snapshot is dropped.
+     *
+     * @return false if there is no usable snapshot
+     */
+    public boolean warmStart( final Path snapshotFile ) {
+        final TokenBucketSnapshot snapshot = TokenBucketSnapshot.open( snapshotFile );
+        if ( snapshot == null ) {
+            return false;
+        }
+        logger.info( "Warm start from " + snapshot.size() + " records of " + snapshotFile + " taken at " + snapshot.getCreatedAt() );
+        this.snapshot = snapshot;
+        this.refreshExecutor.execute( this::reconcileSnapshot );
+        return true;
+    }
+
+    /**
+     * Writes the cached records and the pinned default records to the snapshot file
+     *
+     * @return number of records written
+     */
+    public int writeSnapshot( final Path snapshotFile ) {
+        final List<ClientLimitState> records = new ArrayList<>( this.cache.asMap().values() );
+        records.addAll( this.defaultItems.values() );
+        return TokenBucketSnapshot.write( snapshotFile, records );
+    }
+
+    /**
+     * Writes the snapshot file every interval on the refresh executor
+     */
+    public void scheduleSnapshots( final Path snapshotFile, final Duration interval ) {
+        this.refreshExecutor.scheduleWithFixedDelay( () -> {
+            try {
+                final int records = this.writeSnapshot( snapshotFile );
+                logger.fine( () -> "Wrote " + records + " records to " + snapshotFile );
+            }
+            catch ( Exception e ) {
+                logger.warning( "Failed to write snapshot " + snapshotFile + ": " + e.getMessage() );
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * @return true while records may still be served from a warm start snapshot
+     */
+    public boolean isWarmStarting() {
+        return this.snapshot != null;
+    }
+
+    private void reconcileSnapshot() {
+        final TokenBucketSnapshot snapshot = this.snapshot;
+        try {
+            for ( List<TokenBucketKey> chunk : Iterables.partition( snapshot.keys(), Configuration.DYNAMODB_BATCH_GET_MAX_KEYS ) ) {
+                final Map<TokenBucketKey, Map<String, Object>> records = this.stateStore.batchGet( chunk );
+                for ( TokenBucketKey key : chunk ) {
+                    final ClientLimitState record = records.containsKey( key ) ? ClientLimitState.fromRecord( records.get( key ) ) : null;
+                    if ( Configuration.DEFAULT_CLIENT_ID.equals( key.getClientId() ) ) {
+                        if ( record != null ) {
+                            this.defaultItems.put( key.getHashKey(), record );
+                        }
+                    }
+                    else if ( record != null ) {
+                        this.cache.put( key, record );
+                    }
+                    else {
+                        this.cache.invalidate( key );
+                        this.negativeCache.put( key, Boolean.TRUE );
+                    }
+                }
+            }
+            logger.info( "Reconciled " + snapshot.size() + " snapshot records with the store" );
+        }
+        catch ( Exception e ) {
+            // Records not reconciled yet are read from the store by their next refresh or miss
+            logger.warning( "Failed to reconcile the snapshot: " + e.getMessage() );
+        }
+        this.snapshot = null;
+    }
+
+    /**
+     * Returns the record for the hashKey and clientId, loading it from the store only if it is not cached yet.
+     *
+     * @param hashKey  API_NAME:METHOD
+     * @param clientId Identifier for the client calling the API
+     * @return the record or null if there is no record for this clientId and the default record should be used
+     */
+    public ClientLimitState get( final String hashKey, final String clientId ) {
+        final TokenBucketKey key = new TokenBucketKey( hashKey, clientId );
+        if ( this.negativeCache.getIfPresent( key ) != null ) {
+            return null;
+        }
+        try {
+            return this.cache.get( key );
+        }
+        catch ( ExecutionException | UncheckedExecutionException e ) {
+            if ( e.getCause() instanceof ClientIdNotFoundException ) {
+                return null;
+            }
+            throw new IllegalStateException( "Failed to load " + key, e.getCause() );
+        }
+    }
+
+    /**
+     * Returns the pinned default record for the hashKey. Only the first calls for a hashKey read from the store, concurrent first calls
+     * may read it more than once but all of them return the record pinned first.
+     *
+     * @param hashKey API_NAME:METHOD
+     * @return the default record or null if the API has no default configuration
+     */
+    public ClientLimitState getDefault( final String hashKey ) {
+        final ClientLimitState item = this.defaultItems.get( hashKey );
+        if ( item != null ) {
+            return item;
+        }
+        final TokenBucketKey key = new TokenBucketKey( hashKey, Configuration.DEFAULT_CLIENT_ID );
+        if ( this.negativeCache.getIfPresent( key ) != null ) {
+            return null;
+        }
+        final TokenBucketSnapshot snapshot = this.snapshot;
+        if ( snapshot != null ) {
+            final ClientLimitState snapshotItem = snapshot.get( key );
+            if ( snapshotItem != null ) {
+                return this.pinDefault( hashKey, snapshotItem );
+            }
+        }
+        // Read outside of the map, a read in a mapping function would block the other keys of its bin
+        return this.pinDefault( hashKey, this.loadItem( hashKey, Configuration.DEFAULT_CLIENT_ID ) );
+    }
+
+    /**
+     * Returns the records of many keys at once. The keys which are neither cached nor known to have no record, and the default records
+     * of their APIs which are not pinned yet, are read from the store with a single batchGet().
+     *
+     * @param keys API_NAME:METHOD and clientId of every record
+     * @return the records of the keys which have one. Keys without a record are left out and their default record is pinned, see getDefault()
+     */
+    public Map<TokenBucketKey, ClientLimitState> getAll( final Collection<TokenBucketKey> keys ) {
+        final Map<TokenBucketKey, ClientLimitState> found = new HashMap<>();
+        final Set<TokenBucketKey> missing = new LinkedHashSet<>();
+        final TokenBucketSnapshot snapshot = this.snapshot;
+        for ( TokenBucketKey key : keys ) {
+            ClientLimitState item = null;
+            if ( this.negativeCache.getIfPresent( key ) == null ) {
+                item = this.cache.getIfPresent( key );
+                if ( item == null && snapshot != null ) {
+                    item = snapshot.get( key );
+                    if ( item != null ) {
+                        this.cache.put( key, item );
+                    }
+                }
+                if ( item == null ) {
+                    missing.add( key );
+                }
+            }
+            if ( item != null ) {
+                found.put( key, item );
+            }
+            else if ( !this.defaultItems.containsKey( key.getHashKey() ) ) {
+                // May fall back to the default record, read it along with the others unless it is known not to exist
+                final TokenBucketKey defaultKey = new TokenBucketKey( key.getHashKey(), Configuration.DEFAULT_CLIENT_ID );
+                if ( this.negativeCache.getIfPresent( defaultKey ) == null ) {
+                    missing.add( defaultKey );
+                }
+            }
+        }
+        if ( missing.isEmpty() ) {
+            return found;
+        }
+        final Map<TokenBucketKey, Map<String, Object>> records = this.stateStore.batchGet( missing );
+        for ( TokenBucketKey key : missing ) {
+            final Map<String, Object> record = records.get( key );
+            final ClientLimitState item = record == null ? null : ClientLimitState.fromRecord( record );
+            if ( Configuration.DEFAULT_CLIENT_ID.equals( key.getClientId() ) ) {
+                this.pinDefault( key.getHashKey(), item );
+                if ( !keys.contains( key ) ) {
+                    continue;
+                }
+            }
+            if ( item != null ) {
+                this.cache.put( key, item );
+                found.put( key, item );
+            }
+            else {
+                this.negativeCache.put( key, Boolean.TRUE );
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Non-blocking get(). A cached or negatively cached key completes immediately, a miss completes once the store has answered.
+     *
+     * @param hashKey  API_NAME:METHOD
+     * @param clientId Identifier for the client calling the API
+     * @return future of the record, completed with null if there is no record for this clientId and the default record should be used
+     */
+    public CompletableFuture<ClientLimitState> getAsync( final String hashKey, final String clientId ) {
+        final TokenBucketKey key = new TokenBucketKey( hashKey, clientId );
+        if ( this.negativeCache.getIfPresent( key ) != null ) {
+            return CompletableFuture.completedFuture( null );
+        }
+        // Also schedules the background refresh of a stale entry
+        final ClientLimitState cached = this.cache.getIfPresent( key );
+        if ( cached != null ) {
+            return CompletableFuture.completedFuture( cached );
+        }
+        final TokenBucketSnapshot snapshot = this.snapshot;
+        if ( snapshot != null ) {
+            final ClientLimitState item = snapshot.get( key );
+            if ( item != null ) {
+                this.cache.put( key, item );
+                return CompletableFuture.completedFuture( item );
+            }
+        }
+        return this.loadAsync( key, record -> {
+            if ( record == null ) {
+                this.negativeCache.put( key, Boolean.TRUE );
+                return null;
+            }
+            this.cache.put( key, record );
+            return record;
+        } );
+    }
+
+    /**
+     * Non-blocking getDefault()
+     *
+     * @param hashKey API_NAME:METHOD
+     * @return future of the default record, completed with null if the API has no default configuration
+     */
+    public CompletableFuture<ClientLimitState> getDefaultAsync( final String hashKey ) {
+        final ClientLimitState item = this.defaultItems.get( hashKey );
+        if ( item != null ) {
+            return CompletableFuture.completedFuture( item );
+        }
+        final TokenBucketKey key = new TokenBucketKey( hashKey, Configuration.DEFAULT_CLIENT_ID );
+        if ( this.negativeCache.getIfPresent( key ) != null ) {
+            return CompletableFuture.completedFuture( null );
+        }
+        final TokenBucketSnapshot snapshot = this.snapshot;
+        if ( snapshot != null ) {
+            final ClientLimitState snapshotItem = snapshot.get( key );
+            if ( snapshotItem != null ) {
+                return CompletableFuture.completedFuture( this.pinDefault( hashKey, snapshotItem ) );
+            }
+        }
+        return this.loadAsync( key, record -> this.pinDefault( hashKey, record ) );
+    }
+
+    /**
+     * Pins the default record read for the hashKey unless one is pinned already, or remembers that there is none
+     *
+     * @return the pinned record, null if there is none
+     */
+    private ClientLimitState pinDefault( final String hashKey, final ClientLimitState item ) {
+        if ( item == null ) {
+            this.negativeCache.put( new TokenBucketKey( hashKey, Configuration.DEFAULT_CLIENT_ID ), Boolean.TRUE );
+            return null;
+        }
+        final ClientLimitState pinned = this.defaultItems.putIfAbsent( hashKey, item );
+        return pinned == null ? item : pinned;
+    }
+
+    /**
+     * Reads the key from the store unless a read of the same key is already in flight
+     *
+     * @param onLoaded caches the decoded record, which may be null, and returns the value to complete the load with
+     */
+    private CompletableFuture<ClientLimitState> loadAsync( final TokenBucketKey key,
+                                                           final UnaryOperator<ClientLimitState> onLoaded ) {
+        final CompletableFuture<ClientLimitState> pending = this.pendingLoads.get( key );
+        if ( pending != null ) {
+            return pending;
+        }
+        final CompletableFuture<ClientLimitState> load = new CompletableFuture<>();
+        final CompletableFuture<ClientLimitState> existing = this.pendingLoads.putIfAbsent( key, load );
+        if ( existing != null ) {
+            return existing;
+        }
+        // The store may complete on this thread, so the future is only published to the map before the read starts
+        this.stateStore.getAsync( key ).whenComplete( ( record, error ) -> {
+            this.pendingLoads.remove( key, load );
+            if ( error != null ) {
+                load.completeExceptionally( new IllegalStateException( "Failed to load " + key, error ) );
+                return;
+            }
+            try {
+                load.complete( onLoaded.apply( record == null ? null : ClientLimitState.fromRecord( record ) ) );
+            }
+            catch ( RuntimeException e ) {
+                load.completeExceptionally( e );
+            }
+        } );
+        return load;
+    }
+
+    /**
+     * Pins the default records of the passed APIs so that even the first unknown client does not wait on DynamoDB
+     *
+     * @param hashKeys API_NAME:METHOD
+     */
+    public void preloadDefaults( final Iterable<String> hashKeys ) {
+        for ( String hashKey : hashKeys ) {
+            this.getDefault( hashKey );
+        }
+    }
+
+    public void invalidate( final String hashKey, final String clientId ) {
+        final TokenBucketKey key = new TokenBucketKey( hashKey, clientId );
+        this.cache.invalidate( key );
+        this.negativeCache.invalidate( key );
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    public long negativeSize() {
+        return this.negativeCache.size();
+    }
+
+    private void refreshDefaultItems() {
+        for ( String hashKey : this.defaultItems.keySet() ) {
+            try {
+                final ClientLimitState item = this.loadItem( hashKey, Configuration.DEFAULT_CLIENT_ID );
+                if ( item != null ) {
+                    this.defaultItems.put( hashKey, item );
+                }
+            }
+            catch ( Exception e ) {
+                // Keep serving the pinned record, the next refresh will try again
+                logger.warning( "Failed to refresh the default record for " + hashKey + ": " + e.getMessage() );
+            }
+        }
+    }
+
+    private ClientLimitState loadFromStore( final TokenBucketKey key ) throws ClientIdNotFoundException {
+        final ClientLimitState item = this.loadItem( key.getHashKey(), key.getClientId() );
+        if ( item == null ) {
+            this.negativeCache.put( key, Boolean.TRUE );
+            throw new ClientIdNotFoundException( key );
+        }
+        return item;
+    }
+
+    /**
+     * Reads the record from the store and decodes it once for all the decisions made from the cache
+     */
+    private ClientLimitState loadItem( final String hashKey, final String clientId ) {
+        final Map<String, Object> record = this.stateStore.get( new TokenBucketKey( hashKey, clientId ) );
+        return record == null ? null : ClientLimitState.fromRecord( record );
+    }
+
+    /**
+     * Stops refreshing the records and writing snapshots
+     */
+    @Override
+    public void close() {
+        this.refreshExecutor.shutdownNow();
+    }
+
+    private static ScheduledExecutorService newRefreshExecutor() {
+        return Executors.newScheduledThreadPool( Configuration.TOKEN_BUCKET_CACHE_REFRESH_THREADS,
+                                                 new ThreadFactoryBuilder().setDaemon( true ).setNameFormat( "token-bucket-cache-refresh-%d" ).build() );
+    }
+
+    private static class ClientIdNotFoundException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private ClientIdNotFoundException( final TokenBucketKey key ) {
+            super( "No record for " + key, null, false, false );
+        }
+    }
+}
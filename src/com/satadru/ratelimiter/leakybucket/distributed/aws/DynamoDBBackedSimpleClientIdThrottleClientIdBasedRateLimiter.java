@@ -1,110 +1,247 @@
 package com.satadru.ratelimiter.leakybucket.distributed.aws;
 
-import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
-import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.model.SendMessageRequest;
-import com.amazonaws.thirdparty.joda.time.DateTime;
+import com.google.common.base.Preconditions;
 import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
 import com.satadru.ratelimiter.leakybucket.SimpleClientIdBasedRateLimiter;
+import com.satadru.ratelimiter.metrics.PeriodOutcome;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
+import com.satadru.ratelimiter.pojo.ClientLimitState;
+import com.satadru.ratelimiter.pojo.ConsumeRequest;
 import com.satadru.ratelimiter.pojo.RateToken;
+import com.satadru.ratelimiter.pojo.ThrottleDecision;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
 
 public class DynamoDBBackedSimpleClientIdThrottleClientIdBasedRateLimiter implements SimpleClientIdBasedRateLimiter {
 
     private static final Logger logger = Logger.getLogger( DynamoDBBackedSimpleClientIdThrottleClientIdBasedRateLimiter.class.getName() );
 
-    private final DynamoDB dynamoDB;
-    private final AmazonSQS sqs;
-    private final String queueURL;
+    private final ClientIdTokenBucketCache tokenBucketCache;
+    private final UsageAggregator usageAggregator;
+    private final RateLimiterMetrics metrics = RateLimiterMetrics.get();
 
     public DynamoDBBackedSimpleClientIdThrottleClientIdBasedRateLimiter( final DynamoDB dynamoDB, final AmazonSQS sqs, final String queueURL ) {
-        this.dynamoDB = dynamoDB;
-        this.sqs = sqs;
-        this.queueURL = queueURL;
+        this( new ClientIdTokenBucketCache( dynamoDB ), new UsageAggregator( new BatchingSQSPublisher( sqs, queueURL ) ) );
+    }
+
+    public DynamoDBBackedSimpleClientIdThrottleClientIdBasedRateLimiter( final ClientIdTokenBucketCache tokenBucketCache, final UsageAggregator usageAggregator ) {
+        this.tokenBucketCache = tokenBucketCache;
+        this.usageAggregator = usageAggregator;
+    }
+
+    @Override
+    public boolean consume( final String apiName, final String method, final String actualClientId, final int permits ) {
+        return this.consume( apiName, method, actualClientId, permits, null );
     }
 
     @Override
-    public boolean consume( final String apiName, final String method, final String actualClientId ) {
+    public ThrottleDecision tryConsume( final String apiName, final String method, final String clientId, final int permits,
+                                        final ThrottleDecision decision ) {
+        this.consume( apiName, method, clientId, permits, decision );
+        return decision;
+    }
+
+    @Override
+    public List<ThrottleDecision> consumeAll( final List<ConsumeRequest> requests ) {
+        final Set<TokenBucketKey> keys = new LinkedHashSet<>();
+        for ( ConsumeRequest request : requests ) {
+            keys.add( request.toKey() );
+        }
+        // Cached records are served from memory, all the others and the missing default records are read with one batch
+        final Map<TokenBucketKey, ClientLimitState> states = this.tokenBucketCache.getAll( keys );
+        // Permits allowed so far by this batch per record, the store does not know about them yet
+        final Map<TokenBucketKey, Integer> allowedPermits = new HashMap<>();
+        final List<ThrottleDecision> decisions = new ArrayList<>( requests.size() );
+        for ( ConsumeRequest request : requests ) {
+            final String hashKey = request.getApiName() + ":" + request.getMethod();
+            String clientId = request.getClientId();
+            ClientLimitState state = states.get( request.toKey() );
+            if ( state == null ) {
+                clientId = Configuration.DEFAULT_CLIENT_ID;
+                this.metrics.defaultClientDecision();
+                state = this.tokenBucketCache.getDefault( hashKey );
+            }
+            final TokenBucketKey key = new TokenBucketKey( hashKey, clientId );
+            final int pendingPermits = allowedPermits.getOrDefault( key, 0 );
+            final ThrottleDecision decision = new ThrottleDecision();
+            if ( this.canConsumeCapacity( hashKey, clientId, state, request.getPermits(), pendingPermits, decision ) ) {
+                allowedPermits.put( key, pendingPermits + request.getPermits() );
+            }
+            decisions.add( decision );
+        }
+        return decisions;
+    }
+
+    @Override
+    public CompletableFuture<ThrottleDecision> consumeAsync( final String apiName, final String method, final String actualClientId ) {
+        final String hashKey = apiName + ":" + method;
+        return this.tokenBucketCache.getAsync( hashKey, actualClientId ).thenCompose( state -> {
+            if ( state != null ) {
+                return CompletableFuture.completedFuture( this.decide( hashKey, actualClientId, state ) );
+            }
+            if ( logger.isLoggable( Level.FINE ) ) {
+                logger.fine( "ClientId " + actualClientId + " not found. Loading default configuration" );
+            }
+            this.metrics.defaultClientDecision();
+            return this.tokenBucketCache.getDefaultAsync( hashKey )
+                    .thenApply( defaultState -> this.decide( hashKey, Configuration.DEFAULT_CLIENT_ID, defaultState ) );
+        } );
+    }
+
+    private ThrottleDecision decide( final String hashKey, final String clientId, final ClientLimitState state ) {
+        final ThrottleDecision decision = new ThrottleDecision();
+        this.canConsumeCapacity( hashKey, clientId, state, 1, 0, decision );
+        return decision;
+    }
+
+    private boolean consume( final String apiName, final String method, final String actualClientId, final int permits, final ThrottleDecision decision ) {
+        Preconditions.checkArgument( permits > 0, "permits must be positive" );
         String clientId = actualClientId;
-        final Table table = this.dynamoDB.getTable( Configuration.RATE_LIMITING_TABLE_NAME );
         String hashKey = apiName + ":" + method;
-        Item item = table.getItem( Configuration.RATE_LIMITING_HASH_KEY_NAME, hashKey, Configuration.RATE_LIMITING_RANGE_KEY_NAME, clientId );
-        if ( item == null ) {
-            // Load default configuration
-            logger.fine( "ClientId " + actualClientId + " not found. Loading default configuration" );
+        // Served from the near-cache. The store is only read on a cold miss or by the background refresh
+        ClientLimitState state = this.tokenBucketCache.get( hashKey, clientId );
+        if ( state == null ) {
+            // Load default configuration. Pinned in memory, so unknown clients cost no store read
+            if ( logger.isLoggable( Level.FINE ) ) {
+                logger.fine( "ClientId " + actualClientId + " not found. Loading default configuration" );
+            }
             clientId = Configuration.DEFAULT_CLIENT_ID;
-            item = table.getItem( Configuration.RATE_LIMITING_HASH_KEY_NAME, hashKey, Configuration.RATE_LIMITING_RANGE_KEY_NAME, clientId );
+            this.metrics.defaultClientDecision();
+            state = this.tokenBucketCache.getDefault( hashKey );
         }
-        return this.canConsumeCapacity( hashKey, clientId, item.asMap() );
+        return this.canConsumeCapacity( hashKey, clientId, state, permits, 0, decision );
     }
 
-    private boolean canConsumeCapacity( final String hashKey, final String clientId, final Map<String, Object> dynamoDBItem ) {
-        RateToken second = this.getRateTokenForPeriod( dynamoDBItem, Configuration.PERIOD_SECOND );
-        RateToken minute = this.getRateTokenForPeriod( dynamoDBItem, Configuration.PERIOD_MINUTE );
-        RateToken hour = this.getRateTokenForPeriod( dynamoDBItem, Configuration.PERIOD_HOUR );
-        RateToken week = this.getRateTokenForPeriod( dynamoDBItem, Configuration.PERIOD_WEEK );
-        RateToken month = this.getRateTokenForPeriod( dynamoDBItem, Configuration.PERIOD_MONTH );
+    /**
+     * @param permits        tokens the call costs
+     * @param pendingPermits tokens already allowed to the record which are not reflected in the state yet, see consumeAll()
+     * @param decision       filled in if not null, so that consume() does not pay for the hints
+     */
+    private boolean canConsumeCapacity( final String hashKey, final String clientId, final ClientLimitState state, final int permits,
+                                        final int pendingPermits, final ThrottleDecision decision ) {
+        final long now = System.currentTimeMillis();
+        final int weight = pendingPermits + permits;
+        RateToken second = this.getRateTokenForPeriod( state, Period.SECOND, now, weight );
+        RateToken minute = this.getRateTokenForPeriod( state, Period.MINUTE, now, weight );
+        RateToken hour = this.getRateTokenForPeriod( state, Period.HOUR, now, weight );
+        RateToken week = this.getRateTokenForPeriod( state, Period.WEEK, now, weight );
+        RateToken month = this.getRateTokenForPeriod( state, Period.MONTH, now, weight );
         if ( month.isAllowedToConsume()
              && week.isAllowedToConsume()
              && hour.isAllowedToConsume()
              && minute.isAllowedToConsume()
              && second.isAllowedToConsume() ) {
-            logger.finest( String.format( "Month : %s, Week : %s, Hour : %s, Minute : %s, Seconds : %s",
-                                          month.isAllowedToConsume(), week.isAllowedToConsume(),
-                                          hour.isAllowedToConsume(), minute.isAllowedToConsume(),
-                                          second.isAllowedToConsume() ) );
-            this.publishConsumeToken( hashKey, clientId, second, minute, hour, week, month );
+            if ( logger.isLoggable( Level.FINEST ) ) {
+                logger.finest( String.format( "Month : %s, Week : %s, Hour : %s, Minute : %s, Seconds : %s",
+                                              month.isAllowedToConsume(), week.isAllowedToConsume(),
+                                              hour.isAllowedToConsume(), minute.isAllowedToConsume(),
+                                              second.isAllowedToConsume() ) );
+            }
+            this.publishConsumeToken( hashKey, clientId, now, permits, second, minute, hour, week, month );
             logger.finest( "Allowed by clientId based rate limiter" );
+            this.metrics.clientIdDecision( true );
+            if ( decision != null ) {
+                decision.allow( remainingCalls( state, now, weight ) );
+            }
             return true;
         }
         logger.fine( "Throttled by clientId based rate limiter" );
+        this.metrics.clientIdDecision( false );
+        if ( decision != null ) {
+            this.deny( decision, state, now, second, minute, hour, week, month );
+        }
         return false;
     }
 
-    private RateToken getRateTokenForPeriod( final Map<String, Object> dynamoDBItem, final String periodKey ) {
-        Map<String, Object> payload = (Map<String, Object>) dynamoDBItem.get( Configuration.ATTRIBUTE_RATE_LIMITING_PAYLOAD );
-        Map<String, Object> periodConsumption = (Map<String, Object>) payload.get( periodKey );
-        if ( periodConsumption == null ) {
+    /**
+     * @param weight tokens consumed by this call and the ones not reflected in the state yet
+     * @return calls left after this one in the tightest configured period, ThrottleDecision.UNLIMITED if no period is configured
+     */
+    private static long remainingCalls( final ClientLimitState state, final long now, final int weight ) {
+        long remaining = ThrottleDecision.UNLIMITED;
+        for ( Period period : Period.values() ) {
+            if ( !state.isConfigured( period ) ) {
+                continue;
+            }
+            final double maxCalls = state.getMaxAllowedCallsInPeriod( period );
+            // The calls of the period start over once its burst period is over
+            final double calls = isPastBurstPeriod( state, period, now ) ? 0 : state.getCallsInPeriod( period );
+            final long left = Math.max( 0, (long) ( maxCalls - calls ) - weight );
+            remaining = remaining == ThrottleDecision.UNLIMITED ? left : Math.min( remaining, left );
+        }
+        return remaining;
+    }
+
+    /**
+     * A period denies until its burst period is over, so the call can be retried when the longest of the denying periods is over
+     */
+    private void deny( final ThrottleDecision decision, final ClientLimitState state, final long now, final RateToken... rateTokens ) {
+        Period limitingPeriod = null;
+        long retryAfterMillis = 0;
+        for ( RateToken rateToken : rateTokens ) {
+            if ( rateToken.isAllowedToConsume() ) {
+                continue;
+            }
+            final Period period = rateToken.getPeriod();
+            // A period past its burst period only denies calls of several permits, a new burst period would start with this call
+            final long burstStart = isPastBurstPeriod( state, period, now ) ? now : state.getLastUpdatedBurst( period );
+            final long periodRetryAfterMillis = burstStart + period.getMillis() + 1 - now;
+            if ( limitingPeriod == null || periodRetryAfterMillis > retryAfterMillis ) {
+                limitingPeriod = period;
+                retryAfterMillis = periodRetryAfterMillis;
+            }
+        }
+        decision.deny( limitingPeriod, retryAfterMillis );
+    }
+
+    private static boolean isPastBurstPeriod( final ClientLimitState state, final Period period, final long now ) {
+        return ( now - state.getLastUpdatedBurst( period ) ) > period.getMillis();
+    }
+
+    private RateToken getRateTokenForPeriod( final ClientLimitState state, final Period period, final long now, final int weight ) {
+        if ( !state.isConfigured( period ) ) {
             // If not configured for the period for this clientId then ALLOW by default
             // Not to be confused with allowing all. The lowest configuration for default
             // client must be present at per second period
-            return new RateToken( periodKey, -1, true );
+            return new RateToken( period, -1, true );
         }
-        long lastTimestamp = ( (BigDecimal) periodConsumption.get( Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED ) ).longValue();
-        double maxRatePerMS = ( (BigDecimal) periodConsumption.get( Configuration.ATTRIBUTE_RATE_LIMITING_MAX_ALLOWED_RATE ) ).doubleValue();
-        double observedRate = ( (BigDecimal) periodConsumption.get( Configuration.ATTRIBUTE_RATE_LIMITING_RATE ) ).doubleValue();
-
-        long lastTimestampBurst = ( (BigDecimal) periodConsumption.get( Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED_BURST ) ).longValue();
-        double maxCallsInPeriod = ( (BigDecimal) periodConsumption.get( Configuration.ATTRIBUTE_RATE_LIMITING_MAX_ALLOWED_CALLS_IN_PERIOD ) ).doubleValue();
-        double actualCallsInPeriod = ( (BigDecimal) periodConsumption.get( Configuration.ATTRIBUTE_RATE_LIMITING_CALLS_IN_PERIOD ) ).doubleValue();
-
-        return this.isRateUnderMax( periodKey, Configuration.PERIOD_TO_MILLISECOND_MAP.get( periodKey ), lastTimestamp, maxRatePerMS, observedRate,
-                                    lastTimestampBurst, maxCallsInPeriod, actualCallsInPeriod );
+        return this.isRateUnderMax( period, now, weight, state.getLastUpdated( period ), state.getMaxAllowedRate( period ), state.getRate( period ),
+                                    state.getLastUpdatedBurst( period ), state.getMaxAllowedCallsInPeriod( period ), state.getCallsInPeriod( period ) );
     }
 
-    private RateToken isRateUnderMax( String periodKey, long periodInMillis, long lastTimestamp, double maxRatePerMS, double observedRate,
+    /**
+     * @param weight tokens the call costs, every one of them counts as a call for the rate and the burst capacity of the period
+     */
+    private RateToken isRateUnderMax( final Period period, final long now, final int weight, long lastTimestamp, double maxRatePerMS, double observedRate,
                                       final long lastTimestampBurst, final double maxCallsInPeriod, final double actualCallsInPeriod ) {
-        long now = System.currentTimeMillis();
+        final long periodInMillis = period.getMillis();
         long deltaT = now - lastTimestamp;
 
         double callsInLastPeriod;
         if ( deltaT >= periodInMillis ) {
             // Last update is too old. Reset everything
-            callsInLastPeriod = 1;
+            callsInLastPeriod = weight;
         }
         else {
-            callsInLastPeriod = observedRate * deltaT + 1;
+            callsInLastPeriod = observedRate * deltaT + weight;
         }
 
         double ratePerMS = callsInLastPeriod / deltaT;
         /*
         For each subsequent call made with deltaT < Period,
-        rate_new = rate_old + 1/deltaT
+        rate_new = rate_old + weight/deltaT
         Eventually, rate_new == rate_max <-- throttle
         We will again allow when deltaT > Period i.e reset counter
          */
@@ -112,45 +249,48 @@ public class DynamoDBBackedSimpleClientIdThrottleClientIdBasedRateLimiter implem
         boolean pastBurstPeriod = ( now - lastTimestampBurst ) > periodInMillis;
         if ( ratePerMS >= maxRatePerMS ) {
             // Allow burst mode traffic but not for per second calls
-            if ( pastBurstPeriod || actualCallsInPeriod < maxCallsInPeriod ) {
-                logger.fine( String.format( "Allowing burst mode traffic for period %s, maxCallsInPeriod %s, actualCallsInPeriod %s, pastBurstPeriod %s",
-                                            periodKey, maxCallsInPeriod, actualCallsInPeriod, pastBurstPeriod ) );
-                return new RateToken( periodKey, maxRatePerMS, true );
+            if ( hasBurstCapacity( pastBurstPeriod, actualCallsInPeriod, maxCallsInPeriod, weight ) ) {
+                if ( logger.isLoggable( Level.FINE ) ) {
+                    logger.fine( String.format( "Allowing burst mode traffic for period %s, maxCallsInPeriod %s, actualCallsInPeriod %s, pastBurstPeriod %s",
+                                                period.getKey(), maxCallsInPeriod, actualCallsInPeriod, pastBurstPeriod ) );
+                }
+                this.metrics.periodOutcome( period, PeriodOutcome.ALLOWED_BURST );
+                return new RateToken( period, maxRatePerMS, true );
+            }
+            if ( logger.isLoggable( Level.FINE ) ) {
+                logger.fine( String.format( "Rate limit reached for period %s. Max allowed rate %s, current rate %s. Exceed burst capacity",
+                                            period.getKey(), maxRatePerMS, ratePerMS ) );
             }
-            logger.fine( String.format( "Rate limit reached for period %s. Max allowed rate %s, current rate %s. Exceed burst capacity", periodKey, maxRatePerMS, ratePerMS ) );
-            return new RateToken( periodKey, maxRatePerMS, false );
+            this.metrics.periodOutcome( period, PeriodOutcome.DENIED_RATE_AND_BURST_EXCEEDED );
+            return new RateToken( period, maxRatePerMS, false );
         }
         else {
             // Check if traffic is still under burst rates
-            if ( !pastBurstPeriod && actualCallsInPeriod >= maxCallsInPeriod ) {
-                logger.fine( String.format( "Rate limit reached for period %s. maxCallsInPeriod %s, actualCallsInPeriod %s, pastBurstPeriod %s. Exceeded burst capacity",
-                                            periodKey, maxCallsInPeriod, actualCallsInPeriod, pastBurstPeriod ) );
-                return new RateToken( periodKey, maxRatePerMS, false );
+            if ( !hasBurstCapacity( pastBurstPeriod, actualCallsInPeriod, maxCallsInPeriod, weight ) ) {
+                if ( logger.isLoggable( Level.FINE ) ) {
+                    logger.fine( String.format( "Rate limit reached for period %s. maxCallsInPeriod %s, actualCallsInPeriod %s, pastBurstPeriod %s. Exceeded burst capacity",
+                                                period.getKey(), maxCallsInPeriod, actualCallsInPeriod, pastBurstPeriod ) );
+                }
+                this.metrics.periodOutcome( period, PeriodOutcome.DENIED_BURST_EXCEEDED );
+                return new RateToken( period, maxRatePerMS, false );
             }
-            return new RateToken( periodKey, ratePerMS, true );
+            this.metrics.periodOutcome( period, PeriodOutcome.ALLOWED_UNDER_RATE );
+            return new RateToken( period, ratePerMS, true );
         }
     }
 
-    private void publishConsumeToken( final String hashKey, final String clientId, RateToken... rateTokens ) {
-        String rateData = this.getRateDataFromRateTokens( rateTokens );
-        SendMessageRequest sendMessageRequest = new SendMessageRequest()
-                .withQueueUrl( this.queueURL )
-                .withMessageGroupId( Configuration.RATE_LIMITING_EVENT_SQS_QUEUE_NAME )
-                .withMessageBody( String.format( Configuration.RATE_LIMITING_EVENT_SQS_MESSAGE_TEMPLATE, hashKey, clientId, DateTime.now(), rateData ) );
-        this.sqs.sendMessage( sendMessageRequest );
+    /**
+     * @return true if the last of the weight tokens still fits into the calls of the burst period, which start over once it is over
+     */
+    private static boolean hasBurstCapacity( final boolean pastBurstPeriod, final double actualCallsInPeriod, final double maxCallsInPeriod,
+                                             final int weight ) {
+        final double callsBefore = pastBurstPeriod ? 0 : actualCallsInPeriod;
+        return callsBefore + weight - 1 < maxCallsInPeriod;
     }
 
-    private String getRateDataFromRateTokens( final RateToken[] rateTokens ) {
-        final int length = rateTokens.length;
-        StringBuilder sb = new StringBuilder();
-        for ( int i = 0; i < length; i++ ) {
-            RateToken token = rateTokens[i];
-            sb.append( token.getPeriodKey() ).append( "," ).append( token.getRate() );
-            if ( i != length - 1 ) {
-                sb.append( "," );
-            }
-        }
-        return sb.toString();
+    private void publishConsumeToken( final String hashKey, final String clientId, final long now, final int permits, RateToken... rateTokens ) {
+        // Summarized per hashKey and clientId, one message per aggregation window is published
+        this.usageAggregator.record( hashKey, clientId, now, permits, rateTokens );
     }
 
     public boolean init( String configurationFile ) {
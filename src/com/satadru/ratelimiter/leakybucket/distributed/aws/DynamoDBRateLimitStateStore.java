@@ -0,0 +1,471 @@
+package com.satadru.ratelimiter.leakybucket.distributed.aws;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leakybucket.distributed.RateLimitStateStore;
+import com.satadru.ratelimiter.leakybucket.distributed.TokenBucketRecords;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
+import com.satadru.ratelimiter.metrics.RemoteCall;
+import com.satadru.ratelimiter.pojo.SQSPayload;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * RateLimitStateStore backed by the CLIENT_ID_TOKEN_BUCKET table.
+ * Reads are BatchGetItem / GetItem. Usage is applied either with a conditional UpdateItem per item, which is safe with concurrent writers,
+ * or by writing the whole items with BatchWriteItem, which needs fewer round trips but is last writer wins.
+ * Quota leases are counters of the CLIENT_ID_QUOTA_LEASE table, one item per key, period and window, which expire by TTL.
+ * Theoretical arrival times are top level attributes of the CLIENT_ID_TOKEN_BUCKET items, one per period, e.g. tat_second,
+ * replaced by an UpdateItem conditional on their previous values and on the item existing. A BatchWriteItem of the whole item by a consumer which is not
+ * configured for conditional updates may set them back, so GCRA and usage events should not be mixed on the same table that way.
+ * Given an AmazonDynamoDBAsync client, getAsync() issues the GetItem on the SDK's executor instead of the calling thread.
+ */
+public class DynamoDBRateLimitStateStore implements RateLimitStateStore {
+
+    private static final Logger logger = Logger.getLogger( DynamoDBRateLimitStateStore.class.getName() );
+
+    private final DynamoDB dynamoDB;
+    private final Table table;
+    private final Table leaseTable;
+    // Conditional UpdateItem of the affected attributes instead of BatchWriteItem of whole items
+    private final boolean conditionalUpdates;
+    // Optional, getAsync() falls back to a GetItem on the calling thread without it
+    private final AmazonDynamoDBAsync asyncClient;
+    private final RateLimiterMetrics metrics = RateLimiterMetrics.get();
+
+    public DynamoDBRateLimitStateStore( final DynamoDB dynamoDB ) {
+        this( dynamoDB, Configuration.THROTTLING_CONSUMER_CONDITIONAL_UPDATES );
+    }
+
+    public DynamoDBRateLimitStateStore( final DynamoDB dynamoDB, final boolean conditionalUpdates ) {
+        this( dynamoDB, null, conditionalUpdates );
+    }
+
+    /**
+     * @param asyncClient client for the reads of getAsync(), may be null
+     */
+    public DynamoDBRateLimitStateStore( final DynamoDB dynamoDB, final AmazonDynamoDBAsync asyncClient, final boolean conditionalUpdates ) {
+        this.dynamoDB = dynamoDB;
+        this.table = dynamoDB.getTable( Configuration.RATE_LIMITING_TABLE_NAME );
+        this.leaseTable = dynamoDB.getTable( Configuration.QUOTA_LEASE_TABLE_NAME );
+        this.asyncClient = asyncClient;
+        this.conditionalUpdates = conditionalUpdates;
+    }
+
+    @Override
+    public Map<String, Object> get( final TokenBucketKey key ) {
+        logger.finest( () -> "Loading " + key + " from DynamoDB" );
+        final Item item = this.metrics.time( RemoteCall.DYNAMODB_GET_ITEM, () -> this.table.getItem( Configuration.RATE_LIMITING_HASH_KEY_NAME, key.getHashKey(),
+                                                                                                     Configuration.RATE_LIMITING_RANGE_KEY_NAME, key.getClientId() ) );
+        return item == null ? null : item.asMap();
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> getAsync( final TokenBucketKey key ) {
+        if ( this.asyncClient == null ) {
+            return RateLimitStateStore.super.getAsync( key );
+        }
+        logger.finest( () -> "Loading " + key + " from DynamoDB asynchronously" );
+        final GetItemRequest request = new GetItemRequest()
+                .withTableName( Configuration.RATE_LIMITING_TABLE_NAME )
+                .withKey( ImmutableMap.of( Configuration.RATE_LIMITING_HASH_KEY_NAME, new AttributeValue( key.getHashKey() ),
+                                           Configuration.RATE_LIMITING_RANGE_KEY_NAME, new AttributeValue( key.getClientId() ) ) );
+        final CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+        final long startNanos = System.nanoTime();
+        this.asyncClient.getItemAsync( request, new AsyncHandler<GetItemRequest, GetItemResult>() {
+            @Override
+            public void onError( final Exception exception ) {
+                DynamoDBRateLimitStateStore.this.metrics.remoteCall( RemoteCall.DYNAMODB_GET_ITEM, startNanos, true );
+                future.completeExceptionally( exception );
+            }
+
+            @Override
+            public void onSuccess( final GetItemRequest getItemRequest, final GetItemResult result ) {
+                DynamoDBRateLimitStateStore.this.metrics.remoteCall( RemoteCall.DYNAMODB_GET_ITEM, startNanos, false );
+                final Map<String, AttributeValue> item = result.getItem();
+                future.complete( item == null ? null : ItemUtils.toItem( item ).asMap() );
+            }
+        } );
+        return future;
+    }
+
+    @Override
+    public Map<TokenBucketKey, Map<String, Object>> batchGet( final Collection<TokenBucketKey> keys ) {
+        return this.batchGetItems( keys );
+    }
+
+    @Override
+    public boolean applyUsage( final TokenBucketKey key, final List<SQSPayload> payloads ) {
+        return this.batchApplyUsage( Collections.singletonMap( key, payloads ) ).isEmpty();
+    }
+
+    @Override
+    public Set<TokenBucketKey> batchApplyUsage( final Map<TokenBucketKey, List<SQSPayload>> payloadsByKey ) {
+        // Every distinct item is read and written once per batch
+        final Map<TokenBucketKey, Map<String, Object>> records = this.batchGetItems( payloadsByKey.keySet() );
+        final Set<TokenBucketKey> failedKeys = new HashSet<>();
+        final Map<TokenBucketKey, Map<String, Object>> updated = new LinkedHashMap<>();
+        for ( Map.Entry<TokenBucketKey, List<SQSPayload>> entry : payloadsByKey.entrySet() ) {
+            final Map<String, Object> record = records.get( entry.getKey() );
+            if ( record == null ) {
+                logger.warning( "No record for " + entry.getKey() + ". Dropping " + entry.getValue().size() + " throttling events" );
+                continue;
+            }
+            if ( this.conditionalUpdates ) {
+                if ( !this.updateItem( entry.getKey(), record, entry.getValue() ) ) {
+                    failedKeys.add( entry.getKey() );
+                }
+            }
+            else {
+                for ( SQSPayload sqsPayload : entry.getValue() ) {
+                    TokenBucketRecords.applyUsage( record, sqsPayload );
+                }
+                updated.put( entry.getKey(), record );
+            }
+        }
+        if ( !updated.isEmpty() ) {
+            failedKeys.addAll( this.batchWriteItems( updated.values() ) );
+        }
+        return failedKeys;
+    }
+
+    /**
+     * Adds the permits to the leased calls of the window with an UpdateItem conditional on staying within maxCalls.
+     * If the condition fails, the calls left are read and the update is retried for at most that many.
+     */
+    @Override
+    public long leaseQuota( final TokenBucketKey key, final Period period, final long windowStart, final long requested, final long maxCalls ) {
+        final String leaseKey = TokenBucketRecords.quotaLeaseKey( key, period, windowStart );
+        // Deleted by the TTL of the table once the window is long over
+        final long expiresAt = TimeUnit.MILLISECONDS.toSeconds( windowStart + 2 * period.getMillis() );
+        long permits = Math.min( requested, maxCalls );
+        for ( int attempt = 0; permits > 0; attempt++ ) {
+            final UpdateItemSpec updateItemSpec = new UpdateItemSpec()
+                    .withPrimaryKey( Configuration.QUOTA_LEASE_HASH_KEY_NAME, leaseKey )
+                    .withUpdateExpression( "ADD #leased :permits SET #expiresAt = :expiresAt" )
+                    .withConditionExpression( "attribute_not_exists(#leased) OR #leased <= :limit" )
+                    .withNameMap( new NameMap()
+                                          .with( "#leased", Configuration.ATTRIBUTE_QUOTA_LEASE_LEASED )
+                                          .with( "#expiresAt", Configuration.ATTRIBUTE_QUOTA_LEASE_EXPIRES_AT ) )
+                    .withValueMap( new ValueMap()
+                                           .withLong( ":permits", permits )
+                                           .withLong( ":expiresAt", expiresAt )
+                                           .withLong( ":limit", maxCalls - permits ) );
+            try {
+                this.metrics.time( RemoteCall.DYNAMODB_UPDATE_ITEM, () -> this.leaseTable.updateItem( updateItemSpec ) );
+                return permits;
+            }
+            catch ( ConditionalCheckFailedException e ) {
+                if ( attempt == Configuration.DYNAMODB_CONDITIONAL_UPDATE_MAX_RETRIES ) {
+                    logger.warning( "Failed to lease quota of " + leaseKey + " after " + attempt + " retries" );
+                    return 0;
+                }
+                final GetItemSpec getItemSpec = new GetItemSpec()
+                        .withPrimaryKey( Configuration.QUOTA_LEASE_HASH_KEY_NAME, leaseKey )
+                        .withConsistentRead( true );
+                final Item item = this.metrics.time( RemoteCall.DYNAMODB_GET_ITEM, () -> this.leaseTable.getItem( getItemSpec ) );
+                final long leased = item == null || !item.isPresent( Configuration.ATTRIBUTE_QUOTA_LEASE_LEASED )
+                                    ? 0 : item.getLong( Configuration.ATTRIBUTE_QUOTA_LEASE_LEASED );
+                permits = Math.min( requested, maxCalls - leased );
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public long[] getArrivalTimes( final TokenBucketKey key ) {
+        // The range key tells an item without arrival times from a missing one
+        final NameMap nameMap = new NameMap().with( "#clientId", Configuration.RATE_LIMITING_RANGE_KEY_NAME );
+        final List<String> projection = new ArrayList<>();
+        projection.add( "#clientId" );
+        for ( Period period : Period.values() ) {
+            nameMap.with( "#t" + period.ordinal(), arrivalTimeAttribute( period ) );
+            projection.add( "#t" + period.ordinal() );
+        }
+        final GetItemSpec getItemSpec = new GetItemSpec()
+                .withPrimaryKey( Configuration.RATE_LIMITING_HASH_KEY_NAME, key.getHashKey(), Configuration.RATE_LIMITING_RANGE_KEY_NAME, key.getClientId() )
+                .withProjectionExpression( String.join( ", ", projection ) )
+                .withNameMap( nameMap )
+                .withConsistentRead( true );
+        final Item item = this.metrics.time( RemoteCall.DYNAMODB_GET_ITEM, () -> this.table.getItem( getItemSpec ) );
+        if ( item == null ) {
+            return null;
+        }
+        final long[] arrivalTimes = new long[Period.count()];
+        for ( Period period : Period.values() ) {
+            if ( item.isPresent( arrivalTimeAttribute( period ) ) ) {
+                arrivalTimes[period.ordinal()] = item.getLong( arrivalTimeAttribute( period ) );
+            }
+        }
+        return arrivalTimes;
+    }
+
+    /**
+     * A single UpdateItem of the periods which changed, conditional on each of them still holding the expected time. UpdateItem is an
+     * upsert, so it is also conditional on the item existing
+     */
+    @Override
+    public boolean compareAndSetArrivalTimes( final TokenBucketKey key, final long[] expected, final long[] update ) {
+        final List<String> setClauses = new ArrayList<>();
+        final List<String> conditions = new ArrayList<>();
+        conditions.add( "attribute_exists(#clientId)" );
+        final NameMap nameMap = new NameMap().with( "#clientId", Configuration.RATE_LIMITING_RANGE_KEY_NAME );
+        final ValueMap valueMap = new ValueMap();
+        for ( Period period : Period.values() ) {
+            final int i = period.ordinal();
+            if ( update[i] == expected[i] ) {
+                continue;
+            }
+            nameMap.with( "#t" + i, arrivalTimeAttribute( period ) );
+            setClauses.add( "#t" + i + " = :t" + i );
+            valueMap.withLong( ":t" + i, update[i] );
+            if ( expected[i] == 0 ) {
+                conditions.add( "attribute_not_exists(#t" + i + ")" );
+            }
+            else {
+                conditions.add( "#t" + i + " = :expected" + i );
+                valueMap.withLong( ":expected" + i, expected[i] );
+            }
+        }
+        if ( setClauses.isEmpty() ) {
+            return true;
+        }
+        final UpdateItemSpec updateItemSpec = new UpdateItemSpec()
+                .withPrimaryKey( Configuration.RATE_LIMITING_HASH_KEY_NAME, key.getHashKey(), Configuration.RATE_LIMITING_RANGE_KEY_NAME, key.getClientId() )
+                .withUpdateExpression( "SET " + String.join( ", ", setClauses ) )
+                .withConditionExpression( String.join( " AND ", conditions ) )
+                .withNameMap( nameMap )
+                .withValueMap( valueMap );
+        try {
+            this.metrics.time( RemoteCall.DYNAMODB_UPDATE_ITEM, () -> this.table.updateItem( updateItemSpec ) );
+            return true;
+        }
+        catch ( ConditionalCheckFailedException e ) {
+            logger.fine( () -> "Concurrent update of the arrival times of " + key + " or deleted record" );
+            return false;
+        }
+    }
+
+    private static String arrivalTimeAttribute( final Period period ) {
+        return Configuration.ATTRIBUTE_GCRA_ARRIVAL_TIME_PREFIX + period.getKey();
+    }
+
+    /**
+     * Applies the payloads with a single UpdateItem which only touches the rate, lastUpdated, callsInPeriod and lastUpdatedBurst
+     * attributes of the affected periods. The new values are computed from the item as read, and the update is conditional on the burst
+     * period of every affected period still being the one that was read: a period within the same burst period gets its calls incremented,
+     * which composes with concurrent writers, while a period whose burst period is reset is SET only if callsInPeriod is unchanged too.
+     * If another writer got in between, the item is read again and the update retried.
+     *
+     * @return false if the item could not be updated
+     */
+    private boolean updateItem( final TokenBucketKey key, Map<String, Object> record, final List<SQSPayload> sqsPayloads ) {
+        for ( int attempt = 0; ; attempt++ ) {
+            record = TokenBucketRecords.deepCopy( record );
+            final Map<?, ?> payload = (Map<?, ?>) record.get( Configuration.ATTRIBUTE_RATE_LIMITING_PAYLOAD );
+            // Burst start and calls of every affected period as read
+            final Map<String, Object[]> original = new LinkedHashMap<>();
+            for ( SQSPayload sqsPayload : sqsPayloads ) {
+                for ( String periodKey : sqsPayload.getRateTokens().keySet() ) {
+                    final Map<?, ?> entryData = (Map<?, ?>) payload.get( periodKey );
+                    if ( entryData != null && !original.containsKey( periodKey ) ) {
+                        original.put( periodKey, new Object[] { entryData.get( Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED_BURST ),
+                                                                entryData.get( Configuration.ATTRIBUTE_RATE_LIMITING_CALLS_IN_PERIOD ) } );
+                    }
+                }
+            }
+            if ( original.isEmpty() ) {
+                return true;
+            }
+            for ( SQSPayload sqsPayload : sqsPayloads ) {
+                TokenBucketRecords.applyUsage( record, sqsPayload );
+            }
+
+            final List<String> setClauses = new ArrayList<>();
+            final List<String> conditions = new ArrayList<>();
+            final NameMap nameMap = new NameMap()
+                    .with( "#payload", Configuration.ATTRIBUTE_RATE_LIMITING_PAYLOAD )
+                    .with( "#rate", Configuration.ATTRIBUTE_RATE_LIMITING_RATE )
+                    .with( "#lastUpdated", Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED )
+                    .with( "#calls", Configuration.ATTRIBUTE_RATE_LIMITING_CALLS_IN_PERIOD )
+                    .with( "#burst", Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED_BURST );
+            final ValueMap valueMap = new ValueMap();
+            int i = 0;
+            for ( Map.Entry<String, Object[]> entry : original.entrySet() ) {
+                final String period = "#p" + i;
+                final String path = "#payload." + period + ".";
+                nameMap.with( period, entry.getKey() );
+                final Map<?, ?> entryData = (Map<?, ?>) payload.get( entry.getKey() );
+                final BigDecimal originalBurst = (BigDecimal) entry.getValue()[0];
+                final BigDecimal originalCalls = (BigDecimal) entry.getValue()[1];
+                final BigDecimal burst = (BigDecimal) entryData.get( Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED_BURST );
+                final BigDecimal calls = (BigDecimal) entryData.get( Configuration.ATTRIBUTE_RATE_LIMITING_CALLS_IN_PERIOD );
+
+                setClauses.add( path + "#rate = :rate" + i );
+                setClauses.add( path + "#lastUpdated = :lastUpdated" + i );
+                valueMap.with( ":rate" + i, entryData.get( Configuration.ATTRIBUTE_RATE_LIMITING_RATE ) );
+                valueMap.with( ":lastUpdated" + i, entryData.get( Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED ) );
+                conditions.add( path + "#burst = :originalBurst" + i );
+                valueMap.with( ":originalBurst" + i, originalBurst );
+                if ( burst.compareTo( originalBurst ) == 0 ) {
+                    // Increment in place, ADD does not work on nested attributes
+                    setClauses.add( path + "#calls = " + path + "#calls + :calls" + i );
+                    valueMap.with( ":calls" + i, calls.subtract( originalCalls ) );
+                }
+                else {
+                    setClauses.add( path + "#calls = :calls" + i );
+                    setClauses.add( path + "#burst = :burst" + i );
+                    valueMap.with( ":calls" + i, calls );
+                    valueMap.with( ":burst" + i, burst );
+                    conditions.add( path + "#calls = :originalCalls" + i );
+                    valueMap.with( ":originalCalls" + i, originalCalls );
+                }
+                i++;
+            }
+            final String updateExpression = "SET " + String.join( ", ", setClauses );
+            final UpdateItemSpec updateItemSpec = new UpdateItemSpec()
+                    .withPrimaryKey( Configuration.RATE_LIMITING_HASH_KEY_NAME, key.getHashKey(), Configuration.RATE_LIMITING_RANGE_KEY_NAME, key.getClientId() )
+                    .withUpdateExpression( updateExpression )
+                    .withConditionExpression( String.join( " AND ", conditions ) )
+                    .withNameMap( nameMap )
+                    .withValueMap( valueMap );
+            try {
+                this.metrics.time( RemoteCall.DYNAMODB_UPDATE_ITEM, () -> this.table.updateItem( updateItemSpec ) );
+                return true;
+            }
+            catch ( ConditionalCheckFailedException e ) {
+                if ( attempt == Configuration.DYNAMODB_CONDITIONAL_UPDATE_MAX_RETRIES ) {
+                    logger.warning( "Failed to update " + key + " after " + attempt + " retries" );
+                    return false;
+                }
+                logger.fine( () -> "Concurrent update of " + key + ", retrying" );
+                final GetItemSpec getItemSpec = new GetItemSpec()
+                        .withPrimaryKey( Configuration.RATE_LIMITING_HASH_KEY_NAME, key.getHashKey(), Configuration.RATE_LIMITING_RANGE_KEY_NAME, key.getClientId() )
+                        .withConsistentRead( true );
+                final Item item = this.metrics.time( RemoteCall.DYNAMODB_GET_ITEM, () -> this.table.getItem( getItemSpec ) );
+                if ( item == null ) {
+                    logger.warning( "Record " + key + " was deleted. Dropping " + sqsPayloads.size() + " throttling events" );
+                    return true;
+                }
+                record = item.asMap();
+            }
+        }
+    }
+
+    /**
+     * Reads the items with BatchGetItem, at most DYNAMODB_BATCH_GET_MAX_KEYS keys per call
+     */
+    private Map<TokenBucketKey, Map<String, Object>> batchGetItems( final Collection<TokenBucketKey> keys ) {
+        final Map<TokenBucketKey, Map<String, Object>> items = new HashMap<>();
+        for ( List<TokenBucketKey> chunk : Iterables.partition( keys, Configuration.DYNAMODB_BATCH_GET_MAX_KEYS ) ) {
+            final TableKeysAndAttributes tableKeysAndAttributes = new TableKeysAndAttributes( Configuration.RATE_LIMITING_TABLE_NAME );
+            for ( TokenBucketKey key : chunk ) {
+                tableKeysAndAttributes.addHashAndRangePrimaryKey( Configuration.RATE_LIMITING_HASH_KEY_NAME, key.getHashKey(),
+                                                                  Configuration.RATE_LIMITING_RANGE_KEY_NAME, key.getClientId() );
+            }
+            BatchGetItemOutcome outcome = this.metrics.time( RemoteCall.DYNAMODB_BATCH_GET_ITEM, () -> this.dynamoDB.batchGetItem( tableKeysAndAttributes ) );
+            int attempt = 0;
+            while ( true ) {
+                final List<Item> tableItems = outcome.getTableItems().get( Configuration.RATE_LIMITING_TABLE_NAME );
+                if ( tableItems != null ) {
+                    for ( Item item : tableItems ) {
+                        items.put( new TokenBucketKey( item.getString( Configuration.RATE_LIMITING_HASH_KEY_NAME ),
+                                                       item.getString( Configuration.RATE_LIMITING_RANGE_KEY_NAME ) ), item.asMap() );
+                    }
+                }
+                final Map<String, KeysAndAttributes> unprocessedKeys = outcome.getUnprocessedKeys();
+                if ( unprocessedKeys == null || unprocessedKeys.isEmpty() ) {
+                    break;
+                }
+                if ( attempt == Configuration.DYNAMODB_BATCH_MAX_RETRIES ) {
+                    throw new IllegalStateException( "Could not read " + unprocessedKeys.get( Configuration.RATE_LIMITING_TABLE_NAME ).getKeys().size()
+                                                     + " items after " + attempt + " retries" );
+                }
+                backOff( attempt++ );
+                outcome = this.metrics.time( RemoteCall.DYNAMODB_BATCH_GET_ITEM, () -> this.dynamoDB.batchGetItemUnprocessed( unprocessedKeys ) );
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Writes the items with BatchWriteItem, at most DYNAMODB_BATCH_WRITE_MAX_ITEMS items per call.
+     * Unprocessed items are retried with exponential backoff.
+     *
+     * @return the keys of the items which could not be written
+     */
+    private Set<TokenBucketKey> batchWriteItems( final Collection<Map<String, Object>> records ) {
+        final Set<TokenBucketKey> failedKeys = new HashSet<>();
+        final List<Item> items = new ArrayList<>( records.size() );
+        for ( Map<String, Object> record : records ) {
+            items.add( Item.fromMap( record ) );
+        }
+        for ( List<Item> chunk : Iterables.partition( items, Configuration.DYNAMODB_BATCH_WRITE_MAX_ITEMS ) ) {
+            final TableWriteItems tableWriteItems = new TableWriteItems( Configuration.RATE_LIMITING_TABLE_NAME ).withItemsToPut( chunk );
+            BatchWriteItemOutcome outcome = this.metrics.time( RemoteCall.DYNAMODB_BATCH_WRITE_ITEM, () -> this.dynamoDB.batchWriteItem( tableWriteItems ) );
+            Map<String, List<WriteRequest>> unprocessedItems = outcome.getUnprocessedItems();
+            int attempt = 0;
+            while ( unprocessedItems != null && !unprocessedItems.isEmpty() && attempt < Configuration.DYNAMODB_BATCH_MAX_RETRIES ) {
+                backOff( attempt++ );
+                final Map<String, List<WriteRequest>> retriedItems = unprocessedItems;
+                outcome = this.metrics.time( RemoteCall.DYNAMODB_BATCH_WRITE_ITEM, () -> this.dynamoDB.batchWriteItemUnprocessed( retriedItems ) );
+                unprocessedItems = outcome.getUnprocessedItems();
+            }
+            if ( unprocessedItems != null && unprocessedItems.containsKey( Configuration.RATE_LIMITING_TABLE_NAME ) ) {
+                for ( WriteRequest writeRequest : unprocessedItems.get( Configuration.RATE_LIMITING_TABLE_NAME ) ) {
+                    final Map<String, AttributeValue> item = writeRequest.getPutRequest().getItem();
+                    failedKeys.add( new TokenBucketKey( item.get( Configuration.RATE_LIMITING_HASH_KEY_NAME ).getS(),
+                                                        item.get( Configuration.RATE_LIMITING_RANGE_KEY_NAME ).getS() ) );
+                }
+                logger.warning( "Failed to write " + failedKeys.size() + " items after " + attempt + " retries" );
+            }
+        }
+        return failedKeys;
+    }
+
+    private static void backOff( final int attempt ) {
+        try {
+            Thread.sleep( Configuration.DYNAMODB_BATCH_BASE_BACKOFF.toMillis() << attempt );
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted while retrying unprocessed DynamoDB batch", e );
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.satadru.ratelimiter.leakybucket.distributed.aws;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.satadru.ratelimiter.configurations.Configuration;
+
+/**
+ * Spreads the throttling events over N partitions by a hash of hashKey:clientId. Every partition is its own FIFO queue,
+ * so all the events of a client and API land in the same queue and keep their order, while different partitions are consumed in parallel
+ * by the workers owning them.
+ */
+public class EventPartitioner {
+
+    private EventPartitioner() {
+    }
+
+    /**
+     * Same as (hashKey + ":" + clientId).hashCode() mod partitions, without building the String.
+     * String.hashCode() is specified, so every node maps a key to the same partition.
+     */
+    public static int partitionOf( final String hashKey, final String clientId, final int partitions ) {
+        int hash = 31 * hashKey.hashCode() + ':';
+        for ( int i = 0; i < clientId.length(); i++ ) {
+            hash = 31 * hash + clientId.charAt( i );
+        }
+        return Math.floorMod( hash, partitions );
+    }
+
+    public static String messageGroupId( final int partition ) {
+        return "partition-" + partition;
+    }
+
+    /**
+     * @return name of the FIFO queue of the partition. A single partition keeps the original queue name.
+     */
+    public static String queueName( final int partition, final int partitions ) {
+        if ( partitions == 1 ) {
+            return Configuration.RATE_LIMITING_EVENT_SQS_QUEUE_NAME;
+        }
+        return String.format( Configuration.RATE_LIMITING_EVENT_SQS_PARTITION_QUEUE_NAME_TEMPLATE, partition );
+    }
+
+    /**
+     * Partitions are dealt round robin to the workers of the fleet. Every partition is owned by exactly one worker.
+     *
+     * @param workerIndex index of the worker in the whole fleet, between 0 and workerCount - 1
+     * @param workerCount number of workers in the whole fleet
+     * @param partitions  number of partitions
+     * @return the partitions owned by the worker, empty if there are more workers than partitions
+     */
+    public static List<Integer> ownedPartitions( final int workerIndex, final int workerCount, final int partitions ) {
+        Preconditions.checkArgument( workerIndex >= 0 && workerIndex < workerCount, "workerIndex must be between 0 and workerCount - 1" );
+        final List<Integer> owned = new ArrayList<>();
+        for ( int partition = workerIndex; partition < partitions; partition += workerCount ) {
+            owned.add( partition );
+        }
+        return owned;
+    }
+}
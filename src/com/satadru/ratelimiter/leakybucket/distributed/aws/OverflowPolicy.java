@@ -0,0 +1,15 @@
+package com.satadru.ratelimiter.leakybucket.distributed.aws;
+
+/**
+ * What a publisher does with a message when its buffer is full
+ */
+public enum OverflowPolicy {
+    // Discard the message being published
+    DROP_NEWEST,
+    // Discard the oldest buffered message to make room
+    DROP_OLDEST,
+    // Block the publishing thread until there is room
+    BLOCK,
+    // Send the message synchronously on the publishing thread
+    CALLER_RUNS
+}
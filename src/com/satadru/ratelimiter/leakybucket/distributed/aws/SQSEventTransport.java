@@ -0,0 +1,120 @@
+package com.satadru.ratelimiter.leakybucket.distributed.aws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.leakybucket.distributed.EventTransport;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
+import com.satadru.ratelimiter.metrics.RemoteCall;
+import com.satadru.ratelimiter.pojo.TransportEvent;
+
+/**
+ * A FIFO queue per partition. Events are published through a BatchingSQSPublisher, polled with ReceiveMessage (at most
+ * MAX_NUMBER_OF_MESSAGES per poll) and acknowledged by deleting them. A message which is not deleted is delivered again once its
+ * visibility timeout expires.
+ * <p>
+ * A transport created without a publisher only consumes, one created without the queues only publishes.
+ */
+public class SQSEventTransport implements EventTransport {
+
+    private static final Logger logger = Logger.getLogger( SQSEventTransport.class.getName() );
+
+    private final AmazonSQS sqs;
+    // Indexed by partition
+    private final List<String> queueURLs;
+    private final BatchingSQSPublisher publisher;
+    private final RateLimiterMetrics metrics = RateLimiterMetrics.get();
+
+    /**
+     * Publishing only
+     */
+    public SQSEventTransport( final BatchingSQSPublisher publisher ) {
+        this( null, Collections.emptyList(), publisher );
+    }
+
+    /**
+     * Consuming only
+     *
+     * @param queueURLs URL of the queue of every partition, indexed by partition
+     */
+    public SQSEventTransport( final AmazonSQS sqs, final List<String> queueURLs ) {
+        this( sqs, queueURLs, null );
+    }
+
+    /**
+     * @param queueURLs URL of the queue of every partition, indexed by partition, the same as the ones of the publisher
+     */
+    public SQSEventTransport( final AmazonSQS sqs, final List<String> queueURLs, final BatchingSQSPublisher publisher ) {
+        Preconditions.checkArgument( publisher != null || !queueURLs.isEmpty(), "A publisher or at least one queue is needed" );
+        this.sqs = sqs;
+        this.queueURLs = ImmutableList.copyOf( queueURLs );
+        this.publisher = publisher;
+    }
+
+    @Override
+    public int getPartitionCount() {
+        return this.publisher != null ? this.publisher.getPartitionCount() : this.queueURLs.size();
+    }
+
+    @Override
+    public void publish( final int partition, final String event ) {
+        Preconditions.checkState( this.publisher != null, "Transport was created without a publisher" );
+        this.publisher.publish( partition, EventPartitioner.messageGroupId( partition ), event );
+    }
+
+    @Override
+    public List<TransportEvent> poll( final int partition, final int maxEvents ) {
+        final ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest( this.queueURLs.get( partition ) );
+        receiveMessageRequest.setMaxNumberOfMessages( Math.min( maxEvents, Configuration.MAX_NUMBER_OF_MESSAGES ) );
+        final ReceiveMessageResult result = this.metrics.time( RemoteCall.SQS_RECEIVE_MESSAGE, () -> this.sqs.receiveMessage( receiveMessageRequest ) );
+        if ( result == null || result.getMessages() == null || result.getMessages().isEmpty() ) {
+            return Collections.emptyList();
+        }
+        final List<TransportEvent> events = new ArrayList<>( result.getMessages().size() );
+        for ( Message message : result.getMessages() ) {
+            events.add( new TransportEvent( message.getBody(), new DeleteMessageBatchRequestEntry( message.getMessageId(), message.getReceiptHandle() ) ) );
+        }
+        return events;
+    }
+
+    @Override
+    public void acknowledge( final int partition, final List<TransportEvent> events ) {
+        final List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>( events.size() );
+        for ( TransportEvent event : events ) {
+            entries.add( (DeleteMessageBatchRequestEntry) event.getReceipt() );
+        }
+        // DeleteMessageBatch takes as many entries as ReceiveMessage returns messages
+        for ( List<DeleteMessageBatchRequestEntry> batch : Lists.partition( entries, Configuration.MAX_NUMBER_OF_MESSAGES ) ) {
+            final DeleteMessageBatchRequest deleteMessageBatchRequest = new DeleteMessageBatchRequest( this.queueURLs.get( partition ), batch );
+            final DeleteMessageBatchResult deleteMessageBatchResult =
+                    this.metrics.time( RemoteCall.SQS_DELETE_MESSAGE_BATCH, () -> this.sqs.deleteMessageBatch( deleteMessageBatchRequest ) );
+            if ( !deleteMessageBatchResult.getFailed().isEmpty() ) {
+                logger.warning( "Failed to delete message " + deleteMessageBatchResult.getFailed().size() );
+            }
+            // TODO We can move these messages to a DLQ or do a purge at a later point of time
+        }
+    }
+
+    /**
+     * Flushes and stops the publisher, if any
+     */
+    @Override
+    public void close() {
+        if ( this.publisher != null ) {
+            this.publisher.close();
+        }
+    }
+}
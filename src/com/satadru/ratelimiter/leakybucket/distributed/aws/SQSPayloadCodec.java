@@ -0,0 +1,309 @@
+package com.satadru.ratelimiter.leakybucket.distributed.aws;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.pojo.SQSPayload;
+import org.joda.time.DateTime;
+
+/**
+ * Encodes and decodes the throttling events published to SQS.
+ * <p>
+ * Two formats are read so that producers and consumers can be rolled out independently:
+ * the legacy CSV format (RATE_LIMITING_EVENT_SQS_MESSAGE_TEMPLATE) and a compact, versioned binary format wrapped in Base64 and
+ * prefixed with {@link #BINARY_PREFIX}. Version 1 of the binary format is:
+ * <pre>
+ * byte    version
+ * short   hashKey length, UTF-8 hashKey
+ * short   clientId length, UTF-8 clientId
+ * long    timestamp of the last call (epoch millis)
+ * varlong timestamp - first call timestamp
+ * varlong number of calls
+ * byte    bit mask of the period ordinals present
+ * double  rate of every present period in ordinal order
+ * </pre>
+ * An instance reuses its buffers and is NOT thread-safe, every publishing or consuming thread needs its own.
+ * A message which is not a valid event in either format fails to decode with an IllegalArgumentException.
+ */
+public class SQSPayloadCodec {
+
+    public static final byte VERSION = 1;
+    // Neither a Base64 character nor the first character of an API name
+    public static final char BINARY_PREFIX = '#';
+
+    private static final char[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] BASE64_VALUES = new int[128];
+
+    static {
+        Arrays.fill( BASE64_VALUES, -1 );
+        for ( int i = 0; i < BASE64_ALPHABET.length; i++ ) {
+            BASE64_VALUES[BASE64_ALPHABET[i]] = i;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final char[] text;
+
+    public SQSPayloadCodec() {
+        this( Configuration.SQS_PAYLOAD_CODEC_BUFFER_SIZE );
+    }
+
+    public SQSPayloadCodec( final int bufferSize ) {
+        this.buffer = ByteBuffer.allocate( bufferSize );
+        this.text = new char[1 + ( bufferSize + 2 ) / 3 * 4];
+    }
+
+    public static boolean isBinary( final String messageBody ) {
+        return !messageBody.isEmpty() && messageBody.charAt( 0 ) == BINARY_PREFIX;
+    }
+
+    /**
+     * @return the binary format of the payload as an SQS message body
+     */
+    public String encode( final SQSPayload payload ) {
+        this.buffer.clear();
+        this.encode( payload, this.buffer );
+        this.buffer.flip();
+        this.text[0] = BINARY_PREFIX;
+        final int length = base64Encode( this.buffer.array(), this.buffer.limit(), this.text, 1 );
+        return new String( this.text, 0, length + 1 );
+    }
+
+    /**
+     * Writes the binary format of the payload into dst
+     *
+     * @throws BufferOverflowException if dst is too small
+     */
+    public void encode( final SQSPayload payload, final ByteBuffer dst ) {
+        dst.put( VERSION );
+        putString( dst, payload.getHashKey() );
+        putString( dst, payload.getClientId() );
+        dst.putLong( payload.getTimestamp() );
+        putVarLong( dst, payload.getTimestamp() - payload.getFirstTimestamp() );
+        putVarLong( dst, payload.getCallCount() );
+        final Map<String, Double> rateTokens = payload.getRateTokens();
+        int mask = 0;
+        for ( int i = 0; i < Period.count(); i++ ) {
+            if ( rateTokens.containsKey( Period.fromOrdinal( i ).getKey() ) ) {
+                mask |= 1 << i;
+            }
+        }
+        dst.put( (byte) mask );
+        for ( int i = 0; i < Period.count(); i++ ) {
+            if ( ( mask & ( 1 << i ) ) != 0 ) {
+                dst.putDouble( rateTokens.get( Period.fromOrdinal( i ).getKey() ) );
+            }
+        }
+    }
+
+    /**
+     * The legacy CSV format, for producers which still have to be read by consumers not knowing the binary format
+     */
+    public String encodeLegacy( final SQSPayload payload ) {
+        final StringBuilder rateData = new StringBuilder();
+        for ( Map.Entry<String, Double> rate : payload.getRateTokens().entrySet() ) {
+            rateData.append( rate.getKey() ).append( "," ).append( rate.getValue() ).append( "," );
+        }
+        rateData.append( Configuration.USAGE_SUMMARY_CALLS ).append( "," ).append( payload.getCallCount() ).append( "," )
+                .append( Configuration.USAGE_SUMMARY_FIRST_TIMESTAMP ).append( "," ).append( payload.getFirstTimestamp() );
+        return String.format( Configuration.RATE_LIMITING_EVENT_SQS_MESSAGE_TEMPLATE, payload.getHashKey(), payload.getClientId(),
+                              new DateTime( payload.getTimestamp() ), rateData );
+    }
+
+    /**
+     * Decodes an SQS message body in either format. Periods with a non positive rate are left out, same as the legacy parsing.
+     *
+     * @throws IllegalArgumentException if the message is not a valid event
+     */
+    public SQSPayload decode( final String messageBody ) {
+        if ( !isBinary( messageBody ) ) {
+            return this.decodeLegacy( messageBody );
+        }
+        this.buffer.clear();
+        try {
+            base64Decode( messageBody, 1, this.buffer );
+        }
+        catch ( BufferOverflowException e ) {
+            throw new IllegalArgumentException( "Throttling event longer than " + this.buffer.capacity() + " bytes" );
+        }
+        this.buffer.flip();
+        final SQSPayload payload = this.decode( this.buffer );
+        if ( this.buffer.hasRemaining() ) {
+            throw new IllegalArgumentException( this.buffer.remaining() + " bytes after the throttling event" );
+        }
+        return payload;
+    }
+
+    /**
+     * Decodes the binary format from src
+     *
+     * @throws IllegalArgumentException if src does not start with a valid event
+     */
+    public SQSPayload decode( final ByteBuffer src ) {
+        try {
+            return decodeBinary( src );
+        }
+        catch ( BufferUnderflowException e ) {
+            throw new IllegalArgumentException( "Truncated throttling event" );
+        }
+    }
+
+    private static SQSPayload decodeBinary( final ByteBuffer src ) {
+        final byte version = src.get();
+        if ( version != VERSION ) {
+            throw new IllegalArgumentException( "Unsupported throttling event version " + version );
+        }
+        final String hashKey = getString( src );
+        final String clientId = getString( src );
+        final long timestamp = src.getLong();
+        final long firstTimestamp = timestamp - getVarLong( src );
+        final long callCount = getVarLong( src );
+        final int mask = src.get() & 0xFF;
+        final ImmutableMap.Builder<String, Double> rateTokens = new ImmutableMap.Builder<>();
+        for ( int i = 0; i < Period.count(); i++ ) {
+            if ( ( mask & ( 1 << i ) ) != 0 ) {
+                final double rate = src.getDouble();
+                if ( isPositive( rate ) ) {
+                    rateTokens.put( Period.fromOrdinal( i ).getKey(), rate );
+                }
+            }
+        }
+        return new SQSPayload( hashKey, clientId, timestamp, rateTokens.build(), callCount, firstTimestamp );
+    }
+
+    private SQSPayload decodeLegacy( final String messageBody ) {
+        final String[] data = messageBody.split( "," );
+        if ( data.length < 3 ) {
+            throw new IllegalArgumentException( "Not a throttling event: " + messageBody );
+        }
+        final String hashKey = data[0];
+        final String clientId = data[1];
+        long timestamp = DateTime.parse( data[2] ).getMillis();
+        final ImmutableMap.Builder<String, Double> rateTokens = new ImmutableMap.Builder<>();
+        // Usage summaries carry the number of calls and the first call timestamp as extra pairs
+        long callCount = 1;
+        long firstTimestamp = timestamp;
+        for ( int i = 3; i < data.length - 1; i += 2 ) {
+            final String name = data[i];
+            if ( Configuration.USAGE_SUMMARY_CALLS.equals( name ) ) {
+                callCount = Long.parseLong( data[i + 1] );
+            }
+            else if ( Configuration.USAGE_SUMMARY_FIRST_TIMESTAMP.equals( name ) ) {
+                firstTimestamp = Long.parseLong( data[i + 1] );
+            }
+            else if ( Configuration.PERIOD_KEYS.contains( name ) ) {
+                double rate = Double.valueOf( data[i + 1] );
+                if ( isPositive( rate ) ) {
+                    rateTokens.put( name, rate );
+                }
+            }
+        }
+        return new SQSPayload( hashKey, clientId, timestamp, rateTokens.build(), callCount, firstTimestamp );
+    }
+
+    /*
+    Comparing a very small double can be tricky, thus the following
+     */
+    static boolean isPositive( double d ) {
+        return Double.doubleToRawLongBits( d ) > 0;
+    }
+
+    private static void putString( final ByteBuffer dst, final String value ) {
+        final byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+        dst.putShort( (short) bytes.length );
+        dst.put( bytes );
+    }
+
+    private static String getString( final ByteBuffer src ) {
+        final int length = src.getShort() & 0xFFFF;
+        if ( length > src.remaining() ) {
+            throw new BufferUnderflowException();
+        }
+        final String value = new String( src.array(), src.arrayOffset() + src.position(), length, StandardCharsets.UTF_8 );
+        src.position( src.position() + length );
+        return value;
+    }
+
+    private static void putVarLong( final ByteBuffer dst, long value ) {
+        while ( ( value & ~0x7FL ) != 0 ) {
+            dst.put( (byte) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+        dst.put( (byte) value );
+    }
+
+    private static long getVarLong( final ByteBuffer src ) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if ( shift > 63 ) {
+                throw new IllegalArgumentException( "Varlong longer than 10 bytes" );
+            }
+            b = src.get();
+            value |= (long) ( b & 0x7F ) << shift;
+            shift += 7;
+        }
+        while ( ( b & 0x80 ) != 0 );
+        return value;
+    }
+
+    private static int base64Encode( final byte[] src, final int length, final char[] dst, final int offset ) {
+        int out = offset;
+        int i = 0;
+        for ( ; i + 2 < length; i += 3 ) {
+            final int bits = ( src[i] & 0xFF ) << 16 | ( src[i + 1] & 0xFF ) << 8 | ( src[i + 2] & 0xFF );
+            dst[out++] = BASE64_ALPHABET[bits >>> 18];
+            dst[out++] = BASE64_ALPHABET[( bits >>> 12 ) & 0x3F];
+            dst[out++] = BASE64_ALPHABET[( bits >>> 6 ) & 0x3F];
+            dst[out++] = BASE64_ALPHABET[bits & 0x3F];
+        }
+        final int remaining = length - i;
+        if ( remaining > 0 ) {
+            final int bits = ( src[i] & 0xFF ) << 16 | ( remaining == 2 ? ( src[i + 1] & 0xFF ) << 8 : 0 );
+            dst[out++] = BASE64_ALPHABET[bits >>> 18];
+            dst[out++] = BASE64_ALPHABET[( bits >>> 12 ) & 0x3F];
+            dst[out++] = remaining == 2 ? BASE64_ALPHABET[( bits >>> 6 ) & 0x3F] : '=';
+            dst[out++] = '=';
+        }
+        return out - offset;
+    }
+
+    private static void base64Decode( final String src, final int offset, final ByteBuffer dst ) {
+        int bits = 0;
+        int count = 0;
+        for ( int i = offset; i < src.length(); i++ ) {
+            final char c = src.charAt( i );
+            if ( c == '=' ) {
+                break;
+            }
+            final int value = c < 128 ? BASE64_VALUES[c] : -1;
+            if ( value < 0 ) {
+                throw new IllegalArgumentException( "Illegal Base64 character " + c );
+            }
+            bits = bits << 6 | value;
+            count++;
+            if ( count == 4 ) {
+                dst.put( (byte) ( bits >>> 16 ) ).put( (byte) ( bits >>> 8 ) ).put( (byte) bits );
+                bits = 0;
+                count = 0;
+            }
+        }
+        if ( count == 3 ) {
+            dst.put( (byte) ( bits >>> 10 ) ).put( (byte) ( bits >>> 2 ) );
+        }
+        else if ( count == 2 ) {
+            dst.put( (byte) ( bits >>> 4 ) );
+        }
+        else if ( count == 1 ) {
+            throw new IllegalArgumentException( "Truncated Base64" );
+        }
+    }
+}
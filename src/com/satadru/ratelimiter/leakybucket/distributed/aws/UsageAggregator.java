@@ -0,0 +1,153 @@
+package com.satadru.ratelimiter.leakybucket.distributed.aws;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leakybucket.distributed.EventTransportUsageSink;
+import com.satadru.ratelimiter.leakybucket.distributed.UsageSink;
+import com.satadru.ratelimiter.pojo.RateToken;
+import com.satadru.ratelimiter.pojo.SQSPayload;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * Aggregates the allowed calls of this node per hashKey and clientId over a short window and publishes a single summary
+ * per key and window instead of one message per call. A summary carries the number of calls weighted by their permits, the first and the last call timestamp
+ * and the latest observed rate of every period. ThrottlingEventConsumer applies a summary like the same number of single events.
+ * <p>
+ * Summaries go to a UsageSink: an EventTransport, the SQS queues or a local log (EventTransportUsageSink), or, on a single node,
+ * straight to the state store (StateStoreUsageSink).
+ */
+public class UsageAggregator implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger( UsageAggregator.class.getName() );
+
+    private final UsageSink sink;
+    private final ScheduledExecutorService flushExecutor;
+    private volatile ConcurrentHashMap<TokenBucketKey, UsageAccumulator> window = new ConcurrentHashMap<>();
+
+    public UsageAggregator( final BatchingSQSPublisher publisher ) {
+        this( publisher, Configuration.USAGE_AGGREGATION_WINDOW, Configuration.PUBLISH_BINARY_THROTTLING_EVENTS );
+    }
+
+    public UsageAggregator( final BatchingSQSPublisher publisher, final Duration aggregationWindow, final boolean binaryFormat ) {
+        this( new EventTransportUsageSink( new SQSEventTransport( publisher ), binaryFormat ), aggregationWindow );
+    }
+
+    public UsageAggregator( final UsageSink sink, final Duration aggregationWindow ) {
+        this.sink = sink;
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor( new ThreadFactoryBuilder().setDaemon( true ).setNameFormat( "usage-aggregator" ).build() );
+        this.flushExecutor.scheduleAtFixedRate( this::flush, aggregationWindow.toMillis(), aggregationWindow.toMillis(), TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Records an allowed call into the current window
+     *
+     * @param hashKey    API_NAME:METHOD
+     * @param clientId   clientId the record of which was used for the decision
+     * @param timestamp  time of the call
+     * @param permits    tokens consumed by the call
+     * @param rateTokens observed rate per period
+     */
+    public void record( final String hashKey, final String clientId, final long timestamp, final int permits, final RateToken... rateTokens ) {
+        final TokenBucketKey key = new TokenBucketKey( hashKey, clientId );
+        while ( true ) {
+            final UsageAccumulator accumulator = this.window.computeIfAbsent( key, UsageAccumulator::new );
+            synchronized ( accumulator ) {
+                // Sealed by a flush which swapped the window after we looked it up, record into the new window
+                if ( !accumulator.sealed ) {
+                    accumulator.add( timestamp, permits, rateTokens );
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes one summary per key of the current window and starts a new window
+     */
+    public synchronized void flush() {
+        final ConcurrentHashMap<TokenBucketKey, UsageAccumulator> closed = this.window;
+        if ( closed.isEmpty() ) {
+            return;
+        }
+        this.window = new ConcurrentHashMap<>();
+        final List<SQSPayload> summaries = new ArrayList<>( closed.size() );
+        for ( UsageAccumulator accumulator : closed.values() ) {
+            synchronized ( accumulator ) {
+                accumulator.sealed = true;
+                summaries.add( accumulator.toPayload() );
+            }
+        }
+        try {
+            this.sink.publish( summaries );
+        }
+        catch ( Exception e ) {
+            logger.warning( "Failed to publish " + summaries.size() + " usage summaries: " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Stops the window timer and publishes the last window. Does not close the sink.
+     */
+    @Override
+    public void close() {
+        this.flushExecutor.shutdown();
+        try {
+            this.flushExecutor.awaitTermination( Configuration.USAGE_AGGREGATION_WINDOW.toMillis() * 2, TimeUnit.MILLISECONDS );
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        this.flush();
+    }
+
+    private static class UsageAccumulator {
+        private final TokenBucketKey key;
+        // Indexed by Period ordinal, latestRatesMask has a bit per period seen
+        private final double[] latestRates = new double[Period.count()];
+        private int latestRatesMask;
+        private long calls;
+        private long firstTimestamp = Long.MAX_VALUE;
+        private long lastTimestamp = Long.MIN_VALUE;
+        private boolean sealed;
+
+        private UsageAccumulator( final TokenBucketKey key ) {
+            this.key = key;
+        }
+
+        private void add( final long timestamp, final int permits, final RateToken[] rateTokens ) {
+            this.calls += permits;
+            this.firstTimestamp = Math.min( this.firstTimestamp, timestamp );
+            if ( timestamp >= this.lastTimestamp ) {
+                this.lastTimestamp = timestamp;
+                for ( RateToken token : rateTokens ) {
+                    if ( token.getPeriod() != null ) {
+                        this.latestRates[token.getPeriod().ordinal()] = token.getRate();
+                        this.latestRatesMask |= 1 << token.getPeriod().ordinal();
+                    }
+                }
+            }
+        }
+
+        private SQSPayload toPayload() {
+            final Map<String, Double> rates = new HashMap<>();
+            for ( int ordinal = 0; ordinal < this.latestRates.length; ordinal++ ) {
+                if ( ( this.latestRatesMask & ( 1 << ordinal ) ) != 0 ) {
+                    rates.put( Period.fromOrdinal( ordinal ).getKey(), this.latestRates[ordinal] );
+                }
+            }
+            return new SQSPayload( this.key.getHashKey(), this.key.getClientId(), this.lastTimestamp, rates, this.calls, this.firstTimestamp );
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.satadru.ratelimiter.leakybucket.distributed.gcra;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leakybucket.SimpleClientIdBasedRateLimiter;
+import com.satadru.ratelimiter.leakybucket.distributed.RateLimitStateStore;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.ClientIdTokenBucketCache;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
+import com.satadru.ratelimiter.pojo.ArrivalTimes;
+import com.satadru.ratelimiter.pojo.ClientLimitState;
+import com.satadru.ratelimiter.pojo.ConsumeRequest;
+import com.satadru.ratelimiter.pojo.ThrottleDecision;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * SimpleClientIdBasedRateLimiter implementing the generic cell rate algorithm, which keeps a single theoretical arrival time (TAT)
+ * per record and period instead of the observed rate and calls.
+ * <p>
+ * A period allowing maxAllowedCallsInPeriod calls emits one call every T = period / maxAllowedCallsInPeriod, and tolerates calls
+ * ahead of that schedule by tau = (burst - 1) * T, burst being GCRA_BURST_FRACTION of maxAllowedCallsInPeriod. A call of n permits
+ * at now is allowed if max(TAT, now) + n * T - now <= tau + T, which then becomes the new TAT. This is the token bucket of burst calls
+ * refilled at maxAllowedCallsInPeriod per period, exactly, without waiting for usage to be aggregated.
+ * <p>
+ * The times of all the periods of a record are advanced at once with RateLimitStateStore.advanceArrivalTimes(): a CAS on a
+ * reference in memory, an UpdateItem conditional on the previous times in DynamoDB, a server side script in Redis. The times last
+ * written or read by this node are the guess for the next CAS, so a node calling a key on its own needs a single round trip per
+ * allowed call, and none for a denied one: arrival times only move forward, thus a call denied by times that are out of date would be
+ * denied by the current ones too. The stores never write times for a record which does not exist, a call finding its record deleted
+ * drops it from the cache and is decided by the default record.
+ * <p>
+ * The limits are read from the ClientIdTokenBucketCache, maxAllowedRateInPeriod is not used. No usage is published.
+ */
+public class GcraClientIdRateLimiter implements SimpleClientIdBasedRateLimiter {
+
+    private static final Logger logger = Logger.getLogger( GcraClientIdRateLimiter.class.getName() );
+
+    private final ClientIdTokenBucketCache tokenBucketCache;
+    private final RateLimitStateStore stateStore;
+    private final double burstFraction;
+    // Epoch milliseconds
+    private final LongSupplier clock;
+    // Arrival times in epoch microseconds as last seen by this node, indexed by Period ordinal
+    private final Cache<TokenBucketKey, long[]> arrivalTimes;
+    private final RateLimiterMetrics metrics = RateLimiterMetrics.get();
+
+    public GcraClientIdRateLimiter( final ClientIdTokenBucketCache tokenBucketCache, final RateLimitStateStore stateStore ) {
+        this( tokenBucketCache, stateStore, Configuration.GCRA_BURST_FRACTION );
+    }
+
+    /**
+     * @param burstFraction share of maxAllowedCallsInPeriod allowed back to back, in (0, 1]
+     */
+    public GcraClientIdRateLimiter( final ClientIdTokenBucketCache tokenBucketCache, final RateLimitStateStore stateStore, final double burstFraction ) {
+        this( tokenBucketCache, stateStore, burstFraction, System::currentTimeMillis );
+    }
+
+    /**
+     * @param clock time of the decisions in epoch milliseconds
+     */
+    public GcraClientIdRateLimiter( final ClientIdTokenBucketCache tokenBucketCache, final RateLimitStateStore stateStore, final double burstFraction,
+                                    final LongSupplier clock ) {
+        Preconditions.checkArgument( burstFraction > 0 && burstFraction <= 1, "burstFraction must be in (0, 1]" );
+        this.tokenBucketCache = tokenBucketCache;
+        this.stateStore = stateStore;
+        this.burstFraction = burstFraction;
+        this.clock = clock;
+        this.arrivalTimes = CacheBuilder.newBuilder()
+                .maximumSize( Configuration.GCRA_ARRIVAL_TIME_CACHE_MAXIMUM_SIZE )
+                .build();
+    }
+
+    @Override
+    public boolean consume( final String apiName, final String method, final String clientId, final int permits ) {
+        return this.consume( apiName, method, clientId, permits, null );
+    }
+
+    @Override
+    public ThrottleDecision tryConsume( final String apiName, final String method, final String clientId, final int permits,
+                                        final ThrottleDecision decision ) {
+        this.consume( apiName, method, clientId, permits, decision );
+        return decision;
+    }
+
+    /**
+     * The limits are loaded asynchronously, the compare-and-set runs on the thread completing the load
+     */
+    @Override
+    public CompletableFuture<ThrottleDecision> consumeAsync( final String apiName, final String method, final String clientId ) {
+        final String hashKey = apiName + ":" + method;
+        return this.tokenBucketCache.getAsync( hashKey, clientId ).thenCompose( state -> {
+            if ( state != null ) {
+                return CompletableFuture.completedFuture( this.decide( hashKey, clientId, state ) );
+            }
+            this.metrics.defaultClientDecision();
+            return this.tokenBucketCache.getDefaultAsync( hashKey )
+                    .thenApply( defaultState -> this.decide( hashKey, Configuration.DEFAULT_CLIENT_ID, defaultState ) );
+        } );
+    }
+
+    /**
+     * Every allowed request moves the arrival times of its record, so the later requests of the batch see the permits of the earlier ones
+     */
+    @Override
+    public List<ThrottleDecision> consumeAll( final List<ConsumeRequest> requests ) {
+        final Set<TokenBucketKey> keys = new LinkedHashSet<>();
+        for ( ConsumeRequest request : requests ) {
+            keys.add( request.toKey() );
+        }
+        final Map<TokenBucketKey, ClientLimitState> states = this.tokenBucketCache.getAll( keys );
+        final List<ThrottleDecision> decisions = new ArrayList<>( requests.size() );
+        for ( ConsumeRequest request : requests ) {
+            final String hashKey = request.getApiName() + ":" + request.getMethod();
+            String clientId = request.getClientId();
+            ClientLimitState state = states.get( request.toKey() );
+            if ( state == null ) {
+                clientId = Configuration.DEFAULT_CLIENT_ID;
+                this.metrics.defaultClientDecision();
+                state = this.tokenBucketCache.getDefault( hashKey );
+            }
+            final ThrottleDecision decision = new ThrottleDecision();
+            this.decide( hashKey, clientId, state, request.getPermits(), decision );
+            decisions.add( decision );
+        }
+        return decisions;
+    }
+
+    private boolean consume( final String apiName, final String method, final String actualClientId, final int permits, final ThrottleDecision decision ) {
+        Preconditions.checkArgument( permits > 0, "permits must be positive" );
+        final String hashKey = apiName + ":" + method;
+        String clientId = actualClientId;
+        ClientLimitState state = this.tokenBucketCache.get( hashKey, clientId );
+        if ( state == null ) {
+            if ( logger.isLoggable( Level.FINE ) ) {
+                logger.fine( "ClientId " + actualClientId + " not found. Loading default configuration" );
+            }
+            clientId = Configuration.DEFAULT_CLIENT_ID;
+            this.metrics.defaultClientDecision();
+            state = this.tokenBucketCache.getDefault( hashKey );
+        }
+        return this.decide( hashKey, clientId, state, permits, decision );
+    }
+
+    private ThrottleDecision decide( final String hashKey, final String clientId, final ClientLimitState state ) {
+        final ThrottleDecision decision = new ThrottleDecision();
+        this.decide( hashKey, clientId, state, 1, decision );
+        return decision;
+    }
+
+    /**
+     * Advances the arrival time of every configured period by the permits, or of none if one of the periods would exceed its tolerance.
+     * A call of more permits than the tolerance of a period is rejected without reading the store, it would never be allowed
+     *
+     * @param decision filled in if not null
+     */
+    private boolean decide( final String hashKey, final String clientId, final ClientLimitState state, final int permits,
+                            final ThrottleDecision decision ) {
+        final TokenBucketKey key = new TokenBucketKey( hashKey, clientId );
+        final long[] emissionIntervals = new long[Period.count()];
+        final long[] limits = new long[Period.count()];
+        for ( Period period : Period.values() ) {
+            if ( !state.isConfigured( period ) ) {
+                // Not configured for the period, ALLOW by default
+                continue;
+            }
+            final long maxCalls = Math.max( 1, (long) state.getMaxAllowedCallsInPeriod( period ) );
+            // Rounded up so that rounding never lets more than maxCalls through
+            emissionIntervals[period.ordinal()] = ( TimeUnit.MILLISECONDS.toMicros( period.getMillis() ) + maxCalls - 1 ) / maxCalls;
+            limits[period.ordinal()] = Math.max( 1, (long) ( maxCalls * this.burstFraction ) ) * emissionIntervals[period.ordinal()];
+            if ( permits * emissionIntervals[period.ordinal()] > limits[period.ordinal()] ) {
+                if ( logger.isLoggable( Level.FINE ) ) {
+                    logger.fine( "Rejected " + permits + " permits, more than the " + period.getKey() + " burst of " + key );
+                }
+                this.metrics.clientIdDecision( false );
+                if ( decision != null ) {
+                    decision.reject( period );
+                }
+                return false;
+            }
+        }
+        final long now = TimeUnit.MILLISECONDS.toMicros( this.clock.getAsLong() );
+        final ArrivalTimes arrivalTimes = this.stateStore.advanceArrivalTimes( key, this.arrivalTimes.getIfPresent( key ), now, permits,
+                                                                               emissionIntervals, limits );
+        if ( arrivalTimes == null ) {
+            return this.recordDeleted( hashKey, clientId, permits, decision );
+        }
+        final long[] times = arrivalTimes.getTimes();
+        this.arrivalTimes.put( key, times );
+        if ( arrivalTimes.isAdvanced() ) {
+            this.metrics.clientIdDecision( true );
+            if ( decision != null ) {
+                long remaining = ThrottleDecision.UNLIMITED;
+                for ( int ordinal = 0; ordinal < times.length; ordinal++ ) {
+                    if ( emissionIntervals[ordinal] != 0 ) {
+                        final long left = ( limits[ordinal] - ( times[ordinal] - now ) ) / emissionIntervals[ordinal];
+                        remaining = remaining == ThrottleDecision.UNLIMITED ? left : Math.min( remaining, left );
+                    }
+                }
+                decision.allow( remaining );
+            }
+            return true;
+        }
+        // The call is allowed once now has caught up with the largest excess
+        Period limitingPeriod = null;
+        long excess = 0;
+        for ( int ordinal = 0; ordinal < times.length; ordinal++ ) {
+            if ( emissionIntervals[ordinal] != 0 ) {
+                final long periodExcess = Math.max( times[ordinal], now ) + permits * emissionIntervals[ordinal] - now - limits[ordinal];
+                if ( periodExcess > excess ) {
+                    limitingPeriod = Period.fromOrdinal( ordinal );
+                    excess = periodExcess;
+                }
+            }
+        }
+        if ( limitingPeriod == null ) {
+            // Contended beyond reason, deny rather than spin
+            this.arrivalTimes.invalidate( key );
+            logger.warning( "Failed to update the arrival times of " + key + " after " + Configuration.GCRA_MAX_CAS_RETRIES + " retries" );
+        }
+        else if ( logger.isLoggable( Level.FINE ) ) {
+            logger.fine( "Throttled by the " + limitingPeriod.getKey() + " arrival time of " + key );
+        }
+        this.metrics.clientIdDecision( false );
+        if ( decision != null ) {
+            decision.deny( limitingPeriod, TimeUnit.MICROSECONDS.toMillis( excess + 999 ) );
+        }
+        return false;
+    }
+
+    /**
+     * The record was deleted after it was cached. Drops what is cached of it and decides with the default record instead, as for a
+     * clientId without a record
+     */
+    private boolean recordDeleted( final String hashKey, final String clientId, final int permits, final ThrottleDecision decision ) {
+        final TokenBucketKey key = new TokenBucketKey( hashKey, clientId );
+        logger.info( "Record " + key + " was deleted, dropping its cached state" );
+        this.arrivalTimes.invalidate( key );
+        this.tokenBucketCache.invalidate( hashKey, clientId );
+        if ( Configuration.DEFAULT_CLIENT_ID.equals( clientId ) ) {
+            // Nothing left to limit with, ALLOW as for a period which is not configured
+            this.metrics.clientIdDecision( true );
+            if ( decision != null ) {
+                decision.allow( ThrottleDecision.UNLIMITED );
+            }
+            return true;
+        }
+        this.metrics.defaultClientDecision();
+        return this.decide( hashKey, Configuration.DEFAULT_CLIENT_ID, this.tokenBucketCache.getDefault( hashKey ), permits, decision );
+    }
+}
@@ -0,0 +1,299 @@
+package com.satadru.ratelimiter.leakybucket.distributed.lease;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leakybucket.distributed.RateLimitStateStore;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * The calls of one key and period that this node has leased from the store for the current window, and for the next one
+ * once the current window is about to end.
+ * <p>
+ * Calls are taken from the lease with a CAS on a local counter. When the lease is half used up, or the window is about to end,
+ * more calls are leased in the background, at most one lease request at a time. Only the calls of a window for which nothing was
+ * leased in advance wait for the store, or for the lease of the next window if it is still in flight, never holding the monitor of the
+ * lease. If the first lease of a window fails, its calls are denied, or allowed if failOpen, until a renewal succeeds.
+ * <p>
+ * The size of a lease follows the demand of the node: the calls asked for since the previous lease, smoothed, over
+ * QUOTA_LEASE_DEMAND_HORIZON, bounded by QUOTA_LEASE_MIN_PERMITS and QUOTA_LEASE_MAX_FRACTION of the calls of a window.
+ */
+public class QuotaLease {
+
+    private static final Logger logger = Logger.getLogger( QuotaLease.class.getName() );
+
+    private final TokenBucketKey key;
+    private final Period period;
+    private final RateLimitStateStore stateStore;
+    private final Executor renewalExecutor;
+    private final long prefetchMillis;
+    private final boolean failOpen;
+    private final LongSupplier clock;
+    private final RateLimiterMetrics metrics = RateLimiterMetrics.get();
+    private final AtomicBoolean renewing = new AtomicBoolean();
+    // Permits asked for since the last lease, allowed or not
+    private final LongAdder demand = new LongAdder();
+    private volatile Window current;
+    private volatile Window next;
+    // Guarded by this
+    private long lastLeaseMillis;
+    private double demandPerMilli = -1;
+
+    public QuotaLease( final TokenBucketKey key, final Period period, final RateLimitStateStore stateStore, final Executor renewalExecutor ) {
+        this( key, period, stateStore, renewalExecutor, Configuration.QUOTA_LEASE_FAIL_OPEN, System::currentTimeMillis );
+    }
+
+    /**
+     * @param failOpen allow the calls of a window which nothing could be leased for, instead of denying them
+     * @param clock    time of the lease requests in the background
+     */
+    public QuotaLease( final TokenBucketKey key, final Period period, final RateLimitStateStore stateStore, final Executor renewalExecutor,
+                       final boolean failOpen, final LongSupplier clock ) {
+        this.key = key;
+        this.period = period;
+        this.stateStore = stateStore;
+        this.renewalExecutor = renewalExecutor;
+        this.prefetchMillis = Math.min( Configuration.QUOTA_LEASE_PREFETCH.toMillis(), period.getMillis() / 4 );
+        this.failOpen = failOpen;
+        this.clock = clock;
+    }
+
+    /**
+     * Takes the permits from the lease of the window of now
+     *
+     * @param maxCalls calls allowed to the key in a window
+     * @return the window the permits were taken from, to give them back with release(), or null if the lease has not enough left
+     */
+    public Window tryAcquire( final int permits, final long now, final long maxCalls ) {
+        this.demand.add( permits );
+        final Window window = this.window( now );
+        if ( !window.leased.isDone() ) {
+            this.awaitFirstLease( window, now, maxCalls, permits );
+        }
+        long left;
+        while ( true ) {
+            final long available = window.available.get();
+            if ( available < permits ) {
+                this.renew( window, maxCalls, permits );
+                // A window outside of the lease, which release() gives nothing back to
+                return window.failed && this.failOpen ? new Window( window.start, window.end ) : null;
+            }
+            left = available - permits;
+            if ( window.available.compareAndSet( available, left ) ) {
+                break;
+            }
+        }
+        if ( left <= window.lastGranted / 2 ) {
+            this.renew( window, maxCalls, permits );
+        }
+        if ( now >= window.end - this.prefetchMillis && this.next == null ) {
+            this.prefetch( window.end, maxCalls );
+        }
+        return window;
+    }
+
+    /**
+     * Gives back permits which were taken but not used, e.g. because another period denied the call
+     */
+    public void release( final Window window, final int permits ) {
+        window.available.addAndGet( permits );
+    }
+
+    /**
+     * @return true if the window of now has been leased, so that tryAcquire() does not wait for the store
+     */
+    public boolean isLeased( final long now ) {
+        final Window current = this.current;
+        final Window next = this.next;
+        return ( current != null && current.covers( now ) && current.leased.isDone() ) || ( next != null && next.covers( now ) && next.leased.isDone() );
+    }
+
+    /**
+     * @return milliseconds until a denied call may be allowed: the end of the window if its quota is used up, 0 if more is being leased
+     */
+    public long retryAfterMillis( final long now ) {
+        final Window current = this.current;
+        if ( current == null || !current.covers( now ) || !current.exhausted ) {
+            return 0;
+        }
+        return current.end - now;
+    }
+
+    /**
+     * @return calls left in the lease of the window of now
+     */
+    public long available( final long now ) {
+        final Window current = this.current;
+        return current == null || !current.covers( now ) ? 0 : current.available.get();
+    }
+
+    public Period getPeriod() {
+        return this.period;
+    }
+
+    /**
+     * Makes the window of now the current one, without leasing anything for it
+     */
+    private Window window( final long now ) {
+        final Window current = this.current;
+        if ( current != null && current.covers( now ) ) {
+            return current;
+        }
+        synchronized ( this ) {
+            if ( this.current != null && this.current.covers( now ) ) {
+                return this.current;
+            }
+            final Window next = this.next;
+            this.next = null;
+            if ( next != null && next.covers( now ) ) {
+                // Leased in advance, or still being leased
+                this.current = next;
+                return next;
+            }
+            final long start = now - Math.floorMod( now, this.period.getMillis() );
+            this.current = new Window( start, start + this.period.getMillis() );
+            return this.current;
+        }
+    }
+
+    /**
+     * Leases the calls of the window on the calling thread, unless the prefetch or another call already does, then waits for that
+     */
+    private void awaitFirstLease( final Window window, final long now, final long maxCalls, final int permits ) {
+        if ( window.leaseStarted.compareAndSet( false, true ) ) {
+            this.firstLease( window, now, maxCalls, permits );
+        }
+        else {
+            // Completed by firstLease() whatever the store does
+            window.leased.join();
+        }
+    }
+
+    private void firstLease( final Window window, final long now, final long maxCalls, final int permits ) {
+        try {
+            this.lease( window, now, maxCalls, permits );
+        }
+        catch ( RuntimeException e ) {
+            window.failed = true;
+            logger.warning( "Failed to lease quota of " + this.key + " for " + this.period.getKey() + " window " + window.start + ", "
+                            + ( this.failOpen ? "allowing" : "denying" ) + " its calls until a renewal succeeds: " + e.getMessage() );
+        }
+        finally {
+            window.leased.complete( null );
+        }
+    }
+
+    private void renew( final Window window, final long maxCalls, final int permits ) {
+        if ( window.exhausted || !this.renewing.compareAndSet( false, true ) ) {
+            return;
+        }
+        this.submit( () -> this.lease( window, this.clock.getAsLong(), maxCalls, permits ) );
+    }
+
+    private void prefetch( final long windowStart, final long maxCalls ) {
+        if ( !this.renewing.compareAndSet( false, true ) ) {
+            return;
+        }
+        final Window window = new Window( windowStart, windowStart + this.period.getMillis() );
+        this.next = window;
+        // Left to the first call of the window if that comes first, or if the executor rejects it
+        this.submit( () -> {
+            if ( window.leaseStarted.compareAndSet( false, true ) ) {
+                this.firstLease( window, this.clock.getAsLong(), maxCalls, 1 );
+            }
+        } );
+    }
+
+    /**
+     * Runs a lease request on the renewal executor and clears renewing once it is done
+     */
+    private void submit( final Runnable leaseRequest ) {
+        try {
+            this.renewalExecutor.execute( () -> {
+                try {
+                    leaseRequest.run();
+                }
+                catch ( RuntimeException e ) {
+                    logger.warning( "Failed to lease quota of " + this.key + " for " + this.period.getKey() + ": " + e.getMessage() );
+                }
+                finally {
+                    this.renewing.set( false );
+                }
+            } );
+        }
+        catch ( RejectedExecutionException e ) {
+            // Shut down, decide from what is left
+            this.renewing.set( false );
+        }
+    }
+
+    /**
+     * @param permits the lease covers at least these, i.e. the call waiting for it
+     */
+    private void lease( final Window window, final long now, final long maxCalls, final int permits ) {
+        if ( now >= window.end ) {
+            // The window went by while the renewal was queued
+            return;
+        }
+        final long requested = Math.max( permits, this.leaseSize( window, now, maxCalls ) );
+        final long granted = this.stateStore.leaseQuota( this.key, this.period, window.start, requested, maxCalls );
+        this.metrics.quotaLease( requested, granted );
+        if ( granted < requested ) {
+            // The other nodes hold the rest of the window
+            window.exhausted = true;
+        }
+        window.lastGranted = granted;
+        window.available.addAndGet( granted );
+        window.failed = false;
+        logger.finest( () -> "Leased " + granted + " of " + requested + " calls of " + this.key + " for " + this.period.getKey() + " window " + window.start );
+    }
+
+    /**
+     * Expected demand until the window ends or over the demand horizon, whichever is shorter
+     */
+    private synchronized long leaseSize( final Window window, final long now, final long maxCalls ) {
+        final long elapsed = Math.max( 1, now - this.lastLeaseMillis );
+        final double sample = (double) this.demand.sumThenReset() / elapsed;
+        this.demandPerMilli = this.demandPerMilli < 0 || this.lastLeaseMillis == 0 ? sample : ( this.demandPerMilli + sample ) / 2;
+        this.lastLeaseMillis = now;
+        final long horizon = Math.max( 1, Math.min( Configuration.QUOTA_LEASE_DEMAND_HORIZON.toMillis(), window.end - Math.max( now, window.start ) ) );
+        final long upperBound = Math.max( Configuration.QUOTA_LEASE_MIN_PERMITS, (long) ( maxCalls * Configuration.QUOTA_LEASE_MAX_FRACTION ) );
+        final long expected = (long) Math.ceil( this.demandPerMilli * horizon );
+        return Math.min( upperBound, Math.max( Configuration.QUOTA_LEASE_MIN_PERMITS, expected ) );
+    }
+
+    /**
+     * The calls leased for one window
+     */
+    public static final class Window {
+        private final long start;
+        private final long end;
+        private final AtomicLong available = new AtomicLong();
+        private volatile long lastGranted;
+        // The store granted less than asked for, no more calls can be leased for this window
+        private volatile boolean exhausted;
+        // The first lease request of the window, taken by the prefetch or by the first call, and its completion
+        private final AtomicBoolean leaseStarted = new AtomicBoolean();
+        private final CompletableFuture<Void> leased = new CompletableFuture<>();
+        // The first lease request of the window failed and nothing was leased since
+        private volatile boolean failed;
+
+        private Window( final long start, final long end ) {
+            this.start = start;
+            this.end = end;
+        }
+
+        private boolean covers( final long now ) {
+            return now >= this.start && now < this.end;
+        }
+    }
+}
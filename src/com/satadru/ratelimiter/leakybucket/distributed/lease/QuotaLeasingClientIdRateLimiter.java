@@ -0,0 +1,229 @@
+package com.satadru.ratelimiter.leakybucket.distributed.lease;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leakybucket.SimpleClientIdBasedRateLimiter;
+import com.satadru.ratelimiter.leakybucket.distributed.RateLimitStateStore;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.ClientIdTokenBucketCache;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
+import com.satadru.ratelimiter.pojo.ClientLimitState;
+import com.satadru.ratelimiter.pojo.ConsumeRequest;
+import com.satadru.ratelimiter.pojo.ThrottleDecision;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * SimpleClientIdBasedRateLimiter which decides from quota leased by this node instead of from the usage observed in the records.
+ * <p>
+ * The calls of every configured period are counted in fixed windows aligned to the period, and every node leases slices of
+ * maxAllowedCallsInPeriod of a window from the RateLimitStateStore (see QuotaLease). A call is allowed if the leases of all the periods
+ * of its record have room for it, thus a decision only touches local counters while the limit holds across the fleet: the calls allowed
+ * in a window never exceed the calls leased for it. Calls leased by a node but not used within the window are lost to the other nodes.
+ * <p>
+ * The limits are read from the ClientIdTokenBucketCache. Unlike DynamoDBBackedSimpleClientIdThrottleClientIdBasedRateLimiter the windows
+ * are fixed rather than started by the first call, the rate within a window is not limited, and no usage is published since the lease
+ * counters are the usage.
+ */
+public class QuotaLeasingClientIdRateLimiter implements SimpleClientIdBasedRateLimiter, AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger( QuotaLeasingClientIdRateLimiter.class.getName() );
+
+    private final ClientIdTokenBucketCache tokenBucketCache;
+    private final RateLimitStateStore stateStore;
+    private final ExecutorService renewalExecutor;
+    // Leases of every record, indexed by Period ordinal
+    private final Cache<TokenBucketKey, QuotaLease[]> leases;
+    private final RateLimiterMetrics metrics = RateLimiterMetrics.get();
+
+    public QuotaLeasingClientIdRateLimiter( final ClientIdTokenBucketCache tokenBucketCache, final RateLimitStateStore stateStore ) {
+        this( tokenBucketCache, stateStore, Executors.newFixedThreadPool(
+                Configuration.QUOTA_LEASE_RENEWAL_THREADS, new ThreadFactoryBuilder().setDaemon( true ).setNameFormat( "quota-lease-renewal-%d" ).build() ) );
+    }
+
+    /**
+     * @param renewalExecutor runs the lease requests in the background, shut down by close()
+     */
+    public QuotaLeasingClientIdRateLimiter( final ClientIdTokenBucketCache tokenBucketCache, final RateLimitStateStore stateStore,
+                                            final ExecutorService renewalExecutor ) {
+        this.tokenBucketCache = tokenBucketCache;
+        this.stateStore = stateStore;
+        this.renewalExecutor = renewalExecutor;
+        this.leases = CacheBuilder.newBuilder()
+                .maximumSize( Configuration.TOKEN_BUCKET_CACHE_MAXIMUM_SIZE )
+                .expireAfterAccess( Configuration.QUOTA_LEASE_EXPIRE_AFTER_ACCESS.toMillis(), TimeUnit.MILLISECONDS )
+                .build();
+    }
+
+    @Override
+    public boolean consume( final String apiName, final String method, final String clientId, final int permits ) {
+        return this.consume( apiName, method, clientId, permits, null );
+    }
+
+    @Override
+    public ThrottleDecision tryConsume( final String apiName, final String method, final String clientId, final int permits,
+                                        final ThrottleDecision decision ) {
+        this.consume( apiName, method, clientId, permits, decision );
+        return decision;
+    }
+
+    @Override
+    public CompletableFuture<ThrottleDecision> consumeAsync( final String apiName, final String method, final String clientId ) {
+        final String hashKey = apiName + ":" + method;
+        return this.tokenBucketCache.getAsync( hashKey, clientId ).thenCompose( state -> {
+            if ( state != null ) {
+                return this.decideAsync( hashKey, clientId, state );
+            }
+            this.metrics.defaultClientDecision();
+            return this.tokenBucketCache.getDefaultAsync( hashKey )
+                    .thenCompose( defaultState -> this.decideAsync( hashKey, Configuration.DEFAULT_CLIENT_ID, defaultState ) );
+        } );
+    }
+
+    /**
+     * The local leases make the permits allowed earlier in the batch count against the later requests
+     */
+    @Override
+    public List<ThrottleDecision> consumeAll( final List<ConsumeRequest> requests ) {
+        final Set<TokenBucketKey> keys = new LinkedHashSet<>();
+        for ( ConsumeRequest request : requests ) {
+            keys.add( request.toKey() );
+        }
+        final Map<TokenBucketKey, ClientLimitState> states = this.tokenBucketCache.getAll( keys );
+        final List<ThrottleDecision> decisions = new ArrayList<>( requests.size() );
+        for ( ConsumeRequest request : requests ) {
+            final String hashKey = request.getApiName() + ":" + request.getMethod();
+            String clientId = request.getClientId();
+            ClientLimitState state = states.get( request.toKey() );
+            if ( state == null ) {
+                clientId = Configuration.DEFAULT_CLIENT_ID;
+                this.metrics.defaultClientDecision();
+                state = this.tokenBucketCache.getDefault( hashKey );
+            }
+            final ThrottleDecision decision = new ThrottleDecision();
+            this.decide( hashKey, clientId, state, request.getPermits(), decision );
+            decisions.add( decision );
+        }
+        return decisions;
+    }
+
+    private boolean consume( final String apiName, final String method, final String actualClientId, final int permits, final ThrottleDecision decision ) {
+        Preconditions.checkArgument( permits > 0, "permits must be positive" );
+        final String hashKey = apiName + ":" + method;
+        String clientId = actualClientId;
+        ClientLimitState state = this.tokenBucketCache.get( hashKey, clientId );
+        if ( state == null ) {
+            if ( logger.isLoggable( Level.FINE ) ) {
+                logger.fine( "ClientId " + actualClientId + " not found. Loading default configuration" );
+            }
+            clientId = Configuration.DEFAULT_CLIENT_ID;
+            this.metrics.defaultClientDecision();
+            state = this.tokenBucketCache.getDefault( hashKey );
+        }
+        return this.decide( hashKey, clientId, state, permits, decision );
+    }
+
+    /**
+     * Decides on the calling thread if the windows of now are leased, otherwise on the renewal executor which waits for the store
+     */
+    private CompletableFuture<ThrottleDecision> decideAsync( final String hashKey, final String clientId, final ClientLimitState state ) {
+        final QuotaLease[] leases = this.leasesOf( new TokenBucketKey( hashKey, clientId ) );
+        final long now = System.currentTimeMillis();
+        for ( int ordinal = 0; ordinal < leases.length; ordinal++ ) {
+            if ( state.isConfigured( Period.fromOrdinal( ordinal ) ) && !leases[ordinal].isLeased( now ) ) {
+                return CompletableFuture.supplyAsync( () -> this.decide( hashKey, clientId, state ), this.renewalExecutor );
+            }
+        }
+        return CompletableFuture.completedFuture( this.decide( hashKey, clientId, state ) );
+    }
+
+    private ThrottleDecision decide( final String hashKey, final String clientId, final ClientLimitState state ) {
+        final ThrottleDecision decision = new ThrottleDecision();
+        this.decide( hashKey, clientId, state, 1, decision );
+        return decision;
+    }
+
+    /**
+     * Takes the permits from the lease of every configured period, giving them back if one of the periods has not enough left
+     *
+     * @param decision filled in if not null
+     */
+    private boolean decide( final String hashKey, final String clientId, final ClientLimitState state, final int permits,
+                            final ThrottleDecision decision ) {
+        final long now = System.currentTimeMillis();
+        final QuotaLease[] leases = this.leasesOf( new TokenBucketKey( hashKey, clientId ) );
+        final QuotaLease.Window[] taken = new QuotaLease.Window[leases.length];
+        for ( int ordinal = 0; ordinal < leases.length; ordinal++ ) {
+            final Period period = Period.fromOrdinal( ordinal );
+            if ( !state.isConfigured( period ) ) {
+                // Not configured for the period, ALLOW by default
+                continue;
+            }
+            taken[ordinal] = leases[ordinal].tryAcquire( permits, now, (long) state.getMaxAllowedCallsInPeriod( period ) );
+            if ( taken[ordinal] == null ) {
+                for ( int acquired = 0; acquired < ordinal; acquired++ ) {
+                    if ( taken[acquired] != null ) {
+                        leases[acquired].release( taken[acquired], permits );
+                    }
+                }
+                logger.fine( () -> "Throttled by the " + period.getKey() + " quota lease of " + hashKey + ":" + clientId );
+                this.metrics.clientIdDecision( false );
+                if ( decision != null ) {
+                    decision.deny( period, leases[ordinal].retryAfterMillis( now ) );
+                }
+                return false;
+            }
+        }
+        this.metrics.clientIdDecision( true );
+        if ( decision != null ) {
+            decision.allow( remainingCalls( state, leases, now ) );
+        }
+        return true;
+    }
+
+    /**
+     * @return calls left in the leases of this node for the tightest configured period, ThrottleDecision.UNLIMITED if no period is configured
+     */
+    private static long remainingCalls( final ClientLimitState state, final QuotaLease[] leases, final long now ) {
+        long remaining = ThrottleDecision.UNLIMITED;
+        for ( QuotaLease lease : leases ) {
+            if ( state.isConfigured( lease.getPeriod() ) ) {
+                final long left = lease.available( now );
+                remaining = remaining == ThrottleDecision.UNLIMITED ? left : Math.min( remaining, left );
+            }
+        }
+        return remaining;
+    }
+
+    private QuotaLease[] leasesOf( final TokenBucketKey key ) {
+        return this.leases.asMap().computeIfAbsent( key, k -> {
+            final QuotaLease[] leases = new QuotaLease[Period.count()];
+            for ( int ordinal = 0; ordinal < leases.length; ordinal++ ) {
+                leases[ordinal] = new QuotaLease( k, Period.fromOrdinal( ordinal ), this.stateStore, this.renewalExecutor );
+            }
+            return leases;
+        } );
+    }
+
+    /**
+     * Stops leasing. The calls leased for the current windows are not given back
+     */
+    @Override
+    public void close() {
+        this.renewalExecutor.shutdownNow();
+    }
+}
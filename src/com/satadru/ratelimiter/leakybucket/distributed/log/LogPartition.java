@@ -0,0 +1,161 @@
+package com.satadru.ratelimiter.leakybucket.distributed.log;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.satadru.ratelimiter.pojo.TransportEvent;
+
+/**
+ * The segments of one partition of a MappedLogEventTransport, in a directory of their own.
+ * <p>
+ * Events are appended to the last segment, and a new segment is started when it is full. Whenever a segment is started the
+ * oldest segments are deleted while the partition holds more than retentionBytes, or while all of their events are older than retention.
+ * Readers never take the lock of the appending threads: they read up to the end offset, which is published after the record is written.
+ */
+final class LogPartition {
+
+    private static final Logger logger = Logger.getLogger( LogPartition.class.getName() );
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    // By base offset
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    // Guarded by this
+    private LogSegment active;
+    private volatile long endOffset;
+
+    /**
+     * Opens the segments in the directory, or creates the directory and the first segment
+     */
+    LogPartition( final Path directory, final int segmentBytes, final long retentionBytes, final Duration retention ) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retention.toMillis();
+        try {
+            Files.createDirectories( directory );
+            try ( DirectoryStream<Path> files = Files.newDirectoryStream( directory ) ) {
+                for ( Path file : files ) {
+                    if ( LogSegment.isSegment( file ) ) {
+                        final LogSegment segment = LogSegment.open( file );
+                        this.segments.put( segment.getBaseOffset(), segment );
+                    }
+                }
+            }
+        }
+        catch ( IOException e ) {
+            throw new UncheckedIOException( "Failed to open log partition " + directory, e );
+        }
+        final long now = System.currentTimeMillis();
+        if ( this.segments.isEmpty() ) {
+            this.segments.put( 0L, LogSegment.create( directory, 0, segmentBytes, now ) );
+        }
+        synchronized ( this ) {
+            this.active = this.segments.lastEntry().getValue();
+            this.endOffset = this.active.getEndOffset();
+            this.enforceRetention( now );
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the event is empty or does not fit into a segment
+     */
+    synchronized void append( final byte[] event, final long now ) {
+        Preconditions.checkArgument( event.length > 0, "Empty event" );
+        Preconditions.checkArgument( LogSegment.HEADER_BYTES + LogSegment.LENGTH_BYTES + event.length <= this.segmentBytes,
+                                     "Event of %s bytes does not fit into a segment", event.length );
+        long end = this.active.append( event );
+        if ( end < 0 ) {
+            this.active = LogSegment.create( this.directory, this.active.getNextBaseOffset(), this.segmentBytes, now );
+            this.segments.put( this.active.getBaseOffset(), this.active );
+            end = this.active.append( event );
+            this.enforceRetention( now );
+        }
+        this.endOffset = end;
+    }
+
+    /**
+     * Reads the events from the offset on, without waiting for more
+     *
+     * @param offset    offset of a record or of the end of a segment, at least getStartOffset()
+     * @param maxEvents events added to events at most
+     * @param events    the events read are added with their offset as receipt
+     * @return the offset after the last event read
+     */
+    long read( final long offset, final int maxEvents, final List<TransportEvent> events ) {
+        final long end = this.endOffset;
+        long position = offset;
+        Map.Entry<Long, LogSegment> entry = this.segments.floorEntry( position );
+        int read = 0;
+        while ( entry != null && read < maxEvents && position < end ) {
+            final LogSegment segment = entry.getValue();
+            position = Math.max( position, segment.getStartOffset() );
+            final int positionInSegment = (int) ( position - segment.getBaseOffset() );
+            final int length = segment.lengthAt( positionInSegment );
+            if ( length < 0 ) {
+                // Rest of the segment is unused, the next record is at the start of the next one
+                entry = this.segments.higherEntry( entry.getKey() );
+                position = entry != null ? entry.getValue().getStartOffset() : position;
+                continue;
+            }
+            events.add( new TransportEvent( new String( segment.read( positionInSegment, length ), StandardCharsets.UTF_8 ), position ) );
+            position += LogSegment.LENGTH_BYTES + length;
+            read++;
+        }
+        return position;
+    }
+
+    /**
+     * @return the offset of the first event not removed by retention
+     */
+    long getStartOffset() {
+        return this.segments.firstEntry().getValue().getStartOffset();
+    }
+
+    /**
+     * @return the offset after the last event appended
+     */
+    long getEndOffset() {
+        return this.endOffset;
+    }
+
+    /**
+     * Writes the mapped pages of the segments to their files
+     */
+    synchronized void force() {
+        for ( LogSegment segment : this.segments.values() ) {
+            segment.force();
+        }
+    }
+
+    private void enforceRetention( final long now ) {
+        long size = 0;
+        for ( LogSegment segment : this.segments.values() ) {
+            size += segment.getSize();
+        }
+        while ( this.segments.size() > 1 ) {
+            final LogSegment oldest = this.segments.firstEntry().getValue();
+            // The events of a segment are older than the creation of the segment after it
+            final long newestEventMillis = this.segments.higherEntry( oldest.getBaseOffset() ).getValue().getCreatedMillis();
+            if ( size <= this.retentionBytes && now - newestEventMillis <= this.retentionMillis ) {
+                break;
+            }
+            this.segments.remove( oldest.getBaseOffset() );
+            oldest.delete();
+            size -= oldest.getSize();
+            logger.fine( () -> "Deleted log segment " + oldest.getBaseOffset() + " of " + this.directory );
+        }
+    }
+}
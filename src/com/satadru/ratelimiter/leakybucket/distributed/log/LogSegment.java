@@ -0,0 +1,223 @@
+package com.satadru.ratelimiter.leakybucket.distributed.log;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * A memory-mapped file of fixed size holding the events of a partition from baseOffset on.
+ * <p>
+ * The file starts with a header (magic, version, creation time in epoch milliseconds) followed by the records, each an int length
+ * and the bytes of the event. A length of 0 ends the records written so far, SEALED ends a segment which had no room for the next record.
+ * A record is written before its length and is followed by a length of 0, so the records found by scanning the file are always
+ * complete, even if the process died in the middle of an append.
+ * <p>
+ * The offset of a record is baseOffset plus its position in the file, the next segment starts at baseOffset plus the size of this one,
+ * so offsets grow across the segments of a partition. Appends are made by one thread at a time, reads are safe
+ * concurrently with appends up to the end offset published by the LogPartition.
+ */
+final class LogSegment {
+
+    private static final Logger logger = Logger.getLogger( LogSegment.class.getName() );
+
+    static final int HEADER_BYTES = 16;
+    static final int LENGTH_BYTES = 4;
+    private static final int MAGIC = 0x524c4556;
+    private static final int VERSION = 1;
+    private static final int SEALED = -1;
+    private static final String FILE_SUFFIX = ".segment";
+
+    private final long baseOffset;
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final long createdMillis;
+    // Position of the next record, only used by the appending thread
+    private int end;
+    private boolean sealed;
+
+    private LogSegment( final long baseOffset, final Path file, final MappedByteBuffer buffer, final long createdMillis ) {
+        this.baseOffset = baseOffset;
+        this.file = file;
+        this.buffer = buffer;
+        this.createdMillis = createdMillis;
+    }
+
+    /**
+     * Creates and maps an empty segment
+     */
+    static LogSegment create( final Path directory, final long baseOffset, final int segmentBytes, final long now ) {
+        final Path file = directory.resolve( fileName( baseOffset ) );
+        final LogSegment segment = new LogSegment( baseOffset, file, map( file, segmentBytes ), now );
+        segment.buffer.putInt( 0, MAGIC );
+        segment.buffer.putInt( 4, VERSION );
+        segment.buffer.putLong( 8, now );
+        segment.buffer.putInt( HEADER_BYTES, 0 );
+        segment.end = HEADER_BYTES;
+        return segment;
+    }
+
+    /**
+     * Maps an existing segment and finds the end of its records
+     *
+     * @throws IllegalStateException if the file is not a segment
+     */
+    static LogSegment open( final Path file ) {
+        final int segmentBytes;
+        try {
+            segmentBytes = Math.toIntExact( Files.size( file ) );
+        }
+        catch ( IOException e ) {
+            throw new UncheckedIOException( "Failed to open log segment " + file, e );
+        }
+        final MappedByteBuffer buffer = map( file, segmentBytes );
+        if ( segmentBytes < HEADER_BYTES || buffer.getInt( 0 ) != MAGIC || buffer.getInt( 4 ) != VERSION ) {
+            throw new IllegalStateException( file + " is not a log segment" );
+        }
+        final LogSegment segment = new LogSegment( baseOffsetOf( file ), file, buffer, buffer.getLong( 8 ) );
+        int position = HEADER_BYTES;
+        while ( position + LENGTH_BYTES <= segmentBytes ) {
+            final int length = buffer.getInt( position );
+            if ( length == SEALED ) {
+                segment.sealed = true;
+                break;
+            }
+            if ( length <= 0 || position + LENGTH_BYTES + length > segmentBytes ) {
+                break;
+            }
+            position += LENGTH_BYTES + length;
+        }
+        segment.end = position;
+        segment.sealed |= position + LENGTH_BYTES > segmentBytes;
+        return segment;
+    }
+
+    static boolean isSegment( final Path file ) {
+        return file.getFileName().toString().endsWith( FILE_SUFFIX );
+    }
+
+    /**
+     * Appends the record if it fits, else seals the segment
+     *
+     * @return the offset after the record, or -1 if the segment is sealed
+     */
+    long append( final byte[] event ) {
+        if ( this.sealed ) {
+            return -1;
+        }
+        final int capacity = this.buffer.capacity();
+        if ( this.end + LENGTH_BYTES + event.length > capacity ) {
+            if ( this.end + LENGTH_BYTES <= capacity ) {
+                this.buffer.putInt( this.end, SEALED );
+            }
+            this.sealed = true;
+            return -1;
+        }
+        final ByteBuffer target = this.buffer.duplicate();
+        target.position( this.end + LENGTH_BYTES );
+        target.put( event );
+        final int next = this.end + LENGTH_BYTES + event.length;
+        if ( next + LENGTH_BYTES <= capacity ) {
+            this.buffer.putInt( next, 0 );
+        }
+        this.buffer.putInt( this.end, event.length );
+        this.end = next;
+        return this.baseOffset + next;
+    }
+
+    /**
+     * @param position position of a record written before, see LogPartition.getEndOffset()
+     * @return the length of the record at the position, or -1 if there are no more records in this segment
+     */
+    int lengthAt( final int position ) {
+        if ( position + LENGTH_BYTES > this.buffer.capacity() ) {
+            return -1;
+        }
+        final int length = this.buffer.getInt( position );
+        return length > 0 ? length : -1;
+    }
+
+    byte[] read( final int position, final int length ) {
+        final ByteBuffer source = this.buffer.duplicate();
+        source.position( position + LENGTH_BYTES );
+        final byte[] event = new byte[length];
+        source.get( event );
+        return event;
+    }
+
+    /**
+     * Writes the mapped pages to the file
+     */
+    void force() {
+        this.buffer.force();
+    }
+
+    /**
+     * Deletes the file. The mapping stays valid for the readers still holding the segment and is released when it is collected
+     */
+    void delete() {
+        try {
+            Files.deleteIfExists( this.file );
+        }
+        catch ( IOException e ) {
+            logger.warning( "Failed to delete log segment " + this.file + ": " + e.getMessage() );
+        }
+    }
+
+    long getBaseOffset() {
+        return this.baseOffset;
+    }
+
+    long getCreatedMillis() {
+        return this.createdMillis;
+    }
+
+    int getSize() {
+        return this.buffer.capacity();
+    }
+
+    /**
+     * @return the offset of the first record
+     */
+    long getStartOffset() {
+        return this.baseOffset + HEADER_BYTES;
+    }
+
+    /**
+     * @return the base offset of the segment after this one
+     */
+    long getNextBaseOffset() {
+        return this.baseOffset + this.buffer.capacity();
+    }
+
+    /**
+     * @return the offset after the last record, only for the appending thread
+     */
+    long getEndOffset() {
+        return this.baseOffset + this.end;
+    }
+
+    private static MappedByteBuffer map( final Path file, final int segmentBytes ) {
+        try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+            // The mapping outlives the channel
+            return channel.map( FileChannel.MapMode.READ_WRITE, 0, segmentBytes );
+        }
+        catch ( IOException e ) {
+            throw new UncheckedIOException( "Failed to map log segment " + file, e );
+        }
+    }
+
+    private static String fileName( final long baseOffset ) {
+        return String.format( "%020d%s", baseOffset, FILE_SUFFIX );
+    }
+
+    private static long baseOffsetOf( final Path file ) {
+        final String name = file.getFileName().toString();
+        return Long.parseLong( name.substring( 0, name.length() - FILE_SUFFIX.length() ) );
+    }
+}
@@ -0,0 +1,177 @@
+package com.satadru.ratelimiter.leakybucket.distributed.log;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.leakybucket.distributed.EventTransport;
+import com.satadru.ratelimiter.pojo.TransportEvent;
+
+/**
+ * A local, segmented, append-only log per partition, for a fleet whose publishers and consumers run on one box.
+ * <p>
+ * Every partition is a directory of memory-mapped segments (see LogSegment), so publishing an event is a copy into the page cache
+ * under the lock of its partition, without a system call or a round trip. Segments are deleted by size and age, whether they were
+ * consumed or not, see LogPartition.
+ * <p>
+ * The transport consumes as one consumer group: every partition has a committed offset, kept in a memory-mapped file next to the
+ * segments, below which all the events are acknowledged. A poll first delivers again the events which were polled but not yet
+ * acknowledged and then reads on from where the previous poll stopped. After a restart the partition is read again from the committed
+ * offset, so events acknowledged out of order may be delivered twice. A partition must be consumed by a single owner at a time.
+ * <p>
+ * Events are durable once the operating system writes the pages back, which survives the process but not the machine. close()
+ * writes them back.
+ */
+public class MappedLogEventTransport implements EventTransport {
+
+    private static final Logger logger = Logger.getLogger( MappedLogEventTransport.class.getName() );
+    private static final String OFFSET_FILE_SUFFIX = ".offset";
+
+    private final LogPartition[] partitions;
+    private final Cursor[] cursors;
+
+    /**
+     * @param consumerGroup name of the committed offsets of the consumers of this transport
+     */
+    public MappedLogEventTransport( final Path directory, final int partitions, final String consumerGroup ) {
+        this( directory, partitions, consumerGroup, Configuration.EVENT_LOG_SEGMENT_BYTES, Configuration.EVENT_LOG_RETENTION_BYTES,
+              Configuration.EVENT_LOG_RETENTION );
+    }
+
+    /**
+     * Opens the log in the directory, or creates it
+     *
+     * @param segmentBytes   size of a segment file, bounds the size of an event
+     * @param retentionBytes size of the segments kept per partition, at least the segment events are appended to is kept
+     * @param retention      age after which the events are deleted, checked when a segment is started
+     */
+    public MappedLogEventTransport( final Path directory, final int partitions, final String consumerGroup, final int segmentBytes,
+                                    final long retentionBytes, final Duration retention ) {
+        Preconditions.checkArgument( partitions > 0, "At least one partition is needed" );
+        Preconditions.checkArgument( segmentBytes > LogSegment.HEADER_BYTES + LogSegment.LENGTH_BYTES, "segmentBytes too small" );
+        this.partitions = new LogPartition[partitions];
+        this.cursors = new Cursor[partitions];
+        for ( int i = 0; i < partitions; i++ ) {
+            final Path partitionDirectory = directory.resolve( "partition-" + i );
+            this.partitions[i] = new LogPartition( partitionDirectory, segmentBytes, retentionBytes, retention );
+            this.cursors[i] = new Cursor( this.partitions[i], partitionDirectory.resolve( consumerGroup + OFFSET_FILE_SUFFIX ) );
+        }
+    }
+
+    @Override
+    public int getPartitionCount() {
+        return this.partitions.length;
+    }
+
+    @Override
+    public void publish( final int partition, final String event ) {
+        this.partitions[partition].append( event.getBytes( StandardCharsets.UTF_8 ), System.currentTimeMillis() );
+    }
+
+    @Override
+    public List<TransportEvent> poll( final int partition, final int maxEvents ) {
+        return this.cursors[partition].poll( maxEvents );
+    }
+
+    @Override
+    public void acknowledge( final int partition, final List<TransportEvent> events ) {
+        this.cursors[partition].acknowledge( events );
+    }
+
+    /**
+     * @return the offset below which all the events of the partition are acknowledged
+     */
+    public long getCommittedOffset( final int partition ) {
+        return this.cursors[partition].getCommittedOffset();
+    }
+
+    /**
+     * @return the offset after the last event of the partition, the difference to getCommittedOffset() is the lag in bytes
+     */
+    public long getEndOffset( final int partition ) {
+        return this.partitions[partition].getEndOffset();
+    }
+
+    /**
+     * Writes the segments and the committed offsets back to their files
+     */
+    @Override
+    public void close() {
+        for ( int i = 0; i < this.partitions.length; i++ ) {
+            this.partitions[i].force();
+            this.cursors[i].force();
+        }
+    }
+
+    /**
+     * Read position, events in flight and committed offset of the consumer group in a partition
+     */
+    private static final class Cursor {
+        private final LogPartition partition;
+        private final MappedByteBuffer committedOffset;
+        // Guarded by this
+        private long position;
+        private final TreeMap<Long, TransportEvent> unacknowledged = new TreeMap<>();
+
+        private Cursor( final LogPartition partition, final Path file ) {
+            this.partition = partition;
+            try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+                this.committedOffset = channel.map( FileChannel.MapMode.READ_WRITE, 0, Long.BYTES );
+            }
+            catch ( IOException e ) {
+                throw new UncheckedIOException( "Failed to map consumer offset " + file, e );
+            }
+            // 0 for a new consumer group, which starts at the oldest event
+            this.position = this.committedOffset.getLong( 0 );
+        }
+
+        private synchronized List<TransportEvent> poll( final int maxEvents ) {
+            final List<TransportEvent> events = new ArrayList<>();
+            for ( TransportEvent event : this.unacknowledged.values() ) {
+                if ( events.size() == maxEvents ) {
+                    return events;
+                }
+                events.add( event );
+            }
+            final long startOffset = this.partition.getStartOffset();
+            if ( this.position < startOffset ) {
+                if ( this.position > 0 ) {
+                    logger.warning( "Events between offset " + this.position + " and " + startOffset + " were deleted by retention before they were consumed" );
+                }
+                this.position = startOffset;
+            }
+            final int redelivered = events.size();
+            this.position = this.partition.read( this.position, maxEvents - redelivered, events );
+            for ( int i = redelivered; i < events.size(); i++ ) {
+                this.unacknowledged.put( (Long) events.get( i ).getReceipt(), events.get( i ) );
+            }
+            return events;
+        }
+
+        private synchronized void acknowledge( final List<TransportEvent> events ) {
+            for ( TransportEvent event : events ) {
+                this.unacknowledged.remove( (Long) event.getReceipt() );
+            }
+            this.committedOffset.putLong( 0, this.unacknowledged.isEmpty() ? this.position : this.unacknowledged.firstKey() );
+        }
+
+        private synchronized long getCommittedOffset() {
+            return this.committedOffset.getLong( 0 );
+        }
+
+        private synchronized void force() {
+            this.committedOffset.force();
+        }
+    }
+}
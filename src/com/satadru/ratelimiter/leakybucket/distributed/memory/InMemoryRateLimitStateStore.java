@@ -0,0 +1,154 @@
+package com.satadru.ratelimiter.leakybucket.distributed.memory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leakybucket.distributed.RateLimitStateStore;
+import com.satadru.ratelimiter.leakybucket.distributed.TokenBucketRecords;
+import com.satadru.ratelimiter.pojo.SQSPayload;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * RateLimitStateStore of a single JVM, for running and benchmarking the limiter without AWS.
+ * <p>
+ * Records are copy-on-write: a read returns the current record without copying or locking, and a usage update builds a new record
+ * inside ConcurrentHashMap.compute(), which only locks the bin of that key. Since the usage is aggregated before it reaches the store,
+ * updates are rare compared to reads.
+ * <p>
+ * Theoretical arrival times are an immutable array per key behind an AtomicReference, replaced with a single compare-and-set. They are
+ * only read and written for keys with a record, and removed with it.
+ * Quota leases are counted per key and period for the current and the next window, which are the only windows nodes lease for.
+ */
+public class InMemoryRateLimitStateStore implements RateLimitStateStore {
+
+    private final ConcurrentHashMap<TokenBucketKey, Map<String, Object>> records = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<TokenBucketKey, AtomicReference<long[]>> arrivalTimes = new ConcurrentHashMap<>();
+    // key|period to { windowStart, leased } of the two latest windows
+    private final ConcurrentHashMap<String, long[]> quotaLeases = new ConcurrentHashMap<>();
+
+    public InMemoryRateLimitStateStore() {
+    }
+
+    public InMemoryRateLimitStateStore( final Map<TokenBucketKey, Map<String, Object>> records ) {
+        for ( Map.Entry<TokenBucketKey, Map<String, Object>> entry : records.entrySet() ) {
+            this.put( entry.getKey(), entry.getValue() );
+        }
+    }
+
+    /**
+     * Creates or replaces a record. The record is copied
+     */
+    public void put( final TokenBucketKey key, final Map<String, Object> record ) {
+        final Map<String, Object> copy = TokenBucketRecords.deepCopy( record );
+        copy.put( Configuration.RATE_LIMITING_HASH_KEY_NAME, key.getHashKey() );
+        copy.put( Configuration.RATE_LIMITING_RANGE_KEY_NAME, key.getClientId() );
+        this.records.put( key, copy );
+    }
+
+    public void remove( final TokenBucketKey key ) {
+        this.records.remove( key );
+        this.arrivalTimes.remove( key );
+    }
+
+    public int size() {
+        return this.records.size();
+    }
+
+    @Override
+    public Map<String, Object> get( final TokenBucketKey key ) {
+        return this.records.get( key );
+    }
+
+    @Override
+    public Map<TokenBucketKey, Map<String, Object>> batchGet( final Collection<TokenBucketKey> keys ) {
+        final Map<TokenBucketKey, Map<String, Object>> result = new HashMap<>();
+        for ( TokenBucketKey key : keys ) {
+            final Map<String, Object> record = this.records.get( key );
+            if ( record != null ) {
+                result.put( key, record );
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean applyUsage( final TokenBucketKey key, final List<SQSPayload> payloads ) {
+        this.records.computeIfPresent( key, ( k, current ) -> {
+            final Map<String, Object> updated = TokenBucketRecords.deepCopy( current );
+            for ( SQSPayload payload : payloads ) {
+                TokenBucketRecords.applyUsage( updated, payload );
+            }
+            return updated;
+        } );
+        return true;
+    }
+
+    @Override
+    public Set<TokenBucketKey> batchApplyUsage( final Map<TokenBucketKey, List<SQSPayload>> payloadsByKey ) {
+        for ( Map.Entry<TokenBucketKey, List<SQSPayload>> entry : payloadsByKey.entrySet() ) {
+            this.applyUsage( entry.getKey(), entry.getValue() );
+        }
+        return new HashSet<>();
+    }
+
+    @Override
+    public long[] getArrivalTimes( final TokenBucketKey key ) {
+        if ( !this.records.containsKey( key ) ) {
+            return null;
+        }
+        return this.arrivalTimesOf( key ).get();
+    }
+
+    @Override
+    public boolean compareAndSetArrivalTimes( final TokenBucketKey key, final long[] expected, final long[] update ) {
+        if ( !this.records.containsKey( key ) ) {
+            return false;
+        }
+        final AtomicReference<long[]> arrivalTimes = this.arrivalTimesOf( key );
+        while ( true ) {
+            final long[] current = arrivalTimes.get();
+            if ( current != expected && !Arrays.equals( current, expected ) ) {
+                return false;
+            }
+            if ( arrivalTimes.compareAndSet( current, update.clone() ) ) {
+                return true;
+            }
+        }
+    }
+
+    private AtomicReference<long[]> arrivalTimesOf( final TokenBucketKey key ) {
+        final AtomicReference<long[]> arrivalTimes = this.arrivalTimes.get( key );
+        return arrivalTimes != null ? arrivalTimes : this.arrivalTimes.computeIfAbsent( key, k -> new AtomicReference<>( new long[Period.count()] ) );
+    }
+
+    @Override
+    public long leaseQuota( final TokenBucketKey key, final Period period, final long windowStart, final long requested, final long maxCalls ) {
+        final long[] granted = new long[1];
+        this.quotaLeases.compute( key + "|" + period.getKey(), ( k, current ) -> {
+            final long[] windows = current == null ? new long[] { -1, 0, -1, 0 } : current.clone();
+            int slot = windows[0] == windowStart ? 0 : windows[2] == windowStart ? 2 : -1;
+            if ( slot < 0 ) {
+                // Replace the older window, unless the requested one is even older
+                slot = windows[0] <= windows[2] ? 0 : 2;
+                if ( windows[slot] > windowStart ) {
+                    return current;
+                }
+                windows[slot] = windowStart;
+                windows[slot + 1] = 0;
+            }
+            granted[0] = Math.max( 0, Math.min( requested, maxCalls - windows[slot + 1] ) );
+            windows[slot + 1] += granted[0];
+            return windows;
+        } );
+        return granted[0];
+    }
+}
@@ -0,0 +1,175 @@
+package com.satadru.ratelimiter.leakybucket.distributed.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoding and incremental decoding of the Redis serialization protocol (RESP2).
+ * <p>
+ * Replies are decoded to String (simple string), RespException (error), Long (integer), byte[] (bulk string, null if nil) and
+ * List (array, null if nil). Commands are arrays of bulk strings.
+ */
+public final class RespCodec {
+
+    // Returned by decode() when the buffer does not hold a whole value yet
+    public static final Object INCOMPLETE = new Object();
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private RespCodec() {
+    }
+
+    /**
+     * Appends a command, e.g. HGETALL key, as an array of bulk strings
+     */
+    public static void encodeCommand( final ByteArrayOutputStream out, final List<byte[]> arguments ) {
+        writeLine( out, '*', arguments.size() );
+        for ( byte[] argument : arguments ) {
+            writeBulk( out, argument );
+        }
+    }
+
+    /**
+     * Appends a reply, see the class comment for the types
+     */
+    public static void encodeReply( final ByteArrayOutputStream out, final Object reply ) {
+        if ( reply == null ) {
+            writeLine( out, '$', -1 );
+        }
+        else if ( reply instanceof String ) {
+            out.write( '+' );
+            writeBytes( out, ( (String) reply ).getBytes( StandardCharsets.UTF_8 ) );
+            writeBytes( out, CRLF );
+        }
+        else if ( reply instanceof RespException ) {
+            out.write( '-' );
+            writeBytes( out, ( (RespException) reply ).getMessage().getBytes( StandardCharsets.UTF_8 ) );
+            writeBytes( out, CRLF );
+        }
+        else if ( reply instanceof Long || reply instanceof Integer ) {
+            writeLine( out, ':', ( (Number) reply ).longValue() );
+        }
+        else if ( reply instanceof byte[] ) {
+            writeBulk( out, (byte[]) reply );
+        }
+        else if ( reply instanceof List ) {
+            final List<?> values = (List<?>) reply;
+            writeLine( out, '*', values.size() );
+            for ( Object value : values ) {
+                encodeReply( out, value );
+            }
+        }
+        else {
+            throw new IllegalArgumentException( "Not a RESP value: " + reply.getClass() );
+        }
+    }
+
+    /**
+     * Decodes the value at the position of the buffer and moves the position past it
+     *
+     * @return the value, or INCOMPLETE with the position unchanged if the buffer ends before the value does
+     */
+    public static Object decode( final ByteBuffer buffer ) {
+        final int start = buffer.position();
+        final Object value = decodeValue( buffer );
+        if ( value == INCOMPLETE ) {
+            buffer.position( start );
+        }
+        return value;
+    }
+
+    public static byte[] bytes( final String value ) {
+        return value.getBytes( StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * @return the bulk or simple string reply as a String, null for nil
+     */
+    public static String string( final Object reply ) {
+        return reply == null ? null : reply instanceof byte[] ? new String( (byte[]) reply, StandardCharsets.UTF_8 ) : reply.toString();
+    }
+
+    private static Object decodeValue( final ByteBuffer buffer ) {
+        if ( !buffer.hasRemaining() ) {
+            return INCOMPLETE;
+        }
+        final byte type = buffer.get();
+        final String line = readLine( buffer );
+        if ( line == null ) {
+            return INCOMPLETE;
+        }
+        switch ( type ) {
+            case '+':
+                return line;
+            case '-':
+                return new RespException( line );
+            case ':':
+                return Long.parseLong( line );
+            case '$': {
+                final int length = Integer.parseInt( line );
+                if ( length < 0 ) {
+                    return null;
+                }
+                if ( buffer.remaining() < length + CRLF.length ) {
+                    return INCOMPLETE;
+                }
+                final byte[] bulk = new byte[length];
+                buffer.get( bulk );
+                buffer.position( buffer.position() + CRLF.length );
+                return bulk;
+            }
+            case '*': {
+                final int size = Integer.parseInt( line );
+                if ( size < 0 ) {
+                    return null;
+                }
+                final List<Object> values = new ArrayList<>( size );
+                for ( int i = 0; i < size; i++ ) {
+                    final Object value = decodeValue( buffer );
+                    if ( value == INCOMPLETE ) {
+                        return INCOMPLETE;
+                    }
+                    values.add( value );
+                }
+                return values;
+            }
+            default:
+                throw new RespException( "Unexpected RESP type " + (char) type );
+        }
+    }
+
+    /**
+     * @return the line up to CRLF, the position moved past CRLF, or null if the buffer has no CRLF
+     */
+    private static String readLine( final ByteBuffer buffer ) {
+        final int start = buffer.position();
+        for ( int i = start; i < buffer.limit() - 1; i++ ) {
+            if ( buffer.get( i ) == '\r' && buffer.get( i + 1 ) == '\n' ) {
+                final byte[] line = new byte[i - start];
+                buffer.get( line );
+                buffer.position( i + CRLF.length );
+                return new String( line, StandardCharsets.UTF_8 );
+            }
+        }
+        return null;
+    }
+
+    private static void writeLine( final ByteArrayOutputStream out, final char type, final long value ) {
+        out.write( type );
+        writeBytes( out, bytes( Long.toString( value ) ) );
+        writeBytes( out, CRLF );
+    }
+
+    private static void writeBulk( final ByteArrayOutputStream out, final byte[] value ) {
+        writeLine( out, '$', value.length );
+        writeBytes( out, value );
+        writeBytes( out, CRLF );
+    }
+
+    private static void writeBytes( final ByteArrayOutputStream out, final byte[] bytes ) {
+        out.write( bytes, 0, bytes.length );
+    }
+}
@@ -0,0 +1,374 @@
+package com.satadru.ratelimiter.leakybucket.distributed.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking connections to a RESP server, e.g. Redis, driven by a single selector thread.
+ * <p>
+ * Commands are spread round robin over the connections. The commands sent on a connection while the selector thread is busy are
+ * encoded into one write, and replies are matched to commands in order, so many concurrent commands share a connection without waiting
+ * for each other's round trip (pipelining). The returned futures complete on the selector thread, dependent stages must not block.
+ * <p>
+ * A connection which fails fails the commands in flight on it and is reopened for the next command sent on it. Connects never block
+ * the selector thread: the commands sent while a connection is being established are written once it is.
+ */
+public class RespConnectionPool implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger( RespConnectionPool.class.getName() );
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final InetSocketAddress address;
+    private final Duration commandTimeout;
+    private final Selector selector;
+    private final Connection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    // Set by send() until the selector thread picks up the new commands, so that a burst of commands wakes it up once
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Thread selectorThread;
+    private volatile boolean closed;
+
+    /**
+     * Opens the connections and waits for them to be established
+     *
+     * @param commandTimeout time execute() waits for a reply, and the constructor for the connections
+     * @throws RespException if a connection cannot be opened
+     */
+    public RespConnectionPool( final InetSocketAddress address, final int connections, final Duration commandTimeout ) {
+        this.address = address;
+        this.commandTimeout = commandTimeout;
+        try {
+            this.selector = Selector.open();
+        }
+        catch ( IOException e ) {
+            throw new RespException( "Failed to open a selector", e );
+        }
+        this.connections = new Connection[connections];
+        for ( int i = 0; i < connections; i++ ) {
+            this.connections[i] = new Connection();
+        }
+        this.selectorThread = new Thread( this::run, "resp-selector-" + address.getPort() );
+        this.selectorThread.setDaemon( true );
+        try {
+            for ( Connection connection : this.connections ) {
+                connection.open();
+            }
+            this.selectorThread.start();
+            for ( Connection connection : this.connections ) {
+                connection.connected.get( commandTimeout.toMillis(), TimeUnit.MILLISECONDS );
+            }
+        }
+        catch ( RespException | ExecutionException | TimeoutException | InterruptedException e ) {
+            if ( e instanceof InterruptedException ) {
+                Thread.currentThread().interrupt();
+            }
+            this.close();
+            if ( e instanceof RespException ) {
+                throw (RespException) e;
+            }
+            throw new RespException( "Failed to connect to " + address, e instanceof ExecutionException ? e.getCause() : e );
+        }
+    }
+
+    /**
+     * @return future of the reply, completed exceptionally with a RespException for an error reply or a failed connection
+     */
+    public CompletableFuture<Object> send( final List<byte[]> command ) {
+        final CompletableFuture<Object> reply = new CompletableFuture<>();
+        if ( this.closed ) {
+            reply.completeExceptionally( new RespException( "Connection pool to " + this.address + " is closed" ) );
+            return reply;
+        }
+        final Connection connection = this.connections[Math.floorMod( this.nextConnection.getAndIncrement(), this.connections.length )];
+        connection.outbound.add( new Command( command, reply ) );
+        if ( this.wakeupPending.compareAndSet( false, true ) ) {
+            this.selector.wakeup();
+        }
+        return reply;
+    }
+
+    /**
+     * Sends the command and waits for the reply
+     *
+     * @throws RespException for an error reply, a failed connection or if there was no reply within the command timeout
+     */
+    public Object execute( final List<byte[]> command ) {
+        return await( this.send( command ), this.commandTimeout );
+    }
+
+    /**
+     * Waits for a reply of send()
+     */
+    public static Object await( final CompletableFuture<Object> reply, final Duration timeout ) {
+        try {
+            return reply.get( timeout.toMillis(), TimeUnit.MILLISECONDS );
+        }
+        catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RespException ) {
+                throw (RespException) e.getCause();
+            }
+            throw new RespException( "Command failed", e.getCause() );
+        }
+        catch ( TimeoutException e ) {
+            throw new RespException( "No reply within " + timeout.toMillis() + " ms", e );
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RespException( "Interrupted while waiting for a reply", e );
+        }
+    }
+
+    public Duration getCommandTimeout() {
+        return this.commandTimeout;
+    }
+
+    /**
+     * Closes the connections and fails the commands in flight
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        if ( !this.selectorThread.isAlive() ) {
+            // Closed before the selector thread was started
+            this.shutDown();
+            return;
+        }
+        this.selector.wakeup();
+        try {
+            this.selectorThread.join( this.commandTimeout.toMillis() );
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while ( !this.closed ) {
+                this.selector.select();
+                this.wakeupPending.set( false );
+                for ( SelectionKey key : this.selector.selectedKeys() ) {
+                    final Connection connection = (Connection) key.attachment();
+                    if ( key.isValid() && key.isConnectable() ) {
+                        connection.finishConnect();
+                    }
+                    if ( key.isValid() && key.isReadable() ) {
+                        connection.read();
+                    }
+                }
+                this.selector.selectedKeys().clear();
+                // Also continues the writes which did not fit into the socket buffer before
+                for ( Connection connection : this.connections ) {
+                    connection.flush();
+                }
+            }
+        }
+        catch ( IOException | RuntimeException e ) {
+            logger.log( Level.SEVERE, "Selector of " + this.address + " failed", e );
+            this.closed = true;
+        }
+        this.shutDown();
+    }
+
+    private void shutDown() {
+        for ( Connection connection : this.connections ) {
+            connection.fail( new RespException( "Connection pool to " + this.address + " is closed" ) );
+        }
+        try {
+            this.selector.close();
+        }
+        catch ( IOException e ) {
+            logger.fine( () -> "Failed to close the selector: " + e.getMessage() );
+        }
+    }
+
+    private static final class Command {
+        private final List<byte[]> arguments;
+        private final CompletableFuture<Object> reply;
+
+        private Command( final List<byte[]> arguments, final CompletableFuture<Object> reply ) {
+            this.arguments = arguments;
+            this.reply = reply;
+        }
+    }
+
+    /**
+     * A socket, the commands queued for it and the replies it waits for. Everything but outbound is confined to the selector thread
+     */
+    private final class Connection {
+        private final ConcurrentLinkedQueue<Command> outbound = new ConcurrentLinkedQueue<>();
+        // Replies of the commands written, in the order they were written
+        private final ArrayDeque<CompletableFuture<Object>> inflight = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        private final ByteArrayOutputStream encoder = new ByteArrayOutputStream();
+        private ByteBuffer readBuffer = ByteBuffer.allocate( READ_BUFFER_SIZE );
+        private SocketChannel channel;
+        private SelectionKey key;
+        // Of the current channel, completed once it is connected or failed if it could not be
+        private volatile CompletableFuture<Void> connected = new CompletableFuture<>();
+
+        /**
+         * Starts connecting a new channel without waiting for the connection, see finishConnect()
+         */
+        private void open() {
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking( false );
+                channel.socket().setTcpNoDelay( true );
+                final boolean connectedNow = channel.connect( RespConnectionPool.this.address );
+                this.key = channel.register( RespConnectionPool.this.selector, connectedNow ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this );
+                this.channel = channel;
+                this.readBuffer.clear();
+                if ( this.connected.isDone() ) {
+                    this.connected = new CompletableFuture<>();
+                }
+                if ( connectedNow ) {
+                    this.connected.complete( null );
+                }
+            }
+            catch ( IOException e ) {
+                closeQuietly( channel );
+                throw new RespException( "Failed to connect to " + RespConnectionPool.this.address, e );
+            }
+        }
+
+        private void finishConnect() {
+            try {
+                this.channel.finishConnect();
+                this.key.interestOps( this.pendingWrites.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+                this.connected.complete( null );
+            }
+            catch ( IOException e ) {
+                this.fail( new RespException( "Failed to connect to " + RespConnectionPool.this.address, e ) );
+            }
+        }
+
+        /**
+         * Encodes the queued commands into a single write and writes as much as the socket takes
+         */
+        private void flush() {
+            if ( !this.outbound.isEmpty() ) {
+                if ( this.channel == null ) {
+                    try {
+                        this.open();
+                    }
+                    catch ( RespException e ) {
+                        this.fail( e );
+                        return;
+                    }
+                }
+                Command command;
+                while ( ( command = this.outbound.poll() ) != null ) {
+                    RespCodec.encodeCommand( this.encoder, command.arguments );
+                    this.inflight.add( command.reply );
+                }
+                this.pendingWrites.add( ByteBuffer.wrap( this.encoder.toByteArray() ) );
+                this.encoder.reset();
+            }
+            // Written once the channel is connected
+            if ( this.channel == null || !this.connected.isDone() ) {
+                return;
+            }
+            try {
+                while ( !this.pendingWrites.isEmpty() ) {
+                    final ByteBuffer buffer = this.pendingWrites.peek();
+                    this.channel.write( buffer );
+                    if ( buffer.hasRemaining() ) {
+                        break;
+                    }
+                    this.pendingWrites.poll();
+                }
+                this.key.interestOps( this.pendingWrites.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+            }
+            catch ( IOException e ) {
+                this.fail( new RespException( "Failed to write to " + RespConnectionPool.this.address, e ) );
+            }
+        }
+
+        private void read() {
+            try {
+                if ( this.channel.read( this.readBuffer ) < 0 ) {
+                    this.fail( new RespException( "Connection closed by " + RespConnectionPool.this.address ) );
+                    return;
+                }
+                this.readBuffer.flip();
+                Object reply;
+                while ( ( reply = RespCodec.decode( this.readBuffer ) ) != RespCodec.INCOMPLETE ) {
+                    final CompletableFuture<Object> future = this.inflight.poll();
+                    if ( future == null ) {
+                        throw new RespException( "Reply without a command from " + RespConnectionPool.this.address );
+                    }
+                    if ( reply instanceof RespException ) {
+                        future.completeExceptionally( (RespException) reply );
+                    }
+                    else {
+                        future.complete( reply );
+                    }
+                }
+                this.readBuffer.compact();
+                if ( !this.readBuffer.hasRemaining() ) {
+                    // A reply larger than the buffer
+                    final ByteBuffer larger = ByteBuffer.allocate( this.readBuffer.capacity() * 2 );
+                    this.readBuffer.flip();
+                    larger.put( this.readBuffer );
+                    this.readBuffer = larger;
+                }
+            }
+            catch ( IOException | RespException | NumberFormatException e ) {
+                this.fail( e instanceof RespException ? (RespException) e : new RespException( "Failed to read from " + RespConnectionPool.this.address, e ) );
+            }
+        }
+
+        /**
+         * Closes the socket and fails the commands written to it or queued for it
+         */
+        private void fail( final RespException cause ) {
+            if ( this.channel != null ) {
+                logger.warning( "Connection to " + RespConnectionPool.this.address + " failed: " + cause.getMessage() );
+                this.key.cancel();
+                closeQuietly( this.channel );
+                this.channel = null;
+            }
+            this.connected.completeExceptionally( cause );
+            this.pendingWrites.clear();
+            CompletableFuture<Object> future;
+            while ( ( future = this.inflight.poll() ) != null ) {
+                future.completeExceptionally( cause );
+            }
+            Command command;
+            while ( ( command = this.outbound.poll() ) != null ) {
+                command.reply.completeExceptionally( cause );
+            }
+        }
+    }
+
+    private static void closeQuietly( final SocketChannel channel ) {
+        if ( channel == null ) {
+            return;
+        }
+        try {
+            channel.close();
+        }
+        catch ( IOException e ) {
+            logger.fine( () -> "Failed to close the connection: " + e.getMessage() );
+        }
+    }
+}
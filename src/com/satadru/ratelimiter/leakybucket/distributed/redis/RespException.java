@@ -0,0 +1,24 @@
+package com.satadru.ratelimiter.leakybucket.distributed.redis;
+
+/**
+ * An error reply of the server, or a failure of the connection a command was sent on
+ */
+public class RespException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RespException( final String message ) {
+        super( message );
+    }
+
+    public RespException( final String message, final Throwable cause ) {
+        super( message, cause );
+    }
+
+    /**
+     * @return true for the error of EVALSHA when the server does not have the script cached
+     */
+    public boolean isNoScript() {
+        return this.getMessage() != null && this.getMessage().startsWith( "NOSCRIPT" );
+    }
+}
@@ -0,0 +1,375 @@
+package com.satadru.ratelimiter.leakybucket.distributed.redis;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leakybucket.distributed.RateLimitStateStore;
+import com.satadru.ratelimiter.leakybucket.distributed.TokenBucketRecords;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
+import com.satadru.ratelimiter.metrics.RemoteCall;
+import com.satadru.ratelimiter.pojo.ArrivalTimes;
+import com.satadru.ratelimiter.pojo.SQSPayload;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * RateLimitStateStore backed by a RESP server, e.g. a self-managed Redis, over a pipelined RespConnectionPool.
+ * <p>
+ * A record is a hash at REDIS_KEY_PREFIX + hashKey|clientId, see RespScript for the fields. Every check and update is one of the
+ * RespScripts, so it is atomic without WATCH/MULTI, which would need a connection of its own. In particular advanceArrivalTimes()
+ * decides a call of the GcraClientIdRateLimiter for all the periods in a single script call. Reads and usage updates of several keys are
+ * sent back to back and awaited together, so a batch costs about one round trip.
+ * <p>
+ * Only the period maps of the payload of a record are stored, other attributes are dropped.
+ */
+public class RespRateLimitStateStore implements RateLimitStateStore, AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger( RespRateLimitStateStore.class.getName() );
+    private static final String VERSION_FIELD = "version";
+    private static final String ARRIVAL_TIME_FIELD_PREFIX = "tat.";
+
+    private final RespConnectionPool connectionPool;
+    private final String keyPrefix;
+    private final RateLimiterMetrics metrics = RateLimiterMetrics.get();
+
+    public RespRateLimitStateStore( final RespConnectionPool connectionPool ) {
+        this( connectionPool, Configuration.REDIS_KEY_PREFIX );
+    }
+
+    /**
+     * @param keyPrefix prepended to every key, to share a server with other data
+     */
+    public RespRateLimitStateStore( final RespConnectionPool connectionPool, final String keyPrefix ) {
+        this.connectionPool = connectionPool;
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     * Creates or replaces the payload fields of a record, e.g. to seed the server from the configuration file
+     */
+    public void put( final TokenBucketKey key, final Map<String, Object> record ) {
+        final List<String> command = new ArrayList<>();
+        command.add( "HSET" );
+        command.add( this.recordKey( key ) );
+        for ( Map.Entry<String, String> field : toFields( record ).entrySet() ) {
+            command.add( field.getKey() );
+            command.add( field.getValue() );
+        }
+        this.await( this.command( command ), RemoteCall.REDIS_COMMAND );
+        this.await( this.command( Arrays.asList( "HINCRBY", this.recordKey( key ), VERSION_FIELD, "1" ) ), RemoteCall.REDIS_COMMAND );
+    }
+
+    @Override
+    public Map<String, Object> get( final TokenBucketKey key ) {
+        return toRecord( key, this.await( this.readRecord( key ), RemoteCall.REDIS_COMMAND ) );
+    }
+
+    /**
+     * Completes on the selector thread of the connection pool
+     */
+    @Override
+    public CompletableFuture<Map<String, Object>> getAsync( final TokenBucketKey key ) {
+        final long startNanos = System.nanoTime();
+        return this.readRecord( key ).whenComplete( ( reply, e ) -> this.metrics.remoteCall( RemoteCall.REDIS_COMMAND, startNanos, e != null ) )
+                .thenApply( reply -> toRecord( key, reply ) );
+    }
+
+    @Override
+    public Map<TokenBucketKey, Map<String, Object>> batchGet( final Collection<TokenBucketKey> keys ) {
+        final Map<TokenBucketKey, CompletableFuture<Object>> replies = new LinkedHashMap<>();
+        for ( TokenBucketKey key : keys ) {
+            replies.put( key, this.readRecord( key ) );
+        }
+        final Map<TokenBucketKey, Map<String, Object>> records = new HashMap<>();
+        for ( Map.Entry<TokenBucketKey, CompletableFuture<Object>> reply : replies.entrySet() ) {
+            final Map<String, Object> record = toRecord( reply.getKey(), this.await( reply.getValue(), RemoteCall.REDIS_COMMAND ) );
+            if ( record != null ) {
+                records.put( reply.getKey(), record );
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public boolean applyUsage( final TokenBucketKey key, final List<SQSPayload> payloads ) {
+        return this.batchApplyUsage( Collections.singletonMap( key, payloads ) ).isEmpty();
+    }
+
+    /**
+     * Reads all the records, then writes all the updates conditional on the version read. The keys written by someone else in between
+     * are read and written again
+     */
+    @Override
+    public Set<TokenBucketKey> batchApplyUsage( final Map<TokenBucketKey, List<SQSPayload>> payloadsByKey ) {
+        Map<TokenBucketKey, List<SQSPayload>> pending = payloadsByKey;
+        for ( int attempt = 0; !pending.isEmpty(); attempt++ ) {
+            final Map<TokenBucketKey, CompletableFuture<Object>> reads = new LinkedHashMap<>();
+            for ( TokenBucketKey key : pending.keySet() ) {
+                reads.put( key, this.readRecord( key ) );
+            }
+            final Map<TokenBucketKey, CompletableFuture<Object>> writes = new LinkedHashMap<>();
+            for ( Map.Entry<TokenBucketKey, CompletableFuture<Object>> read : reads.entrySet() ) {
+                final TokenBucketKey key = read.getKey();
+                final Object hash = this.await( read.getValue(), RemoteCall.REDIS_COMMAND );
+                final Map<String, Object> record = toRecord( key, hash );
+                if ( record == null ) {
+                    // Not configured, nothing to apply to
+                    continue;
+                }
+                for ( SQSPayload payload : pending.get( key ) ) {
+                    TokenBucketRecords.applyUsage( record, payload );
+                }
+                final List<String> arguments = new ArrayList<>();
+                arguments.add( fields( hash ).getOrDefault( VERSION_FIELD, "0" ) );
+                for ( Map.Entry<String, String> field : toFields( record ).entrySet() ) {
+                    arguments.add( field.getKey() );
+                    arguments.add( field.getValue() );
+                }
+                writes.put( key, this.eval( RespScript.COMPARE_AND_SET_RECORD, this.recordKey( key ), arguments ) );
+            }
+            final Map<TokenBucketKey, List<SQSPayload>> conflicts = new LinkedHashMap<>();
+            for ( Map.Entry<TokenBucketKey, CompletableFuture<Object>> write : writes.entrySet() ) {
+                if ( (Long) this.await( write.getValue(), RemoteCall.REDIS_SCRIPT ) == 0 ) {
+                    conflicts.put( write.getKey(), pending.get( write.getKey() ) );
+                }
+            }
+            if ( !conflicts.isEmpty() && attempt == Configuration.REDIS_CONDITIONAL_UPDATE_MAX_RETRIES ) {
+                logger.warning( "Failed to update " + conflicts.size() + " records after " + attempt + " retries" );
+                return new HashSet<>( conflicts.keySet() );
+            }
+            pending = conflicts;
+        }
+        return new HashSet<>();
+    }
+
+    @Override
+    public long leaseQuota( final TokenBucketKey key, final Period period, final long windowStart, final long requested, final long maxCalls ) {
+        final String leaseKey = this.keyPrefix + "lease:" + TokenBucketRecords.quotaLeaseKey( key, period, windowStart );
+        // Dropped by the server once the window is long over
+        final long expiresAt = windowStart + 2 * period.getMillis();
+        final Object granted = this.await( this.eval( RespScript.LEASE_QUOTA, leaseKey, Arrays.asList(
+                Long.toString( requested ), Long.toString( maxCalls ), Long.toString( expiresAt ) ) ), RemoteCall.REDIS_SCRIPT );
+        return (Long) granted;
+    }
+
+    /**
+     * Reads the whole record, which tells a record without arrival times from a missing one
+     */
+    @Override
+    public long[] getArrivalTimes( final TokenBucketKey key ) {
+        final Map<String, String> fields = fields( this.await( this.readRecord( key ), RemoteCall.REDIS_COMMAND ) );
+        if ( !hasPeriods( fields ) ) {
+            return null;
+        }
+        final long[] arrivalTimes = new long[Period.count()];
+        for ( Period period : Period.values() ) {
+            final String value = fields.get( arrivalTimeField( period ) );
+            arrivalTimes[period.ordinal()] = value == null ? 0 : Long.parseLong( value );
+        }
+        return arrivalTimes;
+    }
+
+    @Override
+    public boolean compareAndSetArrivalTimes( final TokenBucketKey key, final long[] expected, final long[] update ) {
+        final List<String> arguments = new ArrayList<>();
+        for ( Period period : Period.values() ) {
+            if ( update[period.ordinal()] != expected[period.ordinal()] ) {
+                arguments.add( arrivalTimeField( period ) );
+                arguments.add( Long.toString( expected[period.ordinal()] ) );
+                arguments.add( Long.toString( update[period.ordinal()] ) );
+            }
+        }
+        if ( arguments.isEmpty() ) {
+            return true;
+        }
+        return (Long) this.await( this.eval( RespScript.COMPARE_AND_SET_ARRIVAL_TIMES, this.recordKey( key ), arguments ), RemoteCall.REDIS_SCRIPT ) == 1;
+    }
+
+    /**
+     * A single ADVANCE_ARRIVAL_TIMES script call, unless the guess already denies the call
+     */
+    @Override
+    public ArrivalTimes advanceArrivalTimes( final TokenBucketKey key, final long[] guess, final long now, final int permits,
+                                             final long[] emissionIntervals, final long[] limits ) {
+        if ( guess != null && TokenBucketRecords.advanceArrivalTimes( guess, now, permits, emissionIntervals, limits ) == null ) {
+            return new ArrivalTimes( guess, false );
+        }
+        final List<String> arguments = new ArrayList<>();
+        arguments.add( Long.toString( now ) );
+        arguments.add( Integer.toString( permits ) );
+        for ( Period period : Period.values() ) {
+            if ( emissionIntervals[period.ordinal()] != 0 ) {
+                arguments.add( arrivalTimeField( period ) );
+                arguments.add( Long.toString( emissionIntervals[period.ordinal()] ) );
+                arguments.add( Long.toString( limits[period.ordinal()] ) );
+            }
+        }
+        final List<?> reply = (List<?>) this.await( this.eval( RespScript.ADVANCE_ARRIVAL_TIMES, this.recordKey( key ), arguments ),
+                                                    RemoteCall.REDIS_SCRIPT );
+        if ( (Long) reply.get( 0 ) == -1 ) {
+            return null;
+        }
+        // Periods which are not limited are not read, their times are not used either
+        final long[] times = new long[Period.count()];
+        int i = 1;
+        for ( Period period : Period.values() ) {
+            if ( emissionIntervals[period.ordinal()] != 0 ) {
+                times[period.ordinal()] = (Long) reply.get( i++ );
+            }
+        }
+        return new ArrivalTimes( times, (Long) reply.get( 0 ) == 1 );
+    }
+
+    @Override
+    public void close() {
+        this.connectionPool.close();
+    }
+
+    private CompletableFuture<Object> readRecord( final TokenBucketKey key ) {
+        return this.command( Arrays.asList( "HGETALL", this.recordKey( key ) ) );
+    }
+
+    private CompletableFuture<Object> command( final List<String> arguments ) {
+        final List<byte[]> command = new ArrayList<>( arguments.size() );
+        for ( String argument : arguments ) {
+            command.add( RespCodec.bytes( argument ) );
+        }
+        return this.connectionPool.send( command );
+    }
+
+    /**
+     * EVALSHA of the script on a single key, falling back to EVAL if the server does not have the script yet
+     */
+    private CompletableFuture<Object> eval( final RespScript script, final String key, final List<String> arguments ) {
+        final List<String> command = new ArrayList<>( arguments.size() + 4 );
+        command.add( "EVALSHA" );
+        command.add( script.getSha1() );
+        command.add( "1" );
+        command.add( key );
+        command.addAll( arguments );
+        final CompletableFuture<Object> reply = new CompletableFuture<>();
+        this.command( command ).whenComplete( ( result, e ) -> {
+            if ( e == null ) {
+                reply.complete( result );
+            }
+            else if ( e instanceof RespException && ( (RespException) e ).isNoScript() ) {
+                logger.fine( () -> "Loading script " + script + " into the server" );
+                command.set( 0, "EVAL" );
+                command.set( 1, script.getSource() );
+                this.command( command ).whenComplete( ( evalResult, evalError ) -> {
+                    if ( evalError == null ) {
+                        reply.complete( evalResult );
+                    }
+                    else {
+                        reply.completeExceptionally( evalError );
+                    }
+                } );
+            }
+            else {
+                reply.completeExceptionally( e );
+            }
+        } );
+        return reply;
+    }
+
+    private Object await( final CompletableFuture<Object> reply, final RemoteCall remoteCall ) {
+        final long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            final Object result = RespConnectionPool.await( reply, this.connectionPool.getCommandTimeout() );
+            failed = false;
+            return result;
+        }
+        finally {
+            this.metrics.remoteCall( remoteCall, startNanos, failed );
+        }
+    }
+
+    private String recordKey( final TokenBucketKey key ) {
+        return this.keyPrefix + key.getHashKey() + "|" + key.getClientId();
+    }
+
+    private static String arrivalTimeField( final Period period ) {
+        return ARRIVAL_TIME_FIELD_PREFIX + period.getKey();
+    }
+
+    /**
+     * @return the fields of an HGETALL reply
+     */
+    private static Map<String, String> fields( final Object hash ) {
+        final List<?> values = (List<?>) hash;
+        final Map<String, String> fields = new HashMap<>( values.size() );
+        for ( int i = 0; i + 1 < values.size(); i += 2 ) {
+            fields.put( RespCodec.string( values.get( i ) ), RespCodec.string( values.get( i + 1 ) ) );
+        }
+        return fields;
+    }
+
+    /**
+     * @return true if a period.attribute field is left among the fields of a hash
+     */
+    private static boolean hasPeriods( final Map<String, String> fields ) {
+        for ( String field : fields.keySet() ) {
+            if ( field.indexOf( '.' ) >= 0 && !field.startsWith( ARRIVAL_TIME_FIELD_PREFIX ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the record of an HGETALL reply, null if the hash does not exist or holds no period, e.g. only arrival times
+     */
+    private static Map<String, Object> toRecord( final TokenBucketKey key, final Object hash ) {
+        final Map<String, String> fields = fields( hash );
+        if ( !hasPeriods( fields ) ) {
+            return null;
+        }
+        final Map<String, Map<String, Object>> periods = new HashMap<>();
+        for ( Map.Entry<String, String> field : fields.entrySet() ) {
+            final int dot = field.getKey().indexOf( '.' );
+            if ( dot < 0 || field.getKey().startsWith( ARRIVAL_TIME_FIELD_PREFIX ) ) {
+                continue;
+            }
+            periods.computeIfAbsent( field.getKey().substring( 0, dot ), p -> new HashMap<>() )
+                    .put( field.getKey().substring( dot + 1 ), new BigDecimal( field.getValue() ) );
+        }
+        final Map<String, Object> payload = new HashMap<>( periods );
+        final Map<String, Object> record = new HashMap<>();
+        record.put( Configuration.RATE_LIMITING_HASH_KEY_NAME, key.getHashKey() );
+        record.put( Configuration.RATE_LIMITING_RANGE_KEY_NAME, key.getClientId() );
+        record.put( Configuration.ATTRIBUTE_RATE_LIMITING_PAYLOAD, payload );
+        return record;
+    }
+
+    /**
+     * @return the period.attribute fields of the period maps of a record
+     */
+    private static Map<String, String> toFields( final Map<String, Object> record ) {
+        final Map<String, String> fields = new LinkedHashMap<>();
+        final Map<?, ?> payload = (Map<?, ?>) record.get( Configuration.ATTRIBUTE_RATE_LIMITING_PAYLOAD );
+        for ( Map.Entry<?, ?> period : payload.entrySet() ) {
+            if ( !( period.getValue() instanceof Map ) ) {
+                continue;
+            }
+            for ( Map.Entry<?, ?> attribute : ( (Map<?, ?>) period.getValue() ).entrySet() ) {
+                final Object value = attribute.getValue();
+                fields.put( period.getKey() + "." + attribute.getKey(),
+                            value instanceof BigDecimal ? ( (BigDecimal) value ).toPlainString() : String.valueOf( value ) );
+            }
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,114 @@
+package com.satadru.ratelimiter.leakybucket.distributed.redis;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * The Lua scripts of RespRateLimitStateStore. Redis runs a script atomically, so each of them is a check and update of a key in a
+ * single round trip. Scripts are called by SHA1 with EVALSHA and sent with EVAL only if the server does not have them cached.
+ * <p>
+ * Records are hashes with one field per period and attribute, e.g. second.callsInPeriod, a version field bumped by every usage
+ * update, and one tat.&lt;period&gt; field per period for the arrival times of the GcraClientIdRateLimiter. Numbers are decimal strings.
+ * HSET creates a missing hash, so the scripts writing a record check that it exists first.
+ */
+public enum RespScript {
+
+    /**
+     * KEYS[1] record, ARGV[1] expected version, ARGV[2..] field value pairs.
+     * Writes the fields and bumps the version if the version is still the expected one.
+     * Returns 1 if written, 0 if the version changed, -1 if there is no record.
+     */
+    COMPARE_AND_SET_RECORD(
+            "if redis.call('EXISTS', KEYS[1]) == 0 then return -1 end\n"
+            + "local version = tonumber(redis.call('HGET', KEYS[1], 'version') or '0')\n"
+            + "if version ~= tonumber(ARGV[1]) then return 0 end\n"
+            + "for i = 2, #ARGV, 2 do redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1]) end\n"
+            + "redis.call('HSET', KEYS[1], 'version', version + 1)\n"
+            + "return 1\n" ),
+
+    /**
+     * KEYS[1] lease counter of a window, ARGV[1] requested, ARGV[2] maxCalls, ARGV[3] expiry in epoch milliseconds.
+     * Returns the calls granted, at most what is left of maxCalls.
+     */
+    LEASE_QUOTA(
+            "local leased = tonumber(redis.call('GET', KEYS[1]) or '0')\n"
+            + "local granted = math.min(tonumber(ARGV[1]), tonumber(ARGV[2]) - leased)\n"
+            + "if granted <= 0 then return 0 end\n"
+            + "redis.call('INCRBY', KEYS[1], granted)\n"
+            + "redis.call('PEXPIREAT', KEYS[1], ARGV[3])\n"
+            + "return granted\n" ),
+
+    /**
+     * KEYS[1] record, ARGV field expected update triples.
+     * Writes the arrival times if every field still holds the expected one, a missing field holding 0.
+     * Returns 1 if written, 0 if a time changed, -1 if there is no record.
+     */
+    COMPARE_AND_SET_ARRIVAL_TIMES(
+            "if redis.call('EXISTS', KEYS[1]) == 0 then return -1 end\n"
+            + "for i = 1, #ARGV, 3 do\n"
+            + "  if (redis.call('HGET', KEYS[1], ARGV[i]) or '0') ~= ARGV[i + 1] then return 0 end\n"
+            + "end\n"
+            + "for i = 1, #ARGV, 3 do redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 2]) end\n"
+            + "return 1\n" ),
+
+    /**
+     * KEYS[1] record, ARGV[1] now, ARGV[2] permits, ARGV[3..] field emissionInterval limit triples of the limited periods.
+     * The GCRA step of TokenBucketRecords.advanceArrivalTimes() over all the periods at once.
+     * Returns { 1 if advanced else 0, the arrival time of every triple after the call }, { -1 } if there is no record.
+     */
+    ADVANCE_ARRIVAL_TIMES(
+            "if redis.call('EXISTS', KEYS[1]) == 0 then return { -1 } end\n"
+            + "local now = tonumber(ARGV[1])\n"
+            + "local permits = tonumber(ARGV[2])\n"
+            + "local times = {}\n"
+            + "local advanced = 1\n"
+            + "for i = 3, #ARGV, 3 do\n"
+            + "  local time = tonumber(redis.call('HGET', KEYS[1], ARGV[i]) or '0')\n"
+            + "  times[#times + 1] = time\n"
+            + "  if math.max(time, now) + permits * tonumber(ARGV[i + 1]) - now > tonumber(ARGV[i + 2]) then advanced = 0 end\n"
+            + "end\n"
+            + "if advanced == 1 then\n"
+            + "  for i = 3, #ARGV, 3 do\n"
+            + "    local j = (i - 3) / 3 + 1\n"
+            + "    times[j] = math.max(times[j], now) + permits * tonumber(ARGV[i + 1])\n"
+            + "    redis.call('HSET', KEYS[1], ARGV[i], string.format('%d', times[j]))\n"
+            + "  end\n"
+            + "end\n"
+            + "table.insert(times, 1, advanced)\n"
+            + "return times\n" );
+
+    private final String source;
+    private final String sha1;
+
+    RespScript( final String source ) {
+        this.source = source;
+        this.sha1 = sha1( source );
+    }
+
+    public String getSource() {
+        return this.source;
+    }
+
+    /**
+     * @return the hex SHA1 of the source, which EVALSHA takes
+     */
+    public String getSha1() {
+        return this.sha1;
+    }
+
+    /**
+     * @return the lower case hex SHA1 of the UTF-8 source, by which a server caches a script
+     */
+    static String sha1( final String source ) {
+        try {
+            return BaseEncoding.base16().lowerCase().encode( MessageDigest.getInstance( "SHA-1" ).digest( source.getBytes( StandardCharsets.UTF_8 ) ) );
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            // Every Java platform has SHA-1
+            throw new IllegalStateException( e );
+        }
+    }
+}
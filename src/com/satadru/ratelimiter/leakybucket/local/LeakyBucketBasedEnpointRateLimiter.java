@@ -1,55 +1,54 @@
 package com.satadru.ratelimiter.leakybucket.local;
 
-import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import com.satadru.ratelimiter.leakybucket.SimpleEndpointRateLimiter;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
 
 public class LeakyBucketBasedEnpointRateLimiter implements SimpleEndpointRateLimiter {
 
     private static final Logger logger = Logger.getLogger( LeakyBucketBasedEnpointRateLimiter.class.getName() );
 
-    private int dropsIssued = 0;
-    private Date lastTimestamp = null;
+    // Drops issued and last leak tick, see LeakyBucketState
+    private final AtomicLong state = new AtomicLong( LeakyBucketState.EMPTY );
+    private final long originNanos = System.nanoTime();
     private final int bucketSize;
     private final long refillIntervalInMillis;
+    private final RateLimiterMetrics metrics = RateLimiterMetrics.get();
 
     public LeakyBucketBasedEnpointRateLimiter( final int bucketSize, final long refillIntervalInMillis ) {
+        LeakyBucketState.checkBucketSize( bucketSize );
         this.bucketSize = bucketSize;
         this.refillIntervalInMillis = refillIntervalInMillis;
     }
 
     /**
-     * Simple implementation of leaky bucket algorithm
+     * Simple lock-free implementation of leaky bucket algorithm.
+     * Does not allocate. A throttled call never writes to the shared state.
      *
      * @return true if rate limit has not reached
      */
     @Override
-    public synchronized boolean consume() {
-        Date now = new Date();
-        if ( this.lastTimestamp != null ) {
-            long deltaT = now.getTime() - this.lastTimestamp.getTime();
-            long numberToLeak = deltaT / this.refillIntervalInMillis;
-            if ( numberToLeak > 0 ) {
-                if ( this.dropsIssued <= numberToLeak ) {
-                    this.dropsIssued = 0;
-                }
-                else {
-                    this.dropsIssued -= (int) numberToLeak;
-                }
-                this.lastTimestamp = now;
+    public boolean consume() {
+        final long now = LeakyBucketState.tick( this.originNanos );
+        while ( true ) {
+            final long current = this.state.get();
+            final long next = LeakyBucketState.tryConsume( current, now, this.bucketSize, this.refillIntervalInMillis );
+            if ( next == LeakyBucketState.REJECTED ) {
+                logger.fine( "Throttled by endpoint rate limiter" );
+                this.metrics.endpointDecision( false );
+                return false;
             }
-        }
-
-        if ( this.dropsIssued < this.bucketSize ) {
-            this.dropsIssued++;
-            if ( this.lastTimestamp == null && this.dropsIssued == this.bucketSize ) {
-                this.lastTimestamp = new Date();
+            if ( this.state.compareAndSet( current, next ) ) {
+                logger.finest( "Allowed by endpoint rate limiter" );
+                this.metrics.endpointDecision( true );
+                return true;
             }
-            logger.finest( "Allowed by endpoint rate limiter" );
-            return true;
         }
-        logger.fine( "Throttled by endpoint rate limiter" );
-        return false;
+    }
+
+    public int getDropsIssued() {
+        return LeakyBucketState.dropsIssued( this.state.get() );
     }
 }
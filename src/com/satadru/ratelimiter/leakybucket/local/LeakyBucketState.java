@@ -0,0 +1,82 @@
+package com.satadru.ratelimiter.leakybucket.local;
+
+/**
+ * Leaky bucket state packed into a single long so that it can be updated with one compare-and-set.
+ * The upper bits hold the number of drops issued and the lower 40 bits the tick (milliseconds on the monotonic clock, see {@link #tick(long)})
+ * of the last leak. A tick of 0 means that the bucket has not been filled up yet.
+ */
+final class LeakyBucketState {
+
+    static final long EMPTY = 0L;
+    // Never a valid state since the drops never reach the sign bit
+    static final long REJECTED = -1L;
+    static final int MAX_BUCKET_SIZE = ( 1 << 23 ) - 1;
+
+    private static final int TICK_BITS = 40;
+    private static final long TICK_MASK = ( 1L << TICK_BITS ) - 1;
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+
+    private LeakyBucketState() {
+    }
+
+    /**
+     * @param originNanos System.nanoTime() at the creation of the bucket
+     * @return milliseconds elapsed since originNanos on the monotonic clock, offset by one so that a tick is never 0
+     */
+    static long tick( final long originNanos ) {
+        return ( System.nanoTime() - originNanos ) / NANOS_PER_MILLI + 1;
+    }
+
+    /**
+     * Same leak semantics as the original Date based implementation: the drops leaked since the last leak are removed from the bucket
+     * and the last leak is moved to now. The first tick is recorded only when the bucket gets full for the first time.
+     *
+     * @return the new state if a drop could be issued else {@link #REJECTED}
+     */
+    static long tryConsume( final long state, final long now, final int bucketSize, final long refillIntervalInMillis ) {
+        int dropsIssued = (int) ( state >>> TICK_BITS );
+        long lastTick = state & TICK_MASK;
+        if ( lastTick != 0 ) {
+            long numberToLeak = ( now - lastTick ) / refillIntervalInMillis;
+            if ( numberToLeak > 0 ) {
+                if ( dropsIssued <= numberToLeak ) {
+                    dropsIssued = 0;
+                }
+                else {
+                    dropsIssued -= (int) numberToLeak;
+                }
+                lastTick = now;
+            }
+        }
+
+        if ( dropsIssued < bucketSize ) {
+            dropsIssued++;
+            if ( lastTick == 0 && dropsIssued == bucketSize ) {
+                lastTick = now;
+            }
+            return ( (long) dropsIssued << TICK_BITS ) | lastTick;
+        }
+        return REJECTED;
+    }
+
+    /**
+     * @return milliseconds from now until tryConsume() can issue a drop again, 0 if it can now
+     */
+    static long millisUntilNextDrop( final long state, final long now, final int bucketSize, final long refillIntervalInMillis ) {
+        final long lastTick = state & TICK_MASK;
+        if ( dropsIssued( state ) < bucketSize || lastTick == 0 ) {
+            return 0;
+        }
+        return Math.max( 0, lastTick + refillIntervalInMillis - now );
+    }
+
+    static int dropsIssued( final long state ) {
+        return (int) ( state >>> TICK_BITS );
+    }
+
+    static void checkBucketSize( final int bucketSize ) {
+        if ( bucketSize <= 0 || bucketSize > MAX_BUCKET_SIZE ) {
+            throw new IllegalArgumentException( "bucketSize must be between 1 and " + MAX_BUCKET_SIZE + " but was " + bucketSize );
+        }
+    }
+}
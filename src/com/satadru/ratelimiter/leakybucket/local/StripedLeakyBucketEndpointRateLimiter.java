@@ -0,0 +1,207 @@
+package com.satadru.ratelimiter.leakybucket.local;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.EndpointRateLimitConfiguration;
+import com.satadru.ratelimiter.leakybucket.KeyedEndpointRateLimiter;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
+import com.satadru.ratelimiter.pojo.EndpointRateLimit;
+
+/**
+ * Registry of leaky buckets, one per API_NAME:METHOD, with the limits of every endpoint loaded from configuration.
+ * Endpoints which are not configured share the bucket of the "default" row.
+ * <p>
+ * The buckets live in a striped open-addressing table of primitive arrays which is immutable once built, so a lookup is a few array
+ * reads and String comparisons without any locking or allocation. Every bucket state is a packed long (see LeakyBucketState) updated with
+ * compare-and-set. The states of neighbouring slots are padded apart so that cores hammering different endpoints do not share a cache line.
+ */
+public class StripedLeakyBucketEndpointRateLimiter implements KeyedEndpointRateLimiter {
+
+    private static final Logger logger = Logger.getLogger( StripedLeakyBucketEndpointRateLimiter.class.getName() );
+
+    // 8 longs = 64 bytes between two slot states
+    private static final int PADDING_SHIFT = 3;
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+    private final long originNanos = System.nanoTime();
+    private final AtomicLong defaultState = new AtomicLong( LeakyBucketState.EMPTY );
+    private final int defaultBucketSize;
+    private final long defaultRefillIntervalInMillis;
+    private final RateLimiterMetrics metrics = RateLimiterMetrics.get();
+
+    public StripedLeakyBucketEndpointRateLimiter( final String configurationFile ) {
+        this( EndpointRateLimitConfiguration.load( configurationFile ), Configuration.ENDPOINT_RATE_LIMITER_STRIPES );
+    }
+
+    /**
+     * @param limits  API_NAME:METHOD to its limits. Must contain the "default" endpoint
+     * @param stripes number of stripes, power of two
+     */
+    public StripedLeakyBucketEndpointRateLimiter( final Map<String, EndpointRateLimit> limits, final int stripes ) {
+        Preconditions.checkArgument( stripes > 0 && Integer.bitCount( stripes ) == 1, "stripes must be a power of two" );
+        final EndpointRateLimit defaultLimit = limits.get( Configuration.DEFAULT_ENDPOINT );
+        Preconditions.checkArgument( defaultLimit != null, "No limits configured for the default endpoint" );
+        LeakyBucketState.checkBucketSize( defaultLimit.getBucketSize() );
+        this.defaultBucketSize = defaultLimit.getBucketSize();
+        this.defaultRefillIntervalInMillis = defaultLimit.getRefillIntervalInMillis();
+
+        final List<List<Map.Entry<String, EndpointRateLimit>>> entriesPerStripe = new ArrayList<>( stripes );
+        for ( int i = 0; i < stripes; i++ ) {
+            entriesPerStripe.add( new ArrayList<>() );
+        }
+        this.stripeShift = 32 - Integer.numberOfTrailingZeros( stripes );
+        for ( Map.Entry<String, EndpointRateLimit> entry : limits.entrySet() ) {
+            if ( Configuration.DEFAULT_ENDPOINT.equals( entry.getKey() ) ) {
+                continue;
+            }
+            LeakyBucketState.checkBucketSize( entry.getValue().getBucketSize() );
+            final String[] endpoint = splitEndpoint( entry.getKey() );
+            entriesPerStripe.get( this.stripeIndex( hash( endpoint[0], endpoint[1] ) ) ).add( entry );
+        }
+        this.stripes = new Stripe[stripes];
+        for ( int i = 0; i < stripes; i++ ) {
+            this.stripes[i] = new Stripe( entriesPerStripe.get( i ) );
+        }
+    }
+
+    @Override
+    public boolean consume( final String apiName, final String method ) {
+        final long now = LeakyBucketState.tick( this.originNanos );
+        final int hash = hash( apiName, method );
+        final Stripe stripe = this.stripes[this.stripeIndex( hash )];
+        final int slot = stripe.find( hash, apiName, method );
+        final boolean allowed;
+        if ( slot < 0 ) {
+            allowed = this.consumeDefault( now );
+        }
+        else {
+            allowed = stripe.consume( slot, now );
+        }
+        if ( allowed ) {
+            logger.finest( "Allowed by endpoint rate limiter" );
+        }
+        else {
+            logger.fine( "Throttled by endpoint rate limiter" );
+        }
+        this.metrics.endpointDecision( allowed );
+        return allowed;
+    }
+
+    @Override
+    public long retryAfterMillis( final String apiName, final String method ) {
+        final long now = LeakyBucketState.tick( this.originNanos );
+        final int hash = hash( apiName, method );
+        final Stripe stripe = this.stripes[this.stripeIndex( hash )];
+        final int slot = stripe.find( hash, apiName, method );
+        if ( slot < 0 ) {
+            return LeakyBucketState.millisUntilNextDrop( this.defaultState.get(), now, this.defaultBucketSize, this.defaultRefillIntervalInMillis );
+        }
+        return stripe.retryAfterMillis( slot, now );
+    }
+
+    private boolean consumeDefault( final long now ) {
+        while ( true ) {
+            final long current = this.defaultState.get();
+            final long next = LeakyBucketState.tryConsume( current, now, this.defaultBucketSize, this.defaultRefillIntervalInMillis );
+            if ( next == LeakyBucketState.REJECTED ) {
+                return false;
+            }
+            if ( this.defaultState.compareAndSet( current, next ) ) {
+                return true;
+            }
+        }
+    }
+
+    private int stripeIndex( final int hash ) {
+        return this.stripeShift == 32 ? 0 : hash >>> this.stripeShift;
+    }
+
+    /*
+    Hash of API_NAME:METHOD without building the String
+     */
+    private static int hash( final String apiName, final String method ) {
+        final int h = apiName.hashCode() * 31 + method.hashCode();
+        // Spread the bits, the high bits pick the stripe and the low bits the slot
+        return h * 0x9E3779B9;
+    }
+
+    private static String[] splitEndpoint( final String hashKey ) {
+        final int separator = hashKey.lastIndexOf( ':' );
+        Preconditions.checkArgument( separator > 0 && separator < hashKey.length() - 1, "Endpoint must be API_NAME:METHOD but was %s", hashKey );
+        return new String[] { hashKey.substring( 0, separator ), hashKey.substring( separator + 1 ) };
+    }
+
+    private static final class Stripe {
+        private final int mask;
+        private final int[] hashes;
+        private final String[] apiNames;
+        private final String[] methods;
+        private final int[] bucketSizes;
+        private final long[] refillIntervalsInMillis;
+        private final AtomicLongArray states;
+
+        private Stripe( final List<Map.Entry<String, EndpointRateLimit>> entries ) {
+            // Load factor of at most 0.5 keeps the probe sequences short
+            final int capacity = Integer.highestOneBit( Math.max( 1, entries.size() ) ) << 2;
+            this.mask = capacity - 1;
+            this.hashes = new int[capacity];
+            this.apiNames = new String[capacity];
+            this.methods = new String[capacity];
+            this.bucketSizes = new int[capacity];
+            this.refillIntervalsInMillis = new long[capacity];
+            this.states = new AtomicLongArray( capacity << PADDING_SHIFT );
+            for ( Map.Entry<String, EndpointRateLimit> entry : entries ) {
+                final String[] endpoint = splitEndpoint( entry.getKey() );
+                final int hash = hash( endpoint[0], endpoint[1] );
+                int slot = hash & this.mask;
+                while ( this.apiNames[slot] != null ) {
+                    slot = ( slot + 1 ) & this.mask;
+                }
+                this.hashes[slot] = hash;
+                this.apiNames[slot] = endpoint[0];
+                this.methods[slot] = endpoint[1];
+                this.bucketSizes[slot] = entry.getValue().getBucketSize();
+                this.refillIntervalsInMillis[slot] = entry.getValue().getRefillIntervalInMillis();
+            }
+        }
+
+        private int find( final int hash, final String apiName, final String method ) {
+            int slot = hash & this.mask;
+            String candidate;
+            while ( ( candidate = this.apiNames[slot] ) != null ) {
+                if ( this.hashes[slot] == hash && candidate.equals( apiName ) && this.methods[slot].equals( method ) ) {
+                    return slot;
+                }
+                slot = ( slot + 1 ) & this.mask;
+            }
+            return -1;
+        }
+
+        private boolean consume( final int slot, final long now ) {
+            final int index = slot << PADDING_SHIFT;
+            while ( true ) {
+                final long current = this.states.get( index );
+                final long next = LeakyBucketState.tryConsume( current, now, this.bucketSizes[slot], this.refillIntervalsInMillis[slot] );
+                if ( next == LeakyBucketState.REJECTED ) {
+                    return false;
+                }
+                if ( this.states.compareAndSet( index, current, next ) ) {
+                    return true;
+                }
+            }
+        }
+
+        private long retryAfterMillis( final int slot, final long now ) {
+            return LeakyBucketState.millisUntilNextDrop( this.states.get( slot << PADDING_SHIFT ), now, this.bucketSizes[slot],
+                                                         this.refillIntervalsInMillis[slot] );
+        }
+    }
+}
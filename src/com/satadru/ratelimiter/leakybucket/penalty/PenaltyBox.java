@@ -0,0 +1,237 @@
+package com.satadru.ratelimiter.leakybucket.penalty;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
+import com.satadru.ratelimiter.pojo.ThrottleDecision;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * Clients and APIs which were denied repeatedly, and until when their calls are rejected without asking the rate limiter.
+ * <p>
+ * denialsThreshold consecutive denials of a key put it into the box for a cooldown. The first cooldown is the retry after time of
+ * the last denial, i.e. until its limiting period has room again, so it rejects about the calls the rate limiter would have denied anyway.
+ * A key which is put into the box again within strikeDecay after its last cooldown ended gets twice the cooldown of the previous one,
+ * up to the length of the limiting period and maxCooldown.
+ * <p>
+ * Checking a key is a cache lookup and a volatile read, only denials update the box. Inspected over JMX once registerMBean() was called.
+ */
+public class PenaltyBox implements PenaltyBoxMXBean {
+
+    private static final Logger logger = Logger.getLogger( PenaltyBox.class.getName() );
+
+    public static final String OBJECT_NAME = "com.satadru.ratelimiter:type=PenaltyBox";
+
+    private final int denialsThreshold;
+    private final long maxCooldownNanos;
+    private final long strikeDecayNanos;
+    // System.nanoTime() unless a test sets the time
+    private final LongSupplier nanoClock;
+    private final Cache<TokenBucketKey, Offender> offenders;
+    private final RateLimiterMetrics metrics = RateLimiterMetrics.get();
+
+    public PenaltyBox() {
+        this( Configuration.PENALTY_BOX_DENIALS, Configuration.PENALTY_BOX_MAX_COOLDOWN, Configuration.PENALTY_BOX_STRIKE_DECAY );
+    }
+
+    /**
+     * @param denialsThreshold consecutive denials which put a key into the box
+     * @param maxCooldown      longest cooldown of a repeat offender
+     * @param strikeDecay      time after a cooldown after which the next one starts over from the retry after time
+     */
+    public PenaltyBox( final int denialsThreshold, final Duration maxCooldown, final Duration strikeDecay ) {
+        this( denialsThreshold, maxCooldown, strikeDecay, System::nanoTime );
+    }
+
+    /**
+     * @param nanoClock time of the cooldowns in nanoseconds, only compared with itself
+     */
+    public PenaltyBox( final int denialsThreshold, final Duration maxCooldown, final Duration strikeDecay, final LongSupplier nanoClock ) {
+        Preconditions.checkArgument( denialsThreshold > 0, "denialsThreshold must be positive" );
+        this.denialsThreshold = denialsThreshold;
+        this.maxCooldownNanos = maxCooldown.toNanos();
+        this.strikeDecayNanos = strikeDecay.toNanos();
+        this.nanoClock = nanoClock;
+        // A key in a cooldown is not dropped before the cooldown is over
+        this.offenders = CacheBuilder.newBuilder()
+                .maximumSize( Configuration.PENALTY_BOX_MAXIMUM_SIZE )
+                .expireAfterAccess( this.maxCooldownNanos + this.strikeDecayNanos, TimeUnit.NANOSECONDS )
+                .ticker( new Ticker() {
+                    @Override
+                    public long read() {
+                        return nanoClock.getAsLong();
+                    }
+                } )
+                .build();
+    }
+
+    /**
+     * Rejects the call if the key is in a cooldown
+     *
+     * @param decision filled in with the limiting period and the rest of the cooldown if the call is rejected and it is not null
+     * @return true if the call is rejected
+     */
+    public boolean reject( final TokenBucketKey key, final ThrottleDecision decision ) {
+        final Offender offender = this.offenders.getIfPresent( key );
+        if ( offender == null ) {
+            return false;
+        }
+        final long remainingNanos = offender.cooldownEndNanos - this.nanoClock.getAsLong();
+        if ( remainingNanos <= 0 ) {
+            return false;
+        }
+        if ( decision != null ) {
+            decision.deny( offender.limitingPeriod, TimeUnit.NANOSECONDS.toMillis( remainingNanos + TimeUnit.MILLISECONDS.toNanos( 1 ) - 1 ) );
+        }
+        this.metrics.penaltyBoxRejection();
+        return true;
+    }
+
+    /**
+     * Counts a decision of the rate limiter for a key which was not rejected. Enough consecutive denials start a cooldown
+     */
+    public void record( final TokenBucketKey key, final ThrottleDecision decision ) {
+        if ( decision.isAllowed() ) {
+            final Offender offender = this.offenders.getIfPresent( key );
+            if ( offender != null && offender.denials != 0 ) {
+                synchronized ( offender ) {
+                    offender.denials = 0;
+                }
+            }
+            return;
+        }
+        final Offender offender = this.offenders.asMap().computeIfAbsent( key, k -> new Offender( this.nanoClock.getAsLong() ) );
+        synchronized ( offender ) {
+            // A denial which is not by a period, e.g. of a contended update, has no retry after time to derive a cooldown from
+            if ( ++offender.denials < this.denialsThreshold || decision.getRetryAfterMillis() <= 0 ) {
+                return;
+            }
+            offender.denials = 0;
+            final long now = this.nanoClock.getAsLong();
+            if ( now - offender.cooldownEndNanos > this.strikeDecayNanos ) {
+                offender.strikes = 0;
+            }
+            final long retryAfterNanos = TimeUnit.MILLISECONDS.toNanos( decision.getRetryAfterMillis() );
+            final Period limitingPeriod = decision.getLimitingPeriod();
+            final long maxCooldownNanos = Math.min( this.maxCooldownNanos,
+                                                    limitingPeriod == null ? retryAfterNanos
+                                                                           : Math.max( retryAfterNanos, TimeUnit.MILLISECONDS.toNanos( limitingPeriod.getMillis() ) ) );
+            long cooldownNanos = retryAfterNanos;
+            for ( int strike = 0; strike < offender.strikes && cooldownNanos < maxCooldownNanos; strike++ ) {
+                cooldownNanos *= 2;
+            }
+            cooldownNanos = Math.min( cooldownNanos, maxCooldownNanos );
+            offender.strikes++;
+            offender.limitingPeriod = limitingPeriod;
+            // Written last, reject() reads it first
+            offender.cooldownEndNanos = now + cooldownNanos;
+            this.metrics.penaltyBoxSentence();
+            if ( logger.isLoggable( Level.FINE ) ) {
+                logger.fine( key + " denied " + this.denialsThreshold + " times in a row, rejected for " + TimeUnit.NANOSECONDS.toMillis( cooldownNanos )
+                             + " ms, strike " + offender.strikes );
+            }
+        }
+    }
+
+    /**
+     * Ends the cooldown and forgets the strikes of the key
+     */
+    public void release( final TokenBucketKey key ) {
+        this.offenders.invalidate( key );
+    }
+
+    @Override
+    public void release( final String hashKey, final String clientId ) {
+        this.release( new TokenBucketKey( hashKey, clientId ) );
+    }
+
+    @Override
+    public void clear() {
+        this.offenders.invalidateAll();
+    }
+
+    @Override
+    public long getSize() {
+        return this.offenders.size();
+    }
+
+    @Override
+    public Map<String, Long> getCooldowns() {
+        final long now = this.nanoClock.getAsLong();
+        final Map<String, Long> cooldowns = new TreeMap<>();
+        for ( Map.Entry<TokenBucketKey, Offender> entry : this.offenders.asMap().entrySet() ) {
+            final long remainingNanos = entry.getValue().cooldownEndNanos - now;
+            if ( remainingNanos > 0 ) {
+                cooldowns.put( entry.getKey().toString(), TimeUnit.NANOSECONDS.toMillis( remainingNanos ) );
+            }
+        }
+        return cooldowns;
+    }
+
+    @Override
+    public Map<String, Integer> getStrikes() {
+        final Map<String, Integer> strikes = new TreeMap<>();
+        for ( Map.Entry<TokenBucketKey, Offender> entry : this.offenders.asMap().entrySet() ) {
+            synchronized ( entry.getValue() ) {
+                if ( entry.getValue().strikes > 0 ) {
+                    strikes.put( entry.getKey().toString(), entry.getValue().strikes );
+                }
+            }
+        }
+        return strikes;
+    }
+
+    /**
+     * Registers the box with the platform MBean server as {@link #OBJECT_NAME}, once
+     *
+     * @return false if it could not be registered
+     */
+    public synchronized boolean registerMBean() {
+        try {
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = new ObjectName( OBJECT_NAME );
+            if ( !mBeanServer.isRegistered( objectName ) ) {
+                mBeanServer.registerMBean( this, objectName );
+            }
+            return true;
+        }
+        catch ( JMException e ) {
+            logger.warning( "Failed to register the penalty box with JMX: " + e.getMessage() );
+            return false;
+        }
+    }
+
+    /**
+     * Denials and cooldown of a key. Updated while holding its monitor
+     */
+    private static final class Offender {
+        private volatile long cooldownEndNanos;
+        private Period limitingPeriod;
+        private volatile int denials;
+        private int strikes;
+
+        /**
+         * @param now the cooldown is already over, so that a new key is not in a cooldown
+         */
+        private Offender( final long now ) {
+            this.cooldownEndNanos = now;
+        }
+    }
+}
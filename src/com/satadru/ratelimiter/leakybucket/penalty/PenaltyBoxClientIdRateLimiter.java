@@ -0,0 +1,97 @@
+package com.satadru.ratelimiter.leakybucket.penalty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.satadru.ratelimiter.leakybucket.SimpleClientIdBasedRateLimiter;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
+import com.satadru.ratelimiter.pojo.ConsumeRequest;
+import com.satadru.ratelimiter.pojo.ThrottleDecision;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * Puts a PenaltyBox in front of a SimpleClientIdBasedRateLimiter. The calls of a client and API in a cooldown are denied from memory,
+ * without the read of its record and the evaluation of its periods, all the other calls are decided by the rate limiter and counted
+ * by the box. Works with any of the rate limiters, the box is keyed by the actual clientId, also for clients with the default limits.
+ */
+public class PenaltyBoxClientIdRateLimiter implements SimpleClientIdBasedRateLimiter {
+
+    private static final ThreadLocal<ThrottleDecision> DECISIONS = ThreadLocal.withInitial( ThrottleDecision::new );
+
+    private final SimpleClientIdBasedRateLimiter rateLimiter;
+    private final PenaltyBox penaltyBox;
+    private final RateLimiterMetrics metrics = RateLimiterMetrics.get();
+
+    public PenaltyBoxClientIdRateLimiter( final SimpleClientIdBasedRateLimiter rateLimiter, final PenaltyBox penaltyBox ) {
+        this.rateLimiter = rateLimiter;
+        this.penaltyBox = penaltyBox;
+    }
+
+    @Override
+    public boolean consume( final String apiName, final String method, final String clientId, final int permits ) {
+        // The box needs the limiting period and retry after time of a denial
+        return this.tryConsume( apiName, method, clientId, permits, DECISIONS.get() ).isAllowed();
+    }
+
+    @Override
+    public ThrottleDecision tryConsume( final String apiName, final String method, final String clientId, final int permits,
+                                        final ThrottleDecision decision ) {
+        final TokenBucketKey key = new TokenBucketKey( apiName + ":" + method, clientId );
+        if ( this.penaltyBox.reject( key, decision ) ) {
+            this.metrics.clientIdDecision( false );
+            return decision;
+        }
+        this.rateLimiter.tryConsume( apiName, method, clientId, permits, decision );
+        this.penaltyBox.record( key, decision );
+        return decision;
+    }
+
+    /**
+     * Only the requests which are not rejected by the box are passed on to the rate limiter, as one batch
+     */
+    @Override
+    public List<ThrottleDecision> consumeAll( final List<ConsumeRequest> requests ) {
+        final List<ThrottleDecision> decisions = new ArrayList<>( Collections.nCopies( requests.size(), (ThrottleDecision) null ) );
+        final List<ConsumeRequest> decided = new ArrayList<>( requests.size() );
+        final List<Integer> decidedIndexes = new ArrayList<>( requests.size() );
+        for ( int i = 0; i < requests.size(); i++ ) {
+            final ThrottleDecision decision = new ThrottleDecision();
+            if ( this.penaltyBox.reject( requests.get( i ).toKey(), decision ) ) {
+                this.metrics.clientIdDecision( false );
+                decisions.set( i, decision );
+            }
+            else {
+                decided.add( requests.get( i ) );
+                decidedIndexes.add( i );
+            }
+        }
+        if ( !decided.isEmpty() ) {
+            final List<ThrottleDecision> decidedDecisions = this.rateLimiter.consumeAll( decided );
+            for ( int i = 0; i < decided.size(); i++ ) {
+                this.penaltyBox.record( decided.get( i ).toKey(), decidedDecisions.get( i ) );
+                decisions.set( decidedIndexes.get( i ), decidedDecisions.get( i ) );
+            }
+        }
+        return decisions;
+    }
+
+    @Override
+    public CompletableFuture<ThrottleDecision> consumeAsync( final String apiName, final String method, final String clientId ) {
+        final TokenBucketKey key = new TokenBucketKey( apiName + ":" + method, clientId );
+        final ThrottleDecision rejected = new ThrottleDecision();
+        if ( this.penaltyBox.reject( key, rejected ) ) {
+            this.metrics.clientIdDecision( false );
+            return CompletableFuture.completedFuture( rejected );
+        }
+        return this.rateLimiter.consumeAsync( apiName, method, clientId ).thenApply( decision -> {
+            this.penaltyBox.record( key, decision );
+            return decision;
+        } );
+    }
+
+    public PenaltyBox getPenaltyBox() {
+        return this.penaltyBox;
+    }
+}
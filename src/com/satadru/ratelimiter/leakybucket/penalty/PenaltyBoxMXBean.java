@@ -0,0 +1,33 @@
+package com.satadru.ratelimiter.leakybucket.penalty;
+
+import java.util.Map;
+
+/**
+ * JMX view of a PenaltyBox, registered as {@link PenaltyBox#OBJECT_NAME}
+ */
+public interface PenaltyBoxMXBean {
+
+    /**
+     * @return keys tracked for their denials or strikes, whether in a cooldown or not
+     */
+    long getSize();
+
+    /**
+     * @return the milliseconds left of the cooldown of every key in the box by API_NAME:METHOD:CLIENT_ID
+     */
+    Map<String, Long> getCooldowns();
+
+    /**
+     * @return the cooldowns served within the strike decay of every tracked key, by API_NAME:METHOD:CLIENT_ID
+     */
+    Map<String, Integer> getStrikes();
+
+    /**
+     * Ends the cooldown and forgets the strikes of a client and API
+     *
+     * @param hashKey API_NAME:METHOD
+     */
+    void release( String hashKey, String clientId );
+
+    void clear();
+}
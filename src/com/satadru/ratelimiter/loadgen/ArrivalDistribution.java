@@ -0,0 +1,26 @@
+package com.satadru.ratelimiter.loadgen;
+
+import java.util.Random;
+
+/**
+ * Time between two requests of a load generator worker
+ */
+public enum ArrivalDistribution {
+
+    // Evenly spaced requests
+    CONSTANT {
+        @Override
+        public long nextGapNanos( final double meanGapNanos, final Random random ) {
+            return (long) meanGapNanos;
+        }
+    },
+    // Independent arrivals, exponentially distributed gaps. The merged arrivals of several workers are again a Poisson process
+    POISSON {
+        @Override
+        public long nextGapNanos( final double meanGapNanos, final Random random ) {
+            return (long) ( -Math.log( 1 - random.nextDouble() ) * meanGapNanos );
+        }
+    };
+
+    public abstract long nextGapNanos( double meanGapNanos, Random random );
+}
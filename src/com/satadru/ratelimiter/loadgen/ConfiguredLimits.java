@@ -0,0 +1,70 @@
+package com.satadru.ratelimiter.loadgen;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leakybucket.distributed.RateLimitStateStore;
+import com.satadru.ratelimiter.pojo.ClientLimitState;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * The limits configured in a RateLimitStateStore for one API, which a load report compares the allowed calls with.
+ * Clients without a record of their own share the limits of the default client, as they do in the rate limiter.
+ */
+public class ConfiguredLimits {
+
+    private final RateLimitStateStore stateStore;
+    private final String hashKey;
+    // clientId to the clientId of the applying record, resolved once
+    private final Map<String, String> limitKeys = new ConcurrentHashMap<>();
+    private final Map<String, ClientLimitState> limits = new ConcurrentHashMap<>();
+
+    public ConfiguredLimits( final RateLimitStateStore stateStore, final String hashKey ) {
+        this.stateStore = stateStore;
+        this.hashKey = hashKey;
+    }
+
+    /**
+     * @return the clientId itself if it has its own limits, else the default client
+     */
+    public String limitKey( final String clientId ) {
+        return this.limitKeys.computeIfAbsent( clientId, id -> this.limits( id ) != null ? id : Configuration.DEFAULT_CLIENT_ID );
+    }
+
+    /**
+     * Every period allows maxAllowedCallsInPeriod per burst period, and a burst period starts with the first call after the previous one
+     * is over, so at most duration / period + 1 burst periods fit into the duration.
+     *
+     * @return upper bound of the calls a correct limiter allows for the limit key within the duration, Long.MAX_VALUE if nothing is configured
+     */
+    public long maxAllowed( final String limitKey, final long durationMillis ) {
+        final ClientLimitState state = this.limits( limitKey );
+        if ( state == null ) {
+            return Long.MAX_VALUE;
+        }
+        long maxAllowed = Long.MAX_VALUE;
+        for ( Period period : Period.values() ) {
+            if ( state.isConfigured( period ) ) {
+                final long burstPeriods = durationMillis / period.getMillis() + 1;
+                maxAllowed = Math.min( maxAllowed, (long) state.getMaxAllowedCallsInPeriod( period ) * burstPeriods );
+            }
+        }
+        return maxAllowed;
+    }
+
+    private ClientLimitState limits( final String clientId ) {
+        final ClientLimitState cached = this.limits.get( clientId );
+        if ( cached != null ) {
+            return cached;
+        }
+        final Map<String, Object> record = this.stateStore.get( new TokenBucketKey( this.hashKey, clientId ) );
+        if ( record == null ) {
+            return null;
+        }
+        final ClientLimitState state = ClientLimitState.fromRecord( record );
+        this.limits.put( clientId, state );
+        return state;
+    }
+}
@@ -0,0 +1,99 @@
+package com.satadru.ratelimiter.loadgen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.satadru.ratelimiter.metrics.LatencyHistogram;
+
+/**
+ * Open-loop load generator. Every worker runs on its own virtual thread (platform thread before Java 21) and sends requests on a
+ * schedule given by the arrival distribution, each for a client ID drawn from a Zipfian distribution.
+ * <p>
+ * The schedule does not wait for slow calls, and the response time is measured from the time a request was scheduled to be sent,
+ * so a stalled target shows up in the latency percentiles instead of silently lowering the offered load (coordinated omission).
+ * The service time is measured from the actual start of the call.
+ */
+public class LoadGenerator {
+
+    private static final Logger logger = Logger.getLogger( LoadGenerator.class.getName() );
+
+    private final LoadProfile profile;
+    private final LoadTarget target;
+    private final ConfiguredLimits limits;
+
+    /**
+     * @param limits limits to check the allowed calls against, null to skip the accuracy report
+     */
+    public LoadGenerator( final LoadProfile profile, final LoadTarget target, final ConfiguredLimits limits ) {
+        this.profile = profile;
+        this.target = target;
+        this.limits = limits;
+    }
+
+    public LoadReport run() throws InterruptedException {
+        final ZipfianGenerator clientRanks = new ZipfianGenerator( this.profile.getClients(), this.profile.getZipfSkew() );
+        final String[] clientIds = new String[this.profile.getClients()];
+        for ( int rank = 0; rank < clientIds.length; rank++ ) {
+            clientIds[rank] = LoadProfile.clientId( rank );
+        }
+        final AtomicLongArray attempts = new AtomicLongArray( clientIds.length );
+        final AtomicLongArray allowed = new AtomicLongArray( clientIds.length );
+        final LongAdder errors = new LongAdder();
+        final LatencyHistogram responseTime = new LatencyHistogram();
+        final LatencyHistogram serviceTime = new LatencyHistogram();
+
+        final double meanGapNanos = this.profile.meanGapNanos();
+        final long startNanos = System.nanoTime();
+        final long endNanos = startNanos + this.profile.getDuration().toNanos();
+        final ThreadFactory threadFactory = VirtualThreads.factory( "load-generator-" );
+        final List<Thread> workers = new ArrayList<>( this.profile.getWorkers() );
+        for ( int worker = 0; worker < this.profile.getWorkers(); worker++ ) {
+            final Thread thread = threadFactory.newThread( () -> {
+                final Random random = ThreadLocalRandom.current();
+                // Random first gap, so that constant arrivals of the workers do not line up
+                long scheduledNanos = startNanos + (long) ( random.nextDouble() * meanGapNanos );
+                while ( scheduledNanos < endNanos ) {
+                    final long waitNanos = scheduledNanos - System.nanoTime();
+                    if ( waitNanos > 0 ) {
+                        LockSupport.parkNanos( waitNanos );
+                        continue;
+                    }
+                    final int rank = clientRanks.next( random );
+                    final long callStartNanos = System.nanoTime();
+                    try {
+                        if ( this.target.call( clientIds[rank] ) ) {
+                            allowed.incrementAndGet( rank );
+                        }
+                    }
+                    catch ( Exception e ) {
+                        errors.increment();
+                        if ( logger.isLoggable( Level.FINE ) ) {
+                            logger.fine( "Call of " + clientIds[rank] + " failed: " + e.getMessage() );
+                        }
+                    }
+                    final long callEndNanos = System.nanoTime();
+                    attempts.incrementAndGet( rank );
+                    serviceTime.record( callEndNanos - callStartNanos );
+                    responseTime.record( callEndNanos - scheduledNanos );
+                    scheduledNanos += this.profile.getArrivalDistribution().nextGapNanos( meanGapNanos, random );
+                }
+            } );
+            thread.start();
+            workers.add( thread );
+        }
+        for ( Thread worker : workers ) {
+            worker.join();
+        }
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        return new LoadReport( this.profile, VirtualThreads.isAvailable(), elapsedNanos, clientIds, attempts, allowed, errors.sum(), responseTime,
+                               serviceTime, this.limits );
+    }
+}
@@ -0,0 +1,188 @@
+package com.satadru.ratelimiter.loadgen;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.satadru.ratelimiter.Dependencies;
+import com.satadru.ratelimiter.LoggingConfig;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.example.CreateOrder;
+import com.satadru.ratelimiter.example.GetOrders;
+import com.satadru.ratelimiter.example.MyHttpRequest;
+import com.satadru.ratelimiter.example.MyHttpResponse;
+import com.satadru.ratelimiter.leakybucket.KeyedEndpointRateLimiter;
+import com.satadru.ratelimiter.leaderelection.SelfElectingLeaderAlgorithm;
+import com.satadru.ratelimiter.leakybucket.SimpleClientIdBasedRateLimiter;
+import com.satadru.ratelimiter.leakybucket.distributed.EventTransportUsageSink;
+import com.satadru.ratelimiter.leakybucket.distributed.RateLimitStateStore;
+import com.satadru.ratelimiter.leakybucket.distributed.StateStoreUsageSink;
+import com.satadru.ratelimiter.leakybucket.distributed.ThrottlingEventConsumer;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.ClientIdTokenBucketCache;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.DynamoDBBackedSimpleClientIdThrottleClientIdBasedRateLimiter;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.EventPartitioner;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.UsageAggregator;
+import com.satadru.ratelimiter.leakybucket.distributed.gcra.GcraClientIdRateLimiter;
+import com.satadru.ratelimiter.leakybucket.distributed.lease.QuotaLeasingClientIdRateLimiter;
+import com.satadru.ratelimiter.leakybucket.distributed.log.MappedLogEventTransport;
+import com.satadru.ratelimiter.leakybucket.distributed.memory.InMemoryRateLimitStateStore;
+import com.satadru.ratelimiter.leakybucket.distributed.redis.RespRateLimitStateStore;
+import com.satadru.ratelimiter.leakybucket.local.StripedLeakyBucketEndpointRateLimiter;
+import com.satadru.ratelimiter.leakybucket.penalty.PenaltyBox;
+import com.satadru.ratelimiter.leakybucket.penalty.PenaltyBoxClientIdRateLimiter;
+import com.satadru.ratelimiter.metrics.RateLimiterMetrics;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+/**
+ * Runs the LoadGenerator against the example APIs with in-memory stand-ins for DynamoDB and SQS, or a RESP server, and prints the report.
+ * <p>
+ * Arguments are name=value pairs, all optional:
+ * workers=1000 clients=10000 rate=20000 duration=20 arrival=POISSON|CONSTANT skew=0.99 target=createOrder|getOrders|clientId seedClients=true
+ * leasing=false gcra=false penaltyBox=false redis=host:port eventLog=directory
+ * <p>
+ * target=clientId calls the clientId rate limiter directly, without the endpoint rate limiter in front of it.
+ * With seedClients=true every generated client gets a copy of the default limits, else only the clients of config/CLIENT_ID_TOKEN_BUCKET.csv
+ * have limits of their own and all the others share the default ones.
+ * With leasing=true the clientId decisions are made by the QuotaLeasingClientIdRateLimiter, with gcra=true by the GcraClientIdRateLimiter.
+ * With penaltyBox=true a PenaltyBox rejects the calls of repeatedly denied clients in front of either of them.
+ * With redis the state is kept in the Redis at host:port.
+ * With eventLog the usage goes through a MappedLogEventTransport in the directory and a ThrottlingEventConsumer instead of being
+ * applied to the state store directly.
+ */
+public class LoadGeneratorMain {
+
+    private static final Logger logger = Logger.getLogger( LoadGeneratorMain.class.getName() );
+    // Held so that the level set on it is not lost with the logger
+    private static final Logger frameworkLogger = Logger.getLogger( "com.satadru" );
+
+    public static void main( final String[] args ) throws InterruptedException {
+        LoggingConfig.configureLogging( Level.WARNING, "config/logging.properties" );
+        // The per call logging of the rate limiters would dominate the measurement
+        frameworkLogger.setLevel( Level.WARNING );
+        final Map<String, String> arguments = parseArguments( args );
+        final LoadProfile profile = new LoadProfile( Integer.parseInt( arguments.getOrDefault( "workers", "1000" ) ),
+                                                     Integer.parseInt( arguments.getOrDefault( "clients", "10000" ) ),
+                                                     Double.parseDouble( arguments.getOrDefault( "rate", "20000" ) ),
+                                                     Duration.ofSeconds( Long.parseLong( arguments.getOrDefault( "duration", "20" ) ) ),
+                                                     ArrivalDistribution.valueOf( arguments.getOrDefault( "arrival", "POISSON" ).toUpperCase() ),
+                                                     Double.parseDouble( arguments.getOrDefault( "skew", "0.99" ) ) );
+        final String target = arguments.getOrDefault( "target", "createOrder" );
+
+        final String redis = arguments.get( "redis" );
+        final Dependencies dependencies;
+        if ( redis == null ) {
+            dependencies = Dependencies.inMemory( Configuration.CLIENT_ID_TOKEN_BUCKET_FILE );
+        }
+        else {
+            final int separator = redis.lastIndexOf( ':' );
+            dependencies = Dependencies.redis( new InetSocketAddress( redis.substring( 0, separator ), Integer.parseInt( redis.substring( separator + 1 ) ) ),
+                                               Configuration.CLIENT_ID_TOKEN_BUCKET_FILE );
+        }
+        final String apiName = "getOrders".equals( target ) ? "getOrders" : "createOrder";
+        final String method = "getOrders".equals( target ) ? "GET" : "POST";
+        final String hashKey = apiName + ":" + method;
+        if ( Boolean.parseBoolean( arguments.getOrDefault( "seedClients", "true" ) ) ) {
+            final RateLimitStateStore stateStore = dependencies.getStateStore();
+            seedClients( stateStore, stateStore instanceof InMemoryRateLimitStateStore ? ( (InMemoryRateLimitStateStore) stateStore )::put
+                                                                                       : ( (RespRateLimitStateStore) stateStore )::put,
+                         hashKey, profile.getClients() );
+        }
+
+        final String eventLog = arguments.get( "eventLog" );
+        final MappedLogEventTransport eventTransport;
+        final ScheduledExecutorService consumerExecutor = Executors.newSingleThreadScheduledExecutor();
+        final UsageAggregator usageAggregator;
+        if ( eventLog == null ) {
+            eventTransport = null;
+            usageAggregator = new UsageAggregator( new StateStoreUsageSink( dependencies.getStateStore() ), Configuration.USAGE_AGGREGATION_WINDOW );
+        }
+        else {
+            eventTransport = new MappedLogEventTransport( Paths.get( eventLog ), Configuration.RATE_LIMITING_EVENT_PARTITIONS, Configuration.EVENT_LOG_CONSUMER_GROUP );
+            usageAggregator = new UsageAggregator( new EventTransportUsageSink( eventTransport, Configuration.PUBLISH_BINARY_THROTTLING_EVENTS ),
+                                                   Configuration.USAGE_AGGREGATION_WINDOW );
+            final ThrottlingEventConsumer consumer = new ThrottlingEventConsumer( dependencies.getStateStore(), eventTransport,
+                                                                                  EventPartitioner.ownedPartitions( 0, 1, eventTransport.getPartitionCount() ),
+                                                                                  new SelfElectingLeaderAlgorithm(), Configuration.EVENT_LOG_MAX_POLL_EVENTS );
+            consumerExecutor.scheduleWithFixedDelay( consumer::updateTokens, 0, Configuration.USAGE_AGGREGATION_WINDOW.toMillis(), TimeUnit.MILLISECONDS );
+        }
+        final ClientIdTokenBucketCache tokenBucketCache = new ClientIdTokenBucketCache( dependencies.getStateStore() );
+        final SimpleClientIdBasedRateLimiter decidingRateLimiter;
+        if ( Boolean.parseBoolean( arguments.getOrDefault( "gcra", "false" ) ) ) {
+            decidingRateLimiter = new GcraClientIdRateLimiter( tokenBucketCache, dependencies.getStateStore() );
+        }
+        else if ( Boolean.parseBoolean( arguments.getOrDefault( "leasing", "false" ) ) ) {
+            decidingRateLimiter = new QuotaLeasingClientIdRateLimiter( tokenBucketCache, dependencies.getStateStore() );
+        }
+        else {
+            decidingRateLimiter = new DynamoDBBackedSimpleClientIdThrottleClientIdBasedRateLimiter( tokenBucketCache, usageAggregator );
+        }
+        final SimpleClientIdBasedRateLimiter clientIdBasedRateLimiter = Boolean.parseBoolean( arguments.getOrDefault( "penaltyBox", "false" ) )
+                                                                        ? new PenaltyBoxClientIdRateLimiter( decidingRateLimiter, new PenaltyBox() )
+                                                                        : decidingRateLimiter;
+        final KeyedEndpointRateLimiter endpointRateLimiter = new StripedLeakyBucketEndpointRateLimiter( Configuration.ENDPOINT_RATE_LIMITS_FILE );
+        final LoadTarget loadTarget;
+        if ( "clientId".equals( target ) ) {
+            loadTarget = clientId -> clientIdBasedRateLimiter.consume( apiName, method, clientId );
+        }
+        else if ( "getOrders".equals( target ) ) {
+            final GetOrders getOrders = new GetOrders( clientIdBasedRateLimiter, endpointRateLimiter );
+            loadTarget = clientId -> getOrders.getOrders( new MyHttpRequest( apiName, method, clientId, null ) ).getResponseCode() == MyHttpResponse.HTTP_OK;
+        }
+        else {
+            final CreateOrder createOrder = new CreateOrder( clientIdBasedRateLimiter, endpointRateLimiter );
+            loadTarget = clientId -> createOrder.createOrder( new MyHttpRequest( apiName, method, clientId, null ) ).getResponseCode() == MyHttpResponse.HTTP_OK;
+        }
+
+        logger.warning( "Generating load: " + profile + " target=" + target );
+        final LoadReport report = new LoadGenerator( profile, loadTarget, new ConfiguredLimits( dependencies.getStateStore(), hashKey ) ).run();
+        usageAggregator.close();
+        tokenBucketCache.close();
+        consumerExecutor.shutdown();
+        if ( eventTransport != null ) {
+            consumerExecutor.awaitTermination( 1, TimeUnit.SECONDS );
+            eventTransport.close();
+        }
+        System.out.println( report );
+        System.out.println( "Metrics:" );
+        for ( Map.Entry<String, Long> metric : RateLimiterMetrics.get().snapshot().entrySet() ) {
+            if ( metric.getValue() != 0 ) {
+                System.out.println( "  " + metric.getKey() + " = " + metric.getValue() );
+            }
+        }
+    }
+
+    private static void seedClients( final RateLimitStateStore stateStore, final BiConsumer<TokenBucketKey, Map<String, Object>> put,
+                                     final String hashKey, final int clients ) {
+        final Map<String, Object> defaultRecord = stateStore.get( new TokenBucketKey( hashKey, Configuration.DEFAULT_CLIENT_ID ) );
+        if ( defaultRecord == null ) {
+            logger.warning( "No default limits for " + hashKey + ", the clients are not seeded" );
+            return;
+        }
+        for ( int rank = 0; rank < clients; rank++ ) {
+            final TokenBucketKey key = new TokenBucketKey( hashKey, LoadProfile.clientId( rank ) );
+            if ( stateStore.get( key ) == null ) {
+                put.accept( key, defaultRecord );
+            }
+        }
+    }
+
+    private static Map<String, String> parseArguments( final String[] args ) {
+        final Map<String, String> arguments = new HashMap<>();
+        for ( String arg : args ) {
+            final int separator = arg.indexOf( '=' );
+            if ( separator <= 0 ) {
+                throw new IllegalArgumentException( "Expected name=value but was " + arg );
+            }
+            arguments.put( arg.substring( 0, separator ), arg.substring( separator + 1 ) );
+        }
+        return arguments;
+    }
+}
@@ -0,0 +1,79 @@
+package com.satadru.ratelimiter.loadgen;
+
+import java.time.Duration;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Shape of the load: concurrent workers, the total open-loop request rate spread over them, and the client IDs drawn for every request
+ */
+public class LoadProfile {
+
+    private final int workers;
+    private final int clients;
+    private final double requestsPerSecond;
+    private final Duration duration;
+    private final ArrivalDistribution arrivalDistribution;
+    private final double zipfSkew;
+
+    /**
+     * @param workers             concurrent simulated callers, each on its own (virtual) thread
+     * @param clients             distinct client IDs, client0 to client(clients-1)
+     * @param requestsPerSecond   target rate of all workers together
+     * @param arrivalDistribution gaps between the requests of a worker
+     * @param zipfSkew            skew of the client IDs, 0 for uniform, see ZipfianGenerator
+     */
+    public LoadProfile( final int workers, final int clients, final double requestsPerSecond, final Duration duration,
+                        final ArrivalDistribution arrivalDistribution, final double zipfSkew ) {
+        Preconditions.checkArgument( workers > 0, "workers must be positive" );
+        Preconditions.checkArgument( clients > 0, "clients must be positive" );
+        Preconditions.checkArgument( requestsPerSecond > 0, "requestsPerSecond must be positive" );
+        this.workers = workers;
+        this.clients = clients;
+        this.requestsPerSecond = requestsPerSecond;
+        this.duration = duration;
+        this.arrivalDistribution = arrivalDistribution;
+        this.zipfSkew = zipfSkew;
+    }
+
+    public static String clientId( final int rank ) {
+        return "client" + rank;
+    }
+
+    public int getWorkers() {
+        return this.workers;
+    }
+
+    public int getClients() {
+        return this.clients;
+    }
+
+    public double getRequestsPerSecond() {
+        return this.requestsPerSecond;
+    }
+
+    public Duration getDuration() {
+        return this.duration;
+    }
+
+    public ArrivalDistribution getArrivalDistribution() {
+        return this.arrivalDistribution;
+    }
+
+    public double getZipfSkew() {
+        return this.zipfSkew;
+    }
+
+    /**
+     * @return mean time between two requests of a worker
+     */
+    public double meanGapNanos() {
+        return this.workers * 1e9 / this.requestsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return String.format( "workers=%d clients=%d rate=%.0f/s duration=%ds arrival=%s skew=%.2f", this.workers, this.clients, this.requestsPerSecond,
+                              this.duration.getSeconds(), this.arrivalDistribution, this.zipfSkew );
+    }
+}
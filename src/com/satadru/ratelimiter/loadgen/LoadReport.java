@@ -0,0 +1,170 @@
+package com.satadru.ratelimiter.loadgen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.satadru.ratelimiter.metrics.LatencyHistogram;
+
+/**
+ * Result of a LoadGenerator run: throughput, allowed and denied calls, latencies and how far the allowed calls are from the configured limits.
+ * <p>
+ * The accuracy is computed per limit key, i.e. per client with its own limits plus one key for all the clients on the default limits.
+ * Calls allowed above the upper bound of ConfiguredLimits.maxAllowed() are over-admitted. Calls denied while the key was below the bound
+ * are counted as under-admitted, which is an upper estimate since the burst periods of a correct limiter need not line up with the run.
+ */
+public class LoadReport {
+
+    private static final int WORST_KEYS = 5;
+
+    private final LoadProfile profile;
+    private final boolean virtualThreads;
+    private final long elapsedNanos;
+    private final long attempts;
+    private final long allowed;
+    private final long errors;
+    private final LatencyHistogram responseTime;
+    private final LatencyHistogram serviceTime;
+    private final List<KeyAccuracy> keyAccuracies = new ArrayList<>();
+    private long overAdmitted;
+    private long underAdmitted;
+
+    LoadReport( final LoadProfile profile, final boolean virtualThreads, final long elapsedNanos, final String[] clientIds, final AtomicLongArray attempts,
+                final AtomicLongArray allowed, final long errors, final LatencyHistogram responseTime, final LatencyHistogram serviceTime,
+                final ConfiguredLimits limits ) {
+        this.profile = profile;
+        this.virtualThreads = virtualThreads;
+        this.elapsedNanos = elapsedNanos;
+        this.errors = errors;
+        this.responseTime = responseTime;
+        this.serviceTime = serviceTime;
+        long totalAttempts = 0;
+        long totalAllowed = 0;
+        final Map<String, long[]> countsByLimitKey = new HashMap<>();
+        for ( int rank = 0; rank < clientIds.length; rank++ ) {
+            totalAttempts += attempts.get( rank );
+            totalAllowed += allowed.get( rank );
+            if ( limits != null && attempts.get( rank ) > 0 ) {
+                final long[] counts = countsByLimitKey.computeIfAbsent( limits.limitKey( clientIds[rank] ), k -> new long[2] );
+                counts[0] += attempts.get( rank );
+                counts[1] += allowed.get( rank );
+            }
+        }
+        this.attempts = totalAttempts;
+        this.allowed = totalAllowed;
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis( elapsedNanos );
+        for ( Map.Entry<String, long[]> entry : countsByLimitKey.entrySet() ) {
+            final KeyAccuracy keyAccuracy = new KeyAccuracy( entry.getKey(), entry.getValue()[0], entry.getValue()[1],
+                                                             limits.maxAllowed( entry.getKey(), elapsedMillis ) );
+            this.overAdmitted += keyAccuracy.getOverAdmitted();
+            this.underAdmitted += keyAccuracy.getUnderAdmitted();
+            this.keyAccuracies.add( keyAccuracy );
+        }
+        this.keyAccuracies.sort( ( a, b ) -> Long.compare( b.getOverAdmitted() + b.getUnderAdmitted(), a.getOverAdmitted() + a.getUnderAdmitted() ) );
+    }
+
+    /**
+     * @return completed calls per second
+     */
+    public double getThroughput() {
+        return this.attempts * 1e9 / this.elapsedNanos;
+    }
+
+    public long getAttempts() {
+        return this.attempts;
+    }
+
+    public long getAllowed() {
+        return this.allowed;
+    }
+
+    public long getDenied() {
+        return this.attempts - this.allowed - this.errors;
+    }
+
+    public long getErrors() {
+        return this.errors;
+    }
+
+    public LatencyHistogram getResponseTime() {
+        return this.responseTime;
+    }
+
+    public LatencyHistogram getServiceTime() {
+        return this.serviceTime;
+    }
+
+    public long getOverAdmitted() {
+        return this.overAdmitted;
+    }
+
+    public long getUnderAdmitted() {
+        return this.underAdmitted;
+    }
+
+    /**
+     * @return share of the calls which got the decision of a correct limiter, 1 without limits to compare with
+     */
+    public double getAccuracy() {
+        return this.attempts == 0 ? 1 : 1 - (double) ( this.overAdmitted + this.underAdmitted ) / this.attempts;
+    }
+
+    public List<KeyAccuracy> getKeyAccuracies() {
+        return this.keyAccuracies;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder report = new StringBuilder();
+        report.append( "Load: " ).append( this.profile ).append( this.virtualThreads ? " on virtual threads" : " on platform threads" ).append( '\n' );
+        report.append( String.format( "Throughput: %.0f calls/s over %.1f s (offered %.0f/s)%n", this.getThroughput(), this.elapsedNanos / 1e9,
+                                      this.profile.getRequestsPerSecond() ) );
+        report.append( String.format( "Calls: %d allowed, %d denied, %d errors%n", this.allowed, this.getDenied(), this.errors ) );
+        report.append( "Response time: " ).append( this.responseTime.summary( TimeUnit.MICROSECONDS ) ).append( '\n' );
+        report.append( "Service time:  " ).append( this.serviceTime.summary( TimeUnit.MICROSECONDS ) ).append( '\n' );
+        if ( !this.keyAccuracies.isEmpty() ) {
+            report.append( String.format( "Accuracy: %.4f, %d over-admitted, %d under-admitted over %d limit keys%n", this.getAccuracy(), this.overAdmitted,
+                                          this.underAdmitted, this.keyAccuracies.size() ) );
+            for ( KeyAccuracy keyAccuracy : this.keyAccuracies.subList( 0, Math.min( WORST_KEYS, this.keyAccuracies.size() ) ) ) {
+                report.append( "  " ).append( keyAccuracy ).append( '\n' );
+            }
+        }
+        return report.toString();
+    }
+
+    public static class KeyAccuracy {
+        private final String limitKey;
+        private final long attempts;
+        private final long allowed;
+        private final long maxAllowed;
+
+        KeyAccuracy( final String limitKey, final long attempts, final long allowed, final long maxAllowed ) {
+            this.limitKey = limitKey;
+            this.attempts = attempts;
+            this.allowed = allowed;
+            this.maxAllowed = maxAllowed;
+        }
+
+        public String getLimitKey() {
+            return this.limitKey;
+        }
+
+        public long getOverAdmitted() {
+            return Math.max( 0, this.allowed - this.maxAllowed );
+        }
+
+        public long getUnderAdmitted() {
+            return Math.max( 0, Math.min( this.attempts, this.maxAllowed ) - this.allowed );
+        }
+
+        @Override
+        public String toString() {
+            return String.format( "%s: %d attempts, %d allowed, at most %s expected, %d over, %d under", this.limitKey, this.attempts, this.allowed,
+                                  this.maxAllowed == Long.MAX_VALUE ? "unlimited" : String.valueOf( this.maxAllowed ), this.getOverAdmitted(),
+                                  this.getUnderAdmitted() );
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.satadru.ratelimiter.loadgen;
+
+/**
+ * What the load generator calls, e.g. an example API or a rate limiter directly
+ */
+@FunctionalInterface
+public interface LoadTarget {
+
+    /**
+     * @return true if the call was allowed, false if it was throttled. Any exception is counted as an error
+     */
+    boolean call( String clientId ) throws Exception;
+}
@@ -0,0 +1,43 @@
+package com.satadru.ratelimiter.loadgen;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Thread factory for the simulated clients. Virtual threads are looked up reflectively since the framework is built for Java 8,
+ * on a JVM without them the clients run on daemon platform threads.
+ */
+final class VirtualThreads {
+
+    private static final Logger logger = Logger.getLogger( VirtualThreads.class.getName() );
+
+    private VirtualThreads() {
+    }
+
+    static ThreadFactory factory( final String namePrefix ) {
+        try {
+            final Method ofVirtual = Thread.class.getMethod( "ofVirtual" );
+            final Object builder = ofVirtual.invoke( null );
+            final Class<?> builderClass = Class.forName( "java.lang.Thread$Builder" );
+            final Object namedBuilder = builderClass.getMethod( "name", String.class, long.class ).invoke( builder, namePrefix, 0L );
+            return (ThreadFactory) builderClass.getMethod( "factory" ).invoke( namedBuilder );
+        }
+        catch ( ReflectiveOperationException e ) {
+            logger.info( "Virtual threads are not available, using platform threads" );
+            return new ThreadFactoryBuilder().setDaemon( true ).setNameFormat( namePrefix + "%d" ).build();
+        }
+    }
+
+    static boolean isAvailable() {
+        try {
+            Thread.class.getMethod( "ofVirtual" );
+            return true;
+        }
+        catch ( NoSuchMethodException e ) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.satadru.ratelimiter.loadgen;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Draws ranks 0..n-1 where rank k has a probability proportional to 1 / (k + 1)^skew.
+ * A skew of 0 is uniform, 1 is the classic Zipf distribution where a few hot keys get most of the traffic.
+ * Immutable, a draw is a binary search in the precomputed cumulative distribution.
+ */
+public class ZipfianGenerator {
+
+    private final double[] cumulative;
+
+    public ZipfianGenerator( final int n, final double skew ) {
+        Preconditions.checkArgument( n > 0, "n must be positive" );
+        Preconditions.checkArgument( skew >= 0, "skew must not be negative" );
+        this.cumulative = new double[n];
+        double total = 0;
+        for ( int k = 0; k < n; k++ ) {
+            total += 1 / Math.pow( k + 1, skew );
+            this.cumulative[k] = total;
+        }
+        for ( int k = 0; k < n; k++ ) {
+            this.cumulative[k] /= total;
+        }
+    }
+
+    public int next( final Random random ) {
+        final int index = Arrays.binarySearch( this.cumulative, random.nextDouble() );
+        final int rank = index >= 0 ? index : -index - 1;
+        return Math.min( rank, this.cumulative.length - 1 );
+    }
+
+    /**
+     * @return the probability of the rank
+     */
+    public double probability( final int rank ) {
+        return rank == 0 ? this.cumulative[0] : this.cumulative[rank] - this.cumulative[rank - 1];
+    }
+
+    public int size() {
+        return this.cumulative.length;
+    }
+}
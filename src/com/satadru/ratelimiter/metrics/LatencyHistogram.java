@@ -0,0 +1,142 @@
+package com.satadru.ratelimiter.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of non-negative values (latencies in nanoseconds) with log-linear buckets in the style of HdrHistogram:
+ * values below 128 are exact, above that every power of two is split into 64 buckets, so a value is reported within 1/64 (1.6%)
+ * of the recorded one over the whole range of long. Recording is one array increment and never allocates.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+    private static final int BUCKETS = bucketIndex( Long.MAX_VALUE ) + 1;
+    private static final AtomicLongFieldUpdater<LatencyHistogram> MAX_UPDATER = AtomicLongFieldUpdater.newUpdater( LatencyHistogram.class, "max" );
+
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private volatile long max;
+
+    public void record( final long value ) {
+        final long clamped = Math.max( 0, value );
+        this.counts.incrementAndGet( bucketIndex( clamped ) );
+        this.count.increment();
+        this.sum.add( clamped );
+        long currentMax;
+        while ( clamped > ( currentMax = this.max ) ) {
+            if ( MAX_UPDATER.compareAndSet( this, currentMax, clamped ) ) {
+                break;
+            }
+        }
+    }
+
+    public void recordNanosSince( final long startNanos ) {
+        this.record( System.nanoTime() - startNanos );
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public long getMax() {
+        return this.max;
+    }
+
+    public double getMean() {
+        final long count = this.getCount();
+        return count == 0 ? 0 : (double) this.sum.sum() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value equivalent to the recorded value at the percentile, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile( final double percentile ) {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            snapshot[i] = this.counts.get( i );
+            total += snapshot[i];
+        }
+        if ( total == 0 ) {
+            return 0;
+        }
+        final long rank = Math.max( 1, (long) Math.ceil( Math.min( 100, percentile ) / 100 * total ) );
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            seen += snapshot[i];
+            if ( seen >= rank ) {
+                return Math.min( highestEquivalentValue( i ), this.max );
+            }
+        }
+        return this.max;
+    }
+
+    /**
+     * Adds the recorded values of the other histogram to this one
+     */
+    public void add( final LatencyHistogram other ) {
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            final long otherCount = other.counts.get( i );
+            if ( otherCount != 0 ) {
+                this.counts.addAndGet( i, otherCount );
+            }
+        }
+        this.count.add( other.count.sum() );
+        this.sum.add( other.sum.sum() );
+        long currentMax;
+        final long otherMax = other.max;
+        while ( otherMax > ( currentMax = this.max ) ) {
+            if ( MAX_UPDATER.compareAndSet( this, currentMax, otherMax ) ) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Not atomic with concurrent recording, values recorded during the reset may be lost
+     */
+    public void reset() {
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            this.counts.set( i, 0 );
+        }
+        this.count.reset();
+        this.sum.reset();
+        this.max = 0;
+    }
+
+    /**
+     * @return count, mean, p50, p99, p99.9 and max in the passed unit, the values being recorded in nanoseconds
+     */
+    public String summary( final TimeUnit unit ) {
+        final double nanosPerUnit = unit.toNanos( 1 );
+        return String.format( "count=%d mean=%.1f p50=%.1f p99=%.1f p99.9=%.1f max=%.1f (%s)", this.getCount(), this.getMean() / nanosPerUnit,
+                              this.getValueAtPercentile( 50 ) / nanosPerUnit, this.getValueAtPercentile( 99 ) / nanosPerUnit,
+                              this.getValueAtPercentile( 99.9 ) / nanosPerUnit, this.getMax() / nanosPerUnit, unit.name().toLowerCase() );
+    }
+
+    private static int bucketIndex( final long value ) {
+        if ( value < SUB_BUCKET_COUNT ) {
+            return (int) value;
+        }
+        // Shift which brings the value into [SUB_BUCKET_HALF_COUNT, SUB_BUCKET_COUNT)
+        final int shift = 63 - Long.numberOfLeadingZeros( value ) - SUB_BUCKET_HALF_BITS;
+        return ( shift << SUB_BUCKET_HALF_BITS ) + (int) ( value >>> shift );
+    }
+
+    private static long highestEquivalentValue( final int index ) {
+        if ( index < SUB_BUCKET_COUNT ) {
+            return index;
+        }
+        final int shift = ( index >>> SUB_BUCKET_HALF_BITS ) - 1;
+        final long subBucket = index - ( (long) shift << SUB_BUCKET_HALF_BITS );
+        final long highest = ( ( subBucket + 1 ) << shift ) - 1;
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+}
@@ -0,0 +1,15 @@
+package com.satadru.ratelimiter.metrics;
+
+/**
+ * Outcome of the check of a single period by the clientId rate limiter, and why
+ */
+public enum PeriodOutcome {
+    // The observed rate is below the maximum rate
+    ALLOWED_UNDER_RATE,
+    // The observed rate is at the maximum rate but the calls of the burst period are not used up
+    ALLOWED_BURST,
+    // The observed rate is at the maximum rate and the calls of the burst period are used up
+    DENIED_RATE_AND_BURST_EXCEEDED,
+    // The calls of the burst period are used up
+    DENIED_BURST_EXCEEDED
+}
@@ -0,0 +1,306 @@
+package com.satadru.ratelimiter.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.satadru.ratelimiter.configurations.Period;
+
+/**
+ * Counters and latency histograms of the rate limiters, the calls to AWS and Redis and the throttling message consumer.
+ * <p>
+ * Counters are LongAdders, which stripe the increments of concurrent threads over cells instead of contending on a single value,
+ * and histograms are LatencyHistograms, so recording on the request path is a few uncontended increments without allocation or locking.
+ * The metrics are read with snapshot() or over JMX once registerMBean() was called.
+ */
+public class RateLimiterMetrics implements RateLimiterMetricsMXBean {
+
+    private static final Logger logger = Logger.getLogger( RateLimiterMetrics.class.getName() );
+
+    public static final String OBJECT_NAME = "com.satadru.ratelimiter:type=RateLimiterMetrics";
+
+    private static final PeriodOutcome[] PERIOD_OUTCOMES = PeriodOutcome.values();
+    private static final RemoteCall[] REMOTE_CALLS = RemoteCall.values();
+    private static final RateLimiterMetrics INSTANCE = new RateLimiterMetrics();
+
+    private final LongAdder clientIdAllowed = new LongAdder();
+    private final LongAdder clientIdDenied = new LongAdder();
+    private final LongAdder defaultClientDecisions = new LongAdder();
+    private final LongAdder endpointAllowed = new LongAdder();
+    private final LongAdder endpointDenied = new LongAdder();
+    // Indexed by Period ordinal * PERIOD_OUTCOMES.length + PeriodOutcome ordinal
+    private final LongAdder[] periodOutcomes = newCounters( Period.count() * PERIOD_OUTCOMES.length );
+    // Indexed by RemoteCall ordinal
+    private final LatencyHistogram[] remoteCallLatencies = new LatencyHistogram[REMOTE_CALLS.length];
+    private final LongAdder[] remoteCallErrors = newCounters( REMOTE_CALLS.length );
+    private final LongAdder consumedMessages = new LongAdder();
+    private final LongAdder consumerFailedKeys = new LongAdder();
+    private final LongAdder consumerMalformedEvents = new LongAdder();
+    private final LatencyHistogram consumerBatchSize = new LatencyHistogram();
+    private final LatencyHistogram consumerLagMillis = new LatencyHistogram();
+    private final LongAdder quotaLeases = new LongAdder();
+    private final LongAdder quotaLeaseRequestedPermits = new LongAdder();
+    private final LongAdder quotaLeaseGrantedPermits = new LongAdder();
+    private final LongAdder penaltyBoxSentences = new LongAdder();
+    private final LongAdder penaltyBoxRejections = new LongAdder();
+
+    public RateLimiterMetrics() {
+        for ( int i = 0; i < this.remoteCallLatencies.length; i++ ) {
+            this.remoteCallLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @return the metrics shared by all the components of the JVM
+     */
+    public static RateLimiterMetrics get() {
+        return INSTANCE;
+    }
+
+    public void clientIdDecision( final boolean allowed ) {
+        ( allowed ? this.clientIdAllowed : this.clientIdDenied ).increment();
+    }
+
+    /**
+     * A decision for an unknown clientId, made with the limits of the default client
+     */
+    public void defaultClientDecision() {
+        this.defaultClientDecisions.increment();
+    }
+
+    public void endpointDecision( final boolean allowed ) {
+        ( allowed ? this.endpointAllowed : this.endpointDenied ).increment();
+    }
+
+    public void periodOutcome( final Period period, final PeriodOutcome outcome ) {
+        this.periodOutcomes[period.ordinal() * PERIOD_OUTCOMES.length + outcome.ordinal()].increment();
+    }
+
+    /**
+     * Times a call to AWS. A call which throws is counted as an error of the call
+     */
+    public <T> T time( final RemoteCall remoteCall, final Supplier<T> call ) {
+        final long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            final T result = call.get();
+            failed = false;
+            return result;
+        }
+        finally {
+            this.remoteCall( remoteCall, startNanos, failed );
+        }
+    }
+
+    /**
+     * Records a remote call which completed asynchronously
+     *
+     * @param startNanos System.nanoTime() when the call was started
+     */
+    public void remoteCall( final RemoteCall remoteCall, final long startNanos, final boolean failed ) {
+        this.remoteCallLatencies[remoteCall.ordinal()].recordNanosSince( startNanos );
+        if ( failed ) {
+            this.remoteCallErrors[remoteCall.ordinal()].increment();
+        }
+    }
+
+    /**
+     * @param messages messages received by one receive of the consumer
+     */
+    public void consumerBatch( final int messages ) {
+        this.consumerBatchSize.record( messages );
+        this.consumedMessages.add( messages );
+    }
+
+    /**
+     * @param lagMillis time between the last call summarized by a message and its consumption
+     */
+    public void consumerLag( final long lagMillis ) {
+        this.consumerLagMillis.record( lagMillis );
+    }
+
+    public void consumerFailedKeys( final int failedKeys ) {
+        this.consumerFailedKeys.add( failedKeys );
+    }
+
+    /**
+     * An event which could not be decoded and was acknowledged without being applied
+     */
+    public void consumerMalformedEvent() {
+        this.consumerMalformedEvents.increment();
+    }
+
+    /**
+     * A lease of quota from the store, see QuotaLeasingClientIdRateLimiter
+     */
+    public void quotaLease( final long requestedPermits, final long grantedPermits ) {
+        this.quotaLeases.increment();
+        this.quotaLeaseRequestedPermits.add( requestedPermits );
+        this.quotaLeaseGrantedPermits.add( grantedPermits );
+    }
+
+    /**
+     * A client and API put into the PenaltyBox for a cooldown
+     */
+    public void penaltyBoxSentence() {
+        this.penaltyBoxSentences.increment();
+    }
+
+    /**
+     * A call rejected by the PenaltyBox without asking the rate limiter
+     */
+    public void penaltyBoxRejection() {
+        this.penaltyBoxRejections.increment();
+    }
+
+    public LatencyHistogram getRemoteCallLatency( final RemoteCall remoteCall ) {
+        return this.remoteCallLatencies[remoteCall.ordinal()];
+    }
+
+    public long getPeriodOutcomes( final Period period, final PeriodOutcome outcome ) {
+        return this.periodOutcomes[period.ordinal() * PERIOD_OUTCOMES.length + outcome.ordinal()].sum();
+    }
+
+    @Override
+    public long getClientIdAllowed() {
+        return this.clientIdAllowed.sum();
+    }
+
+    @Override
+    public long getClientIdDenied() {
+        return this.clientIdDenied.sum();
+    }
+
+    @Override
+    public long getDefaultClientDecisions() {
+        return this.defaultClientDecisions.sum();
+    }
+
+    @Override
+    public long getEndpointAllowed() {
+        return this.endpointAllowed.sum();
+    }
+
+    @Override
+    public long getEndpointDenied() {
+        return this.endpointDenied.sum();
+    }
+
+    @Override
+    public long getConsumedMessages() {
+        return this.consumedMessages.sum();
+    }
+
+    @Override
+    public Map<String, Long> getSnapshot() {
+        return this.snapshot();
+    }
+
+    /**
+     * Point in time copy of every metric by name, e.g. clientId.denied, period.second.DENIED_BURST_EXCEEDED,
+     * remote.DYNAMODB_BATCH_GET_ITEM.p99Micros or consumer.lagMillis.p99. The counters are read one by one and not atomically together.
+     */
+    public Map<String, Long> snapshot() {
+        final Map<String, Long> snapshot = new TreeMap<>();
+        snapshot.put( "clientId.allowed", this.getClientIdAllowed() );
+        snapshot.put( "clientId.denied", this.getClientIdDenied() );
+        snapshot.put( "clientId.defaultClient", this.getDefaultClientDecisions() );
+        snapshot.put( "endpoint.allowed", this.getEndpointAllowed() );
+        snapshot.put( "endpoint.denied", this.getEndpointDenied() );
+        for ( Period period : Period.values() ) {
+            for ( PeriodOutcome outcome : PERIOD_OUTCOMES ) {
+                snapshot.put( "period." + period.getKey() + "." + outcome.name(), this.getPeriodOutcomes( period, outcome ) );
+            }
+        }
+        for ( RemoteCall remoteCall : REMOTE_CALLS ) {
+            final LatencyHistogram latency = this.remoteCallLatencies[remoteCall.ordinal()];
+            final String prefix = "remote." + remoteCall.name() + ".";
+            snapshot.put( prefix + "count", latency.getCount() );
+            snapshot.put( prefix + "errors", this.remoteCallErrors[remoteCall.ordinal()].sum() );
+            snapshot.put( prefix + "p50Micros", TimeUnit.NANOSECONDS.toMicros( latency.getValueAtPercentile( 50 ) ) );
+            snapshot.put( prefix + "p99Micros", TimeUnit.NANOSECONDS.toMicros( latency.getValueAtPercentile( 99 ) ) );
+            snapshot.put( prefix + "p999Micros", TimeUnit.NANOSECONDS.toMicros( latency.getValueAtPercentile( 99.9 ) ) );
+            snapshot.put( prefix + "maxMicros", TimeUnit.NANOSECONDS.toMicros( latency.getMax() ) );
+        }
+        snapshot.put( "consumer.messages", this.getConsumedMessages() );
+        snapshot.put( "consumer.failedKeys", this.consumerFailedKeys.sum() );
+        snapshot.put( "consumer.malformedEvents", this.consumerMalformedEvents.sum() );
+        snapshot.put( "consumer.batches", this.consumerBatchSize.getCount() );
+        snapshot.put( "consumer.batchSize.p50", this.consumerBatchSize.getValueAtPercentile( 50 ) );
+        snapshot.put( "consumer.batchSize.max", this.consumerBatchSize.getMax() );
+        snapshot.put( "consumer.lagMillis.p50", this.consumerLagMillis.getValueAtPercentile( 50 ) );
+        snapshot.put( "consumer.lagMillis.p99", this.consumerLagMillis.getValueAtPercentile( 99 ) );
+        snapshot.put( "consumer.lagMillis.max", this.consumerLagMillis.getMax() );
+        snapshot.put( "quotaLease.leases", this.quotaLeases.sum() );
+        snapshot.put( "quotaLease.requestedPermits", this.quotaLeaseRequestedPermits.sum() );
+        snapshot.put( "quotaLease.grantedPermits", this.quotaLeaseGrantedPermits.sum() );
+        snapshot.put( "penaltyBox.sentences", this.penaltyBoxSentences.sum() );
+        snapshot.put( "penaltyBox.rejected", this.penaltyBoxRejections.sum() );
+        return snapshot;
+    }
+
+    /**
+     * Not atomic with concurrent recording
+     */
+    @Override
+    public void reset() {
+        this.clientIdAllowed.reset();
+        this.clientIdDenied.reset();
+        this.defaultClientDecisions.reset();
+        this.endpointAllowed.reset();
+        this.endpointDenied.reset();
+        for ( LongAdder counter : this.periodOutcomes ) {
+            counter.reset();
+        }
+        for ( int i = 0; i < REMOTE_CALLS.length; i++ ) {
+            this.remoteCallLatencies[i].reset();
+            this.remoteCallErrors[i].reset();
+        }
+        this.consumedMessages.reset();
+        this.consumerFailedKeys.reset();
+        this.consumerMalformedEvents.reset();
+        this.consumerBatchSize.reset();
+        this.consumerLagMillis.reset();
+        this.quotaLeases.reset();
+        this.quotaLeaseRequestedPermits.reset();
+        this.quotaLeaseGrantedPermits.reset();
+        this.penaltyBoxSentences.reset();
+        this.penaltyBoxRejections.reset();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as {@link #OBJECT_NAME}, once
+     *
+     * @return false if they could not be registered
+     */
+    public synchronized boolean registerMBean() {
+        try {
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = new ObjectName( OBJECT_NAME );
+            if ( !mBeanServer.isRegistered( objectName ) ) {
+                mBeanServer.registerMBean( this, objectName );
+            }
+            return true;
+        }
+        catch ( JMException e ) {
+            logger.warning( "Failed to register the rate limiter metrics with JMX: " + e.getMessage() );
+            return false;
+        }
+    }
+
+    private static LongAdder[] newCounters( final int count ) {
+        final LongAdder[] counters = new LongAdder[count];
+        for ( int i = 0; i < count; i++ ) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+}
@@ -0,0 +1,28 @@
+package com.satadru.ratelimiter.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of RateLimiterMetrics, registered as {@link RateLimiterMetrics#OBJECT_NAME}
+ */
+public interface RateLimiterMetricsMXBean {
+
+    long getClientIdAllowed();
+
+    long getClientIdDenied();
+
+    long getDefaultClientDecisions();
+
+    long getEndpointAllowed();
+
+    long getEndpointDenied();
+
+    long getConsumedMessages();
+
+    /**
+     * @return every metric by name, see RateLimiterMetrics.snapshot()
+     */
+    Map<String, Long> getSnapshot();
+
+    void reset();
+}
@@ -0,0 +1,17 @@
+package com.satadru.ratelimiter.metrics;
+
+/**
+ * Calls to AWS and Redis which are timed by RateLimiterMetrics
+ */
+public enum RemoteCall {
+    DYNAMODB_GET_ITEM,
+    DYNAMODB_BATCH_GET_ITEM,
+    DYNAMODB_BATCH_WRITE_ITEM,
+    DYNAMODB_UPDATE_ITEM,
+    SQS_SEND_MESSAGE,
+    SQS_SEND_MESSAGE_BATCH,
+    SQS_RECEIVE_MESSAGE,
+    SQS_DELETE_MESSAGE_BATCH,
+    REDIS_COMMAND,
+    REDIS_SCRIPT
+}
@@ -0,0 +1,30 @@
+package com.satadru.ratelimiter.pojo;
+
+/**
+ * Outcome of RateLimitStateStore.advanceArrivalTimes(): the theoretical arrival times of a key and whether the call advanced them
+ */
+public class ArrivalTimes {
+
+    private final long[] times;
+    private final boolean advanced;
+
+    /**
+     * @param times    epoch microseconds indexed by Period ordinal, not copied
+     * @param advanced true if the call was allowed and times are the ones it wrote
+     */
+    public ArrivalTimes( final long[] times, final boolean advanced ) {
+        this.times = times;
+        this.advanced = advanced;
+    }
+
+    /**
+     * @return the times after the call if it was allowed, else the times it was denied by. Must not be modified
+     */
+    public long[] getTimes() {
+        return this.times;
+    }
+
+    public boolean isAdvanced() {
+        return this.advanced;
+    }
+}
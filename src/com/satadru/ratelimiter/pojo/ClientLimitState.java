@@ -0,0 +1,144 @@
+package com.satadru.ratelimiter.pojo;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+
+/**
+ * Immutable, decoded form of a CLIENT_ID_TOKEN_BUCKET record: the limits and the observed usage of every period in primitive arrays
+ * indexed by Period ordinal. A record is decoded once when it is loaded, so a decision only reads fields and arrays.
+ */
+public final class ClientLimitState {
+
+    private final String hashKey;
+    private final String clientId;
+    // Bit per Period ordinal, set if the period is configured for the client
+    private final int configuredMask;
+    private final long[] lastUpdated;
+    private final long[] lastUpdatedBurst;
+    private final double[] maxAllowedRate;
+    private final double[] rate;
+    private final double[] maxAllowedCallsInPeriod;
+    private final double[] callsInPeriod;
+
+    /**
+     * The arrays are indexed by Period ordinal and copied, entries of periods which are not configured are ignored
+     */
+    public ClientLimitState( final String hashKey, final String clientId, final int configuredMask, final long[] lastUpdated,
+                             final long[] lastUpdatedBurst, final double[] maxAllowedRate, final double[] rate,
+                             final double[] maxAllowedCallsInPeriod, final double[] callsInPeriod ) {
+        this.hashKey = hashKey;
+        this.clientId = clientId;
+        this.configuredMask = configuredMask;
+        this.lastUpdated = lastUpdated.clone();
+        this.lastUpdatedBurst = lastUpdatedBurst.clone();
+        this.maxAllowedRate = maxAllowedRate.clone();
+        this.rate = rate.clone();
+        this.maxAllowedCallsInPeriod = maxAllowedCallsInPeriod.clone();
+        this.callsInPeriod = callsInPeriod.clone();
+    }
+
+    /**
+     * Decodes a record in the shape of the DynamoDB document API, see RateLimitStateStore
+     */
+    public static ClientLimitState fromRecord( final Map<String, Object> record ) {
+        final int periods = Period.count();
+        final long[] lastUpdated = new long[periods];
+        final long[] lastUpdatedBurst = new long[periods];
+        final double[] maxAllowedRate = new double[periods];
+        final double[] rate = new double[periods];
+        final double[] maxAllowedCallsInPeriod = new double[periods];
+        final double[] callsInPeriod = new double[periods];
+        int configuredMask = 0;
+        final Map<?, ?> payload = (Map<?, ?>) record.get( Configuration.ATTRIBUTE_RATE_LIMITING_PAYLOAD );
+        for ( int ordinal = 0; ordinal < periods; ordinal++ ) {
+            final Map<?, ?> entryData = (Map<?, ?>) payload.get( Period.fromOrdinal( ordinal ).getKey() );
+            if ( entryData == null ) {
+                continue;
+            }
+            configuredMask |= 1 << ordinal;
+            lastUpdated[ordinal] = number( entryData, Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED ).longValue();
+            lastUpdatedBurst[ordinal] = number( entryData, Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED_BURST ).longValue();
+            maxAllowedRate[ordinal] = number( entryData, Configuration.ATTRIBUTE_RATE_LIMITING_MAX_ALLOWED_RATE ).doubleValue();
+            rate[ordinal] = number( entryData, Configuration.ATTRIBUTE_RATE_LIMITING_RATE ).doubleValue();
+            maxAllowedCallsInPeriod[ordinal] = number( entryData, Configuration.ATTRIBUTE_RATE_LIMITING_MAX_ALLOWED_CALLS_IN_PERIOD ).doubleValue();
+            callsInPeriod[ordinal] = number( entryData, Configuration.ATTRIBUTE_RATE_LIMITING_CALLS_IN_PERIOD ).doubleValue();
+        }
+        return new ClientLimitState( (String) record.get( Configuration.RATE_LIMITING_HASH_KEY_NAME ), (String) record.get( Configuration.RATE_LIMITING_RANGE_KEY_NAME ),
+                                     configuredMask, lastUpdated, lastUpdatedBurst, maxAllowedRate, rate, maxAllowedCallsInPeriod, callsInPeriod );
+    }
+
+    /**
+     * Encodes the state as a record in the shape of the DynamoDB document API
+     */
+    public Map<String, Object> toRecord() {
+        final Map<String, Object> payload = new HashMap<>();
+        for ( Period period : Period.values() ) {
+            if ( !this.isConfigured( period ) ) {
+                continue;
+            }
+            final int ordinal = period.ordinal();
+            final Map<String, Object> entryData = new HashMap<>();
+            entryData.put( Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED, BigDecimal.valueOf( this.lastUpdated[ordinal] ) );
+            entryData.put( Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED_BURST, BigDecimal.valueOf( this.lastUpdatedBurst[ordinal] ) );
+            entryData.put( Configuration.ATTRIBUTE_RATE_LIMITING_MAX_ALLOWED_RATE, BigDecimal.valueOf( this.maxAllowedRate[ordinal] ) );
+            entryData.put( Configuration.ATTRIBUTE_RATE_LIMITING_RATE, BigDecimal.valueOf( this.rate[ordinal] ) );
+            entryData.put( Configuration.ATTRIBUTE_RATE_LIMITING_MAX_ALLOWED_CALLS_IN_PERIOD, BigDecimal.valueOf( this.maxAllowedCallsInPeriod[ordinal] ) );
+            entryData.put( Configuration.ATTRIBUTE_RATE_LIMITING_CALLS_IN_PERIOD, BigDecimal.valueOf( this.callsInPeriod[ordinal] ) );
+            payload.put( period.getKey(), entryData );
+        }
+        final Map<String, Object> record = new HashMap<>();
+        record.put( Configuration.RATE_LIMITING_HASH_KEY_NAME, this.hashKey );
+        record.put( Configuration.RATE_LIMITING_RANGE_KEY_NAME, this.clientId );
+        record.put( Configuration.ATTRIBUTE_RATE_LIMITING_PAYLOAD, payload );
+        return record;
+    }
+
+    public String getHashKey() {
+        return this.hashKey;
+    }
+
+    public String getClientId() {
+        return this.clientId;
+    }
+
+    public int getConfiguredMask() {
+        return this.configuredMask;
+    }
+
+    public boolean isConfigured( final Period period ) {
+        return ( this.configuredMask & ( 1 << period.ordinal() ) ) != 0;
+    }
+
+    public long getLastUpdated( final Period period ) {
+        return this.lastUpdated[period.ordinal()];
+    }
+
+    public long getLastUpdatedBurst( final Period period ) {
+        return this.lastUpdatedBurst[period.ordinal()];
+    }
+
+    public double getMaxAllowedRate( final Period period ) {
+        return this.maxAllowedRate[period.ordinal()];
+    }
+
+    public double getRate( final Period period ) {
+        return this.rate[period.ordinal()];
+    }
+
+    public double getMaxAllowedCallsInPeriod( final Period period ) {
+        return this.maxAllowedCallsInPeriod[period.ordinal()];
+    }
+
+    public double getCallsInPeriod( final Period period ) {
+        return this.callsInPeriod[period.ordinal()];
+    }
+
+    private static Number number( final Map<?, ?> entryData, final String attribute ) {
+        final Object value = entryData.get( attribute );
+        return value == null ? BigDecimal.ZERO : (Number) value;
+    }
+}
@@ -0,0 +1,57 @@
+package com.satadru.ratelimiter.pojo;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * One decision of a SimpleClientIdBasedRateLimiter.consumeAll() batch
+ */
+public class ConsumeRequest {
+
+    private final String apiName;
+    private final String method;
+    private final String clientId;
+    private final int permits;
+
+    public ConsumeRequest( final String apiName, final String method, final String clientId ) {
+        this( apiName, method, clientId, 1 );
+    }
+
+    /**
+     * @param permits tokens consumed by the call, e.g. the number of orders of a bulk createOrder
+     */
+    public ConsumeRequest( final String apiName, final String method, final String clientId, final int permits ) {
+        Preconditions.checkArgument( permits > 0, "permits must be positive" );
+        this.apiName = apiName;
+        this.method = method;
+        this.clientId = clientId;
+        this.permits = permits;
+    }
+
+    public String getApiName() {
+        return this.apiName;
+    }
+
+    public String getMethod() {
+        return this.method;
+    }
+
+    public String getClientId() {
+        return this.clientId;
+    }
+
+    public int getPermits() {
+        return this.permits;
+    }
+
+    /**
+     * @return the key of the record of the client, API_NAME:METHOD and CLIENT_ID
+     */
+    public TokenBucketKey toKey() {
+        return new TokenBucketKey( this.apiName + ":" + this.method, this.clientId );
+    }
+
+    @Override
+    public String toString() {
+        return this.apiName + ":" + this.method + ":" + this.clientId + "x" + this.permits;
+    }
+}
@@ -0,0 +1,20 @@
+package com.satadru.ratelimiter.pojo;
+
+public class EndpointRateLimit {
+
+    private final int bucketSize;
+    private final long refillIntervalInMillis;
+
+    public EndpointRateLimit( final int bucketSize, final long refillIntervalInMillis ) {
+        this.bucketSize = bucketSize;
+        this.refillIntervalInMillis = refillIntervalInMillis;
+    }
+
+    public int getBucketSize() {
+        return this.bucketSize;
+    }
+
+    public long getRefillIntervalInMillis() {
+        return this.refillIntervalInMillis;
+    }
+}
@@ -1,17 +1,33 @@
 package com.satadru.ratelimiter.pojo;
 
+import com.satadru.ratelimiter.configurations.Period;
+
 public class RateToken {
 
+    // null if the periodKey is not a known period
+    private final Period period;
     private final String periodKey;
     private final double rate;
     private final boolean isAllowedToConsume;
 
     public RateToken( final String periodKey, final double rate, final boolean isAllowedToConsume ) {
+        this.period = Period.fromKey( periodKey );
         this.periodKey = periodKey;
         this.rate = rate;
         this.isAllowedToConsume = isAllowedToConsume;
     }
 
+    public RateToken( final Period period, final double rate, final boolean isAllowedToConsume ) {
+        this.period = period;
+        this.periodKey = period.getKey();
+        this.rate = rate;
+        this.isAllowedToConsume = isAllowedToConsume;
+    }
+
+    public Period getPeriod() {
+        return this.period;
+    }
+
     public String getPeriodKey() {
         return this.periodKey;
     }
@@ -9,12 +9,26 @@ public class SQSPayload {
     private final String clientId;
     private long timestamp;
     private final Map<String, Double> rateTokens;
+    private final long callCount;
+    private final long firstTimestamp;
 
     public SQSPayload( final String hashKey, final String clientId, final long timestamp, final Map<String, Double> rateTokens ) {
+        this( hashKey, clientId, timestamp, rateTokens, 1, timestamp );
+    }
+
+    /**
+     * @param timestamp      timestamp of the last call
+     * @param callCount      number of calls summarized by this payload, a call of several permits counts once per permit
+     * @param firstTimestamp timestamp of the first call
+     */
+    public SQSPayload( final String hashKey, final String clientId, final long timestamp, final Map<String, Double> rateTokens, final long callCount,
+                       final long firstTimestamp ) {
         this.hashKey = hashKey;
         this.clientId = clientId;
         this.timestamp = timestamp;
         this.rateTokens = ImmutableMap.copyOf( rateTokens );
+        this.callCount = callCount;
+        this.firstTimestamp = firstTimestamp;
     }
 
     public String getHashKey() {
@@ -32,4 +46,12 @@ public class SQSPayload {
     public Map<String, Double> getRateTokens() {
         return this.rateTokens;
     }
+
+    public long getCallCount() {
+        return this.callCount;
+    }
+
+    public long getFirstTimestamp() {
+        return this.firstTimestamp;
+    }
 }
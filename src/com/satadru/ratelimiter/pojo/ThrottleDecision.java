@@ -0,0 +1,104 @@
+package com.satadru.ratelimiter.pojo;
+
+import java.util.concurrent.TimeUnit;
+
+import com.satadru.ratelimiter.configurations.Period;
+
+/**
+ * Outcome of a rate limiting decision. Filled in place by the rate limiter, so a caller can reuse one instance per thread and
+ * decide without allocating. NOT thread-safe.
+ */
+public class ThrottleDecision {
+
+    public static final long UNLIMITED = -1;
+
+    private boolean allowed;
+    private Period limitingPeriod;
+    private long remaining;
+    private long retryAfterMillis;
+    private boolean retryable;
+
+    /**
+     * @param remaining calls left in the tightest period after this one, or UNLIMITED if no period is configured
+     */
+    public ThrottleDecision allow( final long remaining ) {
+        this.allowed = true;
+        this.limitingPeriod = null;
+        this.remaining = remaining;
+        this.retryAfterMillis = 0;
+        this.retryable = false;
+        return this;
+    }
+
+    /**
+     * @param limitingPeriod   the period that has to free up before a call is allowed again, null if it was not a per period limit
+     * @param retryAfterMillis time until a call can be allowed again
+     */
+    public ThrottleDecision deny( final Period limitingPeriod, final long retryAfterMillis ) {
+        this.allowed = false;
+        this.limitingPeriod = limitingPeriod;
+        this.remaining = 0;
+        this.retryAfterMillis = Math.max( 0, retryAfterMillis );
+        this.retryable = true;
+        return this;
+    }
+
+    /**
+     * Denies a call which no wait would let through, e.g. asking for more permits than the period allows at once
+     *
+     * @param limitingPeriod the period which can never allow the call
+     */
+    public ThrottleDecision reject( final Period limitingPeriod ) {
+        this.allowed = false;
+        this.limitingPeriod = limitingPeriod;
+        this.remaining = 0;
+        this.retryAfterMillis = 0;
+        this.retryable = false;
+        return this;
+    }
+
+    public boolean isAllowed() {
+        return this.allowed;
+    }
+
+    public Period getLimitingPeriod() {
+        return this.limitingPeriod;
+    }
+
+    public long getRemaining() {
+        return this.remaining;
+    }
+
+    public long getRetryAfterMillis() {
+        return this.retryAfterMillis;
+    }
+
+    /**
+     * @return true if the call was denied and the same call may be allowed later, false if it was allowed or rejected
+     */
+    public boolean isRetryable() {
+        return this.retryable;
+    }
+
+    /**
+     * @return the retry after time rounded up to whole seconds, as sent in a Retry-After header. At least 1 for a denied call,
+     * 0 for a rejected one
+     */
+    public long getRetryAfterSeconds() {
+        if ( !this.retryable ) {
+            return 0;
+        }
+        return Math.max( 1, ( this.retryAfterMillis + TimeUnit.SECONDS.toMillis( 1 ) - 1 ) / TimeUnit.SECONDS.toMillis( 1 ) );
+    }
+
+    @Override
+    public String toString() {
+        if ( this.allowed ) {
+            return "ALLOW remaining " + this.remaining;
+        }
+        if ( !this.retryable ) {
+            return "REJECT by " + this.limitingPeriod;
+        }
+        return "DENY by " + this.limitingPeriod + " retry after " + this.retryAfterMillis + " ms";
+    }
+}
@@ -0,0 +1,47 @@
+package com.satadru.ratelimiter.pojo;
+
+import java.util.Objects;
+
+/**
+ * Identifies a single record of the CLIENT_ID_TOKEN_BUCKET table i.e. the hash key (API_NAME:METHOD) and the range key (CLIENT_ID)
+ */
+public class TokenBucketKey {
+
+    private final String hashKey;
+    private final String clientId;
+
+    public TokenBucketKey( final String hashKey, final String clientId ) {
+        this.hashKey = hashKey;
+        this.clientId = clientId;
+    }
+
+    public String getHashKey() {
+        return this.hashKey;
+    }
+
+    public String getClientId() {
+        return this.clientId;
+    }
+
+    @Override
+    public boolean equals( final Object o ) {
+        if ( this == o ) {
+            return true;
+        }
+        if ( o == null || this.getClass() != o.getClass() ) {
+            return false;
+        }
+        final TokenBucketKey that = (TokenBucketKey) o;
+        return Objects.equals( this.hashKey, that.hashKey ) && Objects.equals( this.clientId, that.clientId );
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hashCode( this.hashKey ) + Objects.hashCode( this.clientId );
+    }
+
+    @Override
+    public String toString() {
+        return this.hashKey + ":" + this.clientId;
+    }
+}
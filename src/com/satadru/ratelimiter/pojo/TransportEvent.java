@@ -0,0 +1,26 @@
+package com.satadru.ratelimiter.pojo;
+
+/**
+ * An event polled from an EventTransport: the body as published and the receipt the transport needs to acknowledge it
+ */
+public class TransportEvent {
+
+    private final String body;
+    private final Object receipt;
+
+    /**
+     * @param receipt opaque to the consumer, e.g. the offset in a log or the receipt handle of an SQS message
+     */
+    public TransportEvent( final String body, final Object receipt ) {
+        this.body = body;
+        this.receipt = receipt;
+    }
+
+    public String getBody() {
+        return this.body;
+    }
+
+    public Object getReceipt() {
+        return this.receipt;
+    }
+}
@@ -0,0 +1,120 @@
+package com.satadru.ratelimiter.leaderelection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Several nodes sharing an InMemoryHostTableStore, heartbeating on a manual clock
+ */
+public class HighestIPAddressInLastMinuteLeaderElectionAlgorithmTest {
+
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 10_000;
+
+    private final AtomicLong clock = new AtomicLong();
+    private final InMemoryHostTableStore store = new InMemoryHostTableStore();
+    private final List<HighestIPAddressInLastMinuteLeaderElectionAlgorithm> nodes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        for ( String ip : new String[] { "10.0.0.9", "10.0.0.10", "10.0.0.2" } ) {
+            this.nodes.add( new HighestIPAddressInLastMinuteLeaderElectionAlgorithm( ip, this.store, Duration.ofMillis( HEARTBEAT_INTERVAL_MILLIS ),
+                                                                                     Duration.ofSeconds( 30 ), Duration.ofSeconds( 2 ), this.clock::get ) );
+        }
+    }
+
+    @Test
+    public void theFirstHostToHeartbeatKeepsTheLease() {
+        this.round( this.nodes );
+        assertEquals( "10.0.0.9", this.leader() );
+
+        // A higher address heartbeating does not take over a lease which is renewed
+        for ( int i = 0; i < 10; i++ ) {
+            this.round( this.nodes );
+            assertEquals( "10.0.0.9", this.leader() );
+        }
+        for ( HighestIPAddressInLastMinuteLeaderElectionAlgorithm node : this.nodes ) {
+            assertEquals( "10.0.0.9", node.leaderIP() );
+        }
+    }
+
+    @Test
+    public void theHighestLiveHostTakesOverFromACrashedLeader() {
+        this.round( this.nodes );
+        this.round( this.nodes );
+        final HighestIPAddressInLastMinuteLeaderElectionAlgorithm crashed = this.nodes.get( 0 );
+        assertTrue( crashed.isLeader() );
+        final long lastRenewal = this.clock.get() - HEARTBEAT_INTERVAL_MILLIS;
+
+        final List<HighestIPAddressInLastMinuteLeaderElectionAlgorithm> survivors = this.nodes.subList( 1, this.nodes.size() );
+        while ( this.leader() == null || this.leader().equals( crashed.getHostIP() ) ) {
+            this.round( survivors );
+            assertTrue( "No leader for longer than maxFailoverMillis()", this.clock.get() - lastRenewal <= crashed.maxFailoverMillis() + HEARTBEAT_INTERVAL_MILLIS );
+        }
+
+        // 10.0.0.10 is numerically higher than 10.0.0.2
+        final HighestIPAddressInLastMinuteLeaderElectionAlgorithm successor = this.nodes.get( 1 );
+        assertEquals( successor.getHostIP(), this.leader() );
+        assertFalse( crashed.isLeader() );
+        assertTrue( successor.getLastFailoverMillis() <= successor.maxFailoverMillis() );
+        assertEquals( -1, this.nodes.get( 2 ).getLastFailoverMillis() );
+    }
+
+    @Test
+    public void aClosedLeaderIsReplacedOnTheNextHeartbeat() {
+        this.round( this.nodes );
+        final HighestIPAddressInLastMinuteLeaderElectionAlgorithm closed = this.nodes.get( 0 );
+        closed.close();
+        assertFalse( closed.isLeader() );
+        final long releasedAt = this.clock.get();
+        assertEquals( releasedAt, this.store.readLease().getRenewedAt() );
+        assertTrue( this.store.readLease().isExpired( releasedAt ) );
+
+        this.clock.addAndGet( HEARTBEAT_INTERVAL_MILLIS / 2 );
+        this.round( this.nodes.subList( 1, this.nodes.size() ) );
+
+        final HighestIPAddressInLastMinuteLeaderElectionAlgorithm successor = this.nodes.get( 1 );
+        assertEquals( successor.getHostIP(), this.leader() );
+        // Measured from the release, not from the last renewal before it
+        assertEquals( HEARTBEAT_INTERVAL_MILLIS / 2, successor.getLastFailoverMillis() );
+    }
+
+    @Test
+    public void noLeaderIsSeenWithoutALease() {
+        assertNull( this.nodes.get( 0 ).leaderIP() );
+        assertFalse( this.nodes.get( 0 ).isLeader() );
+    }
+
+    /**
+     * Heartbeats the nodes in order and advances the clock by a heartbeat interval
+     */
+    private void round( final List<HighestIPAddressInLastMinuteLeaderElectionAlgorithm> nodes ) {
+        for ( HighestIPAddressInLastMinuteLeaderElectionAlgorithm node : nodes ) {
+            node.heartBeat();
+        }
+        int leaders = 0;
+        for ( HighestIPAddressInLastMinuteLeaderElectionAlgorithm node : this.nodes ) {
+            leaders += node.isLeader() ? 1 : 0;
+        }
+        assertTrue( "More than one leader", leaders <= 1 );
+        this.clock.addAndGet( HEARTBEAT_INTERVAL_MILLIS );
+    }
+
+    private String leader() {
+        for ( HighestIPAddressInLastMinuteLeaderElectionAlgorithm node : this.nodes ) {
+            if ( node.isLeader() ) {
+                return node.getHostIP();
+            }
+        }
+        return null;
+    }
+}
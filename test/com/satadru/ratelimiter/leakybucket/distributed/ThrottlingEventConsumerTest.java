@@ -0,0 +1,101 @@
+package com.satadru.ratelimiter.leakybucket.distributed;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableMap;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leaderelection.SelfElectingLeaderAlgorithm;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.SQSPayloadCodec;
+import com.satadru.ratelimiter.leakybucket.distributed.log.MappedLogEventTransport;
+import com.satadru.ratelimiter.leakybucket.distributed.memory.InMemoryRateLimitStateStore;
+import com.satadru.ratelimiter.pojo.SQSPayload;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+public class ThrottlingEventConsumerTest {
+
+    private static final String HASH_KEY = "createOrder:POST";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private MappedLogEventTransport transport;
+    private final List<SQSPayload> applied = new ArrayList<>();
+    private final SQSPayloadCodec codec = new SQSPayloadCodec();
+
+    @Before
+    public void setUp() throws Exception {
+        this.transport = new MappedLogEventTransport( this.folder.getRoot().toPath(), 1, "test", 4096, 1024 * 1024, Duration.ofHours( 1 ) );
+    }
+
+    @After
+    public void tearDown() {
+        this.transport.close();
+    }
+
+    @Test
+    public void malformedEventsAreAcknowledgedAndThePartitionKeepsDraining() {
+        this.transport.publish( 0, this.event( "client-1" ) );
+        this.transport.publish( 0, "not,a" );
+        this.transport.publish( 0, SQSPayloadCodec.BINARY_PREFIX + "AAAA" );
+        this.transport.publish( 0, this.event( "client-2" ) );
+
+        final ThrottlingEventConsumer consumer = this.consumer( 10 );
+        consumer.updateTokens();
+
+        assertEquals( 2, this.applied.size() );
+        assertEquals( "client-1", this.applied.get( 0 ).getClientId() );
+        assertEquals( "client-2", this.applied.get( 1 ).getClientId() );
+        assertEquals( this.transport.getEndOffset( 0 ), this.transport.getCommittedOffset( 0 ) );
+
+        // Nothing is delivered again
+        consumer.updateTokens();
+        assertEquals( 2, this.applied.size() );
+    }
+
+    @Test
+    public void pollsOfOnlyMalformedEventsAreAcknowledged() {
+        this.transport.publish( 0, "garbage" );
+        this.transport.publish( 0, "garbage" );
+        this.transport.publish( 0, this.event( "client-1" ) );
+
+        final ThrottlingEventConsumer consumer = this.consumer( 2 );
+        consumer.updateTokens();
+        assertEquals( 0, this.applied.size() );
+        consumer.updateTokens();
+
+        assertEquals( 1, this.applied.size() );
+        assertEquals( this.transport.getEndOffset( 0 ), this.transport.getCommittedOffset( 0 ) );
+    }
+
+    private ThrottlingEventConsumer consumer( final int maxEventsPerPoll ) {
+        final InMemoryRateLimitStateStore stateStore = new InMemoryRateLimitStateStore() {
+            @Override
+            public Set<TokenBucketKey> batchApplyUsage( final Map<TokenBucketKey, List<SQSPayload>> payloadsByKey ) {
+                for ( List<SQSPayload> payloads : payloadsByKey.values() ) {
+                    ThrottlingEventConsumerTest.this.applied.addAll( payloads );
+                }
+                return super.batchApplyUsage( payloadsByKey );
+            }
+        };
+        return new ThrottlingEventConsumer( stateStore, this.transport, Collections.singletonList( 0 ), new SelfElectingLeaderAlgorithm(),
+                                            maxEventsPerPoll );
+    }
+
+    private String event( final String clientId ) {
+        final long now = System.currentTimeMillis();
+        return this.codec.encode( new SQSPayload( HASH_KEY, clientId, now, ImmutableMap.of( Period.SECOND.getKey(), 0.001 ), 1, now ) );
+    }
+}
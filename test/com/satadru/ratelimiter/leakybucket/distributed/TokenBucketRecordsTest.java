@@ -0,0 +1,56 @@
+package com.satadru.ratelimiter.leakybucket.distributed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.satadru.ratelimiter.configurations.Period;
+
+public class TokenBucketRecordsTest {
+
+    private static final long NOW = 1_760_000_000_000_000L;
+    private static final int SECOND = Period.SECOND.ordinal();
+    private static final int MINUTE = Period.MINUTE.ordinal();
+
+    private final long[] emissionIntervals = new long[Period.count()];
+    private final long[] limits = new long[Period.count()];
+
+    @Test
+    public void anArrivalTimeInThePastStartsFromNow() {
+        this.limit( SECOND, 100_000, 200_000 );
+        final long[] times = new long[Period.count()];
+        times[SECOND] = NOW - 5_000_000;
+        times[MINUTE] = 42;
+
+        final long[] advanced = TokenBucketRecords.advanceArrivalTimes( times, NOW, 2, this.emissionIntervals, this.limits );
+        // Periods which are not limited keep their time, the passed times are not modified
+        assertArrayEquals( new long[] { NOW + 200_000, 42, 0, 0, 0 }, advanced );
+        assertArrayEquals( new long[] { NOW - 5_000_000, 42, 0, 0, 0 }, times );
+    }
+
+    @Test
+    public void aCallUpToTheLimitIsAllowed() {
+        this.limit( SECOND, 100_000, 200_000 );
+        final long[] times = new long[Period.count()];
+        times[SECOND] = NOW + 100_000;
+        assertArrayEquals( new long[] { NOW + 200_000, 0, 0, 0, 0 },
+                           TokenBucketRecords.advanceArrivalTimes( times, NOW, 1, this.emissionIntervals, this.limits ) );
+        times[SECOND] = NOW + 100_001;
+        assertNull( TokenBucketRecords.advanceArrivalTimes( times, NOW, 1, this.emissionIntervals, this.limits ) );
+    }
+
+    @Test
+    public void oneExceededPeriodDeniesAll() {
+        this.limit( SECOND, 100_000, 1_000_000 );
+        this.limit( MINUTE, 6_000_000, 6_000_000 );
+        final long[] times = new long[Period.count()];
+        times[MINUTE] = NOW + 1;
+        assertNull( TokenBucketRecords.advanceArrivalTimes( times, NOW, 1, this.emissionIntervals, this.limits ) );
+    }
+
+    private void limit( final int ordinal, final long emissionInterval, final long limit ) {
+        this.emissionIntervals[ordinal] = emissionInterval;
+        this.limits[ordinal] = limit;
+    }
+}
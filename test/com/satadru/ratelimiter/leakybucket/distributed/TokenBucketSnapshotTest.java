@@ -0,0 +1,205 @@
+package com.satadru.ratelimiter.leakybucket.distributed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Strings;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.ClientIdTokenBucketCache;
+import com.satadru.ratelimiter.leakybucket.distributed.memory.InMemoryRateLimitStateStore;
+import com.satadru.ratelimiter.pojo.ClientLimitState;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+public class TokenBucketSnapshotTest {
+
+    private static final String HASH_KEY = "createOrder:POST";
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_COUNT_OFFSET = 12;
+    private static final int RECORD_COUNT_OFFSET = 16;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+
+    @Before
+    public void setUp() {
+        this.file = this.folder.getRoot().toPath().resolve( "snapshots" ).resolve( "token-buckets.snapshot" );
+    }
+
+    @Test
+    public void recordsRoundTrip() {
+        final List<ClientLimitState> records = new ArrayList<>();
+        for ( int i = 0; i < 1_000; i++ ) {
+            records.add( state( HASH_KEY, "client-" + i, i % ( 1 << Period.count() ), i ) );
+        }
+        records.add( state( "créerCommande:POST", "clïent-日本", 1, 7 ) );
+        assertEquals( records.size(), TokenBucketSnapshot.write( this.file, records ) );
+
+        final TokenBucketSnapshot snapshot = TokenBucketSnapshot.open( this.file );
+        assertNotNull( snapshot );
+        assertEquals( records.size(), snapshot.size() );
+        assertTrue( snapshot.getCreatedAt() > 0 );
+        for ( ClientLimitState record : records ) {
+            assertState( record, snapshot.get( new TokenBucketKey( record.getHashKey(), record.getClientId() ) ) );
+        }
+        assertNull( snapshot.get( new TokenBucketKey( HASH_KEY, "client-1000" ) ) );
+        assertNull( snapshot.get( new TokenBucketKey( "getOrders:GET", "client-1" ) ) );
+
+        final List<TokenBucketKey> keys = new ArrayList<>();
+        for ( ClientLimitState record : records ) {
+            keys.add( new TokenBucketKey( record.getHashKey(), record.getClientId() ) );
+        }
+        assertEquals( new HashSet<>( keys ), new HashSet<>( snapshot.keys() ) );
+    }
+
+    @Test
+    public void anEmptySnapshotRoundTrips() {
+        assertEquals( 0, TokenBucketSnapshot.write( this.file, Collections.emptyList() ) );
+        final TokenBucketSnapshot snapshot = TokenBucketSnapshot.open( this.file );
+        assertNotNull( snapshot );
+        assertEquals( 0, snapshot.size() );
+        assertNull( snapshot.get( new TokenBucketKey( HASH_KEY, "client-1" ) ) );
+    }
+
+    @Test
+    public void keysTooLongForARecordAreLeftOut() {
+        // 120 bytes of key fit, one more does not. The second character takes two bytes in UTF-8
+        final String fits = Strings.repeat( "x", 120 - HASH_KEY.length() );
+        final String tooLong = Strings.repeat( "x", 120 - HASH_KEY.length() - 1 ) + "é";
+        assertEquals( 2, TokenBucketSnapshot.write( this.file, Arrays.asList( state( HASH_KEY, fits, 1, 1 ),
+                                                                               state( HASH_KEY, tooLong, 1, 2 ),
+                                                                               state( HASH_KEY, "client-1", 1, 3 ) ) ) );
+        final TokenBucketSnapshot snapshot = TokenBucketSnapshot.open( this.file );
+        assertEquals( 2, snapshot.size() );
+        assertNotNull( snapshot.get( new TokenBucketKey( HASH_KEY, fits ) ) );
+        assertNull( snapshot.get( new TokenBucketKey( HASH_KEY, tooLong ) ) );
+        assertNotNull( snapshot.get( new TokenBucketKey( HASH_KEY, "client-1" ) ) );
+    }
+
+    @Test
+    public void aNewSnapshotReplacesTheOldOne() {
+        TokenBucketSnapshot.write( this.file, Collections.singletonList( state( HASH_KEY, "client-1", 1, 1 ) ) );
+        TokenBucketSnapshot.write( this.file, Collections.singletonList( state( HASH_KEY, "client-2", 1, 2 ) ) );
+        final TokenBucketSnapshot snapshot = TokenBucketSnapshot.open( this.file );
+        assertEquals( Collections.singletonList( new TokenBucketKey( HASH_KEY, "client-2" ) ), snapshot.keys() );
+        assertFalse( Files.exists( this.file.resolveSibling( this.file.getFileName() + ".tmp" ) ) );
+    }
+
+    @Test
+    public void aShortOrCorruptFileIsIgnored() throws IOException {
+        assertNull( TokenBucketSnapshot.open( this.file ) );
+        TokenBucketSnapshot.write( this.file, Arrays.asList( state( HASH_KEY, "client-1", 1, 1 ), state( HASH_KEY, "client-2", 3, 2 ) ) );
+        final byte[] bytes = Files.readAllBytes( this.file );
+
+        this.assertIgnored( new byte[0] );
+        this.assertIgnored( Arrays.copyOf( bytes, 20 ) );
+        this.assertIgnored( Arrays.copyOf( bytes, bytes.length - 1 ) );
+        this.assertIgnored( Arrays.copyOf( bytes, bytes.length + 8 ) );
+        // Another file, another version
+        final byte[] magic = bytes.clone();
+        magic[0] ^= 1;
+        this.assertIgnored( magic );
+        final byte[] version = bytes.clone();
+        version[7]++;
+        this.assertIgnored( version );
+        // Counts which would send a lookup out of the slots or around them forever, in a file of the size they imply
+        final int recordSize = ( bytes.length - HEADER_SIZE - 4 * 4 ) / 2;
+        this.assertIgnored( resize( bytes, 0, 0, recordSize ) );
+        this.assertIgnored( resize( bytes, 3, 2, recordSize ) );
+        this.assertIgnored( resize( bytes, 2, 2, recordSize ) );
+        this.assertIgnored( resize( bytes, 4, -1, recordSize ) );
+        assertNotNull( TokenBucketSnapshot.open( this.write( resize( bytes, 4, 1, recordSize ) ) ) );
+    }
+
+    @Test
+    public void aCorruptFileIsNoWarmStart() throws IOException {
+        try ( ClientIdTokenBucketCache cache = new ClientIdTokenBucketCache( new InMemoryRateLimitStateStore(), 100, Duration.ofMinutes( 10 ),
+                                                                             Duration.ofMinutes( 5 ), 100, Duration.ofMinutes( 10 ),
+                                                                             Executors.newSingleThreadScheduledExecutor() ) ) {
+            assertFalse( cache.warmStart( this.file ) );
+            Files.createDirectories( this.file.getParent() );
+            Files.write( this.file, new byte[] { 1, 2, 3 } );
+            assertFalse( cache.warmStart( this.file ) );
+            assertFalse( cache.isWarmStarting() );
+
+            TokenBucketSnapshot.write( this.file, Collections.singletonList( state( HASH_KEY, "client-1", 1, 1 ) ) );
+            assertTrue( cache.warmStart( this.file ) );
+        }
+    }
+
+    private void assertIgnored( final byte[] bytes ) throws IOException {
+        assertNull( TokenBucketSnapshot.open( this.write( bytes ) ) );
+    }
+
+    private Path write( final byte[] bytes ) throws IOException {
+        return Files.write( this.file, bytes );
+    }
+
+    /**
+     * @return the header of the snapshot with the passed counts, followed by as many slots and records as they take
+     */
+    private static byte[] resize( final byte[] snapshot, final int slotCount, final int recordCount, final int recordSize ) {
+        final byte[] bytes = Arrays.copyOf( snapshot, HEADER_SIZE + 4 * Math.max( 0, slotCount ) + recordSize * Math.max( 0, recordCount ) );
+        ByteBuffer.wrap( bytes ).putInt( SLOT_COUNT_OFFSET, slotCount ).putInt( RECORD_COUNT_OFFSET, recordCount );
+        return bytes;
+    }
+
+    /**
+     * A record with distinct values in every field of every period, derived from seed
+     */
+    private static ClientLimitState state( final String hashKey, final String clientId, final int configuredMask, final long seed ) {
+        final int periods = Period.count();
+        final long[] lastUpdated = new long[periods];
+        final long[] lastUpdatedBurst = new long[periods];
+        final double[] maxAllowedRate = new double[periods];
+        final double[] rate = new double[periods];
+        final double[] maxAllowedCallsInPeriod = new double[periods];
+        final double[] callsInPeriod = new double[periods];
+        for ( int ordinal = 0; ordinal < periods; ordinal++ ) {
+            lastUpdated[ordinal] = 1_760_000_000_000L + seed * 10 + ordinal;
+            lastUpdatedBurst[ordinal] = -seed - ordinal;
+            maxAllowedRate[ordinal] = seed + ordinal + 0.5;
+            rate[ordinal] = seed / 3.0 + ordinal;
+            maxAllowedCallsInPeriod[ordinal] = seed * 100.0 + ordinal;
+            callsInPeriod[ordinal] = seed + ordinal / 7.0;
+        }
+        return new ClientLimitState( hashKey, clientId, configuredMask, lastUpdated, lastUpdatedBurst, maxAllowedRate, rate,
+                                     maxAllowedCallsInPeriod, callsInPeriod );
+    }
+
+    private static void assertState( final ClientLimitState expected, final ClientLimitState actual ) {
+        assertNotNull( actual );
+        assertEquals( expected.getHashKey(), actual.getHashKey() );
+        assertEquals( expected.getClientId(), actual.getClientId() );
+        assertEquals( expected.getConfiguredMask(), actual.getConfiguredMask() );
+        for ( Period period : Period.values() ) {
+            assertEquals( expected.getLastUpdated( period ), actual.getLastUpdated( period ) );
+            assertEquals( expected.getLastUpdatedBurst( period ), actual.getLastUpdatedBurst( period ) );
+            assertEquals( expected.getMaxAllowedRate( period ), actual.getMaxAllowedRate( period ), 0 );
+            assertEquals( expected.getRate( period ), actual.getRate( period ), 0 );
+            assertEquals( expected.getMaxAllowedCallsInPeriod( period ), actual.getMaxAllowedCallsInPeriod( period ), 0 );
+            assertEquals( expected.getCallsInPeriod( period ), actual.getCallsInPeriod( period ), 0 );
+        }
+    }
+}
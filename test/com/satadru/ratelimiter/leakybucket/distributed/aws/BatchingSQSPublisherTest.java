@@ -0,0 +1,127 @@
+package com.satadru.ratelimiter.leakybucket.distributed.aws;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+
+public class BatchingSQSPublisherTest {
+
+    private static final String QUEUE_URL = "https://sqs.test/queue.fifo";
+
+    @Test
+    public void aFailedCallIsSentAgain() {
+        final FakeSQS sqs = new FakeSQS();
+        sqs.failingCalls.set( 2 );
+        final BatchingSQSPublisher publisher = this.publisher( sqs, 100 );
+        for ( int i = 0; i < 25; i++ ) {
+            publisher.publish( 0, "group", "message-" + i );
+        }
+        publisher.close();
+
+        assertEquals( 25, publisher.getPublishedCount() );
+        assertEquals( 0, publisher.getFailedCount() );
+        assertEquals( 25, sqs.bodies().size() );
+    }
+
+    @Test
+    public void onlyEntriesWhichFailedOnTheSideOfSqsAreSentAgain() {
+        final FakeSQS sqs = new FakeSQS();
+        sqs.rejectedBody = "malformed";
+        sqs.throttledBody = "throttled";
+        final BatchingSQSPublisher publisher = this.publisher( sqs, 100 );
+        publisher.publish( 0, "group", "first" );
+        publisher.publish( 0, "group", "malformed" );
+        publisher.publish( 0, "group", "throttled" );
+        publisher.close();
+
+        assertEquals( 2, publisher.getPublishedCount() );
+        assertEquals( 1, publisher.getFailedCount() );
+        assertEquals( 2, sqs.bodies().size() );
+        assertEquals( "throttled", sqs.bodies().get( 1 ) );
+    }
+
+    @Test
+    public void messagesPublishedWhileClosingAreSent() throws InterruptedException {
+        final FakeSQS sqs = new FakeSQS();
+        final BatchingSQSPublisher publisher = this.publisher( sqs, 16 );
+        final int threads = 4;
+        final int messagesPerThread = 2_000;
+        final CountDownLatch started = new CountDownLatch( threads );
+        final List<Thread> publishers = new ArrayList<>();
+        for ( int t = 0; t < threads; t++ ) {
+            final int thread = t;
+            publishers.add( new Thread( () -> {
+                started.countDown();
+                for ( int i = 0; i < messagesPerThread; i++ ) {
+                    publisher.publish( 0, "group-" + thread, thread + ":" + i );
+                }
+            } ) );
+        }
+        publishers.forEach( Thread::start );
+        started.await();
+        publisher.close();
+        for ( Thread thread : publishers ) {
+            thread.join();
+        }
+
+        assertEquals( threads * messagesPerThread, publisher.getPublishedCount() );
+        assertEquals( 0, publisher.getBufferedCount() );
+        assertEquals( threads * messagesPerThread, sqs.bodies().size() );
+    }
+
+    private BatchingSQSPublisher publisher( final FakeSQS sqs, final int bufferCapacity ) {
+        return new BatchingSQSPublisher( sqs, Collections.singletonList( QUEUE_URL ), bufferCapacity, Duration.ofMillis( 5 ), OverflowPolicy.BLOCK );
+    }
+
+    /**
+     * Records the bodies it took. Fails whole calls while failingCalls is positive, and single entries by their body
+     */
+    private static final class FakeSQS extends AbstractAmazonSQS {
+        private final AtomicInteger failingCalls = new AtomicInteger();
+        private final List<String> bodies = new ArrayList<>();
+        private volatile String rejectedBody;
+        private volatile String throttledBody;
+
+        @Override
+        public synchronized SendMessageBatchResult sendMessageBatch( final SendMessageBatchRequest request ) {
+            if ( this.failingCalls.getAndDecrement() > 0 ) {
+                throw new AmazonServiceException( "Service unavailable" );
+            }
+            final SendMessageBatchResult result = new SendMessageBatchResult();
+            for ( SendMessageBatchRequestEntry entry : request.getEntries() ) {
+                if ( entry.getMessageBody().equals( this.rejectedBody ) ) {
+                    result.withFailed( new BatchResultErrorEntry().withId( entry.getId() ).withCode( "InvalidMessageContents" ).withSenderFault( true ) );
+                }
+                else if ( entry.getMessageBody().equals( this.throttledBody ) ) {
+                    // Taken on the next attempt
+                    this.throttledBody = null;
+                    result.withFailed( new BatchResultErrorEntry().withId( entry.getId() ).withCode( "ServiceUnavailable" ).withSenderFault( false ) );
+                }
+                else {
+                    this.bodies.add( entry.getMessageBody() );
+                    result.withSuccessful( new SendMessageBatchResultEntry().withId( entry.getId() ) );
+                }
+            }
+            return result;
+        }
+
+        private synchronized List<String> bodies() {
+            return new ArrayList<>( this.bodies );
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.satadru.ratelimiter.leakybucket.distributed.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leakybucket.distributed.memory.InMemoryRateLimitStateStore;
+import com.satadru.ratelimiter.pojo.ClientLimitState;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+public class ClientIdTokenBucketCacheTest {
+
+    private static final String HASH_KEY = "createOrder:POST";
+    private static final TokenBucketKey DEFAULT_KEY = new TokenBucketKey( HASH_KEY, Configuration.DEFAULT_CLIENT_ID );
+    private static final TokenBucketKey UNKNOWN_KEY = new TokenBucketKey( HASH_KEY, "unknown" );
+
+    private final CountingStore store = new CountingStore();
+    private ScheduledExecutorService refreshExecutor;
+    private ClientIdTokenBucketCache cache;
+
+    @Before
+    public void setUp() {
+        this.refreshExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.cache = new ClientIdTokenBucketCache( this.store, 100, Duration.ofMinutes( 10 ), Duration.ofMinutes( 5 ),
+                                                   100, Duration.ofMinutes( 10 ), this.refreshExecutor );
+    }
+
+    @After
+    public void tearDown() {
+        this.cache.close();
+    }
+
+    @Test
+    public void aMissingDefaultRecordIsReadOnce() {
+        assertNull( this.cache.getDefault( HASH_KEY ) );
+        assertNull( this.cache.getDefault( HASH_KEY ) );
+        assertNull( this.cache.getDefaultAsync( HASH_KEY ).join() );
+        assertEquals( 1, this.store.reads.get() );
+
+        // Only the unknown clientId is read, its API is known to have no default record
+        assertTrue( this.cache.getAll( Collections.singletonList( UNKNOWN_KEY ) ).isEmpty() );
+        assertEquals( Collections.singletonList( UNKNOWN_KEY ), new ArrayList<>( this.store.lastBatch ) );
+    }
+
+    @Test
+    public void aMissingDefaultRecordIsReadAgainOnceInvalidated() {
+        assertNull( this.cache.getDefault( HASH_KEY ) );
+        this.store.put( DEFAULT_KEY, record() );
+        this.cache.invalidate( HASH_KEY, Configuration.DEFAULT_CLIENT_ID );
+        assertNotNull( this.cache.getDefault( HASH_KEY ) );
+        assertEquals( 2, this.store.reads.get() );
+    }
+
+    @Test
+    public void theDefaultRecordIsPinnedOnce() {
+        this.store.put( DEFAULT_KEY, record() );
+        final ClientLimitState item = this.cache.getDefault( HASH_KEY );
+        assertNotNull( item );
+        assertSame( item, this.cache.getDefault( HASH_KEY ) );
+        assertSame( item, this.cache.getDefaultAsync( HASH_KEY ).join() );
+        assertEquals( 1, this.store.reads.get() );
+    }
+
+    @Test
+    public void aStoreReadMayReenterTheCache() {
+        this.store.put( DEFAULT_KEY, record() );
+        // A read made while mapping the default record would fail or hang on the map, the first read to pin wins
+        this.store.reentered = this.cache;
+        final ClientLimitState item = this.cache.getDefault( HASH_KEY );
+        assertNotNull( item );
+        assertSame( item, this.cache.getDefault( HASH_KEY ) );
+        assertEquals( 2, this.store.reads.get() );
+    }
+
+    @Test
+    public void closeStopsTheRefreshes() {
+        this.store.put( DEFAULT_KEY, record() );
+        final ClientLimitState item = this.cache.getDefault( HASH_KEY );
+        this.cache.close();
+        assertTrue( this.refreshExecutor.isShutdown() );
+        // Cached records are still served
+        assertSame( item, this.cache.getDefault( HASH_KEY ) );
+    }
+
+    private static Map<String, Object> record() {
+        final Map<String, Object> second = new HashMap<>();
+        second.put( Configuration.ATTRIBUTE_RATE_LIMITING_MAX_ALLOWED_RATE, BigDecimal.TEN );
+        second.put( Configuration.ATTRIBUTE_RATE_LIMITING_RATE, BigDecimal.ZERO );
+        second.put( Configuration.ATTRIBUTE_RATE_LIMITING_CALLS_IN_PERIOD, BigDecimal.ZERO );
+        second.put( Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED, BigDecimal.ZERO );
+        second.put( Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED_BURST, BigDecimal.ZERO );
+        final Map<String, Object> payload = new HashMap<>();
+        payload.put( Period.SECOND.getKey(), second );
+        final Map<String, Object> record = new HashMap<>();
+        record.put( Configuration.ATTRIBUTE_RATE_LIMITING_PAYLOAD, payload );
+        return record;
+    }
+
+    /**
+     * Counts the single reads and keeps the keys of the last batch read. Reads the default record through the cache once from within
+     * the first read when reentered
+     */
+    private static final class CountingStore extends InMemoryRateLimitStateStore {
+        private final AtomicInteger reads = new AtomicInteger();
+        private volatile Collection<TokenBucketKey> lastBatch;
+        private volatile ClientIdTokenBucketCache reentered;
+
+        @Override
+        public Map<String, Object> get( final TokenBucketKey key ) {
+            this.reads.incrementAndGet();
+            final ClientIdTokenBucketCache cache = this.reentered;
+            if ( cache != null ) {
+                this.reentered = null;
+                assertNotNull( cache.getDefault( key.getHashKey() ) );
+            }
+            return super.get( key );
+        }
+
+        @Override
+        public Map<TokenBucketKey, Map<String, Object>> batchGet( final Collection<TokenBucketKey> keys ) {
+            this.lastBatch = keys;
+            return super.batchGet( keys );
+        }
+    }
+}
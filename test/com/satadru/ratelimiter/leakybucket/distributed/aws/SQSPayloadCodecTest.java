@@ -0,0 +1,149 @@
+package com.satadru.ratelimiter.leakybucket.distributed.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.pojo.SQSPayload;
+
+public class SQSPayloadCodecTest {
+
+    private static final String HASH_KEY = "createOrder:POST";
+    private static final long TIMESTAMP = 1_760_000_000_000L;
+
+    private final SQSPayloadCodec codec = new SQSPayloadCodec();
+
+    @Test
+    public void deltasAndCountsRoundTrip() {
+        final long[] values = { 0, 1, 127, 128, -1, Long.MIN_VALUE, Long.MAX_VALUE };
+        for ( long delta : values ) {
+            for ( long callCount : values ) {
+                this.assertRoundTrip( new SQSPayload( HASH_KEY, "client-1", TIMESTAMP, ImmutableMap.of( "second", 0.5 ), callCount, TIMESTAMP - delta ) );
+            }
+        }
+    }
+
+    @Test
+    public void nonAsciiKeysRoundTrip() {
+        this.assertRoundTrip( new SQSPayload( "créerCommande:POST", "clïent-日本-😀", TIMESTAMP, ImmutableMap.of( "minute", 2.0 ), 3, TIMESTAMP - 10 ) );
+        this.assertRoundTrip( new SQSPayload( HASH_KEY, "", TIMESTAMP, ImmutableMap.of(), 1, TIMESTAMP ) );
+    }
+
+    @Test
+    public void everyCombinationOfPeriodsRoundTrips() {
+        for ( int mask = 0; mask < 1 << Period.count(); mask++ ) {
+            final Map<String, Double> rateTokens = new HashMap<>();
+            for ( Period period : Period.values() ) {
+                if ( ( mask & ( 1 << period.ordinal() ) ) != 0 ) {
+                    rateTokens.put( period.getKey(), period.ordinal() + 0.25 );
+                }
+            }
+            this.assertRoundTrip( new SQSPayload( HASH_KEY, "client-1", TIMESTAMP, rateTokens, 1, TIMESTAMP ) );
+        }
+    }
+
+    @Test
+    public void nonPositiveRatesAreLeftOut() {
+        final SQSPayload decoded = this.codec.decode( this.codec.encode(
+                new SQSPayload( HASH_KEY, "client-1", TIMESTAMP, ImmutableMap.of( "second", 0.0, "minute", -1.0, "hour", 1.0 ), 1, TIMESTAMP ) ) );
+        assertEquals( ImmutableMap.of( "hour", 1.0 ), decoded.getRateTokens() );
+    }
+
+    @Test
+    public void theLegacyFormatRoundTrips() {
+        final SQSPayload payload = new SQSPayload( HASH_KEY, "client-1", TIMESTAMP, ImmutableMap.of( "second", 0.5, "week", 3.0 ), 7, TIMESTAMP - 100 );
+        final String legacy = this.codec.encodeLegacy( payload );
+        assertFalse( SQSPayloadCodec.isBinary( legacy ) );
+        assertPayload( payload, this.codec.decode( legacy ) );
+    }
+
+    @Test
+    public void aTruncatedEventIsRejected() {
+        final String encoded = this.codec.encode( new SQSPayload( HASH_KEY, "client-1", TIMESTAMP, ImmutableMap.of( "second", 0.5 ), 2, TIMESTAMP - 1 ) );
+        // Decode a longer event first, so that the reused buffer holds the bytes missing from the truncated ones
+        for ( int length = 1; length < encoded.length(); length++ ) {
+            if ( encoded.substring( length ).matches( "=+" ) ) {
+                // Only the padding is missing
+                continue;
+            }
+            this.codec.decode( encoded );
+            this.assertRejected( encoded.substring( 0, length ) );
+        }
+    }
+
+    @Test
+    public void anUnknownVersionIsRejected() {
+        final byte[] event = Base64.getDecoder().decode( this.codec.encode(
+                new SQSPayload( HASH_KEY, "client-1", TIMESTAMP, ImmutableMap.of( "second", 0.5 ), 1, TIMESTAMP ) ).substring( 1 ) );
+        event[0] = SQSPayloadCodec.VERSION + 1;
+        this.assertRejected( SQSPayloadCodec.BINARY_PREFIX + Base64.getEncoder().encodeToString( event ) );
+    }
+
+    @Test
+    public void malformedEventsAreRejected() {
+        // Not Base64, trailing bytes, a varlong which never ends, larger than the buffer
+        this.assertRejected( "#not base64!" );
+        final ByteBuffer event = ByteBuffer.allocate( 64 );
+        this.codec.encode( new SQSPayload( HASH_KEY, "c", TIMESTAMP, ImmutableMap.of(), 1, TIMESTAMP ), event );
+        event.put( (byte) 0 );
+        this.assertRejected( SQSPayloadCodec.BINARY_PREFIX + Base64.getEncoder().encodeToString( Arrays.copyOf( event.array(), event.position() ) ) );
+        final ByteBuffer varLong = ByteBuffer.allocate( 64 );
+        varLong.put( SQSPayloadCodec.VERSION ).putShort( (short) 0 ).putShort( (short) 0 ).putLong( TIMESTAMP );
+        for ( int i = 0; i < 11; i++ ) {
+            varLong.put( (byte) 0x80 );
+        }
+        this.assertRejected( SQSPayloadCodec.BINARY_PREFIX + Base64.getEncoder().encodeToString( Arrays.copyOf( varLong.array(), varLong.position() ) ) );
+        this.assertRejected( SQSPayloadCodec.BINARY_PREFIX + new String( new char[8192] ).replace( '\0', 'A' ) );
+    }
+
+    @Test
+    public void aMessageWhichIsNotAnEventIsRejected() {
+        assertFalse( SQSPayloadCodec.isBinary( "" ) );
+        this.assertRejected( "" );
+        this.assertRejected( "garbage" );
+        this.assertRejected( HASH_KEY + ",client-1,not a date,second,0.5" );
+        this.assertRejected( HASH_KEY + ",client-1,2025-10-09T08:53:20.000Z,second,not a number" );
+    }
+
+    private void assertRoundTrip( final SQSPayload payload ) {
+        final String encoded = this.codec.encode( payload );
+        assertTrue( SQSPayloadCodec.isBinary( encoded ) );
+        assertPayload( payload, this.codec.decode( encoded ) );
+        // The same bytes through the ByteBuffer API
+        final ByteBuffer buffer = ByteBuffer.allocate( 256 );
+        this.codec.encode( payload, buffer );
+        buffer.flip();
+        assertPayload( payload, this.codec.decode( buffer ) );
+        assertFalse( buffer.hasRemaining() );
+    }
+
+    private static void assertPayload( final SQSPayload expected, final SQSPayload actual ) {
+        assertEquals( expected.getHashKey(), actual.getHashKey() );
+        assertEquals( expected.getClientId(), actual.getClientId() );
+        assertEquals( expected.getTimestamp(), actual.getTimestamp() );
+        assertEquals( expected.getFirstTimestamp(), actual.getFirstTimestamp() );
+        assertEquals( expected.getCallCount(), actual.getCallCount() );
+        assertEquals( expected.getRateTokens(), actual.getRateTokens() );
+    }
+
+    private void assertRejected( final String messageBody ) {
+        try {
+            this.codec.decode( messageBody );
+            fail( "Decoded " + messageBody );
+        }
+        catch ( IllegalArgumentException e ) {
+            // Expected
+        }
+    }
+}
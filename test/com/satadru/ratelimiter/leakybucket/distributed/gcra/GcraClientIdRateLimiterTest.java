@@ -0,0 +1,249 @@
+package com.satadru.ratelimiter.leakybucket.distributed.gcra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leakybucket.distributed.aws.ClientIdTokenBucketCache;
+import com.satadru.ratelimiter.leakybucket.distributed.memory.InMemoryRateLimitStateStore;
+import com.satadru.ratelimiter.pojo.ThrottleDecision;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+public class GcraClientIdRateLimiterTest {
+
+    private static final String API_NAME = "createOrder";
+    private static final String METHOD = "POST";
+    private static final String HASH_KEY = API_NAME + ":" + METHOD;
+    private static final TokenBucketKey KEY = new TokenBucketKey( HASH_KEY, "client-1" );
+    private static final TokenBucketKey DEFAULT_KEY = new TokenBucketKey( HASH_KEY, Configuration.DEFAULT_CLIENT_ID );
+    private static final long START = 1_760_000_000_000L;
+
+    private final CountingStore store = new CountingStore();
+    private final AtomicLong clock = new AtomicLong( START );
+    private ScheduledExecutorService refreshExecutor;
+    private ClientIdTokenBucketCache cache;
+
+    @Before
+    public void setUp() {
+        this.refreshExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.cache = new ClientIdTokenBucketCache( this.store, 100, Duration.ofMinutes( 10 ), Duration.ofMinutes( 5 ),
+                                                   100, Duration.ofMinutes( 10 ), this.refreshExecutor );
+    }
+
+    @After
+    public void tearDown() {
+        this.cache.close();
+    }
+
+    @Test
+    public void theEmissionIntervalIsRoundedUp() {
+        this.store.put( KEY, record( Period.SECOND, 3 ) );
+        final GcraClientIdRateLimiter limiter = this.limiter( 1.0 );
+        assertTrue( this.consume( limiter, 1 ).isAllowed() );
+        // 1 second / 3 calls, rounded up so that 3 intervals are never shorter than the second
+        assertEquals( micros( START ) + 333_334, this.store.getArrivalTimes( KEY )[Period.SECOND.ordinal()] );
+        assertTrue( this.consume( limiter, 1 ).isAllowed() );
+        assertTrue( this.consume( limiter, 1 ).isAllowed() );
+        assertFalse( this.consume( limiter, 1 ).isAllowed() );
+    }
+
+    @Test
+    public void theBurstIsAFractionOfTheCallsInPeriod() {
+        this.store.put( KEY, record( Period.SECOND, 10 ) );
+        final GcraClientIdRateLimiter limiter = this.limiter( 0.5 );
+        for ( int i = 0; i < 5; i++ ) {
+            assertTrue( this.consume( limiter, 1 ).isAllowed() );
+        }
+        assertFalse( this.consume( limiter, 1 ).isAllowed() );
+        // One more call every emission interval
+        this.clock.addAndGet( 100 );
+        assertTrue( this.consume( limiter, 1 ).isAllowed() );
+        assertFalse( this.consume( limiter, 1 ).isAllowed() );
+    }
+
+    @Test
+    public void permitsAdvanceTheArrivalTimeByAsManyIntervals() {
+        this.store.put( KEY, record( Period.SECOND, 10 ) );
+        final GcraClientIdRateLimiter limiter = this.limiter( 1.0 );
+        final ThrottleDecision decision = this.consume( limiter, 3 );
+        assertTrue( decision.isAllowed() );
+        assertEquals( 7, decision.getRemaining() );
+        assertEquals( micros( START ) + 300_000, this.store.getArrivalTimes( KEY )[Period.SECOND.ordinal()] );
+
+        assertTrue( this.consume( limiter, 7 ).isAllowed() );
+        assertFalse( this.consume( limiter, 1 ).isAllowed() );
+    }
+
+    @Test
+    public void theRetryAfterIsTheTimeUntilTheCallFits() {
+        this.store.put( KEY, record( Period.SECOND, 10 ) );
+        final GcraClientIdRateLimiter limiter = this.limiter( 1.0 );
+        assertTrue( this.consume( limiter, 10 ).isAllowed() );
+
+        ThrottleDecision decision = this.consume( limiter, 1 );
+        assertFalse( decision.isAllowed() );
+        assertTrue( decision.isRetryable() );
+        assertEquals( Period.SECOND, decision.getLimitingPeriod() );
+        assertEquals( 100, decision.getRetryAfterMillis() );
+        decision = this.consume( limiter, 3 );
+        assertEquals( 300, decision.getRetryAfterMillis() );
+
+        this.clock.addAndGet( 299 );
+        assertEquals( 1, this.consume( limiter, 3 ).getRetryAfterMillis() );
+        this.clock.addAndGet( 1 );
+        assertTrue( this.consume( limiter, 3 ).isAllowed() );
+    }
+
+    @Test
+    public void theTightestPeriodIsToBlame() {
+        final Map<String, Object> record = record( Period.SECOND, 10 );
+        payload( record ).putAll( payload( record( Period.MINUTE, 12 ) ) );
+        this.store.put( KEY, record );
+        final GcraClientIdRateLimiter limiter = this.limiter( 1.0 );
+        assertTrue( this.consume( limiter, 10 ).isAllowed() );
+        this.clock.addAndGet( 1000 );
+        assertTrue( this.consume( limiter, 2 ).isAllowed() );
+
+        // The second has room again, the minute does not for another 10 seconds
+        this.clock.addAndGet( 1000 );
+        final ThrottleDecision decision = this.consume( limiter, 1 );
+        assertFalse( decision.isAllowed() );
+        assertEquals( Period.MINUTE, decision.getLimitingPeriod() );
+        assertEquals( TimeUnit.SECONDS.toMillis( 3 ), decision.getRetryAfterMillis() );
+    }
+
+    @Test
+    public void aCallDeniedByTheGuessDoesNotReachTheStore() {
+        this.store.put( KEY, record( Period.SECOND, 2 ) );
+        final GcraClientIdRateLimiter limiter = this.limiter( 1.0 );
+        assertTrue( this.consume( limiter, 2 ).isAllowed() );
+        final int calls = this.store.calls.get();
+
+        assertFalse( this.consume( limiter, 1 ).isAllowed() );
+        assertFalse( this.consume( limiter, 1 ).isAllowed() );
+        assertEquals( calls, this.store.calls.get() );
+    }
+
+    @Test
+    public void aStaleGuessIsReplacedByTheStoredTimes() {
+        this.store.put( KEY, record( Period.SECOND, 2 ) );
+        final GcraClientIdRateLimiter limiter = this.limiter( 1.0 );
+        final GcraClientIdRateLimiter otherNode = this.limiter( 1.0 );
+        assertTrue( this.consume( limiter, 1 ).isAllowed() );
+        assertTrue( this.consume( otherNode, 1 ).isAllowed() );
+        // The guess of the first node still has room for a call, the store does not
+        assertFalse( this.consume( limiter, 1 ).isAllowed() );
+        assertFalse( this.consume( otherNode, 1 ).isAllowed() );
+    }
+
+    @Test
+    public void aCallExceedingTheBurstIsRejected() {
+        this.store.put( KEY, record( Period.SECOND, 10 ) );
+        final GcraClientIdRateLimiter limiter = this.limiter( 0.5 );
+        final ThrottleDecision decision = this.consume( limiter, 6 );
+        assertFalse( decision.isAllowed() );
+        assertFalse( decision.isRetryable() );
+        assertEquals( Period.SECOND, decision.getLimitingPeriod() );
+        assertEquals( 0, decision.getRetryAfterSeconds() );
+        assertEquals( 0, this.store.calls.get() );
+        assertTrue( this.consume( limiter, 5 ).isAllowed() );
+    }
+
+    @Test
+    public void endlessContentionIsDeniedWithoutAPeriod() {
+        this.store.put( KEY, record( Period.SECOND, 10 ) );
+        final GcraClientIdRateLimiter limiter = this.limiter( 1.0 );
+        this.store.contended = true;
+        final ThrottleDecision decision = this.consume( limiter, 1 );
+        assertFalse( decision.isAllowed() );
+        assertTrue( decision.isRetryable() );
+        assertNull( decision.getLimitingPeriod() );
+        assertEquals( 0, decision.getRetryAfterMillis() );
+        assertEquals( Configuration.GCRA_MAX_CAS_RETRIES + 1, this.store.casCalls.get() );
+
+        this.store.contended = false;
+        assertTrue( this.consume( limiter, 1 ).isAllowed() );
+    }
+
+    @Test
+    public void aDeletedRecordIsDroppedAndTheDefaultDecides() {
+        this.store.put( KEY, record( Period.SECOND, 10 ) );
+        this.store.put( DEFAULT_KEY, record( Period.SECOND, 10 ) );
+        final GcraClientIdRateLimiter limiter = this.limiter( 1.0 );
+        assertTrue( this.consume( limiter, 1 ).isAllowed() );
+
+        this.store.remove( KEY );
+        assertTrue( this.consume( limiter, 1 ).isAllowed() );
+        // No arrival times were written for the deleted record, the call advanced those of the default record
+        assertNull( this.store.getArrivalTimes( KEY ) );
+        assertNotEquals( 0, this.store.getArrivalTimes( DEFAULT_KEY )[Period.SECOND.ordinal()] );
+        assertEquals( 0, this.cache.size() );
+    }
+
+    private GcraClientIdRateLimiter limiter( final double burstFraction ) {
+        return new GcraClientIdRateLimiter( this.cache, this.store, burstFraction, this.clock::get );
+    }
+
+    private ThrottleDecision consume( final GcraClientIdRateLimiter limiter, final int permits ) {
+        return limiter.tryConsume( API_NAME, METHOD, KEY.getClientId(), permits, new ThrottleDecision() );
+    }
+
+    private static long micros( final long millis ) {
+        return TimeUnit.MILLISECONDS.toMicros( millis );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static Map<String, Object> payload( final Map<String, Object> record ) {
+        return (Map<String, Object>) record.get( Configuration.ATTRIBUTE_RATE_LIMITING_PAYLOAD );
+    }
+
+    private static Map<String, Object> record( final Period period, final long maxCalls ) {
+        final Map<String, Object> entryData = new HashMap<>();
+        entryData.put( Configuration.ATTRIBUTE_RATE_LIMITING_MAX_ALLOWED_CALLS_IN_PERIOD, BigDecimal.valueOf( maxCalls ) );
+        final Map<String, Object> payload = new HashMap<>();
+        payload.put( period.getKey(), entryData );
+        final Map<String, Object> record = new HashMap<>();
+        record.put( Configuration.ATTRIBUTE_RATE_LIMITING_PAYLOAD, payload );
+        return record;
+    }
+
+    /**
+     * Counts the calls for arrival times, and fails every compare-and-set while contended
+     */
+    private static final class CountingStore extends InMemoryRateLimitStateStore {
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicInteger casCalls = new AtomicInteger();
+        private volatile boolean contended;
+
+        @Override
+        public long[] getArrivalTimes( final TokenBucketKey key ) {
+            this.calls.incrementAndGet();
+            return super.getArrivalTimes( key );
+        }
+
+        @Override
+        public boolean compareAndSetArrivalTimes( final TokenBucketKey key, final long[] expected, final long[] update ) {
+            this.calls.incrementAndGet();
+            this.casCalls.incrementAndGet();
+            return !this.contended && super.compareAndSetArrivalTimes( key, expected, update );
+        }
+    }
+}
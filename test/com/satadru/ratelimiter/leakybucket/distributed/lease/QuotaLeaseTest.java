@@ -0,0 +1,171 @@
+package com.satadru.ratelimiter.leakybucket.distributed.lease;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leakybucket.distributed.memory.InMemoryRateLimitStateStore;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+public class QuotaLeaseTest {
+
+    private static final TokenBucketKey KEY = new TokenBucketKey( "createOrder:POST", "client-1" );
+    // The first lease, at START + 100, is for 5 calls, so that acquiring 2 of them does not renew it before the prefetch
+    private static final long START = 0;
+    private static final long MAX_CALLS = 100;
+
+    private final AtomicLong clock = new AtomicLong( START );
+    private final Queue<Runnable> queued = new ArrayDeque<>();
+    private final LeaseStore store = new LeaseStore();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private QuotaLease lease;
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+        assertEquals( "Leased while holding the monitor of the lease", 0, this.store.lockedCalls.get() );
+    }
+
+    @Test
+    public void aQueuedPrefetchIsTakenOverByTheFirstCallOfTheWindow() {
+        this.lease = this.lease( this.queued::add, false );
+        assertNotNull( this.acquire( START + 100 ) );
+        this.runQueued();
+        // Queues the lease of the next window
+        assertNotNull( this.acquire( START + 900 ) );
+        assertEquals( 1, this.queued.size() );
+
+        assertNotNull( this.acquire( START + 1000 ) );
+        assertEquals( 1, this.store.callsOf( START + 1000 ) );
+        // The prefetch finds the window leased
+        this.runQueued();
+        assertEquals( 1, this.store.callsOf( START + 1000 ) );
+    }
+
+    @Test
+    public void aCallWaitsForThePrefetchInFlight() throws Exception {
+        this.lease = this.lease( this.executor, false );
+        assertNotNull( this.acquire( START + 100 ) );
+        this.store.blocked = START + 1000;
+        assertNotNull( this.acquire( START + 900 ) );
+        assertTrue( this.store.entered.await( 5, TimeUnit.SECONDS ) );
+
+        final ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            final Future<QuotaLease.Window> taken = caller.submit( () -> this.acquire( START + 1000 ) );
+            try {
+                taken.get( 100, TimeUnit.MILLISECONDS );
+                throw new AssertionError( "Did not wait for the prefetch" );
+            }
+            catch ( TimeoutException e ) {
+                // Waiting for the prefetch
+            }
+            this.store.release.countDown();
+            assertNotNull( taken.get( 5, TimeUnit.SECONDS ) );
+        }
+        finally {
+            caller.shutdownNow();
+        }
+        assertEquals( 1, this.store.callsOf( START + 1000 ) );
+    }
+
+    @Test
+    public void aFailedLeaseDeniesUntilARenewalSucceeds() {
+        this.lease = this.lease( this.queued::add, false );
+        this.store.failing = true;
+        assertNull( this.acquire( START + 100 ) );
+        assertEquals( 0, this.lease.retryAfterMillis( START + 100 ) );
+        assertTrue( this.lease.isLeased( START + 100 ) );
+
+        this.store.failing = false;
+        this.clock.set( START + 200 );
+        this.runQueued();
+        assertNotNull( this.acquire( START + 200 ) );
+    }
+
+    @Test
+    public void aFailedLeaseAllowsWhenFailingOpen() {
+        this.lease = this.lease( this.queued::add, true );
+        this.store.failing = true;
+        final QuotaLease.Window window = this.acquire( START + 100 );
+        assertNotNull( window );
+        this.lease.release( window, 1 );
+        assertEquals( 0, this.lease.available( START + 100 ) );
+    }
+
+    private QuotaLease lease( final Executor renewalExecutor, final boolean failOpen ) {
+        final QuotaLease lease = new QuotaLease( KEY, Period.SECOND, this.store, renewalExecutor, failOpen, this.clock::get );
+        this.store.lease = lease;
+        return lease;
+    }
+
+    private QuotaLease.Window acquire( final long now ) {
+        this.clock.set( now );
+        return this.lease.tryAcquire( 1, now, MAX_CALLS );
+    }
+
+    private void runQueued() {
+        Runnable task;
+        while ( ( task = this.queued.poll() ) != null ) {
+            task.run();
+        }
+    }
+
+    /**
+     * Counts the lease requests of every window. Fails them while failing, and blocks those of the blocked window until released
+     */
+    private static final class LeaseStore extends InMemoryRateLimitStateStore {
+        private final Map<Long, AtomicInteger> calls = new ConcurrentHashMap<>();
+        private final AtomicInteger lockedCalls = new AtomicInteger();
+        private final CountDownLatch entered = new CountDownLatch( 1 );
+        private final CountDownLatch release = new CountDownLatch( 1 );
+        private volatile QuotaLease lease;
+        private volatile boolean failing;
+        private volatile long blocked = -1;
+
+        @Override
+        public long leaseQuota( final TokenBucketKey key, final Period period, final long windowStart, final long requested, final long maxCalls ) {
+            if ( Thread.holdsLock( this.lease ) ) {
+                this.lockedCalls.incrementAndGet();
+            }
+            if ( this.failing ) {
+                throw new IllegalStateException( "Store unavailable" );
+            }
+            this.calls.computeIfAbsent( windowStart, w -> new AtomicInteger() ).incrementAndGet();
+            if ( windowStart == this.blocked ) {
+                this.entered.countDown();
+                try {
+                    this.release.await();
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.leaseQuota( key, period, windowStart, requested, maxCalls );
+        }
+
+        private int callsOf( final long windowStart ) {
+            final AtomicInteger count = this.calls.get( windowStart );
+            return count == null ? 0 : count.get();
+        }
+    }
+}
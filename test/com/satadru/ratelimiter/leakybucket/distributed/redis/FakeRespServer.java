@@ -0,0 +1,480 @@
+package com.satadru.ratelimiter.leakybucket.distributed.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * A RESP server in the JVM which speaks enough of Redis to run the RespRateLimitStateStore without a Redis.
+ * <p>
+ * Like Redis, commands are executed one at a time, here under a lock, so every command and script is atomic. EVAL and EVALSHA run
+ * the Lua source with LuaJ, with KEYS, ARGV and redis.call() and the conversions of replies and results of Redis. A script is only
+ * known by its SHA1 once it has been sent with EVAL, so the NOSCRIPT fallback of the client is exercised as well. Keys expire lazily
+ * when they are accessed.
+ */
+public class FakeRespServer implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger( FakeRespServer.class.getName() );
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final Set<Socket> clients = new HashSet<>();
+    // Hashes are Hash, strings are String. Guarded by this, like the Lua state
+    private final Map<String, Object> data = new HashMap<>();
+    private final Map<String, Long> expiresAt = new HashMap<>();
+    private final Map<String, LuaValue> scripts = new HashMap<>();
+    private final Globals globals = JsePlatform.standardGlobals();
+    private volatile boolean closed;
+
+    /**
+     * Listens on the loopback interface
+     *
+     * @param port 0 for any free port, see getAddress()
+     */
+    public FakeRespServer( final int port ) throws IOException {
+        final LuaTable redis = new LuaTable();
+        redis.set( "call", new RedisCall( false ) );
+        redis.set( "pcall", new RedisCall( true ) );
+        this.globals.set( "redis", redis );
+        this.globals.get( "string" ).set( "format", new IntegerFormat( this.globals.get( "string" ).get( "format" ) ) );
+        this.serverSocket = new ServerSocket( port, 50, InetAddress.getLoopbackAddress() );
+        this.acceptThread = new Thread( this::accept, "fake-resp-server-" + this.serverSocket.getLocalPort() );
+        this.acceptThread.setDaemon( true );
+        this.acceptThread.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress( this.serverSocket.getInetAddress(), this.serverSocket.getLocalPort() );
+    }
+
+    /**
+     * @return number of keys, including expired keys which have not been accessed since
+     */
+    public synchronized int size() {
+        return this.data.size();
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        try {
+            this.serverSocket.close();
+            synchronized ( this.clients ) {
+                for ( Socket client : this.clients ) {
+                    client.close();
+                }
+            }
+        }
+        catch ( IOException e ) {
+            logger.fine( () -> "Failed to close: " + e.getMessage() );
+        }
+    }
+
+    private void accept() {
+        while ( !this.closed ) {
+            try {
+                final Socket client = this.serverSocket.accept();
+                client.setTcpNoDelay( true );
+                synchronized ( this.clients ) {
+                    this.clients.add( client );
+                }
+                final Thread thread = new Thread( () -> this.serve( client ), this.acceptThread.getName() + "-client" );
+                thread.setDaemon( true );
+                thread.start();
+            }
+            catch ( IOException e ) {
+                if ( !this.closed ) {
+                    logger.warning( "Failed to accept a connection: " + e.getMessage() );
+                }
+            }
+        }
+    }
+
+    /**
+     * Executes the commands of a client in order, answering all the commands which arrived together with a single write
+     */
+    private void serve( final Socket client ) {
+        ByteBuffer buffer = ByteBuffer.allocate( 64 * 1024 );
+        final byte[] chunk = new byte[16 * 1024];
+        final ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        try ( InputStream in = client.getInputStream(); OutputStream out = client.getOutputStream() ) {
+            int read;
+            while ( ( read = in.read( chunk ) ) >= 0 ) {
+                if ( buffer.remaining() < read ) {
+                    final ByteBuffer larger = ByteBuffer.allocate( ( buffer.position() + read ) * 2 );
+                    buffer.flip();
+                    larger.put( buffer );
+                    buffer = larger;
+                }
+                buffer.put( chunk, 0, read );
+                buffer.flip();
+                Object command;
+                while ( ( command = RespCodec.decode( buffer ) ) != RespCodec.INCOMPLETE ) {
+                    RespCodec.encodeReply( replies, this.execute( (List<?>) command ) );
+                }
+                buffer.compact();
+                if ( replies.size() > 0 ) {
+                    replies.writeTo( out );
+                    out.flush();
+                    replies.reset();
+                }
+            }
+        }
+        catch ( IOException | RuntimeException e ) {
+            if ( !this.closed ) {
+                logger.log( Level.FINE, "Client connection failed", e );
+            }
+        }
+        finally {
+            synchronized ( this.clients ) {
+                this.clients.remove( client );
+            }
+        }
+    }
+
+    private synchronized Object execute( final List<?> command ) {
+        final List<String> arguments = new ArrayList<>( command.size() );
+        for ( Object argument : command ) {
+            arguments.add( RespCodec.string( argument ) );
+        }
+        try {
+            final String name = arguments.get( 0 ).toUpperCase();
+            if ( "EVAL".equals( name ) || "EVALSHA".equals( name ) ) {
+                return this.eval( "EVAL".equals( name ), arguments );
+            }
+            if ( "SCRIPT".equals( name ) && arguments.size() == 2 && "FLUSH".equalsIgnoreCase( arguments.get( 1 ) ) ) {
+                this.scripts.clear();
+                return "OK";
+            }
+            return this.call( arguments );
+        }
+        catch ( RespException e ) {
+            return e;
+        }
+        catch ( RuntimeException e ) {
+            return new RespException( "ERR " + e );
+        }
+    }
+
+    private Object eval( final boolean withSource, final List<String> arguments ) {
+        final String sha1 = withSource ? RespScript.sha1( arguments.get( 1 ) ) : arguments.get( 1 ).toLowerCase();
+        if ( withSource && !this.scripts.containsKey( sha1 ) ) {
+            try {
+                this.scripts.put( sha1, this.globals.load( arguments.get( 1 ), "@user_script" ) );
+            }
+            catch ( LuaError e ) {
+                throw new RespException( "ERR Error compiling script (new function): " + e.getMessage() );
+            }
+        }
+        final LuaValue script = this.scripts.get( sha1 );
+        if ( script == null ) {
+            throw new RespException( "NOSCRIPT No matching script. Please use EVAL." );
+        }
+        final int numberOfKeys = Integer.parseInt( arguments.get( 2 ) );
+        this.globals.set( "KEYS", table( arguments.subList( 3, 3 + numberOfKeys ) ) );
+        this.globals.set( "ARGV", table( arguments.subList( 3 + numberOfKeys, arguments.size() ) ) );
+        try {
+            return toReply( script.call() );
+        }
+        catch ( LuaError e ) {
+            throw new RespException( "ERR Error running script (call to f_" + sha1 + "): " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Executes a single command, also for the scripts like redis.call() does
+     */
+    private Object call( final List<String> arguments ) {
+        final String name = arguments.get( 0 ).toUpperCase();
+        final String key = arguments.size() > 1 ? arguments.get( 1 ) : null;
+        if ( key != null ) {
+            this.expireIfDue( key );
+        }
+        switch ( name ) {
+            case "PING":
+                return "PONG";
+            case "FLUSHALL":
+                this.data.clear();
+                this.expiresAt.clear();
+                return "OK";
+            case "DBSIZE":
+                return (long) this.data.size();
+            case "EXISTS":
+                return this.data.containsKey( key ) ? 1L : 0L;
+            case "DEL":
+                this.expiresAt.remove( key );
+                return this.data.remove( key ) == null ? 0L : 1L;
+            case "GET":
+                return bulk( this.string( key ) );
+            case "SET":
+                this.data.put( key, arguments.get( 2 ) );
+                this.expiresAt.remove( key );
+                return "OK";
+            case "INCRBY": {
+                final String value = this.string( key );
+                final long incremented = ( value == null ? 0 : Long.parseLong( value ) ) + Long.parseLong( arguments.get( 2 ) );
+                this.data.put( key, Long.toString( incremented ) );
+                return incremented;
+            }
+            case "PEXPIREAT":
+                if ( !this.data.containsKey( key ) ) {
+                    return 0L;
+                }
+                this.expiresAt.put( key, Long.parseLong( arguments.get( 2 ) ) );
+                return 1L;
+            case "PTTL": {
+                if ( !this.data.containsKey( key ) ) {
+                    return -2L;
+                }
+                final Long expiry = this.expiresAt.get( key );
+                return expiry == null ? -1L : expiry - System.currentTimeMillis();
+            }
+            case "HGET":
+                return bulk( this.hash( key, false ) == null ? null : this.hash( key, false ).get( arguments.get( 2 ) ) );
+            case "HMGET": {
+                final Hash hash = this.hash( key, false );
+                final List<Object> values = new ArrayList<>();
+                for ( String field : arguments.subList( 2, arguments.size() ) ) {
+                    values.add( bulk( hash == null ? null : hash.get( field ) ) );
+                }
+                return values;
+            }
+            case "HGETALL": {
+                final Hash hash = this.hash( key, false );
+                final List<Object> values = new ArrayList<>();
+                if ( hash != null ) {
+                    for ( Map.Entry<String, String> field : hash.entrySet() ) {
+                        values.add( bulk( field.getKey() ) );
+                        values.add( bulk( field.getValue() ) );
+                    }
+                }
+                return values;
+            }
+            case "HSET": {
+                final Hash hash = this.hash( key, true );
+                long added = 0;
+                for ( int i = 2; i + 1 < arguments.size(); i += 2 ) {
+                    if ( hash.put( arguments.get( i ), arguments.get( i + 1 ) ) == null ) {
+                        added++;
+                    }
+                }
+                return added;
+            }
+            case "HINCRBY": {
+                final Hash hash = this.hash( key, true );
+                final String value = hash.get( arguments.get( 2 ) );
+                final long incremented = ( value == null ? 0 : Long.parseLong( value ) ) + Long.parseLong( arguments.get( 3 ) );
+                hash.put( arguments.get( 2 ), Long.toString( incremented ) );
+                return incremented;
+            }
+            default:
+                throw new RespException( "ERR unknown command '" + arguments.get( 0 ) + "'" );
+        }
+    }
+
+    private void expireIfDue( final String key ) {
+        final Long expiry = this.expiresAt.get( key );
+        if ( expiry != null && expiry <= System.currentTimeMillis() ) {
+            this.expiresAt.remove( key );
+            this.data.remove( key );
+        }
+    }
+
+    private String string( final String key ) {
+        final Object value = this.data.get( key );
+        if ( value != null && !( value instanceof String ) ) {
+            throw new RespException( "WRONGTYPE Operation against a key holding the wrong kind of value" );
+        }
+        return (String) value;
+    }
+
+    private Hash hash( final String key, final boolean create ) {
+        final Object value = this.data.get( key );
+        if ( value != null && !( value instanceof Hash ) ) {
+            throw new RespException( "WRONGTYPE Operation against a key holding the wrong kind of value" );
+        }
+        if ( value == null && create ) {
+            final Hash hash = new Hash();
+            this.data.put( key, hash );
+            return hash;
+        }
+        return (Hash) value;
+    }
+
+    private static byte[] bulk( final String value ) {
+        return value == null ? null : RespCodec.bytes( value );
+    }
+
+    private static LuaTable table( final List<String> values ) {
+        final LuaTable table = new LuaTable();
+        for ( int i = 0; i < values.size(); i++ ) {
+            table.set( i + 1, LuaValue.valueOf( values.get( i ) ) );
+        }
+        return table;
+    }
+
+    /**
+     * A reply of a command as a Lua value, like Redis converts it for redis.call()
+     */
+    private static LuaValue toLua( final Object reply ) {
+        if ( reply == null ) {
+            return LuaValue.FALSE;
+        }
+        if ( reply instanceof Long ) {
+            return LuaValue.valueOf( (double) (Long) reply );
+        }
+        if ( reply instanceof byte[] ) {
+            return LuaString.valueOf( (byte[]) reply );
+        }
+        if ( reply instanceof String ) {
+            final LuaTable status = new LuaTable();
+            status.set( "ok", LuaValue.valueOf( (String) reply ) );
+            return status;
+        }
+        final List<?> values = (List<?>) reply;
+        final LuaTable table = new LuaTable();
+        for ( int i = 0; i < values.size(); i++ ) {
+            table.set( i + 1, toLua( values.get( i ) ) );
+        }
+        return table;
+    }
+
+    /**
+     * The result of a script as a reply, like Redis converts it: numbers are truncated to integers, true is 1, false and nil are nil,
+     * and a table is an array up to its first nil unless it has an err or ok field
+     */
+    private static Object toReply( final LuaValue value ) {
+        switch ( value.type() ) {
+            case LuaValue.TNUMBER:
+                return (long) value.todouble();
+            case LuaValue.TSTRING:
+                return bulk( value.tojstring() );
+            case LuaValue.TBOOLEAN:
+                return value.toboolean() ? 1L : null;
+            case LuaValue.TTABLE: {
+                if ( value.get( "err" ).isstring() ) {
+                    return new RespException( value.get( "err" ).tojstring() );
+                }
+                if ( value.get( "ok" ).isstring() ) {
+                    return value.get( "ok" ).tojstring();
+                }
+                final List<Object> values = new ArrayList<>();
+                for ( int i = 1; !value.get( i ).isnil(); i++ ) {
+                    values.add( toReply( value.get( i ) ) );
+                }
+                return values;
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static final class Hash extends LinkedHashMap<String, String> {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * redis.call(), which raises the error reply of a command, or redis.pcall(), which returns it as a table with an err field
+     */
+    private final class RedisCall extends VarArgFunction {
+        private final boolean protectedCall;
+
+        private RedisCall( final boolean protectedCall ) {
+            this.protectedCall = protectedCall;
+        }
+
+        @Override
+        public Varargs invoke( final Varargs args ) {
+            final List<String> arguments = new ArrayList<>( args.narg() );
+            for ( int i = 1; i <= args.narg(); i++ ) {
+                if ( !args.arg( i ).isstring() ) {
+                    throw new LuaError( "Lua redis() command arguments must be strings or integers" );
+                }
+                arguments.add( args.arg( i ).tojstring() );
+            }
+            try {
+                return toLua( FakeRespServer.this.call( arguments ) );
+            }
+            catch ( RespException | NumberFormatException e ) {
+                final String message = e instanceof RespException ? e.getMessage() : "ERR value is not an integer or out of range";
+                if ( !this.protectedCall ) {
+                    throw new LuaError( message );
+                }
+                final LuaTable error = new LuaTable();
+                error.set( "err", LuaValue.valueOf( message ) );
+                return error;
+            }
+        }
+    }
+
+    /**
+     * string.format() of LuaJ converts the number of a %d to an int, Lua 5.1 of Redis to a long, which arrival times in microseconds
+     * need. Formats the integer conversions as Lua 5.1 does and leaves the others to LuaJ
+     */
+    private static final class IntegerFormat extends VarArgFunction {
+        private final LuaValue format;
+
+        private IntegerFormat( final LuaValue format ) {
+            this.format = format;
+        }
+
+        @Override
+        public Varargs invoke( final Varargs args ) {
+            final String pattern = args.checkjstring( 1 );
+            final StringBuilder rewritten = new StringBuilder();
+            final LuaValue[] values = new LuaValue[args.narg()];
+            int argument = 2;
+            for ( int i = 0; i < pattern.length(); i++ ) {
+                final char c = pattern.charAt( i );
+                rewritten.append( c );
+                if ( c != '%' ) {
+                    continue;
+                }
+                if ( i + 1 < pattern.length() && pattern.charAt( i + 1 ) == '%' ) {
+                    rewritten.append( pattern.charAt( ++i ) );
+                    continue;
+                }
+                int end = i + 1;
+                while ( end < pattern.length() && "-+ #0123456789.".indexOf( pattern.charAt( end ) ) >= 0 ) {
+                    end++;
+                }
+                if ( end < pattern.length() && ( pattern.charAt( end ) == 'd' || pattern.charAt( end ) == 'i' ) ) {
+                    rewritten.append( pattern, i + 1, end ).append( 's' );
+                    values[argument - 1] = LuaValue.valueOf( Long.toString( (long) args.checkdouble( argument ) ) );
+                    i = end;
+                }
+                argument++;
+            }
+            final LuaValue[] formatArgs = new LuaValue[args.narg()];
+            formatArgs[0] = LuaValue.valueOf( rewritten.toString() );
+            for ( int i = 2; i <= args.narg(); i++ ) {
+                formatArgs[i - 1] = values[i - 1] != null ? values[i - 1] : args.arg( i );
+            }
+            return this.format.invoke( LuaValue.varargsOf( formatArgs ) );
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.satadru.ratelimiter.leakybucket.distributed.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RespCodecTest {
+
+    @Test
+    public void commandsAreArraysOfBulkStrings() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RespCodec.encodeCommand( out, Arrays.asList( RespCodec.bytes( "GET" ), RespCodec.bytes( "key" ) ) );
+        assertEquals( "*2\r\n$3\r\nGET\r\n$3\r\nkey\r\n", new String( out.toByteArray() ) );
+    }
+
+    @Test
+    public void repliesAreDecodedToTheirTypes() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RespCodec.encodeReply( out, "OK" );
+        RespCodec.encodeReply( out, new RespException( "ERR wrong" ) );
+        RespCodec.encodeReply( out, -42L );
+        RespCodec.encodeReply( out, RespCodec.bytes( "line\r\nbreak" ) );
+        RespCodec.encodeReply( out, null );
+        RespCodec.encodeReply( out, Arrays.asList( 1L, Arrays.asList( RespCodec.bytes( "" ), null ) ) );
+        final ByteBuffer buffer = ByteBuffer.wrap( out.toByteArray() );
+
+        assertEquals( "OK", RespCodec.decode( buffer ) );
+        assertEquals( "ERR wrong", ( (RespException) RespCodec.decode( buffer ) ).getMessage() );
+        assertEquals( -42L, RespCodec.decode( buffer ) );
+        assertArrayEquals( RespCodec.bytes( "line\r\nbreak" ), (byte[]) RespCodec.decode( buffer ) );
+        assertNull( RespCodec.decode( buffer ) );
+        final List<?> array = (List<?>) RespCodec.decode( buffer );
+        assertEquals( 1L, array.get( 0 ) );
+        final List<?> nested = (List<?>) array.get( 1 );
+        assertArrayEquals( new byte[0], (byte[]) nested.get( 0 ) );
+        assertNull( nested.get( 1 ) );
+        assertTrue( !buffer.hasRemaining() );
+        assertSame( RespCodec.INCOMPLETE, RespCodec.decode( buffer ) );
+    }
+
+    @Test
+    public void aNilArrayIsNull() {
+        assertNull( RespCodec.decode( ByteBuffer.wrap( RespCodec.bytes( "*-1\r\n" ) ) ) );
+    }
+
+    @Test
+    public void aPartialValueLeavesThePositionUnchanged() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RespCodec.encodeReply( out, Arrays.asList( 1L, RespCodec.bytes( "value" ), Collections.singletonList( "OK" ) ) );
+        final byte[] encoded = out.toByteArray();
+        for ( int length = 0; length < encoded.length; length++ ) {
+            final ByteBuffer buffer = ByteBuffer.wrap( encoded, 0, length );
+            assertSame( "Decoded from " + length + " bytes", RespCodec.INCOMPLETE, RespCodec.decode( buffer ) );
+            assertEquals( 0, buffer.position() );
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap( encoded );
+        final List<?> array = (List<?>) RespCodec.decode( buffer );
+        assertEquals( "value", RespCodec.string( array.get( 1 ) ) );
+        assertEquals( encoded.length, buffer.position() );
+    }
+}
@@ -0,0 +1,138 @@
+package com.satadru.ratelimiter.leakybucket.distributed.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RespConnectionPoolTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds( 5 );
+
+    private FakeRespServer server;
+    private RespConnectionPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        this.server = new FakeRespServer( 0 );
+        this.pool = new RespConnectionPool( this.server.getAddress(), 2, TIMEOUT );
+    }
+
+    @After
+    public void tearDown() {
+        this.pool.close();
+        this.server.close();
+    }
+
+    @Test
+    public void concurrentCommandsArePipelined() throws InterruptedException {
+        final int threads = 4;
+        final int commands = 1000;
+        final List<List<CompletableFuture<Object>>> replies = new ArrayList<>();
+        final List<Thread> senders = new ArrayList<>();
+        for ( int t = 0; t < threads; t++ ) {
+            final String key = "counter-" + t;
+            final List<CompletableFuture<Object>> sent = new ArrayList<>();
+            replies.add( sent );
+            senders.add( new Thread( () -> {
+                for ( int i = 0; i < commands; i++ ) {
+                    sent.add( this.pool.send( command( "INCRBY", key, "1" ) ) );
+                }
+            } ) );
+        }
+        senders.forEach( Thread::start );
+        for ( Thread sender : senders ) {
+            sender.join();
+        }
+        for ( int t = 0; t < threads; t++ ) {
+            // Every command got its own reply, though the connections interleave the increments of a key
+            final Set<Object> counts = new HashSet<>();
+            for ( CompletableFuture<Object> reply : replies.get( t ) ) {
+                counts.add( RespConnectionPool.await( reply, TIMEOUT ) );
+            }
+            assertEquals( commands, counts.size() );
+            assertEquals( Long.toString( commands ), RespCodec.string( this.pool.execute( command( "GET", "counter-" + t ) ) ) );
+        }
+    }
+
+    @Test
+    public void anErrorReplyFailsOnlyItsCommand() {
+        final CompletableFuture<Object> failing = this.pool.send( command( "NOSUCHCOMMAND" ) );
+        final CompletableFuture<Object> succeeding = this.pool.send( command( "PING" ) );
+        try {
+            RespConnectionPool.await( failing, TIMEOUT );
+            fail( "An error reply did not fail the command" );
+        }
+        catch ( RespException e ) {
+            assertTrue( e.getMessage().startsWith( "ERR unknown command" ) );
+        }
+        assertEquals( "PONG", RespConnectionPool.await( succeeding, TIMEOUT ) );
+    }
+
+    @Test
+    public void commandsAfterARestartOfTheServerReconnect() throws IOException {
+        this.pool.execute( command( "SET", "key", "before" ) );
+        final int port = this.server.getAddress().getPort();
+        this.server.close();
+        // Fails the commands of the connections closed by the server, then reconnects
+        for ( int i = 0; i < 4; i++ ) {
+            try {
+                this.pool.execute( command( "PING" ) );
+            }
+            catch ( RespException e ) {
+                // Expected while the server is down
+            }
+        }
+        this.server = new FakeRespServer( port );
+        Object reply = null;
+        for ( int attempt = 0; attempt < 4 && reply == null; attempt++ ) {
+            try {
+                reply = this.pool.execute( command( "PING" ) );
+            }
+            catch ( RespException e ) {
+                // A connection which failed before the restart is reopened by the next command sent on it
+            }
+        }
+        assertEquals( "PONG", reply );
+        assertEquals( "PONG", this.pool.execute( command( "PING" ) ) );
+    }
+
+    @Test
+    public void aPoolWhichCannotConnectFailsFast() throws IOException {
+        final int port;
+        try ( ServerSocket socket = new ServerSocket( 0 ) ) {
+            port = socket.getLocalPort();
+        }
+        final long startNanos = System.nanoTime();
+        try {
+            new RespConnectionPool( new InetSocketAddress( "127.0.0.1", port ), 2, TIMEOUT ).close();
+            fail( "Connected to a closed port" );
+        }
+        catch ( RespException e ) {
+            assertTrue( e.getMessage().startsWith( "Failed to connect" ) );
+        }
+        assertTrue( System.nanoTime() - startNanos < TIMEOUT.toNanos() );
+    }
+
+    private static List<byte[]> command( final String... arguments ) {
+        final List<byte[]> command = new ArrayList<>();
+        for ( String argument : Arrays.asList( arguments ) ) {
+            command.add( RespCodec.bytes( argument ) );
+        }
+        return command;
+    }
+}
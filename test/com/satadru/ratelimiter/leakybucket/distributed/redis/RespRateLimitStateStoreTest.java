@@ -0,0 +1,169 @@
+package com.satadru.ratelimiter.leakybucket.distributed.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.pojo.ArrivalTimes;
+import com.satadru.ratelimiter.pojo.SQSPayload;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+public class RespRateLimitStateStoreTest {
+
+    private static final TokenBucketKey KEY = new TokenBucketKey( "createOrder:POST", "client-1" );
+
+    private FakeRespServer server;
+    private RespConnectionPool pool;
+    private RespRateLimitStateStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        this.server = new FakeRespServer( 0 );
+        this.pool = new RespConnectionPool( this.server.getAddress(), 2, Duration.ofSeconds( 5 ) );
+        this.store = new RespRateLimitStateStore( this.pool, "test:" );
+    }
+
+    @After
+    public void tearDown() {
+        this.store.close();
+        this.server.close();
+    }
+
+    @Test
+    public void aRecordIsReadAsItWasPut() {
+        assertNull( this.store.get( KEY ) );
+        this.store.put( KEY, record( 0, 0 ) );
+
+        final Map<String, Object> record = this.store.get( KEY );
+        assertEquals( KEY.getHashKey(), record.get( Configuration.RATE_LIMITING_HASH_KEY_NAME ) );
+        assertEquals( KEY.getClientId(), record.get( Configuration.RATE_LIMITING_RANGE_KEY_NAME ) );
+        assertEquals( 0, new BigDecimal( 10 ).compareTo( (BigDecimal) this.second( record ).get( Configuration.ATTRIBUTE_RATE_LIMITING_MAX_ALLOWED_RATE ) ) );
+        assertEquals( Collections.singleton( KEY ), this.store.batchGet( Arrays.asList( KEY, new TokenBucketKey( "createOrder:POST", "unknown" ) ) ).keySet() );
+    }
+
+    @Test
+    public void usageIsAppliedToConfiguredRecordsOnly() {
+        this.store.put( KEY, record( 0, 0 ) );
+        final long now = System.currentTimeMillis();
+        final TokenBucketKey unknown = new TokenBucketKey( "createOrder:POST", "unknown" );
+        final Map<TokenBucketKey, List<SQSPayload>> usage = ImmutableMap.of(
+                KEY, Arrays.asList( payload( KEY, now, 3 ), payload( KEY, now + 1, 2 ) ),
+                unknown, Collections.singletonList( payload( unknown, now, 1 ) ) );
+
+        assertTrue( this.store.batchApplyUsage( usage ).isEmpty() );
+
+        // The first payload resets the burst period to its 3 calls, the second adds its 2
+        assertEquals( 0, new BigDecimal( 5 ).compareTo( (BigDecimal) this.second( this.store.get( KEY ) ).get( Configuration.ATTRIBUTE_RATE_LIMITING_CALLS_IN_PERIOD ) ) );
+        assertNull( this.store.get( unknown ) );
+    }
+
+    @Test
+    public void leasesOfAWindowAddUpToItsMaxCalls() {
+        final long windowStart = System.currentTimeMillis() / 1000 * 1000;
+        assertEquals( 6, this.store.leaseQuota( KEY, Period.SECOND, windowStart, 6, 10 ) );
+        assertEquals( 4, this.store.leaseQuota( KEY, Period.SECOND, windowStart, 6, 10 ) );
+        assertEquals( 0, this.store.leaseQuota( KEY, Period.SECOND, windowStart, 6, 10 ) );
+        assertEquals( 6, this.store.leaseQuota( KEY, Period.SECOND, windowStart + 1000, 6, 10 ) );
+    }
+
+    @Test
+    public void arrivalTimesAreComparedAndSet() {
+        this.store.put( KEY, record( 0, 0 ) );
+        final long[] none = new long[Period.count()];
+        assertArrayEquals( none, this.store.getArrivalTimes( KEY ) );
+
+        final long[] update = none.clone();
+        update[Period.SECOND.ordinal()] = 1_760_000_000_000_000L;
+        assertTrue( this.store.compareAndSetArrivalTimes( KEY, none, update ) );
+        assertFalse( this.store.compareAndSetArrivalTimes( KEY, none, update ) );
+        assertArrayEquals( update, this.store.getArrivalTimes( KEY ) );
+    }
+
+    @Test
+    public void arrivalTimesAdvanceUpToTheLimit() {
+        final long now = 1_760_000_000_000_000L;
+        final long[] emissionIntervals = new long[Period.count()];
+        final long[] limits = new long[Period.count()];
+        emissionIntervals[Period.SECOND.ordinal()] = 100_000;
+        limits[Period.SECOND.ordinal()] = 200_000;
+        this.store.put( KEY, record( 0, 0 ) );
+
+        ArrivalTimes times = this.store.advanceArrivalTimes( KEY, null, now, 1, emissionIntervals, limits );
+        assertTrue( times.isAdvanced() );
+        times = this.store.advanceArrivalTimes( KEY, times.getTimes(), now, 1, emissionIntervals, limits );
+        assertTrue( times.isAdvanced() );
+        // Denied from the guess without a call to the server
+        assertFalse( this.store.advanceArrivalTimes( KEY, times.getTimes(), now, 1, emissionIntervals, limits ).isAdvanced() );
+        // Denied by the server for a stale guess
+        assertFalse( this.store.advanceArrivalTimes( KEY, null, now, 1, emissionIntervals, limits ).isAdvanced() );
+        assertEquals( now + 200_000, this.store.getArrivalTimes( KEY )[Period.SECOND.ordinal()] );
+    }
+
+    @Test
+    public void arrivalTimesDoNotCreateARecord() {
+        final long[] none = new long[Period.count()];
+        final long[] update = none.clone();
+        update[Period.SECOND.ordinal()] = 1_760_000_000_000_000L;
+        final long[] emissionIntervals = update.clone();
+        final long[] limits = update.clone();
+
+        assertNull( this.store.getArrivalTimes( KEY ) );
+        assertFalse( this.store.compareAndSetArrivalTimes( KEY, none, update ) );
+        assertNull( this.store.advanceArrivalTimes( KEY, null, 0, 1, emissionIntervals, limits ) );
+        assertNull( this.store.get( KEY ) );
+
+        // A hash holding only arrival times, as written before they checked for the record, is no record either
+        this.pool.execute( Arrays.asList( RespCodec.bytes( "HSET" ), RespCodec.bytes( "test:" + KEY.getHashKey() + "|" + KEY.getClientId() ),
+                                          RespCodec.bytes( "tat.second" ), RespCodec.bytes( "1" ) ) );
+        assertNull( this.store.get( KEY ) );
+        assertNull( this.store.getArrivalTimes( KEY ) );
+    }
+
+    @Test
+    public void scriptsAreSentAgainAfterTheServerForgotThem() {
+        final long windowStart = System.currentTimeMillis() / 1000 * 1000;
+        assertEquals( 1, this.store.leaseQuota( KEY, Period.SECOND, windowStart, 1, 10 ) );
+        this.pool.execute( Arrays.asList( RespCodec.bytes( "SCRIPT" ), RespCodec.bytes( "FLUSH" ) ) );
+        assertEquals( 1, this.store.leaseQuota( KEY, Period.SECOND, windowStart, 1, 10 ) );
+    }
+
+    private Map<?, ?> second( final Map<String, Object> record ) {
+        return (Map<?, ?>) ( (Map<?, ?>) record.get( Configuration.ATTRIBUTE_RATE_LIMITING_PAYLOAD ) ).get( Period.SECOND.getKey() );
+    }
+
+    private static Map<String, Object> record( final long callsInPeriod, final long lastUpdatedBurst ) {
+        final Map<String, Object> second = new HashMap<>();
+        second.put( Configuration.ATTRIBUTE_RATE_LIMITING_MAX_ALLOWED_RATE, BigDecimal.TEN );
+        second.put( Configuration.ATTRIBUTE_RATE_LIMITING_RATE, BigDecimal.ZERO );
+        second.put( Configuration.ATTRIBUTE_RATE_LIMITING_CALLS_IN_PERIOD, BigDecimal.valueOf( callsInPeriod ) );
+        second.put( Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED, BigDecimal.ZERO );
+        second.put( Configuration.ATTRIBUTE_RATE_LIMITING_LAST_UPDATED_BURST, BigDecimal.valueOf( lastUpdatedBurst ) );
+        final Map<String, Object> payload = new HashMap<>();
+        payload.put( Period.SECOND.getKey(), second );
+        final Map<String, Object> record = new HashMap<>();
+        record.put( Configuration.ATTRIBUTE_RATE_LIMITING_PAYLOAD, payload );
+        return record;
+    }
+
+    private static SQSPayload payload( final TokenBucketKey key, final long timestamp, final int callCount ) {
+        return new SQSPayload( key.getHashKey(), key.getClientId(), timestamp, ImmutableMap.of( Period.SECOND.getKey(), 0.5 ), callCount, timestamp );
+    }
+}
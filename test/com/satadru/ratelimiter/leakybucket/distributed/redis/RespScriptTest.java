@@ -0,0 +1,180 @@
+package com.satadru.ratelimiter.leakybucket.distributed.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import redis.embedded.RedisServer;
+
+/**
+ * Runs the scripts against a redis-server, Lua 5.1 as Redis embeds it, and against the FakeRespServer, so the fake behaves like Redis
+ * for the RespRateLimitStateStoreTest. Skipped for the redis-server where its binary does not run.
+ */
+@RunWith( Parameterized.class )
+public class RespScriptTest {
+
+    private static final String KEY = "test:record";
+    // Arrival times are in microseconds since the epoch, more than an int holds
+    private static final long NOW = 1_760_000_000_000_000L;
+
+    @Parameters( name = "{0}" )
+    public static List<Object[]> servers() {
+        return Arrays.asList( new Object[] { "redis-server" }, new Object[] { "FakeRespServer" } );
+    }
+
+    private final String serverName;
+    private AutoCloseable server;
+    private RespConnectionPool pool;
+
+    public RespScriptTest( final String serverName ) {
+        this.serverName = serverName;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final InetSocketAddress address;
+        if ( "redis-server".equals( this.serverName ) ) {
+            final int port;
+            try ( ServerSocket socket = new ServerSocket( 0 ) ) {
+                port = socket.getLocalPort();
+            }
+            final RedisServer redisServer = RedisServer.builder().port( port ).setting( "bind 127.0.0.1" ).setting( "save \"\"" ).build();
+            try {
+                redisServer.start();
+            }
+            catch ( RuntimeException e ) {
+                Assume.assumeNoException( "No redis-server for this platform", e );
+            }
+            this.server = redisServer::stop;
+            address = new InetSocketAddress( "127.0.0.1", port );
+        }
+        else {
+            final FakeRespServer fakeServer = new FakeRespServer( 0 );
+            this.server = fakeServer;
+            address = fakeServer.getAddress();
+        }
+        this.pool = new RespConnectionPool( address, 1, Duration.ofSeconds( 5 ) );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if ( this.pool != null ) {
+            this.pool.close();
+        }
+        if ( this.server != null ) {
+            this.server.close();
+        }
+    }
+
+    @Test
+    public void compareAndSetRecordWritesOnlyTheExpectedVersion() {
+        assertEquals( -1L, this.eval( RespScript.COMPARE_AND_SET_RECORD, "0", "second.callsInPeriod", "1" ) );
+        this.execute( "HSET", KEY, "version", "3" );
+
+        assertEquals( 0L, this.eval( RespScript.COMPARE_AND_SET_RECORD, "2", "second.callsInPeriod", "1" ) );
+        assertEquals( 1L, this.eval( RespScript.COMPARE_AND_SET_RECORD, "3", "second.callsInPeriod", "1", "second.rate", "0.5" ) );
+
+        assertEquals( "4", RespCodec.string( this.execute( "HGET", KEY, "version" ) ) );
+        assertEquals( "1", RespCodec.string( this.execute( "HGET", KEY, "second.callsInPeriod" ) ) );
+        assertEquals( "0.5", RespCodec.string( this.execute( "HGET", KEY, "second.rate" ) ) );
+    }
+
+    @Test
+    public void leaseQuotaGrantsAtMostWhatIsLeft() {
+        final String expiresAt = Long.toString( System.currentTimeMillis() + 60_000 );
+        assertEquals( 6L, this.eval( RespScript.LEASE_QUOTA, "6", "10", expiresAt ) );
+        assertEquals( 4L, this.eval( RespScript.LEASE_QUOTA, "6", "10", expiresAt ) );
+        assertEquals( 0L, this.eval( RespScript.LEASE_QUOTA, "6", "10", expiresAt ) );
+
+        assertEquals( "10", RespCodec.string( this.execute( "GET", KEY ) ) );
+        final long ttl = (Long) this.execute( "PTTL", KEY );
+        assertTrue( "TTL " + ttl, ttl > 0 && ttl <= 60_000 );
+    }
+
+    @Test
+    public void compareAndSetArrivalTimesTakesAMissingFieldAsZero() {
+        this.execute( "HSET", KEY, "second.callsInPeriod", "0" );
+        final String time = Long.toString( NOW );
+        assertEquals( 1L, this.eval( RespScript.COMPARE_AND_SET_ARRIVAL_TIMES, "tat.second", "0", time, "tat.minute", "0", time ) );
+        assertEquals( 0L, this.eval( RespScript.COMPARE_AND_SET_ARRIVAL_TIMES, "tat.second", "0", "1", "tat.minute", time, "1" ) );
+
+        assertEquals( time, RespCodec.string( this.execute( "HGET", KEY, "tat.second" ) ) );
+        assertEquals( time, RespCodec.string( this.execute( "HGET", KEY, "tat.minute" ) ) );
+    }
+
+    @Test
+    public void advanceArrivalTimesAdvancesAllPeriodsOrNone() {
+        // 10 calls a second with a burst of 2, 100 calls a minute with a burst of 3
+        final String[] periods = { "tat.second", "100000", "200000", "tat.minute", "600000", "1800000" };
+        this.execute( "HSET", KEY, "second.callsInPeriod", "0" );
+
+        assertEquals( Arrays.asList( 1L, NOW + 100_000, NOW + 600_000 ), this.advance( NOW, 1, periods ) );
+        assertEquals( Arrays.asList( 1L, NOW + 200_000, NOW + 1_200_000 ), this.advance( NOW, 1, periods ) );
+        // The second is at its burst, the minute is not, so neither advances
+        assertEquals( Arrays.asList( 0L, NOW + 200_000, NOW + 1_200_000 ), this.advance( NOW, 1, periods ) );
+        // Two permits at once, which the minute only has room for after 0.6 seconds
+        assertEquals( Arrays.asList( 0L, NOW + 200_000, NOW + 1_200_000 ), this.advance( NOW + 100_000, 2, periods ) );
+        assertEquals( Arrays.asList( 1L, NOW + 800_000, NOW + 2_400_000 ), this.advance( NOW + 600_000, 2, periods ) );
+
+        assertEquals( Long.toString( NOW + 800_000 ), RespCodec.string( this.execute( "HGET", KEY, "tat.second" ) ) );
+        assertEquals( Long.toString( NOW + 2_400_000 ), RespCodec.string( this.execute( "HGET", KEY, "tat.minute" ) ) );
+    }
+
+    @Test
+    public void arrivalTimesAreNotWrittenWithoutARecord() {
+        final String time = Long.toString( NOW );
+        assertEquals( -1L, this.eval( RespScript.COMPARE_AND_SET_ARRIVAL_TIMES, "tat.second", "0", time ) );
+        assertEquals( Collections.singletonList( -1L ), this.advance( NOW, 1, "tat.second", "100000", "200000" ) );
+        assertEquals( 0L, this.execute( "EXISTS", KEY ) );
+    }
+
+    @Test
+    public void aScriptIsKnownByItsSha1OnceItWasSent() {
+        try {
+            this.execute( "EVALSHA", RespScript.LEASE_QUOTA.getSha1(), "1", KEY, "1", "1", "0" );
+            fail( "Ran a script which was not sent" );
+        }
+        catch ( RespException e ) {
+            assertTrue( e.isNoScript() );
+        }
+        this.eval( RespScript.LEASE_QUOTA, "1", "10", "0" );
+        assertEquals( 1L, this.execute( "EVALSHA", RespScript.LEASE_QUOTA.getSha1(), "1", KEY + ":other", "1", "10", "0" ) );
+    }
+
+    private List<?> advance( final long now, final int permits, final String... periods ) {
+        final List<String> arguments = new ArrayList<>( Arrays.asList( Long.toString( now ), Integer.toString( permits ) ) );
+        arguments.addAll( Arrays.asList( periods ) );
+        return (List<?>) this.eval( RespScript.ADVANCE_ARRIVAL_TIMES, arguments.toArray( new String[0] ) );
+    }
+
+    private Object eval( final RespScript script, final String... arguments ) {
+        final List<String> command = new ArrayList<>( Arrays.asList( "EVAL", script.getSource(), "1", KEY ) );
+        command.addAll( Arrays.asList( arguments ) );
+        return this.execute( command.toArray( new String[0] ) );
+    }
+
+    private Object execute( final String... arguments ) {
+        final List<byte[]> command = new ArrayList<>();
+        for ( String argument : arguments ) {
+            command.add( RespCodec.bytes( argument ) );
+        }
+        return this.pool.execute( command );
+    }
+}
@@ -0,0 +1,167 @@
+package com.satadru.ratelimiter.leakybucket.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class LeakyBucketStateTest {
+
+    private static final int BUCKET_SIZE = 3;
+    private static final long REFILL_INTERVAL = 100;
+    private static final long TICK_MASK = ( 1L << 40 ) - 1;
+
+    @Test
+    public void theFirstTickIsRecordedOnceTheBucketIsFull() {
+        long state = LeakyBucketState.EMPTY;
+        state = consume( state, 1 );
+        state = consume( state, 2 );
+        assertEquals( 2, LeakyBucketState.dropsIssued( state ) );
+        assertEquals( 0, state & TICK_MASK );
+        // Nothing leaks before the bucket was full
+        state = consume( state, 5_000 );
+        assertEquals( 3, LeakyBucketState.dropsIssued( state ) );
+        assertEquals( 5_000, state & TICK_MASK );
+        assertEquals( LeakyBucketState.REJECTED, LeakyBucketState.tryConsume( state, 5_099, BUCKET_SIZE, REFILL_INTERVAL ) );
+    }
+
+    @Test
+    public void oneDropLeaksPerRefillInterval() {
+        long state = fill( 10 );
+        state = consume( state, 110 );
+        assertEquals( 110, state & TICK_MASK );
+        assertEquals( LeakyBucketState.REJECTED, LeakyBucketState.tryConsume( state, 209, BUCKET_SIZE, REFILL_INTERVAL ) );
+
+        // Two intervals leak two drops, the time past the last whole interval is lost as the last leak moves to now
+        state = consume( state, 360 );
+        assertEquals( 2, LeakyBucketState.dropsIssued( state ) );
+        assertEquals( 360, state & TICK_MASK );
+        state = consume( state, 360 );
+        assertEquals( LeakyBucketState.REJECTED, LeakyBucketState.tryConsume( state, 459, BUCKET_SIZE, REFILL_INTERVAL ) );
+    }
+
+    @Test
+    public void moreIntervalsThanDropsEmptyTheBucket() {
+        long state = fill( 10 );
+        state = consume( state, 10 + 50 * REFILL_INTERVAL );
+        assertEquals( 1, LeakyBucketState.dropsIssued( state ) );
+        state = consume( state, 10 + 50 * REFILL_INTERVAL );
+        state = consume( state, 10 + 50 * REFILL_INTERVAL );
+        assertEquals( LeakyBucketState.REJECTED, LeakyBucketState.tryConsume( state, 10 + 50 * REFILL_INTERVAL, BUCKET_SIZE, REFILL_INTERVAL ) );
+    }
+
+    @Test
+    public void theLargestBucketFitsTheState() {
+        final int bucketSize = LeakyBucketState.MAX_BUCKET_SIZE;
+        LeakyBucketState.checkBucketSize( bucketSize );
+        final long lastTick = TICK_MASK;
+        final long almostFull = ( (long) ( bucketSize - 1 ) << 40 ) | lastTick;
+        final long full = LeakyBucketState.tryConsume( almostFull, lastTick, bucketSize, REFILL_INTERVAL );
+        assertTrue( full > 0 );
+        assertEquals( bucketSize, LeakyBucketState.dropsIssued( full ) );
+        assertEquals( lastTick, full & TICK_MASK );
+        assertEquals( LeakyBucketState.REJECTED, LeakyBucketState.tryConsume( full, lastTick, bucketSize, REFILL_INTERVAL ) );
+
+        assertInvalidBucketSize( 0 );
+        assertInvalidBucketSize( -1 );
+        assertInvalidBucketSize( bucketSize + 1 );
+    }
+
+    @Test
+    public void theNextDropIsDueOneIntervalAfterTheLastLeak() {
+        assertEquals( 0, LeakyBucketState.millisUntilNextDrop( LeakyBucketState.EMPTY, 10, BUCKET_SIZE, REFILL_INTERVAL ) );
+        final long state = fill( 10 );
+        assertEquals( 100, LeakyBucketState.millisUntilNextDrop( state, 10, BUCKET_SIZE, REFILL_INTERVAL ) );
+        assertEquals( 1, LeakyBucketState.millisUntilNextDrop( state, 109, BUCKET_SIZE, REFILL_INTERVAL ) );
+        assertEquals( 0, LeakyBucketState.millisUntilNextDrop( state, 110, BUCKET_SIZE, REFILL_INTERVAL ) );
+        assertEquals( 0, LeakyBucketState.millisUntilNextDrop( state, 1_000, BUCKET_SIZE, REFILL_INTERVAL ) );
+        assertEquals( 0, LeakyBucketState.millisUntilNextDrop( consume( LeakyBucketState.EMPTY, 10 ), 10, BUCKET_SIZE, REFILL_INTERVAL ) );
+    }
+
+    @Test
+    public void concurrentConsumersNeverIssueMoreDropsThanTheBucketAllows() throws InterruptedException {
+        final int bucketSize = 100;
+        final AtomicLong state = new AtomicLong( LeakyBucketState.EMPTY );
+        assertEquals( bucketSize, consumeConcurrently( state, 1, bucketSize ) );
+        // Every interval leaks a single drop, however many threads are waiting for it
+        for ( int interval = 1; interval <= 3; interval++ ) {
+            assertEquals( 1, consumeConcurrently( state, 1 + interval * REFILL_INTERVAL, bucketSize ) );
+        }
+        assertEquals( 5, consumeConcurrently( state, 1 + 8 * REFILL_INTERVAL, bucketSize ) );
+    }
+
+    /**
+     * Lets 8 threads race for drops at the same tick, the way the rate limiters update their state
+     *
+     * @return the drops issued
+     */
+    private static int consumeConcurrently( final AtomicLong state, final long now, final int bucketSize ) throws InterruptedException {
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final AtomicInteger issued = new AtomicInteger();
+        final List<Thread> consumers = new ArrayList<>();
+        for ( int t = 0; t < threads; t++ ) {
+            consumers.add( new Thread( () -> {
+                try {
+                    start.await();
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for ( int i = 0; i < 1_000; i++ ) {
+                    while ( true ) {
+                        final long current = state.get();
+                        final long next = LeakyBucketState.tryConsume( current, now, bucketSize, REFILL_INTERVAL );
+                        if ( next == LeakyBucketState.REJECTED ) {
+                            break;
+                        }
+                        if ( state.compareAndSet( current, next ) ) {
+                            issued.incrementAndGet();
+                            break;
+                        }
+                    }
+                }
+            } ) );
+        }
+        consumers.forEach( Thread::start );
+        start.countDown();
+        for ( Thread consumer : consumers ) {
+            consumer.join();
+        }
+        return issued.get();
+    }
+
+    private static long fill( final long now ) {
+        long state = LeakyBucketState.EMPTY;
+        for ( int i = 0; i < BUCKET_SIZE; i++ ) {
+            state = consume( state, now );
+        }
+        assertEquals( now, state & TICK_MASK );
+        return state;
+    }
+
+    private static long consume( final long state, final long now ) {
+        final long next = LeakyBucketState.tryConsume( state, now, BUCKET_SIZE, REFILL_INTERVAL );
+        assertNotEquals( LeakyBucketState.REJECTED, next );
+        return next;
+    }
+
+    private static void assertInvalidBucketSize( final int bucketSize ) {
+        try {
+            LeakyBucketState.checkBucketSize( bucketSize );
+            fail( "Accepted bucketSize " + bucketSize );
+        }
+        catch ( IllegalArgumentException e ) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.satadru.ratelimiter.leakybucket.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.satadru.ratelimiter.configurations.Configuration;
+import com.satadru.ratelimiter.configurations.EndpointRateLimitConfiguration;
+import com.satadru.ratelimiter.pojo.EndpointRateLimit;
+
+public class StripedLeakyBucketEndpointRateLimiterTest {
+
+    // Nothing leaks while a test runs
+    private static final long REFILL_INTERVAL = TimeUnit.HOURS.toMillis( 1 );
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, EndpointRateLimit> limits = new HashMap<>();
+
+    @Test
+    public void everyEndpointHasItsOwnBucket() {
+        this.limit( Configuration.DEFAULT_ENDPOINT, 1 );
+        this.limit( "createOrder:POST", 2 );
+        this.limit( "getOrders:GET", 1 );
+        for ( int stripes : new int[] { 1, 16 } ) {
+            final StripedLeakyBucketEndpointRateLimiter limiter = new StripedLeakyBucketEndpointRateLimiter( this.limits, stripes );
+            assertTrue( limiter.consume( "createOrder", "POST" ) );
+            assertTrue( limiter.consume( "createOrder", "POST" ) );
+            assertFalse( limiter.consume( "createOrder", "POST" ) );
+            assertTrue( limiter.consume( "getOrders", "GET" ) );
+            assertFalse( limiter.consume( "getOrders", "GET" ) );
+            assertEquals( 0, limiter.retryAfterMillis( Configuration.DEFAULT_ENDPOINT, "GET" ) );
+        }
+    }
+
+    @Test
+    public void endpointsWithTheSameHashAreToldApart() {
+        // "Aa" and "BB" have the same String hash code, so their endpoints land in the same slot of the same stripe
+        assertEquals( "Aa".hashCode(), "BB".hashCode() );
+        this.limit( Configuration.DEFAULT_ENDPOINT, 1 );
+        this.limit( "Aa:GET", 1 );
+        this.limit( "BB:GET", 2 );
+        this.limit( "AaBB:GET", 3 );
+        this.limit( "BBAa:GET", 4 );
+        for ( int stripes : new int[] { 1, 2, 16 } ) {
+            final StripedLeakyBucketEndpointRateLimiter limiter = new StripedLeakyBucketEndpointRateLimiter( this.limits, stripes );
+            assertEquals( 1, consumeAll( limiter, "Aa", "GET" ) );
+            assertEquals( 2, consumeAll( limiter, "BB", "GET" ) );
+            assertEquals( 3, consumeAll( limiter, "AaBB", "GET" ) );
+            assertEquals( 4, consumeAll( limiter, "BBAa", "GET" ) );
+            // None of them took a drop of the default bucket
+            assertTrue( limiter.consume( "AaAa", "GET" ) );
+        }
+    }
+
+    @Test
+    public void unknownEndpointsShareTheDefaultBucket() {
+        this.limit( Configuration.DEFAULT_ENDPOINT, 2 );
+        this.limit( "createOrder:POST", 1 );
+        final StripedLeakyBucketEndpointRateLimiter limiter = new StripedLeakyBucketEndpointRateLimiter( this.limits, 4 );
+        assertTrue( limiter.consume( "cancelOrder", "POST" ) );
+        // Another verb of a configured API is not configured either
+        assertTrue( limiter.consume( "createOrder", "GET" ) );
+        assertFalse( limiter.consume( "getOrders", "GET" ) );
+        assertEquals( 0, limiter.retryAfterMillis( "createOrder", "POST" ) );
+        final long retryAfterMillis = limiter.retryAfterMillis( "cancelOrder", "POST" );
+        assertTrue( retryAfterMillis > 0 && retryAfterMillis <= REFILL_INTERVAL );
+        assertTrue( limiter.consume( "createOrder", "POST" ) );
+    }
+
+    @Test
+    public void theLimitsAreLoadedFromTheConfigurationFile() throws IOException {
+        final Path file = this.folder.newFile( "ENDPOINT_RATE_LIMITS.csv" ).toPath();
+        Files.write( file, Arrays.asList( "\"hashKey\",\"bucketSize\",\"refillIntervalInMillis\"",
+                                          "\"default\",\"1\",\"" + REFILL_INTERVAL + "\"",
+                                          "",
+                                          " \"createOrder:POST\", \"3\" , \"" + REFILL_INTERVAL + "\"",
+                                          "\"v1:orders:GET\",\"2\",\"10000\"" ), StandardCharsets.UTF_8 );
+        final Map<String, EndpointRateLimit> limits = EndpointRateLimitConfiguration.load( file.toString() );
+        assertEquals( 3, limits.size() );
+        assertEquals( 3, limits.get( "createOrder:POST" ).getBucketSize() );
+        assertEquals( 10_000, limits.get( "v1:orders:GET" ).getRefillIntervalInMillis() );
+
+        final StripedLeakyBucketEndpointRateLimiter limiter = new StripedLeakyBucketEndpointRateLimiter( file.toString() );
+        assertEquals( 3, consumeAll( limiter, "createOrder", "POST" ) );
+        // The method is after the last colon
+        assertEquals( 2, consumeAll( limiter, "v1:orders", "GET" ) );
+        assertEquals( 1, consumeAll( limiter, "getOrders", "GET" ) );
+    }
+
+    @Test
+    public void aMalformedConfigurationIsRejected() throws IOException {
+        final Path file = this.folder.newFile( "ENDPOINT_RATE_LIMITS.csv" ).toPath();
+        Files.write( file, Arrays.asList( "\"hashKey\",\"bucketSize\",\"refillIntervalInMillis\"", "\"default\",\"1\"" ), StandardCharsets.UTF_8 );
+        try {
+            EndpointRateLimitConfiguration.load( file.toString() );
+            fail( "Loaded a row without refillIntervalInMillis" );
+        }
+        catch ( IllegalArgumentException e ) {
+            // Expected
+        }
+
+        this.limit( "createOrder:POST", 1 );
+        assertInvalid( this.limits, 1 );
+        this.limit( Configuration.DEFAULT_ENDPOINT, 1 );
+        assertInvalid( this.limits, 3 );
+        this.limit( "createOrder", 1 );
+        assertInvalid( this.limits, 1 );
+        this.limits.remove( "createOrder" );
+        this.limit( "getOrders:GET", 0 );
+        assertInvalid( this.limits, 1 );
+    }
+
+    private void limit( final String endpoint, final int bucketSize ) {
+        this.limits.put( endpoint, new EndpointRateLimit( bucketSize, REFILL_INTERVAL ) );
+    }
+
+    /**
+     * @return the calls allowed until the bucket of the endpoint is full
+     */
+    private static int consumeAll( final StripedLeakyBucketEndpointRateLimiter limiter, final String apiName, final String method ) {
+        int allowed = 0;
+        while ( limiter.consume( apiName, method ) ) {
+            allowed++;
+        }
+        return allowed;
+    }
+
+    private static void assertInvalid( final Map<String, EndpointRateLimit> limits, final int stripes ) {
+        try {
+            new StripedLeakyBucketEndpointRateLimiter( limits, stripes );
+            fail( "Accepted " + limits.keySet() + " in " + stripes + " stripes" );
+        }
+        catch ( IllegalArgumentException e ) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.satadru.ratelimiter.leakybucket.penalty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.leakybucket.SimpleClientIdBasedRateLimiter;
+import com.satadru.ratelimiter.pojo.ConsumeRequest;
+import com.satadru.ratelimiter.pojo.ThrottleDecision;
+
+public class PenaltyBoxClientIdRateLimiterTest {
+
+    private static final String API_NAME = "createOrder";
+    private static final String METHOD = "POST";
+
+    private final AtomicLong clock = new AtomicLong( 1_000_000_000L );
+    private final StubRateLimiter stub = new StubRateLimiter();
+    private final PenaltyBoxClientIdRateLimiter limiter = new PenaltyBoxClientIdRateLimiter(
+            this.stub, new PenaltyBox( 2, Duration.ofMinutes( 5 ), Duration.ofSeconds( 10 ), this.clock::get ) );
+
+    @Test
+    public void aClientInACooldownDoesNotReachTheRateLimiter() {
+        this.stub.denied.add( "bad" );
+        assertFalse( this.limiter.consume( API_NAME, METHOD, "bad" ) );
+        assertFalse( this.limiter.consume( API_NAME, METHOD, "bad" ) );
+        assertEquals( 2, this.stub.calls.get() );
+
+        final ThrottleDecision decision = this.limiter.tryConsume( API_NAME, METHOD, "bad", new ThrottleDecision().allow( 5 ) );
+        assertFalse( decision.isAllowed() );
+        assertEquals( Period.SECOND, decision.getLimitingPeriod() );
+        assertEquals( 100, decision.getRetryAfterMillis() );
+        assertFalse( this.limiter.consumeAsync( API_NAME, METHOD, "bad" ).join().isAllowed() );
+        assertEquals( 2, this.stub.calls.get() );
+        // Other clients and other APIs of the client are not in the box
+        assertTrue( this.limiter.consume( API_NAME, METHOD, "good" ) );
+        assertFalse( this.limiter.consume( "cancelOrder", METHOD, "bad" ) );
+        assertEquals( 4, this.stub.calls.get() );
+
+        this.clock.addAndGet( TimeUnit.MILLISECONDS.toNanos( 100 ) );
+        this.stub.denied.clear();
+        assertTrue( this.limiter.consume( API_NAME, METHOD, "bad" ) );
+        assertEquals( 5, this.stub.calls.get() );
+    }
+
+    @Test
+    public void asyncDenialsAreCounted() {
+        this.stub.denied.add( "bad" );
+        assertFalse( this.limiter.consumeAsync( API_NAME, METHOD, "bad" ).join().isAllowed() );
+        assertFalse( this.limiter.consumeAsync( API_NAME, METHOD, "bad" ).join().isAllowed() );
+        assertFalse( this.limiter.consume( API_NAME, METHOD, "bad" ) );
+        assertEquals( 2, this.stub.calls.get() );
+    }
+
+    @Test
+    public void consumeAllMapsTheDecisionsBackToTheirRequests() {
+        this.stub.denied.add( "bad" );
+        this.limiter.consume( API_NAME, METHOD, "bad" );
+        this.limiter.consume( API_NAME, METHOD, "bad" );
+        this.stub.calls.set( 0 );
+
+        final List<ConsumeRequest> requests = Arrays.asList( new ConsumeRequest( API_NAME, METHOD, "bad" ),
+                                                             new ConsumeRequest( API_NAME, METHOD, "a" ),
+                                                             new ConsumeRequest( API_NAME, METHOD, "bad" ),
+                                                             new ConsumeRequest( API_NAME, METHOD, "b" ),
+                                                             new ConsumeRequest( "cancelOrder", METHOD, "bad" ) );
+        final List<ThrottleDecision> decisions = this.limiter.consumeAll( requests );
+        assertEquals( requests.size(), decisions.size() );
+        // Only the requests which are not in the box were passed on, as one batch
+        assertEquals( Arrays.asList( requests.get( 1 ), requests.get( 3 ), requests.get( 4 ) ), this.stub.batch );
+        assertEquals( 3, this.stub.calls.get() );
+
+        // The rejections of the box keep their place, the stub allows with the position of the request in its batch
+        assertFalse( decisions.get( 0 ).isAllowed() );
+        assertEquals( 100, decisions.get( 0 ).getRetryAfterMillis() );
+        assertTrue( decisions.get( 1 ).isAllowed() );
+        assertEquals( 0, decisions.get( 1 ).getRemaining() );
+        assertFalse( decisions.get( 2 ).isAllowed() );
+        assertEquals( 100, decisions.get( 2 ).getRetryAfterMillis() );
+        assertTrue( decisions.get( 3 ).isAllowed() );
+        assertEquals( 1, decisions.get( 3 ).getRemaining() );
+        // Denied by the stub, and counted by the box
+        assertFalse( decisions.get( 4 ).isAllowed() );
+        assertFalse( this.limiter.consume( "cancelOrder", METHOD, "bad" ) );
+        assertEquals( 4, this.stub.calls.get() );
+        assertFalse( this.limiter.consume( "cancelOrder", METHOD, "bad" ) );
+        assertEquals( 4, this.stub.calls.get() );
+    }
+
+    @Test
+    public void consumeAllRejectedByTheBoxDoesNotReachTheRateLimiter() {
+        this.stub.denied.add( "bad" );
+        this.limiter.consume( API_NAME, METHOD, "bad" );
+        this.limiter.consume( API_NAME, METHOD, "bad" );
+        this.stub.calls.set( 0 );
+
+        final List<ThrottleDecision> decisions = this.limiter.consumeAll( Arrays.asList( new ConsumeRequest( API_NAME, METHOD, "bad" ),
+                                                                                         new ConsumeRequest( API_NAME, METHOD, "bad", 3 ) ) );
+        assertEquals( 2, decisions.size() );
+        assertFalse( decisions.get( 0 ).isAllowed() );
+        assertFalse( decisions.get( 1 ).isAllowed() );
+        assertEquals( 0, this.stub.calls.get() );
+    }
+
+    /**
+     * Denies the calls of the clientIds in denied, of any API, by the second for 100 ms and allows all the others. An allowed call
+     * of a batch gets its position in the batch as the remaining calls
+     */
+    private static final class StubRateLimiter implements SimpleClientIdBasedRateLimiter {
+        private final Set<String> denied = new HashSet<>();
+        private final AtomicInteger calls = new AtomicInteger();
+        private List<ConsumeRequest> batch;
+
+        @Override
+        public boolean consume( final String apiName, final String method, final String clientId, final int permits ) {
+            return this.tryConsume( apiName, method, clientId, permits, new ThrottleDecision() ).isAllowed();
+        }
+
+        @Override
+        public ThrottleDecision tryConsume( final String apiName, final String method, final String clientId, final int permits,
+                                            final ThrottleDecision decision ) {
+            return this.decide( clientId, 0, decision );
+        }
+
+        @Override
+        public List<ThrottleDecision> consumeAll( final List<ConsumeRequest> requests ) {
+            this.batch = new ArrayList<>( requests );
+            final List<ThrottleDecision> decisions = new ArrayList<>( requests.size() );
+            for ( int i = 0; i < requests.size(); i++ ) {
+                decisions.add( this.decide( requests.get( i ).getClientId(), i, new ThrottleDecision() ) );
+            }
+            return decisions;
+        }
+
+        @Override
+        public CompletableFuture<ThrottleDecision> consumeAsync( final String apiName, final String method, final String clientId ) {
+            return CompletableFuture.completedFuture( this.decide( clientId, 0, new ThrottleDecision() ) );
+        }
+
+        private ThrottleDecision decide( final String clientId, final long remaining, final ThrottleDecision decision ) {
+            this.calls.incrementAndGet();
+            return this.denied.contains( clientId ) ? decision.deny( Period.SECOND, 100 ) : decision.allow( remaining );
+        }
+    }
+}
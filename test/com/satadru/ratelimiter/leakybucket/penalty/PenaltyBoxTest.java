@@ -0,0 +1,127 @@
+package com.satadru.ratelimiter.leakybucket.penalty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.satadru.ratelimiter.configurations.Period;
+import com.satadru.ratelimiter.pojo.ThrottleDecision;
+import com.satadru.ratelimiter.pojo.TokenBucketKey;
+
+public class PenaltyBoxTest {
+
+    private static final TokenBucketKey KEY = new TokenBucketKey( "createOrder:POST", "client-1" );
+
+    private final AtomicLong clock = new AtomicLong( 1_000_000_000L );
+    private final PenaltyBox penaltyBox = new PenaltyBox( 3, Duration.ofMinutes( 5 ), Duration.ofSeconds( 10 ), this.clock::get );
+
+    @Test
+    public void consecutiveDenialsStartACooldownOfTheRetryAfter() {
+        this.deny( 2, Period.SECOND, 100 );
+        assertFalse( this.penaltyBox.reject( KEY, new ThrottleDecision() ) );
+        this.deny( 1, Period.SECOND, 100 );
+
+        final ThrottleDecision decision = new ThrottleDecision();
+        assertTrue( this.penaltyBox.reject( KEY, decision ) );
+        assertFalse( decision.isAllowed() );
+        assertEquals( Period.SECOND, decision.getLimitingPeriod() );
+        assertEquals( 100, decision.getRetryAfterMillis() );
+
+        this.advanceMillis( 99 );
+        assertTrue( this.penaltyBox.reject( KEY, null ) );
+        this.advanceMillis( 1 );
+        assertFalse( this.penaltyBox.reject( KEY, null ) );
+    }
+
+    @Test
+    public void anAllowedCallResetsTheDenials() {
+        this.deny( 2, Period.SECOND, 100 );
+        this.penaltyBox.record( KEY, new ThrottleDecision().allow( 0 ) );
+        this.deny( 2, Period.SECOND, 100 );
+        assertFalse( this.penaltyBox.reject( KEY, null ) );
+        this.deny( 1, Period.SECOND, 100 );
+        assertTrue( this.penaltyBox.reject( KEY, null ) );
+    }
+
+    @Test
+    public void aRepeatOffenderGetsTwiceTheCooldownUpToThePeriod() {
+        assertEquals( 300, this.sentence( Period.SECOND, 300 ) );
+        assertEquals( 600, this.sentence( Period.SECOND, 300 ) );
+        // Capped at the second
+        assertEquals( 1000, this.sentence( Period.SECOND, 300 ) );
+        assertEquals( 1000, this.sentence( Period.SECOND, 300 ) );
+        assertEquals( 4, (int) this.penaltyBox.getStrikes().get( KEY.toString() ) );
+    }
+
+    @Test
+    public void theCooldownIsCappedByMaxCooldown() {
+        final PenaltyBox penaltyBox = new PenaltyBox( 1, Duration.ofMillis( 500 ), Duration.ofSeconds( 10 ), this.clock::get );
+        penaltyBox.record( KEY, new ThrottleDecision().deny( Period.MINUTE, 400 ) );
+        assertEquals( 400, this.cooldownMillis( penaltyBox ) );
+        this.advanceMillis( 400 );
+        penaltyBox.record( KEY, new ThrottleDecision().deny( Period.MINUTE, 400 ) );
+        assertEquals( 500, this.cooldownMillis( penaltyBox ) );
+    }
+
+    @Test
+    public void strikesDecayAfterStrikeDecay() {
+        assertEquals( 100, this.sentence( Period.SECOND, 100 ) );
+        assertEquals( 200, this.sentence( Period.SECOND, 100 ) );
+        // sentence() waits out the cooldown, then 10 seconds more
+        this.advanceMillis( TimeUnit.SECONDS.toMillis( 10 ) + 1 );
+        assertEquals( 100, this.sentence( Period.SECOND, 100 ) );
+    }
+
+    @Test
+    public void aDenialWithoutRetryAfterStartsNoCooldown() {
+        this.deny( 3, null, 0 );
+        assertFalse( this.penaltyBox.reject( KEY, null ) );
+        for ( int i = 0; i < 3; i++ ) {
+            this.penaltyBox.record( KEY, new ThrottleDecision().reject( Period.SECOND ) );
+        }
+        assertFalse( this.penaltyBox.reject( KEY, null ) );
+    }
+
+    @Test
+    public void aReleasedKeyStartsOver() {
+        this.sentence( Period.SECOND, 100 );
+        this.deny( 3, Period.SECOND, 100 );
+        this.penaltyBox.release( KEY.getHashKey(), KEY.getClientId() );
+        assertFalse( this.penaltyBox.reject( KEY, null ) );
+        assertEquals( 100, this.sentence( Period.SECOND, 100 ) );
+    }
+
+    /**
+     * Puts the key into the box and waits for the cooldown to end
+     *
+     * @return the cooldown in milliseconds
+     */
+    private long sentence( final Period limitingPeriod, final long retryAfterMillis ) {
+        this.deny( 3, limitingPeriod, retryAfterMillis );
+        final long cooldownMillis = this.cooldownMillis( this.penaltyBox );
+        this.advanceMillis( cooldownMillis );
+        return cooldownMillis;
+    }
+
+    private long cooldownMillis( final PenaltyBox penaltyBox ) {
+        final ThrottleDecision decision = new ThrottleDecision();
+        assertTrue( penaltyBox.reject( KEY, decision ) );
+        return decision.getRetryAfterMillis();
+    }
+
+    private void deny( final int times, final Period limitingPeriod, final long retryAfterMillis ) {
+        for ( int i = 0; i < times; i++ ) {
+            this.penaltyBox.record( KEY, new ThrottleDecision().deny( limitingPeriod, retryAfterMillis ) );
+        }
+    }
+
+    private void advanceMillis( final long millis ) {
+        this.clock.addAndGet( TimeUnit.MILLISECONDS.toNanos( millis ) );
+    }
+}